@@ -0,0 +1,34 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.util.Log;
+
+/**
+ * Passes the log output of the positioning code (see Logger) on to logcat.
+ */
+public class AndroidLogSink implements Logger.Sink {
+    @Override
+    public void log(int level, String tag, String msg, Throwable tr) {
+        if (tr != null)
+            msg = msg + '\n' + Log.getStackTraceString(tr);
+        Log.println(level, tag, msg);
+    }
+}
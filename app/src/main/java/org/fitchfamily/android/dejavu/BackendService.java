@@ -30,11 +30,14 @@ import android.content.IntentFilter;
 import android.content.pm.PackageManager;
 import android.content.ServiceConnection;
 import android.location.Location;
+import android.location.LocationManager;
 import android.net.wifi.ScanResult;
 import android.net.wifi.WifiManager;
 import android.os.Build;
 import android.os.Bundle;
+import android.os.Handler;
 import android.os.IBinder;
+import android.os.Looper;
 import android.os.SystemClock;
 import android.telephony.CellIdentityGsm;
 import android.telephony.CellIdentityLte;
@@ -51,17 +54,22 @@ import static android.Manifest.permission.ACCESS_FINE_LOCATION;
 import static android.Manifest.permission.ACCESS_WIFI_STATE;
 import static android.Manifest.permission.CHANGE_WIFI_STATE;
 
-import java.util.ArrayList;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
 import java.util.Collection;
-import java.util.Collections;
 import java.util.Queue;
 import java.util.concurrent.ConcurrentLinkedQueue;
-import java.util.Comparator;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.FutureTask;
 import java.util.HashSet;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicLong;
 
 import org.microg.nlp.api.LocationBackendService;
 import org.microg.nlp.api.MPermissionHelperActivity;
@@ -69,22 +77,10 @@ import org.microg.nlp.api.MPermissionHelperActivity;
 public class BackendService extends LocationBackendService {
     private static final String TAG = "DejaVu Backend";
 
-    public static final String LOCATION_PROVIDER = "DejaVu";
-
-    public static final double DEG_TO_METER = 111225.0;
-    public static final double METER_TO_DEG = 1.0 / DEG_TO_METER;
-    public static final double MIN_COS = 0.01;      // for things that are dividing by the cosine
-
-    // Define range of received signal strength to be used for all emitter types.
-    // Basically use the same range of values for LTE and WiFi as GSM defaults to.
-    public static final int MAXIMUM_ASU = 31;
-    public static final int MINIMUM_ASU = 1;
-
-    // KPH -> Meters/millisec (KPH * 1000) / (60*60*1000) -> KPH/3600
-    public static final float EXPECTED_SPEED = 120.0f / 3600;           // 120KPH (74 MPH)
-    public static final float MINIMUM_BELIEVABLE_ACCURACY = 15.0F;
-
-    private static final double WEIGHTING_FACTOR = 1000.0;
+    static {
+        // The positioning code logs through Logger, send it to logcat.
+        Logger.setSink(new AndroidLogSink());
+    }
 
     /**
      * Process noise for lat and lon.
@@ -97,12 +93,95 @@ public class BackendService extends LocationBackendService {
     private final static double GPS_COORDINATE_NOISE = 3.0;
     private final static double POSITION_COORDINATE_NOISE = 6.0;
 
+    /**
+     * Maximum age of a saved snapshot whose GPS filter and reporting period
+     * information we will use on startup. Older filter state would have such a
+     * large uncertainty it would not be useful and the period is long over.
+     */
+    private final static long MAX_SNAPSHOT_AGE = 15 * 60 * 1000;             // in milliseconds
+
+    /**
+     * When microG/UnifiedNlp asks for an update we answer immediately with the last
+     * location we reported if it is no older and no less accurate than these limits.
+     */
+    private final static long FAST_PATH_MAX_AGE = 30 * 1000;                  // in milliseconds
+    private final static float FAST_PATH_MAX_ACCURACY = 500.0f;               // in meters
+
+    /**
+     * Between scans we report where a Kalman track of our own reported positions
+     * predicts we are, every PREDICTION_INTERVAL (zero to turn this off). We stop
+     * when the track has not had a new position for PREDICTION_MAX_AGE, its
+     * accuracy has grown too large by then. A new position further than
+     * TRACK_RESET_SIGMA times its accuracy from the prediction restarts the track.
+     */
+    private final static long PREDICTION_INTERVAL = 1000;                     // in milliseconds
+    private final static long PREDICTION_MAX_AGE = 20 * 1000;                 // in milliseconds
+    private final static float TRACK_RESET_SIGMA = 3.0f;
+
+    /**
+     * If this directory exists in our external files directory when we are opened
+     * the scans we process are recorded to a new trace file in it, for replaying
+     * through the scan processing elsewhere (see ScanTrace). Off in normal use,
+     * traces grow without limit. Create the directory to start recording and
+     * remove it to stop, from the next open on:
+     *
+     *     adb shell mkdir /sdcard/Android/data/org.fitchfamily.android.dejavu/files/traces
+     */
+    private final static String TRACE_DIR = "traces";
+
+    /**
+     * Emitter archives (see EmitterArchive) copied to this directory of our external
+     * files directory are imported into the database, in the background once we are
+     * opened and warmed up, and then deleted. An archive that cannot be imported is renamed with FAILED_SUFFIX and
+     * left for the user; one whose import was cut short by our closing is tried
+     * again when next opened. For example:
+     *
+     *     adb push region.bin.gz /sdcard/Android/data/org.fitchfamily.android.dejavu/files/import/
+     */
+    private final static String IMPORT_DIR = "import";
+    private final static String FAILED_SUFFIX = ".failed";
+
+    /**
+     * A read-only pack of emitters for the region (see EmitterPack) with this name in
+     * our external files directory is used alongside the database. We check for a new
+     * pack every PACK_CHECK_INTERVAL, so it can be replaced while we run by renaming
+     * a complete pack over it:
+     *
+     *     adb push region.pack /sdcard/Android/data/org.fitchfamily.android.dejavu/files/emitters.pack.new
+     *     adb shell mv /sdcard/Android/data/org.fitchfamily.android.dejavu/files/emitters.pack.new \
+     *             /sdcard/Android/data/org.fitchfamily.android.dejavu/files/emitters.pack
+     */
+    private final static String PACK_NAME = "emitters.pack";
+    private final static long PACK_CHECK_INTERVAL = 60 * 1000;                // in milliseconds
+
     private static BackendService instance;
     private boolean gpsMonitorRunning = false;
 
     // We use a threads for potentially slow operations.
-    private Thread mobileThread;
-    private Thread backgroundThread;
+    private final AtomicBoolean mobileScanRunning = new AtomicBoolean(false);
+    private final AtomicBoolean backgroundRunning = new AtomicBoolean(false);
+
+    //
+    // Threading. GPS positions are filtered on the GPS ingestion thread, which owns
+    // the GPS Kalman filter and publishes its output as a FilterState. Scans are
+    // queued, lock free, for the background processing thread, which owns the
+    // scan processor (and with it the reporting period state) and the report
+    // track. The only other users of that state are saving and restoring
+    // snapshots, so it is guarded by processingLock rather than by our monitor,
+    // and nothing on the GPS or scan paths waits for a processing pass.
+    //
+    // The time processingLock is held is recorded and logged on close.
+    //
+    private final Object processingLock = new Object();
+    private long lockHolds;                 // Guarded by processingLock
+    private long lockHoldNanos;
+    private long lockMaxHoldNanos;
+
+    // Opening the database and loading the pages for our area is slow, so it is
+    // started when we are opened. Processing of scans waits for it to complete.
+    private FutureTask<Void> warmUpTask;
+    private long openTime;
+    private boolean firstFixReported;
 
     private TelephonyManager tm;
 
@@ -119,21 +198,38 @@ public class BackendService extends LocationBackendService {
         }
     };
 
-    private Kalman gpsLocation;             // Filtered GPS (because GPS is so bad on Moto G4 Play)
+    private volatile GpsIngest gpsIngest;   // Filtered GPS (because GPS is so bad on Moto G4 Play)
+    private final GpsIngest.Listener gpsListener = new GpsIngest.Listener() {
+        @Override
+        public void onGpsFiltered(FilterState state) {
+            onGpsChanged(state);
+        }
+    };
+
+    private volatile Location lastReport;   // Most recent location reported to microG/UnifiedNlp
+    private Kalman reportTrack;             // Filtered reported positions, background thread only
+    private volatile FilterState reportTrackState;  // Published output of reportTrack
+
+    private volatile Handler predictionHandler;
+    private final Runnable predictionTask = new Runnable() {
+        @Override
+        public void run() {
+            reportPrediction();
+        }
+    };
 
-    private WeightedAverage weightedAverageLocation;
     private Collection<Location> mobileLocations;
 
-    //
-    // Periodic process information.
-    //
-    // We keep a set of the WiFi APs we expected to see and ones we've seen and then
-    // periodically adjust the trust. Ones we've seen we increment, ones we expected
-    // to see but didn't we decrement.
-    //
-    Set<RfIdentification> seenSet;
-    Set<RfIdentification> expectedSet;
-    Cache emitterCache;
+    // Turns our scans into positions, reporting at the end of each period.
+    private final ScanProcessor processor = new ScanProcessor(new ScanProcessor.Listener() {
+        @Override
+        public void onReport(WeightedAverage average) {
+            onPositionReport(average);
+        }
+    });
+    private final PositionEstimate averageEstimate = new PositionEstimate();
+    private ScanTrace.Writer traceWriter;   // Guarded by processingLock, null unless recording
+    volatile Cache emitterCache;
 
     //
     // Scanning and reporting are resource intensive operations, so we throttle
@@ -143,37 +239,20 @@ public class BackendService extends LocationBackendService {
     // So these numbers are the minimum time. Actual will be at least that based
     // on when we get GPS locations and/or update requests from microG/UnifiedNlp.
     //
-    private final static long REPORTING_INTERVAL   = 3600;                      // in milliseconds
-    private final static long MOBILE_SCAN_INTERVAL = REPORTING_INTERVAL/2;      // in milliseconds
-    private final static long WLAN_SCAN_INTERVAL   = REPORTING_INTERVAL/3;      // in milliseconds
-
-    private long nextMobileScanTime;
-    private long nextWlanScanTime;
-    private long nextReportTime;
+    private final static long MOBILE_SCAN_INTERVAL = ScanProcessor.REPORTING_INTERVAL/2;  // in milliseconds
+    private final static long WLAN_SCAN_INTERVAL   = ScanProcessor.REPORTING_INTERVAL/3;  // in milliseconds
 
-    // If we see only a single mobile tower multiple times then our variance will be zero.
-    // While mathematically true, it doesn't really give a good feel for the uncertainty in
-    // our position. Guard against that by blocking the use of a single mobile tower.
-    private String lastMobileId = "";
+    private final AtomicLong nextMobileScanTime = new AtomicLong();
+    private final AtomicLong nextWlanScanTime = new AtomicLong();
+    private final AtomicLong nextPackCheckTime = new AtomicLong();
+    private volatile long packModified;
+    private volatile long packLength;
 
     //
     // We want only a single background thread to do all the work but we have a couple
     // of asynchronous inputs. So put everything into a work item queue. . . and have
     // a single server pull and process the information.
     //
-    private class WorkItem {
-        public Collection<Observation> observations;
-        public RfEmitter.EmitterType rfType;
-        public Location loc;
-        public long time;
-
-        WorkItem(Collection<Observation> o, RfEmitter.EmitterType tp, Location l, long tm) {
-            observations = o;
-            rfType = tp;
-            loc = l;
-            time = tm;
-        }
-    }
     Queue<WorkItem> workQueue = new ConcurrentLinkedQueue<WorkItem>();
 
     //
@@ -194,13 +273,42 @@ public class BackendService extends LocationBackendService {
         Log.d(TAG, "onOpen() entry.");
         super.onOpen();
         instance = this;
-        nextReportTime = 0;
-        nextMobileScanTime = 0;
-        nextWlanScanTime = 0;
-        lastMobileId = "";
+        nextMobileScanTime.set(0);
+        nextWlanScanTime.set(0);
+        nextPackCheckTime.set(0);
+        packModified = 0;
+        packLength = 0;
+        openTime = SystemClock.elapsedRealtime();
+        firstFixReported = false;
+
+        Snapshot snapshot = Snapshot.load(getFilesDir());
+        if ((snapshot != null) && (lastReport == null))
+            lastReport = snapshot.lastReport;
 
         if (emitterCache == null)
-            emitterCache = new Cache(this);
+            emitterCache = new Cache(new Database(this));
+        synchronized (processingLock) {
+            processor.reset();
+            processor.setCache(emitterCache);
+            if (traceWriter == null) {
+                File dir = getExternalFilesDir(null);
+                File traceDir = (dir != null) ? new File(dir, TRACE_DIR) : null;
+                if ((traceDir != null) && traceDir.isDirectory()) {
+                    try {
+                        traceWriter = new ScanTrace.Writer(ScanTrace.newFile(traceDir, System.currentTimeMillis()));
+                        Log.i(TAG, "onOpen() - Recording scans to " + traceDir);
+                    } catch (IOException e) {
+                        Log.w(TAG, "onOpen() - Unable to record trace: ", e);
+                    }
+                }
+            }
+        }
+        if (gpsIngest == null)
+            gpsIngest = new GpsIngest(GPS_COORDINATE_NOISE, gpsListener);
+        startWarmUp(snapshot);
+
+        if (PREDICTION_INTERVAL > 0)
+            predictionHandler = new Handler(Looper.getMainLooper());
 
         setgpsMonitorRunning(true);
         this.registerReceiver(wifiBroadcastReceiver, wifiBroadcastFilter);
@@ -215,10 +323,28 @@ public class BackendService extends LocationBackendService {
         Log.d(TAG, "onClose()");
         this.unregisterReceiver(wifiBroadcastReceiver);
         setgpsMonitorRunning(false);
+        if (predictionHandler != null) {
+            predictionHandler.removeCallbacks(predictionTask);
+            predictionHandler = null;
+        }
+        reportTrackState = null;
 
-        if (emitterCache != null) {
-            emitterCache.close();
-            emitterCache = null;
+        saveSnapshot();
+        if (gpsIngest != null) {
+            gpsIngest.quit();
+            gpsIngest = null;
+        }
+        synchronized (processingLock) {
+            processor.logSolverStatistics();
+            processor.setCache(null);
+            if (emitterCache != null) {
+                emitterCache.close();
+                emitterCache = null;
+            }
+            closeTrace();
+            Log.d(TAG, "onClose() - Processing lock held " + lockHolds + " times, " +
+                    ((lockHolds > 0) ? (lockHoldNanos / lockHolds / 1000) : 0) + "us average, " +
+                    (lockMaxHoldNanos / 1000) + "us max");
         }
 
         if (instance == this) {
@@ -260,17 +386,20 @@ public class BackendService extends LocationBackendService {
     }
 
     /**
-     * Called by microG/UnifiedNlp when it wants a position update. We return a null indicating
-     * we don't have a current position but treat it as a good time to kick off a scan of all
-     * our RF sensors.
+     * Called by microG/UnifiedNlp when it wants a position update. If we have a
+     * prediction from our recent positions, or the last location we reported is still
+     * fresh and accurate enough, we return it right away, otherwise we return a null
+     * indicating we don't have a current position. Either way we treat it as a good
+     * time to kick off a scan of all our RF sensors.
      *
-     * @return Always null.
+     * @return Our predicted or last reported location if recent enough, otherwise null.
      */
     @Override
     protected Location update() {
         //Log.d(TAG, "update() entry.");
+        Location rslt = freshLocation();
         scanAllSensors();
-        return null;
+        return rslt;
     }
 
     //
@@ -278,14 +407,18 @@ public class BackendService extends LocationBackendService {
     //
 
     /**
-     * Called by Android when a GPS location reports becomes available.
+     * Called by Android when a GPS location reports becomes available. The
+     * report is handed to our GPS ingestion thread.
      *
      * @param locReport The current GPS position estimate
      */
     public static void instanceGpsLocationUpdated(final android.location.Location locReport) {
         //Log.d(TAG, "instanceGpsLocationUpdated() entry.");
-        if (instance != null) {
-            instance.onGpsChanged(locReport);
+        BackendService service = instance;
+        if (service != null) {
+            GpsIngest ingest = service.gpsIngest;
+            if (ingest != null)
+                ingest.offer(locReport);
         }
     }
 
@@ -294,22 +427,157 @@ public class BackendService extends LocationBackendService {
     //
 
     /**
-     * Called when we have a new GPS position report from Android. We update our local
-     * Kalman filter (our best guess on GPS reported position) and since our location is
-     * pretty current it is a good time to kick of a scan of RF sensors.
+     * Get a copy of the last location we reported if it is within our age and
+     * accuracy limits for answering an update request directly.
      *
-     * @param updt The current GPS reported location
+     * @return The last reported location or null if it is too old or inaccurate.
      */
-    private void onGpsChanged(Location updt) {
-        synchronized (this) {
-            //Log.d(TAG, "onGpsChanged() entry.");
-            if (gpsLocation == null)
-                gpsLocation = new Kalman(updt, GPS_COORDINATE_NOISE);
+    private Location freshLocation() {
+        Location predicted = predictedLocation();
+        if (predicted != null)
+            return predicted;
+
+        Location last = lastReport;
+        if (last == null)
+            return null;
+
+        long age = System.currentTimeMillis() - last.getTime();
+        if ((age < 0) || (age > FAST_PATH_MAX_AGE) || (last.getAccuracy() > FAST_PATH_MAX_ACCURACY))
+            return null;
+
+        Location rslt = new Location(last);
+        if (Build.VERSION.SDK_INT >= 17)
+            rslt.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos() - (age * 1000000));
+        return rslt;
+    }
+
+    /**
+     * Get the position our track of reported positions predicts for now.
+     *
+     * @return The predicted location, null if the track is too old or too inaccurate.
+     */
+    private Location predictedLocation() {
+        FilterState track = reportTrackState;
+        if (track == null)
+            return null;
+
+        long now = System.currentTimeMillis();
+        long age = now - track.timeMs;
+        if ((age < 0) || (age > PREDICTION_MAX_AGE))
+            return null;
+
+        Location rslt = track.getLocation(now);
+        if (rslt.getAccuracy() > FAST_PATH_MAX_ACCURACY)
+            return null;
+        return rslt;
+    }
+
+    /**
+     * Report a predicted position and schedule the next one. Runs on the main
+     * thread, stops when the track is too old to predict from.
+     */
+    private void reportPrediction() {
+        Handler handler = predictionHandler;
+        if (handler == null)
+            return;
+        Location loc = predictedLocation();
+        if (loc == null)
+            return;
+        report(loc);
+        handler.postDelayed(predictionTask, PREDICTION_INTERVAL);
+    }
+
+    /**
+     * Create the Location for an average of the positions computed for our scans.
+     *
+     * @param avg The average
+     * @return The average position or null if nothing has been averaged.
+     */
+    private Location averageLocation(WeightedAverage avg) {
+        if (!avg.result(averageEstimate))
+            return null;
+
+        final Location location = new Location(Constants.LOCATION_PROVIDER);
+
+        location.setTime(averageEstimate.timeMs);
+        if (Build.VERSION.SDK_INT >= 17)
+            location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+
+        location.setLatitude(averageEstimate.latitude);
+        location.setLongitude(averageEstimate.longitude);
+        location.setAccuracy(averageEstimate.accuracy);
+
+        Bundle extras = new Bundle();
+        extras.putLong("AVERAGED_OF", avg.getCount());
+        location.setExtras(extras);
+
+        return location;
+    }
+
+    /**
+     * Report the average of the positions computed for the reporting period just
+     * ended. Called by the scan processor on the background processing thread.
+     *
+     * @param average The average, only valid during the call
+     */
+    private void onPositionReport(WeightedAverage average) {
+        Location wal = averageLocation(average);
+        if (wal == null)
+            return;
+        lastReport = reportPosition(wal);
+        if (!firstFixReported) {
+            Log.d(TAG, "onPositionReport() - Time to first fix " +
+                    (SystemClock.elapsedRealtime() - openTime) + "ms");
+            firstFixReported = true;
+        }
+    }
+
+    /**
+     * Add a position we computed to our track and report the filtered position.
+     * Called by the background processing thread, which owns the track.
+     *
+     * @param loc The position computed for the reporting period
+     * @return The location reported
+     */
+    private Location reportPosition(Location loc) {
+        Kalman track = reportTrack;
+        if ((track != null) && (loc.getTime() - track.getTimeOfUpdate() <= PREDICTION_MAX_AGE)) {
+            Location predicted = track.getLocation();
+            if (predicted.distanceTo(loc) > TRACK_RESET_SIGMA * Math.max(loc.getAccuracy(), predicted.getAccuracy()))
+                track = null;
             else
-                gpsLocation.update(updt);
+                track.update(loc);
+        } else {
+            track = null;
+        }
+        if (track == null) {
+            //Log.d(TAG, "reportPosition() - Starting new track.");
+            track = new Kalman(loc, POSITION_COORDINATE_NOISE);
+        }
+        reportTrack = track;
+
+        Location rslt = track.getLocation();
+        reportTrackState = new FilterState(rslt, POSITION_COORDINATE_NOISE);
+        report(rslt);
 
-            scanAllSensors();
+        Handler handler = predictionHandler;
+        if (handler != null) {
+            handler.removeCallbacks(predictionTask);
+            handler.postDelayed(predictionTask, PREDICTION_INTERVAL);
         }
+        return rslt;
+    }
+
+    /**
+     * Called on the GPS ingestion thread when new GPS positions from Android have
+     * been filtered. Since our location is pretty current it is a good time to kick
+     * off a scan of RF sensors.
+     *
+     * @param state The filtered GPS position
+     */
+    private void onGpsChanged(FilterState state) {
+        //Log.d(TAG, "onGpsChanged() entry.");
+        scanAllSensors();
     }
 
     /**
@@ -317,16 +585,276 @@ public class BackendService extends LocationBackendService {
      * should occur asynchronously so we don't hang up our caller's thread.
      */
     private void scanAllSensors() {
-        synchronized (this) {
-            if (emitterCache == null) {
-                Log.d(TAG, "scanAllSensors() - emitterCache is null?!?");
+        if (emitterCache == null) {
+            Log.d(TAG, "scanAllSensors() - emitterCache is null?!?");
+            return;
+        }
+        startWiFiScan();
+        startMobileScan();
+    }
+
+    /**
+     * Throttle scans without locking. Of the callers arriving after the next
+     * scan time only one gets to scan.
+     *
+     * @param nextScanTime The time the next scan is allowed, advanced if we scan.
+     * @param interval The minimum time between scans
+     * @return True if the caller should scan.
+     */
+    private static boolean claimScan(AtomicLong nextScanTime, long interval) {
+        long currentProcessTime = System.currentTimeMillis();
+        long next = nextScanTime.get();
+        if (currentProcessTime < next)
+            return false;
+        return nextScanTime.compareAndSet(next, currentProcessTime + interval);
+    }
+
+    /**
+     * Start a thread to open the database and read the area around our last known
+     * location into memory. Doing this now, rather than when the first scan results
+     * arrive, removes the database startup from our time to first fix.
+     *
+     * @param snapshot The state saved when we were last closed, may be null.
+     */
+    private void startWarmUp(final Snapshot snapshot) {
+        final Cache cache = emitterCache;
+
+        warmUpTask = new FutureTask<Void>(new Runnable() {
+            @Override
+            public void run() {
+                long startTime = SystemClock.elapsedRealtime();
+                BoundingBox bb = null;
+                if (snapshot != null)
+                    bb = restoreSnapshot(snapshot);
+                if (bb == null)
+                    bb = lastKnownArea();
+                checkPack(cache);
+                cache.warmUp(bb);
+                if (snapshot != null)
+                    cache.preload(snapshot.workingSet);
+                loadPlaces();
+                Log.d(TAG, "startWarmUp() - Database ready in " +
+                        (SystemClock.elapsedRealtime() - startTime) + "ms");
+                startImport(cache);
+            }
+        }, null);
+        new Thread(warmUpTask).start();
+    }
+
+    /**
+     * Start a thread to import the emitter archives waiting in our import directory.
+     * Started once the warm up is complete, scans are processed while an archive is
+     * imported. Nothing waits for the import, closing the cache stops it.
+     *
+     * @param cache The cache of the database to import into
+     */
+    private void startImport(final Cache cache) {
+        new Thread(new Runnable() {
+            @Override
+            public void run() {
+                importArchives(cache);
+            }
+        }).start();
+    }
+
+    /**
+     * Import the emitter archives waiting in our import directory. Runs on the
+     * import thread, see startImport().
+     *
+     * @param cache The cache of the database to import into
+     */
+    private void importArchives(Cache cache) {
+        File dir = getExternalFilesDir(null);
+        File[] files = (dir != null) ? new File(dir, IMPORT_DIR).listFiles() : null;
+        if (files == null)
+            return;
+        for (final File file : files) {
+            if (!file.isFile() || file.getName().endsWith(FAILED_SUFFIX))
+                continue;
+            if (cache.isClosed())
                 return;
+            long startTime = SystemClock.elapsedRealtime();
+            try {
+                EmitterArchive.Reader in = new EmitterArchive.Reader(new FileInputStream(file));
+                try {
+                    long count = cache.importEmitters(in, new EmitterArchive.Progress() {
+                        @Override
+                        public void onProgress(long emitters) {
+                            Log.d(TAG, "importArchives() - " + file.getName() + ": " + emitters + " emitters");
+                        }
+                    });
+                    Log.i(TAG, "importArchives() - Imported " + count + " emitters from " + file.getName() +
+                            " in " + (SystemClock.elapsedRealtime() - startTime) + "ms");
+                } finally {
+                    in.close();
+                }
+            } catch (InterruptedIOException e) {
+                Log.i(TAG, "importArchives() - Import of " + file.getName() + " stopped: " + e.getMessage());
+                return;
+            } catch (IOException e) {
+                Log.w(TAG, "importArchives() - Unable to import " + file.getName() + ": ", e);
+                File failed = new File(file.getPath() + FAILED_SUFFIX);
+                if (!file.renameTo(failed))
+                    Log.w(TAG, "importArchives() - Unable to rename " + file.getName());
+                continue;
             }
-            startWiFiScan();
-            startMobileScan();
+            if (!file.delete())
+                Log.w(TAG, "importArchives() - Unable to delete " + file.getName());
         }
     }
 
+    /**
+     * Start using the emitter pack if it has appeared or changed since we last looked,
+     * stop if it has gone. Checked at most once every PACK_CHECK_INTERVAL.
+     *
+     * @param cache The cache to use the pack
+     */
+    private void checkPack(Cache cache) {
+        if (!claimScan(nextPackCheckTime, PACK_CHECK_INTERVAL))
+            return;
+        File dir = getExternalFilesDir(null);
+        File file = (dir != null) ? new File(dir, PACK_NAME) : null;
+        long modified = ((file != null) && file.isFile()) ? file.lastModified() : 0;
+        long length = (modified != 0) ? file.length() : 0;
+        if ((modified == packModified) && (length == packLength))
+            return;
+        packModified = modified;
+        packLength = length;
+
+        EmitterPack pack = null;
+        if (modified != 0) {
+            try {
+                pack = EmitterPack.open(file);
+                Log.i(TAG, "checkPack() - Using " + pack.size() + " emitters from " + file.getName());
+            } catch (IOException e) {
+                Log.w(TAG, "checkPack() - Unable to open " + file.getName() + ": ", e);
+            }
+        } else {
+            Log.i(TAG, "checkPack() - No emitter pack");
+        }
+        cache.setPack(pack);
+    }
+
+    /**
+     * Save our GPS filter, the information collected so far this reporting
+     * period and the list of emitters we are working with so that we can
+     * continue where we left off when next opened.
+     */
+    private void saveSnapshot() {
+        synchronized (processingLock) {
+            long startTime = System.nanoTime();
+            try {
+                Snapshot snapshot = new Snapshot();
+                if (emitterCache != null)
+                    snapshot.workingSet = emitterCache.getWorkingSetIds();
+                if (gpsIngest != null)
+                    snapshot.gpsLocation = gpsIngest.getFilter();
+                snapshot.weightedAverage = processor.getAverage();
+                snapshot.seenSet = processor.getSeenSet();
+                snapshot.expectedSet = processor.getExpectedSet();
+                snapshot.nextReportTime = processor.getNextReportTime();
+                snapshot.lastMobileId = processor.getLastMobileId();
+                snapshot.lastReport = lastReport;
+                snapshot.save(getFilesDir());
+                PlaceIndex places = processor.getPlaceIndex();
+                if (places != null) {
+                    places.save(getFilesDir());
+                    places.logStatistics();
+                }
+            } finally {
+                recordLockHold(startTime);
+            }
+        }
+    }
+
+    /**
+     * Read the places we remembered when last closed.
+     */
+    private void loadPlaces() {
+        PlaceIndex places = PlaceIndex.load(getFilesDir());
+        synchronized (processingLock) {
+            if (processor.getPlaceIndex() == null)
+                processor.setPlaceIndex(places);
+        }
+    }
+
+    /**
+     * Restore the GPS filter and reporting period information from a snapshot
+     * if it is recent enough to be useful. Anything we have collected since
+     * we were opened takes precedence over the snapshot.
+     *
+     * @param snapshot A snapshot saved when we were last closed.
+     * @return A bounding box around the restored GPS position, null if none.
+     */
+    private BoundingBox restoreSnapshot(Snapshot snapshot) {
+        long age = System.currentTimeMillis() - snapshot.timeMs;
+        if ((age < 0) || (age > MAX_SNAPSHOT_AGE)) {
+            Log.d(TAG, "restoreSnapshot() - Snapshot too old (" + age + "ms)");
+            return null;
+        }
+
+        synchronized (processingLock) {
+            long startTime = System.nanoTime();
+            processor.restore(snapshot.weightedAverage, snapshot.seenSet, snapshot.expectedSet,
+                    snapshot.nextReportTime, snapshot.lastMobileId);
+            recordLockHold(startTime);
+        }
+
+        // The restored filter belongs to the GPS ingestion thread once handed
+        // over, so take our position from it first.
+        GpsIngest ingest = gpsIngest;
+        Location loc = null;
+        FilterState state = (ingest != null) ? ingest.getState() : null;
+        if (state != null)
+            loc = state.getLocation(System.currentTimeMillis());
+        else if (snapshot.gpsLocation != null)
+            loc = snapshot.gpsLocation.getLocation();
+        if (ingest != null)
+            ingest.restore(snapshot.gpsLocation);
+
+        if (loc == null)
+            return null;
+        RfEmitter.RfCharacteristics rfChar = RfEmitter.getRfCharacteristics(RfEmitter.EmitterType.MOBILE);
+        return new BoundingBox(loc.getLatitude(), loc.getLongitude(), rfChar.typicalRange);
+    }
+
+    /**
+     * Block until the warm up started when we were opened is complete.
+     */
+    private void waitForWarmUp() {
+        FutureTask<Void> task = warmUpTask;
+        if (task == null)
+            return;
+        try {
+            task.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (ExecutionException e) {
+            Log.w(TAG, "waitForWarmUp() - Warm up failed: ", e.getCause());
+        }
+    }
+
+    /**
+     * Get the area around the last position Android knows about. Used to decide
+     * which part of the database should be loaded into memory at startup.
+     *
+     * @return A bounding box around the last known location or null if unknown.
+     */
+    private BoundingBox lastKnownArea() {
+        Location loc = null;
+        try {
+            LocationManager lm = (LocationManager) getApplicationContext().getSystemService(Context.LOCATION_SERVICE);
+            if (lm != null)
+                loc = lm.getLastKnownLocation(LocationManager.PASSIVE_PROVIDER);
+        } catch (SecurityException ex) {
+            Log.w(TAG, "lastKnownArea() failed: ", ex);
+        }
+        if (loc == null)
+            return null;
+        RfEmitter.RfCharacteristics rfChar = RfEmitter.getRfCharacteristics(RfEmitter.EmitterType.MOBILE);
+        return new BoundingBox(loc.getLatitude(), loc.getLongitude(), rfChar.typicalRange);
+    }
+
     /**
      * Ask Android's WiFi manager to scan for access points (APs). When done the onWiFisChanged()
      * method will be called by Android.
@@ -335,10 +863,8 @@ public class BackendService extends LocationBackendService {
         // Throttle scanning for WiFi APs. In open terrain an AP could cover a kilometer.
         // Even in a vehicle moving at highway speeds it can take several seconds to traverse
         // the coverage area, no need to waste phone resources scanning too rapidly.
-        long currentProcessTime = System.currentTimeMillis();
-        if (currentProcessTime < nextWlanScanTime)
+        if (!claimScan(nextWlanScanTime, WLAN_SCAN_INTERVAL))
             return;
-        nextWlanScanTime = currentProcessTime + WLAN_SCAN_INTERVAL;
 
         //Log.d(TAG,"startWiFiScan() - Starting WiFi collection.");
         if (wm == null) {
@@ -354,31 +880,31 @@ public class BackendService extends LocationBackendService {
      * Start a separate thread to scan for mobile (cell) towers. This can take some time so
      * we won't do it in the caller's thread.
      */
-    private synchronized void startMobileScan() {
+    private void startMobileScan() {
         // Throttle scanning for mobile towers. Generally each tower covers a significant amount
         // of terrain so even if we are moving fairly rapidly we should remain in a single tower's
         // coverage area for several seconds. No need to sample more ofen than that and we save
         // resources on the phone.
 
-        long currentProcessTime = System.currentTimeMillis();
-        if (currentProcessTime < nextMobileScanTime)
+        if (!claimScan(nextMobileScanTime, MOBILE_SCAN_INTERVAL))
             return;
-        nextMobileScanTime = currentProcessTime + MOBILE_SCAN_INTERVAL;
 
         // Scanning towers takes some time, so do it in a separate thread.
-        if (mobileThread != null) {
+        if (!mobileScanRunning.compareAndSet(false, true)) {
             Log.d(TAG,"startMobileScan() - Thread exists.");
             return;
         }
         //Log.d(TAG,"startMobileScan() - Starting mobile signal scan thread.");
-        mobileThread = new Thread(new Runnable() {
+        new Thread(new Runnable() {
             @Override
             public void run() {
-                scanMobile();
-                mobileThread = null;
+                try {
+                    scanMobile();
+                } finally {
+                    mobileScanRunning.set(false);
+                }
             }
-        });
-        mobileThread.start();
+        }).start();
     }
 
     /**
@@ -425,7 +951,7 @@ public class BackendService extends LocationBackendService {
                     String idStr = "LTE" + "/" + id.getMcc() + "/" +
                             id.getMnc() + "/" + id.getCi() + "/" +
                             id.getPci()+ "/" + id.getTac();
-                    int asu = (info.getCellSignalStrength().getAsuLevel() * MAXIMUM_ASU)/97;
+                    int asu = (info.getCellSignalStrength().getAsuLevel() * Constants.MAXIMUM_ASU)/97;
 
                     Observation o = new Observation(idStr, RfEmitter.EmitterType.MOBILE);
                     o.setAsu(asu);
@@ -483,7 +1009,7 @@ public class BackendService extends LocationBackendService {
                     info.getCid();
 
             Observation o = new Observation(idStr, RfEmitter.EmitterType.MOBILE);
-            o.setAsu(MINIMUM_ASU);
+            o.setAsu(Constants.MINIMUM_ASU);
             observations.add(o);
 
         } else {
@@ -556,7 +1082,7 @@ public class BackendService extends LocationBackendService {
                 if (bssid != null) {
                     Observation o = new Observation(bssid, RfEmitter.EmitterType.WLAN);
 
-                    o.setAsu(WifiManager.calculateSignalLevel(sr.level, MAXIMUM_ASU));
+                    o.setAsu(WifiManager.calculateSignalLevel(sr.level, Constants.MAXIMUM_ASU));
                     o.setNote(sr.SSID);
                     observations.add(o);
                 }
@@ -574,32 +1100,43 @@ public class BackendService extends LocationBackendService {
      * @param observations A set of RF emitter observations (all must be of the same type)
      * @param rft The type of emitter for the observations.
      */
-    private synchronized void queueForProcessing(Collection<Observation> observations,
-                                                 RfEmitter.EmitterType rft,
-                                                 long timeMs) {
-        Location loc = null;
-        if (gpsLocation != null)
-            loc = gpsLocation.getLocation();
-        WorkItem work = new WorkItem(observations, rft, loc, timeMs);
+    private void queueForProcessing(Collection<Observation> observations,
+                                    RfEmitter.EmitterType rft,
+                                    long timeMs) {
+        WorkItem work = new WorkItem(observations, rft, timeMs);
+        GpsIngest ingest = gpsIngest;
+        FilterState gps = (ingest != null) ? ingest.getState() : null;
+        Location loc = (gps != null) ? gps.getLocation(timeMs) : null;
+        if (loc != null)
+            work.setGps(loc.getLatitude(), loc.getLongitude(), loc.getAccuracy(),
+                    loc.getSpeed(), loc.getBearing(), loc.getTime());
         workQueue.offer(work);
 
-        if (backgroundThread != null) {
+        if (!backgroundRunning.compareAndSet(false, true)) {
             // Log.d(TAG,"queueForProcessing() - Thread exists.");
             return;
         }
 
-        backgroundThread = new Thread(new Runnable() {
+        new Thread(new Runnable() {
             @Override
             public void run() {
-                WorkItem myWork = workQueue.poll();
-                while (myWork != null) {
-                    backgroundProcessing(myWork);
-                    myWork = workQueue.poll();
-                }
-                backgroundThread = null;
+                waitForWarmUp();
+                Cache cache = emitterCache;
+                if (cache != null)
+                    checkPack(cache);
+                do {
+                    WorkItem myWork = workQueue.poll();
+                    while (myWork != null) {
+                        backgroundProcessing(myWork);
+                        myWork = workQueue.poll();
+                    }
+                    backgroundRunning.set(false);
+
+                    // Work queued after our last poll but before we cleared the flag
+                    // would otherwise be left until the next scan.
+                } while (!workQueue.isEmpty() && backgroundRunning.compareAndSet(false, true));
             }
-        });
-        backgroundThread.start();
+        }).start();
     }
 
     //
@@ -607,345 +1144,64 @@ public class BackendService extends LocationBackendService {
     //
 
     /**
-     * Process a group of observations. Process in this context means
-     * 1. Add the emitters to the set of emitters we have seen in this processing period.
-     * 2. If the GPS is accurate enough, update our coverage estimates for the emitters.
-     * 3. If the GPS is accurate enough, update a list of emitters we think we should have seen.
-     * 3. Compute a position based on the current observations.
-     * 4. If our collection period is over, report our position to microG/UnifiedNlp and
-     *    synchonize our information with the flash based database.
+     * Process a group of observations, see ScanProcessor.process(). If the
+     * reporting period is over our position is reported to microG/UnifiedNlp.
      *
      * @param myWork
      */
-    private synchronized void backgroundProcessing(WorkItem myWork) {
-        if (emitterCache == null)
-            return;
-
-        if (seenSet == null)
-            seenSet = new HashSet<RfIdentification>();
-        if (expectedSet == null)
-            expectedSet = new HashSet<RfIdentification>();
-
-        Collection<RfEmitter> emitters = new HashSet<>();
-
-        // Remember all the emitters we've seen during this processing period
-        // and build a set of emitter objects for each RF emitter in the
-        // observation set.
-
-        for (Observation o : myWork.observations) {
-            seenSet.add(o.getIdent());
-            RfEmitter e = emitterCache.get(o.getIdent());
-            if (e != null) {
-                e.setAsu(o.getAsu());
-                e.setNote(o.getNote());
-                emitters.add(e);
-            }
-        }
-
-        // Update emitter coverage based on GPS as needed and get the set of locations
-        // the emitters are known to be seen at.
-
-        Collection<Location> locations = updateEmitters( emitters, myWork.loc, myWork.time);
-
-        // If we are dealing with very movable emitters, then try to detect ones that
-        // have moved out of the area. We do that by collecting the set of emitters
-        // that we expected to see in this area based on the GPS.
-
-        RfEmitter.RfCharacteristics rfChar = RfEmitter.getRfCharacteristics(myWork.rfType);
-        if ((myWork.loc != null) && (myWork.loc.getAccuracy() < rfChar.reqdGpsAccuracy)) {
-            BoundingBox bb = new BoundingBox(myWork.loc.getLatitude(),
-                    myWork.loc.getLongitude(),
-                    rfChar.typicalRange);
-
-            // We may be in an area where RF propagation is longer than typical. . .
-            // Adjust the bounding box based on the emitters we actually see.
-            for (Location l : locations) {
-                bb.update(l.getLatitude(), l.getLongitude());
+    private void backgroundProcessing(WorkItem myWork) {
+        synchronized (processingLock) {
+            long startTime = System.nanoTime();
+            try {
+                recordTrace(myWork);
+                processor.process(myWork, System.currentTimeMillis());
+            } finally {
+                recordLockHold(startTime);
             }
-            updateExpected(bb, myWork.rfType);
-        }
-
-        //Log.d(TAG,"backgroundProcessing() - Got " + myWork.rfType + " data.");
-        switch (myWork.rfType) {
-            case WLAN:
-                // Emitters, especially Wifi APs, can be mobile. We cull them by making
-                // subsets where all members of the set are reasonably close to one
-                // another and then take the largest group.
-                //
-                // To protect against moving WiFi APs,require the largest group
-                // of APs has at least two members.
-
-                //Log.d(TAG, "WiFi APs seen: " + locations.toString());
-                locations = culledEmitters(locations, rfChar.moveDetectDistance);
-                if ((locations != null) && (locations.size() >= rfChar.minCount)) {
-                    computePostion(locations, myWork);
-                }
-                break;
-
-            case MOBILE:
-                //Log.d(TAG, "Mobile towers seen: " + locations.toString());
-
-                // If our observations only contain one tower, and that is the tower
-                // we've already seen this reporting period then avoid using it again.
-                int count = 0;
-                String rfIdent = "";
-                for (Observation o : myWork.observations)  {
-                    count++;
-                    rfIdent = o.getIdent().getRfId();
-                }
-                if (count == 1) {
-                    if (lastMobileId.contentEquals(rfIdent))
-                        break;
-                    lastMobileId = rfIdent;
-                } else {
-                    lastMobileId = "";
-                }
-                //Log.d(TAG, "Mobile towers used: " + locations.toString());
-                computePostion(locations, myWork);
-                break;
         }
-        endOfPeriodProcessing(myWork);
     }
 
     /**
-     * Update the coverage estimates for the emitters we have just gotten observations for.
+     * Account for the time processingLock was held. Call with the lock held.
      *
-     * @param emitters The emitters we have just observed
-     * @param gps The GPS position at the time the observations were collected.
-     * @param curTime The time the observations were collected
-     * @return A list of the coverage areas for the observed RF emitters.
+     * @param startTime System.nanoTime() when the lock was taken
      */
-    private synchronized List<Location> updateEmitters(Collection<RfEmitter> emitters, Location gps, long curTime) {
-        List<Location> locations = new LinkedList<>();
-        if (emitterCache == null) {
-            Log.d(TAG,"updateEmitters() - emitterCache is null?!?");
-            emitterCache = new Cache(this);
-        }
-
-        for (RfEmitter emitter : emitters) {
-            emitter.updateLocation(gps);
-
-            Location thisLoc = emitter.getLocation();
-            if (thisLoc != null) {
-                //Log.d(TAG,"updateEmitters() - Using " + emitter.logString());
-                thisLoc.setTime(curTime);
-                locations.add(thisLoc);
-            //} else {
-            //    Log.d(TAG, "updateDatase() - no location for " + emitter.logString());
-            }
-        }
-        return locations;
+    private void recordLockHold(long startTime) {
+        long held = System.nanoTime() - startTime;
+        lockHolds++;
+        lockHoldNanos += held;
+        if (held > lockMaxHoldNanos)
+            lockMaxHoldNanos = held;
     }
 
     /**
-     * Compute our current location using both a Kalman filter and a weighted
-     * average algoritm. We also keep track of the types of emitters we have
-     * seen for the end of period processing.
+     * Add a scan to the trace we are recording, if any. Call with processingLock held.
      *
-     * @param locations The set of coverage information for the current observations
-     * @param myWork All the information about the current work item.
+     * @param myWork The scan about to be processed
      */
-    private synchronized void computePostion(Collection<Location> locations, WorkItem myWork) {
-        if (locations == null)
+    private void recordTrace(WorkItem myWork) {
+        if (traceWriter == null)
             return;
-
-        RfEmitter.RfCharacteristics rfChar = RfEmitter.getRfCharacteristics(myWork.rfType);
-
-        // Determine location using a weighted average.
-
-        if (weightedAverageLocation == null)
-            weightedAverageLocation = new WeightedAverage();
-
-        for (Location l : locations) {
-            weightedAverageLocation.add(l, (WEIGHTING_FACTOR / Math.max(l.getAccuracy(),MINIMUM_BELIEVABLE_ACCURACY)));
-        }
-    }
-
-    /**
-     *
-     * The collector service attempts to detect and not report moved/moving emitters.
-     * But it (and thus our database) can't be perfect. This routine looks at all the
-     * emitters and returns the largest subset (group) that are within a reasonable
-     * distance of one another.
-     *
-     * The hope is that a single moved/moving emitters that is seen now but whose
-     * location was detected miles away can be excluded from the set of APs
-     * we use to determine where the phone is at this moment.
-     *
-     * We do this by creating collections of emitters where all the emitters in a group
-     * are within a plausible distance of one another. A single emitters may end up
-     * in multiple groups. When done, we return the largest group.
-     *
-     * If we are at the extreme limit of possible coverage (movedThreshold)
-     * from two emitters then those emitters could be a distance of 2*movedThreshold apart.
-     * So we will group the emitters based on that large distance.
-     *
-     * @param locations A collection of the coverages for the current observation set
-     * @param moveThreshold The maximum distance apart the emitters can be before we
-     *                      believe they should not be considered together.
-     * @return The largest set of coverages found within the raw observations. That is
-     * the most believable set of coverage areas.
-     */
-    private Set<Location> culledEmitters(Collection<Location> locations, float moveThreshold) {
-        Set<Set<Location>> locationGroups = divideInGroups(locations, moveThreshold);
-
-        List<Set<Location>> clsList = new ArrayList<Set<Location>>(locationGroups);
-        Collections.sort(clsList, new Comparator<Set<Location>>() {
-            @Override
-            public int compare(Set<Location> lhs, Set<Location> rhs) {
-                return rhs.size() - lhs.size();
-            }
-        });
-
-        if (!clsList.isEmpty()) {
-            return clsList.get(0);
-        } else {
-            return null;
-        }
-    }
-
-    /**
-     * Build a set of sets (or groups) each outer set member is a set of coverage of
-     * reasonably near RF emitters. Basically we are grouping the raw observations
-     * into clumps based on how believably close together they are. An outlying emitter
-     * will likely be put into its own group. Our caller will take the largest set as
-     * the most believable group of observations to use to compute a position.
-     *
-     * @param locations A set of RF emitter coverage records
-     * @param accuracy The expected coverage radius of for the type of RF emitters
-     *                 being grouped
-     * @return A set of coverage sets.
-     */
-    private Set<Set<Location>> divideInGroups(Collection<Location> locations,
-                                                     double accuracy) {
-
-        Set<Set<Location>> bins = new HashSet<Set<Location>>();
-
-        // Create a bins
-        for (Location location : locations) {
-            Set<Location> locGroup = new HashSet<Location>();
-            locGroup.add(location);
-            bins.add(locGroup);
-        }
-
-        for (Location location : locations) {
-            for (Set<Location> locGroup : bins) {
-                if (locationCompatibleWithGroup(location, locGroup, accuracy)) {
-                    locGroup.add(location);
-                }
-            }
-        }
-        return bins;
-    }
-
-    /**
-     * Check to see if the coverage area (location) of an RF emitter is close
-     * enough to others in a group that we can believably add it to the group.
-     * @param location The coverage area of the candidate emitter
-     * @param locGroup The coverage areas of the emitters already in the group
-     * @param radius The coverage radius expected for they type of emitter
-     *                 we are dealing with.
-     * @return
-     */
-    private boolean locationCompatibleWithGroup(Location location,
-                                                Set<Location> locGroup,
-                                                double radius) {
-
-        // If the location is within range of all current members of the
-        // group, then we are compatible.
-        for (Location other : locGroup) {
-            double testDistance = (location.distanceTo(other) -
-                    location.getAccuracy() -
-                    other.getAccuracy());
-
-            if (testDistance > radius) {
-                return false;
-            }
+        try {
+            traceWriter.write(myWork);
+        } catch (IOException e) {
+            Log.w(TAG, "recordTrace() failed, recording stopped: ", e);
+            closeTrace();
         }
-        return true;
     }
 
     /**
-     * We bulk up operations to reduce writing to flash memory. And there really isn't
-     * much need to report location to microG/UnifiedNlp more often than once every three
-     * or four seconds. Another reason is that we can average more samples into each
-     * report so there is a chance that our position computation is more accurate.
-     *
-     * @param myWork All the information about the current observations
+     * Finish the trace we are recording, if any. Call with processingLock held.
      */
-    private void endOfPeriodProcessing(WorkItem myWork) {
-        if (emitterCache == null) {
-            Log.d(TAG,"endOfPeriodProcessing() - emitterCache is null?!?");
+    private void closeTrace() {
+        if (traceWriter == null)
             return;
+        try {
+            traceWriter.close();
+            Log.d(TAG, "closeTrace() - Recorded " + traceWriter.getCount() + " scans");
+        } catch (IOException e) {
+            Log.w(TAG, "closeTrace() failed: ", e);
         }
-        if (seenSet == null)
-            seenSet = new HashSet<RfIdentification>();
-        if (expectedSet == null)
-            expectedSet = new HashSet<RfIdentification>();
-
-        // End of process period. Adjust the trust values of all
-        // the emitters we've seen and the ones we expected
-        // to see but did not.
-        long currentProcessTime = System.currentTimeMillis();
-        if (currentProcessTime < nextReportTime)
-            return;
-        nextReportTime = currentProcessTime + REPORTING_INTERVAL;
-
-        //Log.d(TAG,"endOfPeriodProcessing() - Starting new process period.");
-
-        // Increment the trust of the emitters we've seen and decrement the trust
-        // of the emitters we expected to see but didn't.
-
-        for (RfIdentification id : seenSet) {
-            RfEmitter e = emitterCache.get(id);
-            if (e != null)
-                e.incrementTrust();
-        }
-
-        for (RfIdentification  u : expectedSet) {
-            if (!seenSet.contains(u)) {
-                RfEmitter e = emitterCache.get(u);
-                if (e != null) {
-                    e.decrementTrust();
-                }
-            }
-        }
-
-        // Sync all of our changes to the on flash database.
-
-        emitterCache.sync();
-
-        // Report our best guess of position
-
-        if (weightedAverageLocation != null) {
-            Location wal = weightedAverageLocation.result();
-            weightedAverageLocation.reset();
-            if (wal != null) {
-                report(wal);
-            }
-            lastMobileId = "";      // Allow another mobile tower report.
-        }
-
-        seenSet = new HashSet<RfIdentification>();
-        expectedSet = new HashSet<RfIdentification >();
-    }
-
-    /**
-     * Add all the RF emitters of the specified type within the specified bounding
-     * box to the set of emitters we expect to see. This is used to age out emitters
-     * that may have changed locations (or gone off the air). When aged out we
-     * can remove them from our database.
-     *
-     * @param bb A bounding box (north, south, east and west) around a position
-     * @param rfType The type of RF emitters we expect to see within the bounding
-     *               box.
-     */
-    private void updateExpected(BoundingBox bb, RfEmitter.EmitterType rfType) {
-        if (emitterCache == null)
-            return;
-        if (expectedSet == null)
-            expectedSet = new HashSet<RfIdentification>();
-        expectedSet.addAll(emitterCache.getEmitters(rfType, bb));
+        traceWriter = null;
     }
 }
-
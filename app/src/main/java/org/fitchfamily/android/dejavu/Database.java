@@ -30,20 +30,39 @@ import android.database.sqlite.SQLiteOpenHelper;
 import android.database.sqlite.SQLiteStatement;
 import android.util.Log;
 
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
 
 /**
  * Interface to our on flash SQL database. Note that these methods are not
  * thread safe. However all access to the database is through the Cache object
- * which is thread safe.
+ * which is thread safe. The exception is importEmitters(), which may run
+ * alongside the other methods.
  */
-public class Database extends SQLiteOpenHelper {
+public class Database extends SQLiteOpenHelper implements EmitterStore {
     private static final String TAG = "DejaVu DB";
 
-    private static final int VERSION = 1;
+    private static final int VERSION = 3;
     private static final String NAME = "rf.db";
 
+    // Maximum number of SSID to ID mappings we keep in RAM
+    private static final int MAX_SSID_CACHE_SIZE = 500;
+
+    // Rows written in each transaction of an import
+    private static final int IMPORT_COMMIT_SIZE = 2000;
+
+    // Version 2 and later: the emitters table only holds the frequently updated
+    // (hot) columns. The rarely changing note (SSID) is kept in a separate table
+    // that references a dictionary of unique SSIDs.
     public static final String TABLE_SAMPLES = "emitters";
+    public static final String TABLE_NOTES = "emitter_notes";
+    public static final String TABLE_SSIDS = "ssids";
+
+    public static final String INDEX_LOCATION = "emitters_location";
 
     public static final String COL_TYPE = "rfType";
     public static final String COL_RFID = "rfID";
@@ -52,6 +71,8 @@ public class Database extends SQLiteOpenHelper {
     public static final String COL_LON = "longitude";
     public static final String COL_RAD = "radius";
     public static final String COL_NOTE = "note";
+    public static final String COL_SSID_ID = "ssidID";
+    public static final String COL_SSID = "ssid";
 
     private SQLiteDatabase database;
     private boolean withinTransaction;
@@ -60,14 +81,7 @@ public class Database extends SQLiteOpenHelper {
     private SQLiteStatement sqlSampleInsert;
     private SQLiteStatement sqlSampleUpdate;
     private SQLiteStatement sqlAPdrop;
-
-    public class EmitterInfo {
-        public double latitude;
-        public double longitude;
-        public float radius;
-        public long trust;
-        public String note;
-    }
+    private NoteWriter notes;
 
     public Database(Context context) {
         super(context, NAME, null, VERSION);
@@ -95,7 +109,73 @@ public class Database extends SQLiteOpenHelper {
 
     @Override
     public void onUpgrade(SQLiteDatabase db, int oldVersion, int newVersion) {
-        // no old versions (yet)
+        if (oldVersion < 2)
+            upGradeToVersion2(db);
+        if (oldVersion < 3)
+            upGradeToVersion3(db);
+    }
+
+    /**
+     * Version 2 moves the SSID (note) out of the emitters table. Each unique SSID
+     * is stored once in a dictionary table and the emitter refers to it by an integer
+     * ID. This keeps the emitters table to small fixed size rows that are cheap to
+     * rewrite when trust or coverage changes.
+     *
+     * @param db The database being upgraded
+     */
+    private void upGradeToVersion2(SQLiteDatabase db) {
+        Log.d(TAG, "upGradeToVersion2(): Entry");
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_SSIDS + "(" +
+                COL_SSID_ID + " INTEGER PRIMARY KEY, " +
+                COL_SSID + " TEXT UNIQUE);");
+
+        db.execSQL("CREATE TABLE IF NOT EXISTS " + TABLE_NOTES + "(" +
+                COL_RFID + " STRING PRIMARY KEY, " +
+                COL_TYPE + " STRING, " +
+                COL_SSID_ID + " INTEGER);");
+
+        db.execSQL("INSERT OR IGNORE INTO " + TABLE_SSIDS + "(" + COL_SSID + ") " +
+                "SELECT DISTINCT " + COL_NOTE + " FROM " + TABLE_SAMPLES +
+                " WHERE " + COL_NOTE + " IS NOT NULL AND " + COL_NOTE + "!='';");
+
+        db.execSQL("INSERT OR REPLACE INTO " + TABLE_NOTES + "(" +
+                COL_RFID + ", " + COL_TYPE + ", " + COL_SSID_ID + ") " +
+                "SELECT e." + COL_RFID + ", e." + COL_TYPE + ", s." + COL_SSID_ID +
+                " FROM " + TABLE_SAMPLES + " e JOIN " + TABLE_SSIDS + " s" +
+                " ON e." + COL_NOTE + "=s." + COL_SSID + ";");
+
+        // SQLite can't drop a column, so copy the hot columns to a new table.
+        db.execSQL("CREATE TABLE " + TABLE_SAMPLES + "_new(" +
+                COL_RFID + " STRING PRIMARY KEY, " +
+                COL_TYPE + " STRING, " +
+                COL_TRUST + " INTEGER, " +
+                COL_LAT + " REAL, " +
+                COL_LON + " REAL, " +
+                COL_RAD + " REAL);");
+        db.execSQL("INSERT INTO " + TABLE_SAMPLES + "_new SELECT " +
+                COL_RFID + ", " +
+                COL_TYPE + ", " +
+                COL_TRUST + ", " +
+                COL_LAT + ", " +
+                COL_LON + ", " +
+                COL_RAD + " FROM " + TABLE_SAMPLES + ";");
+        db.execSQL("DROP TABLE " + TABLE_SAMPLES + ";");
+        db.execSQL("ALTER TABLE " + TABLE_SAMPLES + "_new RENAME TO " + TABLE_SAMPLES + ";");
+    }
+
+    /**
+     * Version 3 adds an index for our bounding box queries so that looking up
+     * the emitters in an area (and warming the cache for an area) doesn't need
+     * a full table scan.
+     *
+     * @param db The database being upgraded
+     */
+    private void upGradeToVersion3(SQLiteDatabase db) {
+        Log.d(TAG, "upGradeToVersion3(): Entry");
+        db.execSQL("CREATE INDEX IF NOT EXISTS " + INDEX_LOCATION + " ON " + TABLE_SAMPLES + "(" +
+                COL_TYPE + ", " +
+                COL_LAT + ", " +
+                COL_LON + ");");
     }
 
     @Override
@@ -103,6 +183,32 @@ public class Database extends SQLiteOpenHelper {
         super.onOpen(db);
     }
 
+    @Override
+    public synchronized void close() {
+        closeStatements();
+        super.close();
+    }
+
+    /**
+     * Do the expensive startup work before we are actually needed. Open the
+     * database (creating or upgrading the schema if needed), compile the
+     * statements we use for updates and then read the area around a position
+     * so the index and table pages for it are in SQLite's page cache.
+     *
+     * @param bb The area we expect to be working in, may be null if unknown.
+     */
+    public void warmUp(BoundingBox bb) {
+        getReadableDatabase();
+        database = getWritableDatabase();
+        compileStatements();
+        if (bb != null) {
+            int count = 0;
+            for (RfEmitter.EmitterType rfType : RfEmitter.EmitterType.values())
+                count += getEmitters(rfType, bb).size();
+            Log.d(TAG, "warmUp() - " + count + " emitters near last known location.");
+        }
+    }
+
     /**
      * Start an update operation.
      *
@@ -120,6 +226,18 @@ public class Database extends SQLiteOpenHelper {
         withinTransaction = true;
         updatesMade = false;
         database = getWritableDatabase();
+        compileStatements();
+
+        database.beginTransaction();
+    }
+
+    /**
+     * Compile the insert, update and drop statements that are likely to be
+     * used. Done once per open of the database rather than once per transaction.
+     */
+    private void compileStatements() {
+        if (sqlSampleInsert != null)
+            return;
 
         sqlSampleInsert = database.compileStatement("INSERT INTO " +
                 TABLE_SAMPLES + "("+
@@ -128,24 +246,36 @@ public class Database extends SQLiteOpenHelper {
                 COL_TRUST + ", " +
                 COL_LAT + ", " +
                 COL_LON + ", " +
-                COL_RAD + ", " +
-                COL_NOTE + ") " +
-                "VALUES (?, ?, ?, ?, ?, ?, ?);");
+                COL_RAD + ") " +
+                "VALUES (?, ?, ?, ?, ?, ?);");
 
         sqlSampleUpdate = database.compileStatement("UPDATE " +
                 TABLE_SAMPLES + " SET "+
                 COL_TRUST + "=?, " +
                 COL_LAT + "=?, " +
                 COL_LON + "=?, " +
-                COL_RAD + "=?, " +
-                COL_NOTE + "=? " +
+                COL_RAD + "=? " +
                 "WHERE " + COL_RFID + "=? AND " + COL_TYPE + "=?;");
 
         sqlAPdrop = database.compileStatement("DELETE FROM " +
                 TABLE_SAMPLES +
                 " WHERE " + COL_RFID + "=? AND " + COL_TYPE  + "=?;");
 
-        database.beginTransaction();
+        notes = new NoteWriter(database);
+    }
+
+    private void closeStatements() {
+        SQLiteStatement[] statements = {sqlSampleInsert, sqlSampleUpdate, sqlAPdrop};
+        for (SQLiteStatement statement : statements) {
+            if (statement != null)
+                statement.close();
+        }
+        sqlSampleInsert = null;
+        sqlSampleUpdate = null;
+        sqlAPdrop = null;
+        if (notes != null)
+            notes.close();
+        notes = null;
     }
 
     /**
@@ -180,6 +310,8 @@ public class Database extends SQLiteOpenHelper {
         sqlAPdrop.bindString(2, emitter.getTypeString());
         sqlAPdrop.executeInsert();
         sqlAPdrop.clearBindings();
+
+        notes.set(emitter.getId(), emitter.getTypeString(), null);
         updatesMade = true;
     }
 
@@ -196,15 +328,17 @@ public class Database extends SQLiteOpenHelper {
         sqlSampleInsert.bindString(4, String.valueOf(emitter.getLat()));
         sqlSampleInsert.bindString(5, String.valueOf(emitter.getLon()));
         sqlSampleInsert.bindString(6, String.valueOf(emitter.getRadius()));
-        sqlSampleInsert.bindString(7, emitter.getNote());
 
         sqlSampleInsert.executeInsert();
         sqlSampleInsert.clearBindings();
+        updateNote(emitter);
         updatesMade = true;
     }
 
     /**
-     * Update information about an emitter already existing in the database
+     * Update information about an emitter already existing in the database. Only
+     * the frequently changing columns are written, the note is written only if
+     * it has changed since we last saved it.
      *
      * @param emitter The emitter to be updated
      */
@@ -215,13 +349,25 @@ public class Database extends SQLiteOpenHelper {
         sqlSampleUpdate.bindString(2, String.valueOf(emitter.getLat()));
         sqlSampleUpdate.bindString(3, String.valueOf(emitter.getLon()));
         sqlSampleUpdate.bindString(4, String.valueOf(emitter.getRadius()));
-        sqlSampleUpdate.bindString(5, emitter.getNote());
 
         // the Where fields
-        sqlSampleUpdate.bindString(6, emitter.getId());
-        sqlSampleUpdate.bindString(7, String.valueOf(emitter.getType()));
+        sqlSampleUpdate.bindString(5, emitter.getId());
+        sqlSampleUpdate.bindString(6, String.valueOf(emitter.getType()));
         sqlSampleUpdate.executeInsert();
         sqlSampleUpdate.clearBindings();
+        if (emitter.noteSyncNeeded())
+            updateNote(emitter);
+        updatesMade = true;
+    }
+
+    /**
+     * Save the note (SSID) for an emitter. The note itself is interned in
+     * the SSID dictionary, the emitter only refers to it by ID.
+     *
+     * @param emitter The emitter whose note is to be saved.
+     */
+    public void updateNote(RfEmitter emitter) {
+        notes.set(emitter.getId(), emitter.getTypeString(), emitter.getNote());
         updatesMade = true;
     }
 
@@ -269,15 +415,19 @@ public class Database extends SQLiteOpenHelper {
     public RfEmitter getEmitter(RfIdentification ident) {
         RfEmitter rslt = null;
         String query = "SELECT " +
-                COL_TYPE + ", " +
-                COL_TRUST + ", " +
-                COL_LAT + ", " +
-                COL_LON + ", " +
-                COL_RAD + ", " +
-                COL_NOTE + " " +
-                " FROM " + TABLE_SAMPLES +
-                " WHERE " + COL_TYPE + "='" + ident.getRfType() +
-                "' AND " + COL_RFID + "='" + ident.getRfId() + "';";
+                "e." + COL_TYPE + ", " +
+                "e." + COL_TRUST + ", " +
+                "e." + COL_LAT + ", " +
+                "e." + COL_LON + ", " +
+                "e." + COL_RAD + ", " +
+                "s." + COL_SSID + " " +
+                " FROM " + TABLE_SAMPLES + " e" +
+                " LEFT JOIN " + TABLE_NOTES + " n" +
+                " ON n." + COL_RFID + "=e." + COL_RFID + " AND n." + COL_TYPE + "=e." + COL_TYPE +
+                " LEFT JOIN " + TABLE_SSIDS + " s" +
+                " ON s." + COL_SSID_ID + "=n." + COL_SSID_ID +
+                " WHERE e." + COL_TYPE + "='" + ident.getRfType() +
+                "' AND e." + COL_RFID + "='" + ident.getRfId() + "';";
 
         // Log.d(TAG, "getEmitter(): query='"+query+"'");
         Cursor cursor = getReadableDatabase().rawQuery(query, null);
@@ -301,4 +451,259 @@ public class Database extends SQLiteOpenHelper {
         }
         return rslt;
     }
+
+    /**
+     * Get all the information we have on all the emitters within a bounding box.
+     * Used to load all the emitters in an area into our cache at once.
+     *
+     * @param bb The lat,lon bounding box.
+     * @return The emitters in the bounding box.
+     */
+    public List<RfEmitter> loadEmitters(BoundingBox bb) {
+        List<RfEmitter> rslt = new ArrayList<RfEmitter>();
+        for (RfEmitter.EmitterType rfType : RfEmitter.EmitterType.values()) {
+            String query = "SELECT " +
+                    "e." + COL_RFID + ", " +
+                    "e." + COL_TRUST + ", " +
+                    "e." + COL_LAT + ", " +
+                    "e." + COL_LON + ", " +
+                    "e." + COL_RAD + ", " +
+                    "s." + COL_SSID + " " +
+                    " FROM " + TABLE_SAMPLES + " e" +
+                    " LEFT JOIN " + TABLE_NOTES + " n" +
+                    " ON n." + COL_RFID + "=e." + COL_RFID + " AND n." + COL_TYPE + "=e." + COL_TYPE +
+                    " LEFT JOIN " + TABLE_SSIDS + " s" +
+                    " ON s." + COL_SSID_ID + "=n." + COL_SSID_ID +
+                    " WHERE e." + COL_TYPE + "='" + rfType +
+                    "' AND e." + COL_LAT + ">='" + bb.getSouth() +
+                    "' AND e." + COL_LAT + "<='" + bb.getNorth() +
+                    "' AND e." + COL_LON + ">='" + bb.getWest() +
+                    "' AND e." + COL_LON + "<='" + bb.getEast() + "';";
+
+            Cursor cursor = getReadableDatabase().rawQuery(query, null);
+            try {
+                if (cursor.moveToFirst()) {
+                    do {
+                        RfEmitter e = new RfEmitter(new RfIdentification(cursor.getString(0), rfType), 0);
+                        EmitterInfo ei = new EmitterInfo();
+                        ei.trust = (int) cursor.getLong(1);
+                        ei.latitude = cursor.getDouble(2);
+                        ei.longitude = cursor.getDouble(3);
+                        ei.radius = (float) cursor.getDouble(4);
+                        ei.note = cursor.getString(5);
+                        if (ei.note == null)
+                            ei.note = "";
+                        e.updateInfo(ei);
+                        rslt.add(e);
+                    } while (cursor.moveToNext());
+                }
+            } finally {
+                if (cursor != null) {
+                    cursor.close();
+                }
+            }
+        }
+        return rslt;
+    }
+
+    /**
+     * Write every emitter in the database to an archive. The rows are read through
+     * a single cursor, which only holds a window of them in memory at a time.
+     *
+     * @param out The archive
+     * @param progress Told how far we have got, may be null.
+     * @return The number of emitters written
+     */
+    public long exportEmitters(EmitterArchive.Writer out, EmitterArchive.Progress progress) throws IOException {
+        long rslt = 0;
+        String query = "SELECT " +
+                "e." + COL_RFID + ", " +
+                "e." + COL_TYPE + ", " +
+                "e." + COL_TRUST + ", " +
+                "e." + COL_LAT + ", " +
+                "e." + COL_LON + ", " +
+                "e." + COL_RAD + ", " +
+                "s." + COL_SSID + " " +
+                " FROM " + TABLE_SAMPLES + " e" +
+                " LEFT JOIN " + TABLE_NOTES + " n" +
+                " ON n." + COL_RFID + "=e." + COL_RFID + " AND n." + COL_TYPE + "=e." + COL_TYPE +
+                " LEFT JOIN " + TABLE_SSIDS + " s" +
+                " ON s." + COL_SSID_ID + "=n." + COL_SSID_ID + ";";
+
+        EmitterInfo ei = new EmitterInfo();
+        Cursor cursor = getReadableDatabase().rawQuery(query, null);
+        try {
+            while (cursor.moveToNext()) {
+                RfEmitter.EmitterType rfType;
+                try {
+                    rfType = RfEmitter.EmitterType.valueOf(cursor.getString(1));
+                } catch (IllegalArgumentException e) {
+                    Log.w(TAG, "exportEmitters() - Skipping emitter of unknown type " + cursor.getString(1));
+                    continue;
+                }
+                ei.trust = cursor.getLong(2);
+                ei.latitude = cursor.getDouble(3);
+                ei.longitude = cursor.getDouble(4);
+                ei.radius = (float) cursor.getDouble(5);
+                ei.note = cursor.getString(6);
+                out.write(new RfIdentification(cursor.getString(0), rfType), ei);
+                if ((++rslt % EmitterArchive.BATCH_SIZE == 0) && (progress != null))
+                    progress.onProgress(rslt);
+            }
+        } finally {
+            cursor.close();
+        }
+        return rslt;
+    }
+
+    /**
+     * Add the emitters in an archive to the database, replacing any we already have.
+     *
+     * Runs on its own thread while scans are processed, so the import uses its own
+     * compiled statements and keeps the location index: tiles loaded meanwhile are
+     * still found through it. The emitters are written in transactions of
+     * IMPORT_COMMIT_SIZE rows, short enough that the other users of the database
+     * do not wait long for each to be committed.
+     *
+     * @param in The archive
+     * @param progress Told how far we have got, may be null.
+     * @return The number of emitters imported
+     */
+    public long importEmitters(EmitterArchive.Reader in, EmitterArchive.Progress progress) throws IOException {
+        long rslt = 0;
+        SQLiteDatabase db = getWritableDatabase();
+        SQLiteStatement sqlReplace = db.compileStatement("INSERT OR REPLACE INTO " +
+                TABLE_SAMPLES + "("+
+                COL_RFID + ", " +
+                COL_TYPE + ", " +
+                COL_TRUST + ", " +
+                COL_LAT + ", " +
+                COL_LON + ", " +
+                COL_RAD + ") " +
+                "VALUES (?, ?, ?, ?, ?, ?);");
+        NoteWriter importNotes = new NoteWriter(db);
+        try {
+            db.beginTransaction();
+            try {
+                while (in.next()) {
+                    RfIdentification ident = in.getIdent();
+                    EmitterInfo ei = in.getInfo();
+                    String type = ident.getRfType().toString();
+                    sqlReplace.bindString(1, ident.getRfId());
+                    sqlReplace.bindString(2, type);
+                    sqlReplace.bindLong(3, ei.trust);
+                    sqlReplace.bindDouble(4, ei.latitude);
+                    sqlReplace.bindDouble(5, ei.longitude);
+                    sqlReplace.bindDouble(6, ei.radius);
+                    sqlReplace.executeInsert();
+                    sqlReplace.clearBindings();
+                    importNotes.set(ident.getRfId(), type, ei.note);
+
+                    if (++rslt % IMPORT_COMMIT_SIZE == 0) {
+                        db.setTransactionSuccessful();
+                        db.endTransaction();
+                        if ((rslt % EmitterArchive.BATCH_SIZE == 0) && (progress != null))
+                            progress.onProgress(rslt);
+                        db.beginTransaction();
+                    }
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+        } finally {
+            sqlReplace.close();
+            importNotes.close();
+        }
+        return rslt;
+    }
+
+    /**
+     * Writes the notes (SSIDs) of emitters. The note itself is interned in the
+     * SSID dictionary, the emitter only refers to it by ID. Each thread writing
+     * notes needs a writer of its own.
+     */
+    private static class NoteWriter {
+        private final SQLiteStatement sqlNoteSet;
+        private final SQLiteStatement sqlNoteDrop;
+        private final SQLiteStatement sqlSsidInsert;
+        private final SQLiteStatement sqlSsidQuery;
+
+        private final Map<String,Long> ssidIds = new HashMap<String,Long>();
+
+        NoteWriter(SQLiteDatabase db) {
+            sqlNoteSet = db.compileStatement("INSERT OR REPLACE INTO " +
+                    TABLE_NOTES + "(" +
+                    COL_RFID + ", " +
+                    COL_TYPE + ", " +
+                    COL_SSID_ID + ") " +
+                    "VALUES (?, ?, ?);");
+
+            sqlNoteDrop = db.compileStatement("DELETE FROM " +
+                    TABLE_NOTES +
+                    " WHERE " + COL_RFID + "=? AND " + COL_TYPE  + "=?;");
+
+            sqlSsidInsert = db.compileStatement("INSERT OR IGNORE INTO " +
+                    TABLE_SSIDS + "(" + COL_SSID + ") VALUES (?);");
+
+            sqlSsidQuery = db.compileStatement("SELECT " + COL_SSID_ID +
+                    " FROM " + TABLE_SSIDS +
+                    " WHERE " + COL_SSID + "=?;");
+        }
+
+        /**
+         * Set or, if it is empty, drop the note of an emitter. Must be called
+         * within a transaction.
+         *
+         * @param id The ID of the emitter
+         * @param type The type of the emitter
+         * @param note The note, may be null.
+         */
+        void set(String id, String type, String note) {
+            if ((note == null) || note.isEmpty()) {
+                sqlNoteDrop.bindString(1, id);
+                sqlNoteDrop.bindString(2, type);
+                sqlNoteDrop.executeInsert();
+                sqlNoteDrop.clearBindings();
+            } else {
+                sqlNoteSet.bindString(1, id);
+                sqlNoteSet.bindString(2, type);
+                sqlNoteSet.bindLong(3, getSsidId(note));
+                sqlNoteSet.executeInsert();
+                sqlNoteSet.clearBindings();
+            }
+        }
+
+        /**
+         * Get the dictionary ID for a SSID, adding it to the dictionary if needed.
+         *
+         * @param ssid The SSID to look up
+         * @return The ID of the SSID within the dictionary table
+         */
+        private long getSsidId(String ssid) {
+            Long rslt = ssidIds.get(ssid);
+            if (rslt != null)
+                return rslt;
+
+            sqlSsidInsert.bindString(1, ssid);
+            sqlSsidInsert.executeInsert();
+            sqlSsidInsert.clearBindings();
+
+            sqlSsidQuery.bindString(1, ssid);
+            rslt = sqlSsidQuery.simpleQueryForLong();
+            sqlSsidQuery.clearBindings();
+
+            if (ssidIds.size() >= MAX_SSID_CACHE_SIZE)
+                ssidIds.clear();
+            ssidIds.put(ssid, rslt);
+            return rslt;
+        }
+
+        void close() {
+            sqlNoteSet.close();
+            sqlNoteDrop.close();
+            sqlSsidInsert.close();
+            sqlSsidQuery.close();
+        }
+    }
 }
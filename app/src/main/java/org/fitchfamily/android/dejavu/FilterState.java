@@ -0,0 +1,99 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.location.Location;
+import android.os.Build;
+import android.os.SystemClock;
+
+/**
+ * The output of a Kalman filter at one moment. Immutable, so the thread owning a
+ * filter can publish its state for other threads to read without locking.
+ */
+public final class FilterState {
+    public final double latitude;
+    public final double longitude;
+    public final float accuracy;            // meters
+    public final float speed;               // meters/second
+    public final float bearing;             // degrees east of north
+    public final boolean hasAltitude;
+    public final double altitude;           // meters
+    public final long timeMs;
+    private final double processNoise;
+
+    /**
+     * @param loc The location from Kalman.getLocation()
+     * @param processNoise The process noise of the filter
+     */
+    FilterState(Location loc, double processNoise) {
+        latitude = loc.getLatitude();
+        longitude = loc.getLongitude();
+        accuracy = loc.getAccuracy();
+        speed = loc.getSpeed();
+        bearing = loc.getBearing();
+        hasAltitude = loc.hasAltitude();
+        altitude = loc.getAltitude();
+        timeMs = loc.getTime();
+        this.processNoise = processNoise;
+    }
+
+    /**
+     * @param out The output of FusedKalman.output()
+     * @param processNoise The process noise of the filter
+     */
+    FilterState(double[] out, double processNoise) {
+        latitude = out[FusedKalman.OUT_LATITUDE];
+        longitude = out[FusedKalman.OUT_LONGITUDE];
+        accuracy = (float) out[FusedKalman.OUT_ACCURACY];
+        speed = (float) out[FusedKalman.OUT_SPEED];
+        bearing = (float) out[FusedKalman.OUT_BEARING];
+        hasAltitude = !Double.isNaN(out[FusedKalman.OUT_ALTITUDE]);
+        altitude = hasAltitude ? out[FusedKalman.OUT_ALTITUDE] : 0.0;
+        timeMs = (long) out[FusedKalman.OUT_TIME];
+        this.processNoise = processNoise;
+    }
+
+    /**
+     * Get the position projected forward to a later time along our speed and
+     * bearing. The accuracy is increased by the process noise of the filter
+     * for each second projected.
+     *
+     * @param now The time wanted, in milliseconds.
+     * @return A new location.
+     */
+    public Location getLocation(long now) {
+        double dt = Math.max(0, now - timeMs) / 1000.0;
+        double north = speed * Math.cos(Math.toRadians(bearing)) * dt;
+        double east = speed * Math.sin(Math.toRadians(bearing)) * dt;
+
+        Location rslt = new Location(Constants.LOCATION_PROVIDER);
+        rslt.setTime(now);
+        if (Build.VERSION.SDK_INT >= 17)
+            rslt.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
+        rslt.setLatitude(latitude + Geodesy.latDegrees(north));
+        rslt.setLongitude(longitude + Geodesy.lonDegrees(east, Geodesy.cosLat(latitude)));
+        if (hasAltitude)
+            rslt.setAltitude(altitude);
+        rslt.setAccuracy((float) (accuracy + processNoise * dt));
+        rslt.setSpeed(speed);
+        rslt.setBearing(bearing);
+        return rslt;
+    }
+}
@@ -0,0 +1,217 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.location.Location;
+import android.os.Handler;
+import android.os.HandlerThread;
+import android.os.Process;
+import android.util.Log;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Takes in the GPS positions passed on by GpsMonitor and keeps our filtered GPS
+ * position, off the main thread.
+ *
+ * Navigation apps can have the GPS reporting ten times a second, far more often
+ * than we can use. Positions are decimated: one is kept only if at least
+ * MIN_INTERVAL has passed since the last one kept or if it is substantially more
+ * accurate. Kept positions are collected for BATCH_DELAY and then applied to the
+ * Kalman filter in one batch update, after which the listener is told once for
+ * the batch.
+ *
+ * After each batch the filtered position is published as an immutable FilterState.
+ * Scan processing reads the latest state without taking any lock. The Kalman filter
+ * itself is only touched by our thread, a copy is published for saving snapshots.
+ */
+public class GpsIngest {
+    private static final String TAG = "DejaVu GpsIngest";
+
+    private static final long MIN_INTERVAL = 1000;              // in milliseconds
+    private static final float ACCURACY_GAIN = 0.7f;            // keep if this much better
+    private static final long BATCH_DELAY = 250;                // in milliseconds
+
+    /**
+     * Told when a batch of positions has been applied to the filter.
+     */
+    public interface Listener {
+        void onGpsFiltered(FilterState state);
+    }
+
+    private final double processNoise;
+    private final Listener listener;
+    private final HandlerThread thread;
+    private final Handler handler;
+
+    private volatile FilterState state;
+    private volatile Kalman savedFilter;
+
+    // Only used on our thread
+    private Kalman filter;
+    private final List<Location> pending = new ArrayList<Location>();
+    private double[] batchLat = new double[4];
+    private double[] batchLon = new double[4];
+    private double[] batchAlt = new double[4];
+    private double[] batchAcc = new double[4];
+    private long[] batchTime = new long[4];
+    private final double[] output = new double[FusedKalman.OUTPUT_SIZE];
+    private long lastKeptTime;
+    private float lastKeptAccuracy;
+
+    // Statistics
+    private long received;
+    private long decimated;
+    private long batches;
+
+    private final Runnable flushTask = new Runnable() {
+        @Override
+        public void run() {
+            flush();
+        }
+    };
+
+    /**
+     * @param processNoise Process noise for the Kalman filter
+     * @param listener Told after each batch of positions has been filtered.
+     */
+    GpsIngest(double processNoise, Listener listener) {
+        this.processNoise = processNoise;
+        this.listener = listener;
+        thread = new HandlerThread("DejaVu GPS", Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+        handler = new Handler(thread.getLooper());
+    }
+
+    /**
+     * Stop our thread. Positions offered after this are ignored.
+     */
+    public void quit() {
+        handler.removeCallbacks(flushTask);
+        thread.quit();
+        Log.d(TAG, "quit() - Received " + received + ", decimated " + decimated +
+                ", batches " + batches);
+    }
+
+    /**
+     * Pass a GPS position to our thread. Cheap enough to call on the main thread.
+     *
+     * @param location A GPS position
+     */
+    public void offer(final Location location) {
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                ingest(location);
+            }
+        });
+    }
+
+    /**
+     * Use a filter restored from a snapshot if we don't yet have one of our own.
+     *
+     * @param restored The restored filter
+     */
+    public void restore(final Kalman restored) {
+        if (restored == null)
+            return;
+        handler.post(new Runnable() {
+            @Override
+            public void run() {
+                if (filter == null) {
+                    filter = restored;
+                    publish();
+                }
+            }
+        });
+    }
+
+    /**
+     * @return The most recent filtered position, null if we have none.
+     */
+    public FilterState getState() {
+        return state;
+    }
+
+    /**
+     * @return A copy of the filter as of the last batch, for saving in a snapshot.
+     */
+    public Kalman getFilter() {
+        return savedFilter;
+    }
+
+    private void ingest(Location location) {
+        received++;
+        long time = location.getTime();
+        float accuracy = location.getAccuracy();
+        if ((lastKeptTime != 0) &&
+                (time - lastKeptTime < MIN_INTERVAL) &&
+                (accuracy > lastKeptAccuracy * ACCURACY_GAIN)) {
+            decimated++;
+            return;
+        }
+        lastKeptTime = time;
+        lastKeptAccuracy = accuracy;
+
+        if (pending.isEmpty())
+            handler.postDelayed(flushTask, BATCH_DELAY);
+        pending.add(location);
+    }
+
+    private void flush() {
+        if (pending.isEmpty())
+            return;
+        batches++;
+
+        int start = 0;
+        if (filter == null) {
+            filter = new Kalman(pending.get(0), processNoise);
+            start = 1;
+        }
+        int n = 0;
+        if (batchLat.length < pending.size()) {
+            batchLat = new double[pending.size()];
+            batchLon = new double[pending.size()];
+            batchAlt = new double[pending.size()];
+            batchAcc = new double[pending.size()];
+            batchTime = new long[pending.size()];
+        }
+        for (int i = start; i < pending.size(); i++) {
+            Location loc = pending.get(i);
+            batchLat[n] = loc.getLatitude();
+            batchLon[n] = loc.getLongitude();
+            batchAlt[n] = loc.hasAltitude() ? loc.getAltitude() : Double.NaN;
+            batchAcc[n] = loc.getAccuracy();
+            batchTime[n] = loc.getTime();
+            n++;
+        }
+        filter.getFilter().update(batchLat, batchLon, batchAlt, batchAcc, batchTime, n);
+        pending.clear();
+        publish();
+        listener.onGpsFiltered(state);
+    }
+
+    private void publish() {
+        filter.getFilter().output(System.currentTimeMillis(), output);
+        state = new FilterState(output, processNoise);
+        savedFilter = filter.copy();
+    }
+}
@@ -55,166 +55,124 @@ package org.fitchfamily.android.dejavu;
 
 import android.location.Location;
 import android.os.Build;
-import android.os.Bundle;
 import android.os.SystemClock;
 
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
 /**
  * A two dimensional Kalman filter for estimating actual position from multiple
- * measurements. We cheat and use two one dimensional Kalman filters which works
- * because our two dimensions are orthogonal.
+ * measurements. We cheat and use independent filters for each axis which works
+ * because our dimensions are orthogonal.
+ *
+ * This is a Location based adapter, the filter itself is a FusedKalman.
+ *
+ * Not thread safe. Each filter is owned by a single thread, which publishes what
+ * others need as a FilterState or, for saving, a copy().
  */
 public class Kalman {
-    private static final double ALTITUDE_NOISE = 10.0;
-
-    private static final float MOVING_THRESHOLD = 0.7f;     // meters/sec (2.5 kph ~= 0.7 m/s)
-    private static final float MIN_ACCURACY = 3.0f;         // Meters
+    private final FusedKalman filter;
+    private final double[] out = new double[FusedKalman.OUTPUT_SIZE];
 
     /**
-     * Three 1-dimension trackers, since the dimensions are independent and can avoid using matrices.
+     *
+     * @param location
      */
-    private Kalman1Dim mLatTracker;
-    private Kalman1Dim mLonTracker;
-    private Kalman1Dim mAltTracker;
 
-    /**
-     *  Most recently computed mBearing. Only updated if we are moving.
-     */
-    private float mBearing = 0.0f;
+    public Kalman(Location location, double coordinateNoise) {
+        long timeMs = location.getTime();
+        filter = new FusedKalman(location.getLatitude(), location.getLongitude(),
+                location.getAccuracy(), timeMs, coordinateNoise);
+        if (location.hasAltitude())
+            filter.setAltitude(location.getAltitude(), location.getAccuracy(), timeMs);
+    }
+
+    private Kalman(FusedKalman filter) {
+        this.filter = filter;
+    }
 
     /**
-     *  Time of last update. Used to determine how stale our position is.
+     * @return A new filter with the same state as this one.
      */
-    private long mTimeOfUpdate;
+    public Kalman copy() {
+        return new Kalman(filter.copy());
+    }
 
     /**
-     * Number of samples filter has used.
+     * Save the complete filter state so that it can be restored later.
+     *
+     * @param out Where to write the state
+     * @throws IOException
      */
-    private long samples;
+    public void writeState(DataOutput out) throws IOException {
+        filter.writeState(out);
+    }
 
     /**
+     * Create a filter from state previously saved with writeState().
      *
-     * @param location
+     * @param in Where to read the state from
+     * @return The restored filter
+     * @throws IOException
      */
+    public static Kalman readState(DataInput in) throws IOException {
+        return new Kalman(FusedKalman.readState(in));
+    }
 
-    public Kalman(Location location, double coordinateNoise) {
-        final double accuracy = location.getAccuracy();
-        final double coordinateNoiseDegrees = coordinateNoise * BackendService.METER_TO_DEG;
-        double position, noise;
-        long timeMs = location.getTime();
+    /**
+     * @return The time of the most recent measurement used by the filter.
+     */
+    public long getTimeOfUpdate() {
+        return filter.getTimeOfUpdate();
+    }
 
-        // Latitude
-        position = location.getLatitude();
-        noise = accuracy * BackendService.METER_TO_DEG;
-        mLatTracker = new Kalman1Dim(coordinateNoiseDegrees, timeMs);
-        mLatTracker.setState(position, 0.0, noise);
-
-        // Longitude
-        position = location.getLongitude();
-        noise = accuracy * Math.cos(Math.toRadians(location.getLatitude())) * BackendService.METER_TO_DEG;
-        mLonTracker = new Kalman1Dim(coordinateNoiseDegrees, timeMs);
-        mLonTracker.setState(position, 0.0, noise);
-
-        // Altitude
-        position = 0.0;
-        if (location.hasAltitude()) {
-            position = location.getAltitude();
-            noise = accuracy;
-            mAltTracker = new Kalman1Dim(ALTITUDE_NOISE, timeMs);
-            mAltTracker.setState(position, 0.0, noise);
-        }
-        mTimeOfUpdate = timeMs;
-        samples = 1;
+    /**
+     * @return The filter this adapts, for batch updates and reading without
+     * creating a Location.
+     */
+    public FusedKalman getFilter() {
+        return filter;
     }
 
-    public synchronized void update(Location location) {
+    public void update(Location location) {
         if (location == null)
             return;
 
-        // Reusable
-        final double accuracy = location.getAccuracy();
-        double position, noise;
-        long timeMs = location.getTime();
-
-        predict(timeMs);
-        mTimeOfUpdate = timeMs;
-        samples++;
-
-        // Latitude
-        position = location.getLatitude();
-        noise = accuracy * BackendService.METER_TO_DEG;
-        mLatTracker.update(position, noise);
-
-        // Longitude
-        position = location.getLongitude();
-        noise = accuracy * Math.cos(Math.toRadians(location.getLatitude())) * BackendService.METER_TO_DEG ;
-        mLonTracker.update(position, noise);
-
-        // Altitude
-        if (location.hasAltitude()) {
-            position = location.getAltitude();
-            noise = accuracy;
-            if (mAltTracker == null) {
-                mAltTracker = new Kalman1Dim(ALTITUDE_NOISE, timeMs);
-                mAltTracker.setState(position, 0.0, noise);
-            } else {
-                mAltTracker.update(position, noise);
-            }
-        }
+        filter.update(location.getLatitude(), location.getLongitude(),
+                location.hasAltitude() ? location.getAltitude() : Double.NaN,
+                location.getAccuracy(), location.getTime());
     }
 
-    public synchronized void predict(long timeMs) {
-        mLatTracker.predict(0.0, timeMs);
-        mLonTracker.predict(0.0, timeMs);
-        if (mAltTracker != null)
-            mAltTracker.predict(0.0, timeMs);
+    public void predict(long timeMs) {
+        filter.predict(timeMs);
     }
 
     // Allow others to override our sample count. They may want to have us report only the
     // most recent samples.
     public void setSamples(long s) {
-        samples = s;
+        filter.setSamples(s);
     }
 
     public long getSamples() {
-        return samples;
+        return filter.getSamples();
     }
 
-    public synchronized Location getLocation() {
-        Long timeMs = System.currentTimeMillis();
-        final Location location = new Location(BackendService.LOCATION_PROVIDER);
+    public Location getLocation() {
+        long timeMs = System.currentTimeMillis();
+        filter.output(timeMs, out);
 
-        predict(timeMs);
+        final Location location = new Location(Constants.LOCATION_PROVIDER);
         location.setTime(timeMs);
         if (Build.VERSION.SDK_INT >= 17)
             location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
-        location.setLatitude(mLatTracker.getPosition());
-        location.setLongitude(mLonTracker.getPosition());
-        if (mAltTracker != null)
-            location.setAltitude(mAltTracker.getPosition());
-
-        float accuracy = (float) (mLatTracker.getAccuracy() * BackendService.DEG_TO_METER);
-        if (accuracy < MIN_ACCURACY)
-            accuracy = MIN_ACCURACY;
-        location.setAccuracy(accuracy);
-
-        // Derive speed from degrees/ms in lat and lon
-        double latVeolocity = mLatTracker.getVelocity() * BackendService.DEG_TO_METER;
-        double lonVeolocity = mLonTracker.getVelocity() * BackendService.DEG_TO_METER *
-                Math.cos(Math.toRadians(location.getLatitude()));
-        float speed = (float) Math.sqrt((latVeolocity*latVeolocity)+(lonVeolocity*lonVeolocity));
-        location.setSpeed(speed);
-
-        // Compute bearing only if we are moving. Report old bearing
-        // if we are below our threshold for moving.
-        if (speed > MOVING_THRESHOLD) {
-            mBearing = (float) Math.toDegrees(Math.atan2(latVeolocity, lonVeolocity));
-        }
-        location.setBearing(mBearing);
-
-        Bundle extras = new Bundle();
-        extras.putLong("AVERAGED_OF", samples);
-        location.setExtras(extras);
-
+        location.setLatitude(out[FusedKalman.OUT_LATITUDE]);
+        location.setLongitude(out[FusedKalman.OUT_LONGITUDE]);
+        if (!Double.isNaN(out[FusedKalman.OUT_ALTITUDE]))
+            location.setAltitude(out[FusedKalman.OUT_ALTITUDE]);
+        location.setAccuracy((float) out[FusedKalman.OUT_ACCURACY]);
+        location.setSpeed((float) out[FusedKalman.OUT_SPEED]);
+        location.setBearing((float) out[FusedKalman.OUT_BEARING]);
         return location;
     }
 }
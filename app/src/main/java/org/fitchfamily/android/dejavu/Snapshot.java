@@ -0,0 +1,212 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import android.location.Location;
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInput;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * The state we need to resume where we left off when the backend is closed and
+ * later reopened (possibly in a new process).
+ *
+ * When closed we save the identification of the emitters in our working set,
+ * the state of our GPS Kalman filter and the information we have accumulated
+ * for the current reporting period. When reopened we restore them so we start
+ * with a warm cache and filter rather than rebuilding both from the database and
+ * new GPS reports.
+ *
+ * The file is a compact binary format:
+ *
+ *     int     Magic number
+ *     int     Format version
+ *     long    Time snapshot was taken (ms)
+ *     ids     Working set emitter identifications
+ *     boolean Kalman filter present, followed by the filter state
+ *     boolean Weighted average present, followed by its accumulators
+ *     ids     Emitters seen this period
+ *     ids     Emitters expected this period
+ *     long    Time of next report (ms)
+ *     UTF     Last mobile tower ID used
+ *     boolean Last reported location present, followed by its latitude,
+ *             longitude (doubles), accuracy (float) and time (long)
+ *
+ * Where "ids" is an int count followed by a byte emitter type and UTF
+ * emitter ID for each entry.
+ */
+public class Snapshot {
+    private static final String TAG = "DejaVu Snapshot";
+
+    private static final String FILE_NAME = "snapshot.bin";
+    private static final int MAGIC = 0x446a5675;        // "DjVu"
+    private static final int VERSION = 3;
+
+    public long timeMs;
+    public Collection<RfIdentification> workingSet;
+    public Kalman gpsLocation;
+    public WeightedAverage weightedAverage;
+    public Set<RfIdentification> seenSet;
+    public Set<RfIdentification> expectedSet;
+    public long nextReportTime;
+    public String lastMobileId = "";
+    public Location lastReport;
+
+    Snapshot() {
+        timeMs = System.currentTimeMillis();
+    }
+
+    /**
+     * Read a snapshot previously saved in a directory.
+     *
+     * @param dir The directory the snapshot was saved to.
+     * @return The snapshot or null if it does not exist or could not be read.
+     */
+    public static Snapshot load(File dir) {
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists())
+            return null;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                Log.d(TAG, "load() - Unknown snapshot format, ignored.");
+                return null;
+            }
+            Snapshot rslt = new Snapshot();
+            rslt.timeMs = in.readLong();
+            rslt.workingSet = readIdents(in);
+            if (in.readBoolean())
+                rslt.gpsLocation = Kalman.readState(in);
+            if (in.readBoolean())
+                rslt.weightedAverage = WeightedAverage.readState(in);
+            rslt.seenSet = readIdents(in);
+            rslt.expectedSet = readIdents(in);
+            rslt.nextReportTime = in.readLong();
+            rslt.lastMobileId = in.readUTF();
+            if (in.readBoolean()) {
+                Location loc = new Location(Constants.LOCATION_PROVIDER);
+                loc.setLatitude(in.readDouble());
+                loc.setLongitude(in.readDouble());
+                loc.setAccuracy(in.readFloat());
+                loc.setTime(in.readLong());
+                rslt.lastReport = loc;
+            }
+            return rslt;
+        } catch (IOException e) {
+            Log.w(TAG, "load() failed: ", e);
+            return null;
+        } finally {
+            close(in);
+        }
+    }
+
+    /**
+     * Write the snapshot to a directory. We write to a temporary file and then
+     * rename it so a partially written snapshot is never read.
+     *
+     * @param dir The directory to save the snapshot in.
+     */
+    public void save(File dir) {
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeLong(timeMs);
+            writeIdents(out, workingSet);
+            out.writeBoolean(gpsLocation != null);
+            if (gpsLocation != null)
+                gpsLocation.writeState(out);
+            out.writeBoolean(weightedAverage != null);
+            if (weightedAverage != null)
+                weightedAverage.writeState(out);
+            writeIdents(out, seenSet);
+            writeIdents(out, expectedSet);
+            out.writeLong(nextReportTime);
+            out.writeUTF(lastMobileId);
+            out.writeBoolean(lastReport != null);
+            if (lastReport != null) {
+                out.writeDouble(lastReport.getLatitude());
+                out.writeDouble(lastReport.getLongitude());
+                out.writeFloat(lastReport.getAccuracy());
+                out.writeLong(lastReport.getTime());
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(new File(dir, FILE_NAME)))
+                Log.w(TAG, "save() - Unable to rename snapshot.");
+        } catch (IOException e) {
+            Log.w(TAG, "save() failed: ", e);
+        } finally {
+            close(out);
+        }
+    }
+
+    private static void writeIdents(DataOutput out, Collection<RfIdentification> ids) throws IOException {
+        if (ids == null) {
+            out.writeInt(0);
+            return;
+        }
+        out.writeInt(ids.size());
+        for (RfIdentification id : ids) {
+            out.writeByte(id.getRfType().ordinal());
+            out.writeUTF(id.getRfId());
+        }
+    }
+
+    private static Set<RfIdentification> readIdents(DataInput in) throws IOException {
+        RfEmitter.EmitterType[] types = RfEmitter.EmitterType.values();
+        int count = in.readInt();
+        Set<RfIdentification> rslt = new HashSet<RfIdentification>();
+        for (int i = 0; i < count; i++) {
+            int type = in.readByte();
+            String id = in.readUTF();
+            if ((type >= 0) && (type < types.length))
+                rslt.add(new RfIdentification(id, types[type]));
+        }
+        return rslt;
+    }
+
+    private static void close(Closeable c) {
+        if (c == null)
+            return;
+        try {
+            c.close();
+        } catch (IOException e) {
+            // ignore
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Checking SSIDs against the WLAN blacklist (RfEmitter.blacklistWifi()), cycling
+ * through the list in ssids.txt.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class BlacklistBenchmark {
+    private RfEmitter[] emitters;
+    private int next;
+
+    @Setup
+    public void setup() throws IOException {
+        Random random = new Random(42);
+        List<String> ssids = readSsids();
+        emitters = new RfEmitter[ssids.size()];
+        for (int i = 0; i < emitters.length; i++) {
+            String mac = String.format(Locale.US, "%02x:%02x:%02x:%02x:%02x:%02x",
+                    random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256), random.nextInt(256), random.nextInt(256));
+            emitters[i] = new RfEmitter(RfEmitter.EmitterType.WLAN, mac, Constants.MINIMUM_ASU);
+            emitters[i].setNote(ssids.get(i));
+        }
+    }
+
+    @Benchmark
+    public boolean blacklistWifi() {
+        RfEmitter e = emitters[next];
+        if (++next == emitters.length)
+            next = 0;
+        return e.blacklistWifi();
+    }
+
+    static List<String> readSsids() throws IOException {
+        List<String> rslt = new ArrayList<String>();
+        BufferedReader in = new BufferedReader(new InputStreamReader(
+                BlacklistBenchmark.class.getResourceAsStream("/ssids.txt"), "UTF-8"));
+        try {
+            String line;
+            while ((line = in.readLine()) != null) {
+                if (!line.isEmpty() && !line.startsWith("#"))
+                    rslt.add(line);
+            }
+        } finally {
+            in.close();
+        }
+        return rslt;
+    }
+}
@@ -0,0 +1,128 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OperationsPerInvocation;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cache.get() for the three ways an emitter can be found:
+ *
+ *   workingSet  The emitter is already in the working set.
+ *   tile        The emitter is in a resident tile and is moved into the working set.
+ *   miss        The emitter is not known and a new one is created.
+ *
+ * Each operation gets a batch of emitters. For tile and miss the working set is
+ * cleared after the batch so the next batch takes the same path; the cost of
+ * clearing is included.
+ *
+ * The store is a MemoryEmitterStore with the emitters spread over about 100 tiles,
+ * the batches are taken from one of them.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class CacheBenchmark {
+    private static final int BATCH = 100;
+    private static final double LAT = 37.405;
+    private static final double LON = -122.105;
+
+    @Param({"workingSet", "tile", "miss"})
+    public String path;
+
+    @Param({"10000", "100000"})
+    public int stored;
+
+    private Cache cache;
+    private final RfIdentification[] batch = new RfIdentification[BATCH];
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        MemoryEmitterStore store = new MemoryEmitterStore();
+        for (int i = 0; i < stored; i++) {
+            // The first batch goes in the tile at LAT, LON, the rest anywhere
+            // in the 10 x 10 tiles around it.
+            double lat;
+            double lon;
+            if (i < BATCH) {
+                lat = GeoTile.row(LAT) * GeoTile.TILE_SIZE + random.nextDouble() * GeoTile.TILE_SIZE;
+                lon = GeoTile.column(LON) * GeoTile.TILE_SIZE + random.nextDouble() * GeoTile.TILE_SIZE;
+            } else {
+                lat = LAT + (random.nextDouble() - 0.5) * 10 * GeoTile.TILE_SIZE;
+                lon = LON + (random.nextDouble() - 0.5) * 10 * GeoTile.TILE_SIZE;
+            }
+            RfIdentification id = new RfIdentification(mac(random), RfEmitter.EmitterType.WLAN);
+            store.put(id, lat, lon, 50.0f, 30, "");
+            if (i < BATCH)
+                batch[i] = id;
+        }
+        if (path.equals("miss")) {
+            for (int i = 0; i < BATCH; i++)
+                batch[i] = new RfIdentification(mac(random), RfEmitter.EmitterType.WLAN);
+        }
+
+        cache = new Cache(store);
+        for (RfIdentification id : batch)
+            cache.get(id);
+        if (!path.equals("workingSet"))
+            cache.clear();
+    }
+
+    @TearDown
+    public void tearDown() {
+        cache.close();
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(BATCH)
+    public RfEmitter get() {
+        RfEmitter rslt = null;
+        for (RfIdentification id : batch)
+            rslt = cache.get(id);
+        if (!path.equals("workingSet"))
+            cache.clear();
+        return rslt;
+    }
+
+    private static String mac(Random random) {
+        return String.format(Locale.US, "%02x:%02x:%02x:%02x:%02x:%02x",
+                random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                random.nextInt(256), random.nextInt(256), random.nextInt(256));
+    }
+}
@@ -0,0 +1,79 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Locale;
+
+/**
+ * Heap used per emitter, measured as the growth of the used heap (after
+ * collecting garbage) while holding a number of WLAN emitters:
+ *
+ *   detached   Each emitter with a table of its own, as for emitters outside the
+ *              working set (resident tiles, database and pack lookups)
+ *   working    All emitters in one shared table, as in the cache's working set
+ *   note       Working set emitters with an SSID note
+ *
+ * The spatial index entries of tile resident emitters are not included.
+ *
+ * Usage: EmitterFootprint [count]
+ */
+public class EmitterFootprint {
+    public static void main(String[] args) {
+        int count = (args.length > 0) ? Integer.parseInt(args[0]) : 200000;
+        System.out.println(String.format(Locale.US, "%-10s %10s", "", "bytes"));
+        measure("detached", count, false, false);
+        measure("working", count, true, false);
+        measure("note", count, true, true);
+    }
+
+    private static void measure(String name, int count, boolean shared, boolean note) {
+        long before = usedHeap();
+        EmitterTable table = new EmitterTable(count);
+        RfEmitter[] emitters = new RfEmitter[count];
+        for (int i = 0; i < count; i++) {
+            String mac = String.format(Locale.US, "%02x:%02x:%02x:%02x:%02x:%02x",
+                    2, (i >> 24) & 0xff, (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff, 7);
+            RfEmitter e = new RfEmitter(RfEmitter.EmitterType.WLAN, mac, 0);
+            if (note)
+                e.setNote("Network-" + i);
+            if (shared)
+                e.moveTo(table);
+            emitters[i] = e;
+        }
+        long used = usedHeap() - before;
+        // Keep both reachable until after the measurement
+        if ((emitters[count - 1] == null) || (table.size() < 0))
+            return;
+        System.out.println(String.format(Locale.US, "%-10s %10d", name, used / count));
+    }
+
+    private static long usedHeap() {
+        Runtime runtime = Runtime.getRuntime();
+        for (int i = 0; i < 5; i++) {
+            System.gc();
+            try {
+                Thread.sleep(50);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
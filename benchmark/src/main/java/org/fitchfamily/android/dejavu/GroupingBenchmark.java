@@ -0,0 +1,78 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Culling moved emitters from a WLAN scan (EmitterGrouping.culledEmitters(), which
+ * calls divideInGroups() once per emitter). Most of the emitters are spread over a
+ * few hundred meters, a tenth of them are outliers kilometers away.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class GroupingBenchmark {
+    @Param({"10", "25", "100", "500"})
+    public int emitters;
+
+    private final List<PositionEstimate> scan = new ArrayList<PositionEstimate>();
+    private final EmitterGrouping grouping = new EmitterGrouping();
+    private float moveThreshold;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        moveThreshold = RfEmitter.getRfCharacteristics(RfEmitter.EmitterType.WLAN).moveDetectDistance;
+        scan.clear();
+        for (int i = 0; i < emitters; i++) {
+            double spread = (i % 10 == 9) ? 0.05 : 0.002;          // degrees
+            PositionEstimate e = new PositionEstimate();
+            e.set(37.4 + random.nextGaussian() * spread,
+                    -122.1 + random.nextGaussian() * spread,
+                    50.0f + random.nextFloat() * 100.0f,
+                    1500000000000L);
+            scan.add(e);
+        }
+    }
+
+    @Benchmark
+    public List<PositionEstimate> culledEmitters() {
+        return grouping.culledEmitters(scan, moveThreshold);
+    }
+}
@@ -0,0 +1,85 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Kalman filter prediction over the gaps seen between GPS fixes. Prediction steps
+ * the filter forward in fixed intervals, so its cost grows with the gap.
+ *
+ * Each operation predicts over the gap and then applies a fix at the new time
+ * (which needs no further prediction) so the covariance stays bounded however long
+ * the benchmark runs. The update costs the same for every gap.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class KalmanBenchmark {
+    private static final double NOISE = 3.0;            // meters, as used for GPS
+
+    @Param({"200", "1000", "5000", "30000"})
+    public long gapMs;
+
+    private FusedKalman filter;
+    private final double[] out = new double[FusedKalman.OUTPUT_SIZE];
+    private long timeMs;
+    private double lat;
+
+    @Setup
+    public void setup() {
+        timeMs = 1500000000000L;
+        lat = 37.4;
+        filter = new FusedKalman(lat, -122.1, 10.0, timeMs, NOISE);
+    }
+
+    @Benchmark
+    public FusedKalman predict() {
+        timeMs += gapMs;
+        lat += 1.0e-6;
+        filter.predict(timeMs);
+        filter.update(lat, -122.1, Double.NaN, 10.0, timeMs);
+        return filter;
+    }
+
+    @Benchmark
+    public double[] predictOutput() {
+        timeMs += gapMs;
+        lat += 1.0e-6;
+        filter.output(timeMs, out);
+        filter.update(lat, -122.1, Double.NaN, 10.0, timeMs);
+        return out;
+    }
+}
@@ -0,0 +1,104 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.HashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Hashing and comparing emitter identifications, and looking them up in a map as
+ * the cache and the sets of seen and expected emitters do. The lookups use equal
+ * but not identical identifications, as a new scan creates.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class RfIdentificationBenchmark {
+    @Param({"100", "10000"})
+    public int size;
+
+    private RfIdentification[] ids;
+    private RfIdentification[] copies;
+    private final Map<RfIdentification,Integer> map = new HashMap<RfIdentification,Integer>();
+    private int next;
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        ids = new RfIdentification[size];
+        copies = new RfIdentification[size];
+        map.clear();
+        for (int i = 0; i < size; i++) {
+            String mac = String.format(Locale.US, "%02x:%02x:%02x:%02x:%02x:%02x",
+                    random.nextInt(256), random.nextInt(256), random.nextInt(256),
+                    random.nextInt(256), random.nextInt(256), random.nextInt(256));
+            ids[i] = new RfIdentification(mac, RfEmitter.EmitterType.WLAN);
+            copies[i] = new RfIdentification(mac, RfEmitter.EmitterType.WLAN);
+            map.put(ids[i], i);
+        }
+    }
+
+    private int next() {
+        int rslt = next;
+        if (++next == size)
+            next = 0;
+        return rslt;
+    }
+
+    @Benchmark
+    public int hash() {
+        return ids[next()].hashCode();
+    }
+
+    @Benchmark
+    public boolean equal() {
+        int i = next();
+        return ids[i].equals(copies[i]);
+    }
+
+    @Benchmark
+    public boolean notEqual() {
+        int i = next();
+        return ids[i].equals(copies[(i + 1) % size]);
+    }
+
+    @Benchmark
+    public Integer mapGet() {
+        return map.get(copies[next()]);
+    }
+}
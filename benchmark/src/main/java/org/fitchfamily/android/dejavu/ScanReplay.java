@@ -0,0 +1,236 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.zip.CRC32;
+
+/**
+ * Replays scan traces recorded by the backend (see ScanTrace) through the scan
+ * processing, starting from an empty emitter database held in memory.
+ *
+ * Time is virtual: each scan is processed as if it was the time it was recorded,
+ * so reporting periods end where they did on the phone. The scans are fed either
+ * as fast as possible or spaced as they were recorded.
+ *
+ * Reported are the time taken by each stage of processing a scan, how far the
+ * positions reported were from the GPS position recorded with the scan that
+ * ended their period (where there is one), how far the current position after
+ * each scan with GPS was from it, and the state of the database at the end.
+ * The position solver and the sliding window mode of the scan processor can be
+ * chosen, to compare them. The digest of the database changes whenever what
+ * is learned from the trace does, so two runs can be compared at a glance.
+ *
+ * Usage: ScanReplay [-recorded] [-solver name] [-window] trace...
+ */
+public class ScanReplay {
+    private static final int TRUST_BUCKETS = 5;
+
+    private final MemoryEmitterStore store = new MemoryEmitterStore();
+    private final Cache cache = new Cache(store);
+    private final LatencyStats scanStats = new LatencyStats();
+    private int reports;
+
+    // The GPS position of the scan being processed, and the distance from it
+    // (in meters) and the accuracy of each position reported while there was one.
+    private PositionEstimate scanGps;
+    private final PositionEstimate reported = new PositionEstimate();
+    private final List<Double> reportErrors = new ArrayList<Double>();
+    private double accuracySum;
+    private final PositionEstimate current = new PositionEstimate();
+    private final List<Double> currentErrors = new ArrayList<Double>();
+
+    private final ScanProcessor processor = new ScanProcessor(new ScanProcessor.Listener() {
+        @Override
+        public void onReport(WeightedAverage average) {
+            reports++;
+            if ((scanGps != null) && average.result(reported)) {
+                reportErrors.add(Geodesy.haversine(reported.latitude, reported.longitude,
+                        scanGps.latitude, scanGps.longitude));
+                accuracySum += reported.accuracy;
+            }
+        }
+    });
+
+    public static void main(String[] args) throws IOException, InterruptedException {
+        boolean recorded = false;
+        String solver = null;
+        boolean window = false;
+        List<File> traces = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-recorded"))
+                recorded = true;
+            else if (args[i].equals("-solver") && (i + 1 < args.length))
+                solver = args[++i];
+            else if (args[i].equals("-window"))
+                window = true;
+            else
+                traces.add(new File(args[i]));
+        }
+        if (traces.isEmpty()) {
+            System.err.println("Usage: ScanReplay [-recorded] [-solver name] [-window] trace...");
+            System.exit(1);
+        }
+
+        ScanReplay replay = new ScanReplay(solver, window);
+        long startTime = System.nanoTime();
+        int scans = 0;
+        for (File trace : traces)
+            scans += replay.replay(trace, recorded);
+        replay.cache.close();
+        long elapsed = System.nanoTime() - startTime;
+
+        System.out.println(String.format(Locale.US, "%d scans, %d reports in %d ms",
+                scans, replay.reports, elapsed / 1000000));
+        replay.printStages();
+        replay.printErrors();
+        replay.printDatabase();
+    }
+
+    ScanReplay(String solver, boolean window) {
+        processor.setCache(cache);
+        processor.setPlaceIndex(new PlaceIndex());
+        if (solver != null)
+            processor.setPositionSolver(PositionSolvers.create(solver));
+        processor.setSlidingWindow(window);
+        processor.enableStageTiming();
+    }
+
+    /**
+     * Feed all the scans in a trace through the scan processor.
+     *
+     * @param file The trace file
+     * @param recorded True to space the scans as recorded, false for as fast as possible.
+     * @return The number of scans replayed
+     */
+    int replay(File file, boolean recorded) throws IOException, InterruptedException {
+        ScanTrace.Reader reader = new ScanTrace.Reader(file);
+        int rslt = 0;
+        try {
+            long firstScan = 0;
+            long startTime = System.currentTimeMillis();
+            WorkItem work = reader.read();
+            while (work != null) {
+                if (rslt == 0)
+                    firstScan = work.time;
+                if (recorded) {
+                    long wait = (work.time - firstScan) - (System.currentTimeMillis() - startTime);
+                    if (wait > 0)
+                        Thread.sleep(wait);
+                }
+                scanGps = work.gps;
+                long scanStart = System.nanoTime();
+                processor.process(work, work.time);
+                scanStats.add(System.nanoTime() - scanStart);
+                if ((work.gps != null) && processor.getCurrentPosition(current))
+                    currentErrors.add(Geodesy.haversine(current.latitude, current.longitude,
+                            work.gps.latitude, work.gps.longitude));
+                rslt++;
+                work = reader.read();
+            }
+        } finally {
+            reader.close();
+        }
+        return rslt;
+    }
+
+    private void printStages() {
+        for (ScanProcessor.Stage stage : ScanProcessor.Stage.values())
+            System.out.println(String.format(Locale.US, "%-10s %s",
+                    stage.name().toLowerCase(Locale.US), processor.getStageStats(stage)));
+        System.out.println(String.format(Locale.US, "%-10s %s", "scan", scanStats));
+        processor.logSolverStatistics();
+    }
+
+    /**
+     * Print how far the reported positions, and the current positions after each
+     * scan, were from GPS: the mean, median and 90th percentile. For the reports
+     * also the mean accuracy we claimed for them.
+     */
+    private void printErrors() {
+        int n = reportErrors.size();
+        System.out.println(String.format(Locale.US, "%-10s %s, claimed accuracy %.1f m",
+                "error", errorStats(reportErrors, "reports"), (n > 0) ? accuracySum / n : 0.0));
+        System.out.println(String.format(Locale.US, "%-10s %s",
+                "current", errorStats(currentErrors, "scans")));
+    }
+
+    private static String errorStats(List<Double> errors, String what) {
+        int n = errors.size();
+        if (n == 0)
+            return "no " + what + " with GPS";
+        Collections.sort(errors);
+        double sum = 0.0;
+        for (double error : errors)
+            sum += error;
+        return String.format(Locale.US, "%d %s, mean %.1f m, median %.1f m, p90 %.1f m",
+                n, what, sum / n, errors.get(n / 2), errors.get(n * 9 / 10));
+    }
+
+    /**
+     * Print the number of emitters of each type, how far they are trusted and a
+     * digest of everything stored about them.
+     */
+    private void printDatabase() {
+        Map<RfEmitter.EmitterType, int[]> trust =
+                new EnumMap<RfEmitter.EmitterType, int[]>(RfEmitter.EmitterType.class);
+        List<String> rows = new ArrayList<String>();
+        for (Map.Entry<RfIdentification, EmitterStore.EmitterInfo> entry : store.getContents().entrySet()) {
+            RfIdentification ident = entry.getKey();
+            EmitterStore.EmitterInfo info = entry.getValue();
+
+            int[] histogram = trust.get(ident.getRfType());
+            if (histogram == null) {
+                histogram = new int[TRUST_BUCKETS];
+                trust.put(ident.getRfType(), histogram);
+            }
+            int bucket = (int) (info.trust * TRUST_BUCKETS / (RfEmitter.MAXIMUM_TRUST + 1));
+            histogram[Math.max(0, Math.min(TRUST_BUCKETS - 1, bucket))]++;
+
+            rows.add(String.format(Locale.US, "%s %.6f %.6f %.1f %d %s", ident,
+                    info.latitude, info.longitude, info.radius, info.trust, info.note));
+        }
+
+        System.out.println(String.format(Locale.US, "%d emitters", store.size()));
+        for (Map.Entry<RfEmitter.EmitterType, int[]> entry : trust.entrySet()) {
+            StringBuilder sb = new StringBuilder();
+            int count = 0;
+            for (int n : entry.getValue()) {
+                sb.append(' ').append(n);
+                count += n;
+            }
+            System.out.println(String.format(Locale.US, "%-10s %d, by trust (low to high):%s",
+                    entry.getKey(), count, sb));
+        }
+
+        Collections.sort(rows);
+        CRC32 digest = new CRC32();
+        for (String row : rows)
+            digest.update((row + "\n").getBytes());
+        System.out.println(String.format(Locale.US, "digest %08x", digest.getValue()));
+    }
+}
@@ -0,0 +1,301 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * How the emitter storage and the cache hold up as the database grows. For each
+ * size a SyntheticCity region is generated into a fresh store and a drive (or walk)
+ * through it is scanned against the store directly and through the Cache.
+ *
+ * Reported for each size:
+ *
+ *   build      Time to fill the store and the rate in emitters per second
+ *   size       Size of the database or pack file (SQLite and pack only)
+ *   area       EmitterStore.getEmitters() for the area around each scan
+ *   emitter    EmitterStore.getEmitter() for an emitter seen in each scan
+ *   cache.get  Cache.get() for each emitter seen
+ *   cache.area Cache.getEmitters() for the area around each scan
+ *   hits       Where Cache.get() found the emitters and the share of area
+ *              query tiles answered from memory
+ *
+ * Usage: StorageScaleBenchmark [-store sqlite|memory|pack] [-dir directory]
+ *            [-sizes 1000000,2000000,...] [-scans count] [-walk] [-seed seed]
+ *            [-trace file]
+ *
+ * With -store pack the region is written to an EmitterPack which the cache uses in
+ * front of an empty (in memory) database, as on a phone with a regional pack that
+ * has not learned anything yet. The store on its own is then the pack.
+ *
+ * The SQLite store needs the sqlite-jdbc driver on the class path. With -trace the
+ * scans of the first size are also written as a scan trace, for ScanReplay.
+ */
+public class StorageScaleBenchmark {
+    private static final double LAT = 48.137;               // Region centered on Munich
+    private static final double LON = 11.575;
+    private static final long SCAN_INTERVAL = 1200;         // milliseconds
+    private static final int MOBILE_EVERY = 3;              // scans between mobile scans
+    private static final int SYNC_EVERY = 3;                // scans between cache syncs, about a reporting period
+    private static final int COMMIT_EVERY = 100000;         // emitters per transaction when building
+
+    private String storeType = "sqlite";
+    private File dir = new File("build/scale");
+    private long[] sizes = {1000000, 2000000, 5000000, 10000000};
+    private int scanCount = 3000;
+    private boolean walk;
+    private long seed = 42;
+    private File trace;
+    private long built;                                     // emitters in the store
+    private EmitterPack pack;
+
+    public static void main(String[] args) throws IOException {
+        StorageScaleBenchmark benchmark = new StorageScaleBenchmark();
+        for (int i = 0; i < args.length; i++) {
+            String arg = args[i];
+            if (arg.equals("-walk")) {
+                benchmark.walk = true;
+                continue;
+            }
+            if (i + 1 >= args.length) {
+                usage();
+                return;
+            }
+            String value = args[++i];
+            if (arg.equals("-store"))
+                benchmark.storeType = value;
+            else if (arg.equals("-dir"))
+                benchmark.dir = new File(value);
+            else if (arg.equals("-sizes")) {
+                String[] parts = value.split(",");
+                benchmark.sizes = new long[parts.length];
+                for (int j = 0; j < parts.length; j++)
+                    benchmark.sizes[j] = Long.parseLong(parts[j].trim());
+            } else if (arg.equals("-scans"))
+                benchmark.scanCount = Integer.parseInt(value);
+            else if (arg.equals("-seed"))
+                benchmark.seed = Long.parseLong(value);
+            else if (arg.equals("-trace"))
+                benchmark.trace = new File(value);
+            else {
+                usage();
+                return;
+            }
+        }
+        if (!benchmark.storeType.equals("sqlite") && !benchmark.storeType.equals("memory") &&
+                !benchmark.storeType.equals("pack")) {
+            usage();
+            return;
+        }
+        for (long size : benchmark.sizes)
+            benchmark.run(size);
+    }
+
+    private static void usage() {
+        System.err.println("Usage: StorageScaleBenchmark [-store sqlite|memory|pack] [-dir directory] " +
+                "[-sizes 1000000,2000000,...] [-scans count] [-walk] [-seed seed] [-trace file]");
+        System.exit(1);
+    }
+
+    private void run(long size) throws IOException {
+        SyntheticCity city = new SyntheticCity(seed, LAT, LON, size);
+
+        // The scans are generated up front so generating them is not timed.
+        List<WorkItem> scans = new ArrayList<WorkItem>(scanCount);
+        SyntheticCity.Route route = city.new Route(seed, !walk, SCAN_INTERVAL, 0);
+        for (int i = 0; i < scanCount; i++) {
+            WorkItem wlan = route.next(RfEmitter.EmitterType.WLAN);
+            scans.add(wlan);
+            if (i % MOBILE_EVERY == 0) {
+                WorkItem mobile = new WorkItem(null, RfEmitter.EmitterType.MOBILE, wlan.time);
+                mobile.setGps(wlan.gps.latitude, wlan.gps.longitude, wlan.gps.accuracy,
+                        wlan.gpsSpeed, wlan.gpsBearing, wlan.time);
+                city.scan(mobile, wlan.gps.latitude, wlan.gps.longitude);
+                scans.add(mobile);
+            }
+        }
+        if (trace != null) {
+            writeTrace(scans);
+            trace = null;
+        }
+
+        long startTime = System.nanoTime();
+        EmitterStore store = build(city, size);
+        long buildNanos = System.nanoTime() - startTime;
+        System.out.println(String.format(Locale.US, "%,d emitters (%s, %s)", built, storeType,
+                walk ? "walk" : "drive"));
+        System.out.println(String.format(Locale.US, "  %-10s %.1f s, %,d emitters/s", "build",
+                buildNanos / 1e9, (long) (built / (buildNanos / 1e9))));
+        if (store instanceof SqliteEmitterStore)
+            System.out.println(String.format(Locale.US, "  %-10s %.1f MB", "size",
+                    ((SqliteEmitterStore) store).getFile().length() / 1e6));
+        if (pack != null)
+            System.out.println(String.format(Locale.US, "  %-10s %.1f MB", "size",
+                    pack.getFile().length() / 1e6));
+
+        // The store on its own
+        LatencyStats area = new LatencyStats();
+        LatencyStats emitter = new LatencyStats();
+        for (WorkItem work : scans) {
+            BoundingBox bb = expectedArea(work);
+            long t = System.nanoTime();
+            if (pack != null)
+                pack.getEmitters(work.rfType, bb, new HashSet<RfIdentification>());
+            else
+                store.getEmitters(work.rfType, bb);
+            area.add(System.nanoTime() - t);
+            if (!work.observations.isEmpty()) {
+                RfIdentification ident = work.observations.iterator().next().getIdent();
+                t = System.nanoTime();
+                if (pack != null)
+                    pack.getEmitter(ident);
+                else
+                    store.getEmitter(ident);
+                emitter.add(System.nanoTime() - t);
+            }
+        }
+        System.out.println(String.format(Locale.US, "  %-10s %s", "area", area));
+        System.out.println(String.format(Locale.US, "  %-10s %s", "emitter", emitter));
+
+        // Through the cache, as the scan processing uses it
+        Cache cache = new Cache(store);
+        cache.setPack(pack);
+        LatencyStats get = new LatencyStats();
+        LatencyStats cacheArea = new LatencyStats();
+        int scan = 0;
+        for (WorkItem work : scans) {
+            cache.prefetch(work.gps.latitude, work.gps.longitude, work.gpsSpeed, work.gpsBearing);
+            for (Observation o : work.observations) {
+                long t = System.nanoTime();
+                cache.get(o.getIdent());
+                get.add(System.nanoTime() - t);
+            }
+            BoundingBox bb = expectedArea(work);
+            long t = System.nanoTime();
+            cache.getEmitters(work.rfType, bb);
+            cacheArea.add(System.nanoTime() - t);
+            if (++scan % SYNC_EVERY == 0)
+                cache.sync();
+        }
+        System.out.println(String.format(Locale.US, "  %-10s %s", "cache.get", get));
+        System.out.println(String.format(Locale.US, "  %-10s %s", "cache.area", cacheArea));
+        long gets = cache.getWorkingSetHits() + cache.getTileHits() + cache.getMisses();
+        long areaTiles = cache.getAreaTilesFromIndex() + cache.getAreaTilesFromDb();
+        System.out.println(String.format(Locale.US,
+                "  %-10s working set %.1f%%, tiles %.1f%%, misses %.1f%% (pack %.1f%%); " +
+                        "area tiles from memory %.1f%%",
+                "hits", percent(cache.getWorkingSetHits(), gets), percent(cache.getTileHits(), gets),
+                percent(cache.getMisses(), gets), percent(cache.getPackHits(), gets),
+                percent(cache.getAreaTilesFromIndex(), areaTiles)));
+        cache.close();
+    }
+
+    /**
+     * Fill a new store with the emitters of a region.
+     */
+    private EmitterStore build(SyntheticCity city, long size) throws IOException {
+        built = 0;
+        pack = null;
+        if (storeType.equals("pack")) {
+            final EmitterPack.Builder builder = new EmitterPack.Builder();
+            final EmitterStore.EmitterInfo info = new EmitterStore.EmitterInfo();
+            city.forEach(new SyntheticCity.Visitor() {
+                @Override
+                public void emitter(RfIdentification ident, double lat, double lon, float radius,
+                                    long trust, String note) {
+                    info.latitude = lat;
+                    info.longitude = lon;
+                    info.radius = radius;
+                    info.trust = trust;
+                    info.note = note;
+                    builder.add(ident, info);
+                    built++;
+                }
+            });
+            if (!dir.isDirectory() && !dir.mkdirs())
+                throw new IllegalStateException("Unable to create " + dir);
+            File file = new File(dir, "region-" + size + ".pack");
+            builder.write(file);
+            pack = EmitterPack.open(file);
+            return new MemoryEmitterStore();
+        }
+        if (storeType.equals("memory")) {
+            final MemoryEmitterStore rslt = new MemoryEmitterStore();
+            city.forEach(new SyntheticCity.Visitor() {
+                @Override
+                public void emitter(RfIdentification ident, double lat, double lon, float radius,
+                                    long trust, String note) {
+                    rslt.put(ident, lat, lon, radius, trust, note);
+                    built++;
+                }
+            });
+            return rslt;
+        }
+
+        if (!dir.isDirectory() && !dir.mkdirs())
+            throw new IllegalStateException("Unable to create " + dir);
+        File file = new File(dir, "rf-" + size + ".db");
+        if (file.exists() && !file.delete())
+            throw new IllegalStateException("Unable to replace " + file);
+        final SqliteEmitterStore rslt = new SqliteEmitterStore(file);
+        rslt.beginTransaction();
+        city.forEach(new SyntheticCity.Visitor() {
+            @Override
+            public void emitter(RfIdentification ident, double lat, double lon, float radius,
+                                long trust, String note) {
+                rslt.put(ident, lat, lon, radius, trust, note);
+                if (++built % COMMIT_EVERY == 0) {
+                    rslt.endTransaction();
+                    rslt.beginTransaction();
+                }
+            }
+        });
+        rslt.endTransaction();
+        return rslt;
+    }
+
+    /**
+     * The area the scan processing expects to see emitters of a scan's type in.
+     */
+    private static BoundingBox expectedArea(WorkItem work) {
+        RfEmitter.RfCharacteristics rfChar = RfEmitter.getRfCharacteristics(work.rfType);
+        return new BoundingBox(work.gps.latitude, work.gps.longitude, rfChar.typicalRange);
+    }
+
+    private void writeTrace(List<WorkItem> scans) throws IOException {
+        ScanTrace.Writer writer = new ScanTrace.Writer(trace);
+        try {
+            for (WorkItem work : scans)
+                writer.write(work);
+        } finally {
+            writer.close();
+        }
+        System.out.println("Wrote " + scans.size() + " scans to " + trace);
+    }
+
+    private static double percent(long part, long total) {
+        return (total > 0) ? part * 100.0 / total : 0.0;
+    }
+}
@@ -0,0 +1,374 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * A made up region of emitters and routes through it, for exercising the storage
+ * and cache at sizes we could never collect by hand.
+ *
+ * The density of emitters falls off from a few urban cores to a sparse rural
+ * floor. Most emitters are WLAN APs; mobile towers stand at sites of three
+ * sectors each, closer together where the density is higher. Everything is
+ * derived from the seed: the emitters of each GeoTile are generated from the
+ * seed and the tile key, so any tile can be regenerated on demand and the
+ * region never needs to be held in memory.
+ */
+public class SyntheticCity {
+    private static final double HALF_SIZE = 0.5;            // degrees, the region is about 110 km across
+    private static final int CORES = 5;                     // urban cores, the first at the center
+    private static final double RURAL_DENSITY = 0.002;      // relative to the center of the main core
+    private static final double MOBILE_FRACTION = 0.03;     // of the emitters
+    private static final int SECTORS = 3;                   // mobile cells per tower site
+    private static final int MAX_WLAN_SEEN = 40;            // observations per scan
+    private static final int MAX_MOBILE_SEEN = 7;
+    private static final int CACHED_WLAN_TILES = 20;        // dense tiles hold tens of thousands
+    private static final int CACHED_MOBILE_TILES = 250;
+
+    private static final String[] SSIDS = {"FRITZ!Box 7490", "NETGEAR", "linksys", "xfinitywifi",
+            "eduroam", "Guest", "HOME-", "TP-LINK_", "dlink-", "Telekom", "ASUS", "Starbucks WiFi"};
+
+    /**
+     * Receives the emitters of the region.
+     */
+    public interface Visitor {
+        void emitter(RfIdentification ident, double lat, double lon, float radius, long trust, String note);
+    }
+
+    /**
+     * The generated emitters of one tile.
+     */
+    private static class Tile implements Visitor {
+        final List<RfIdentification> idents = new ArrayList<RfIdentification>();
+        double[] lat = new double[16];
+        double[] lon = new double[16];
+        float[] radius = new float[16];
+
+        @Override
+        public void emitter(RfIdentification ident, double la, double lo, float r, long trust, String note) {
+            int i = idents.size();
+            if (i == lat.length) {
+                lat = Arrays.copyOf(lat, i * 2);
+                lon = Arrays.copyOf(lon, i * 2);
+                radius = Arrays.copyOf(radius, i * 2);
+            }
+            idents.add(ident);
+            lat[i] = la;
+            lon[i] = lo;
+            radius[i] = r;
+        }
+    }
+
+    private final long seed;
+    private final double centerLat;
+    private final double centerLon;
+    private final double[] coreLat = new double[CORES];
+    private final double[] coreLon = new double[CORES];
+    private final double[] coreSigma = new double[CORES];    // degrees
+    private final double[] coreWeight = new double[CORES];
+    private final int south, north, west, east;             // tile rows and columns
+    private final double perDensity;                        // emitters per tile per unit density
+    private final double cosLat;
+
+    // Recently generated tiles, for scans
+    private final Map<Long,Tile> wlanTiles = tileCache(CACHED_WLAN_TILES);
+    private final Map<Long,Tile> mobileTiles = tileCache(CACHED_MOBILE_TILES);
+
+    /**
+     * @param seed Everything about the region follows from the seed
+     * @param lat Latitude of the center of the main core
+     * @param lon Longitude of the center of the main core
+     * @param emitters About how many emitters the region should hold
+     */
+    public SyntheticCity(long seed, double lat, double lon, long emitters) {
+        this.seed = seed;
+        centerLat = lat;
+        centerLon = lon;
+        cosLat = Geodesy.cosLat(lat);
+
+        Random random = new Random(seed);
+        for (int i = 0; i < CORES; i++) {
+            if (i == 0) {
+                coreLat[i] = lat;
+                coreLon[i] = lon;
+                coreSigma[i] = 0.03;
+                coreWeight[i] = 1.0;
+            } else {
+                coreLat[i] = lat + (random.nextDouble() - 0.5) * HALF_SIZE;
+                coreLon[i] = lon + (random.nextDouble() - 0.5) * HALF_SIZE / cosLat;
+                coreSigma[i] = 0.008 + random.nextDouble() * 0.012;
+                coreWeight[i] = 0.2 + random.nextDouble() * 0.4;
+            }
+        }
+
+        south = GeoTile.row(lat - HALF_SIZE);
+        north = GeoTile.row(lat + HALF_SIZE);
+        west = GeoTile.column(lon - HALF_SIZE / cosLat);
+        east = GeoTile.column(lon + HALF_SIZE / cosLat);
+
+        double sum = 0.0;
+        for (int row = south; row <= north; row++) {
+            for (int column = west; column <= east; column++)
+                sum += tileDensity(row, column);
+        }
+        perDensity = emitters / sum;
+    }
+
+    /**
+     * @return The relative density of emitters at a position, 1.0 at the main core
+     */
+    public double density(double lat, double lon) {
+        double rslt = RURAL_DENSITY;
+        for (int i = 0; i < CORES; i++) {
+            double dLat = (lat - coreLat[i]) / coreSigma[i];
+            double dLon = (lon - coreLon[i]) * cosLat / coreSigma[i];
+            rslt += coreWeight[i] * Math.exp(-0.5 * (dLat * dLat + dLon * dLon));
+        }
+        return rslt;
+    }
+
+    private double tileDensity(int row, int column) {
+        return density((row + 0.5) * GeoTile.TILE_SIZE, (column + 0.5) * GeoTile.TILE_SIZE);
+    }
+
+    public double getCenterLat() {
+        return centerLat;
+    }
+
+    public double getCenterLon() {
+        return centerLon;
+    }
+
+    /**
+     * Generate all the emitters of the region, tile by tile.
+     */
+    public void forEach(Visitor visitor) {
+        for (int row = south; row <= north; row++) {
+            for (int column = west; column <= east; column++)
+                generate(GeoTile.key(row, column), visitor);
+        }
+    }
+
+    /**
+     * @return The keys of all the tiles in the region
+     */
+    public List<Long> getTiles() {
+        List<Long> rslt = new ArrayList<Long>();
+        for (int row = south; row <= north; row++) {
+            for (int column = west; column <= east; column++)
+                rslt.add(GeoTile.key(row, column));
+        }
+        return rslt;
+    }
+
+    /**
+     * Generate the emitters of one tile. The same tile always gives the same emitters.
+     */
+    public void generate(long tile, Visitor visitor) {
+        generate(tile, visitor, true);
+    }
+
+    /**
+     * @param wlan False to stop after the mobile towers, they are generated first
+     */
+    private void generate(long tile, Visitor visitor, boolean wlan) {
+        int row = GeoTile.row(tile);
+        int column = GeoTile.column(tile);
+        if ((row < south) || (row > north) || (column < west) || (column > east))
+            return;
+        Random random = new Random(seed ^ (tile * 0x9E3779B97F4A7C15L));
+        double density = tileDensity(row, column);
+        double expected = density * perDensity;
+        int count = (int) expected;
+        if (random.nextDouble() < expected - count)
+            count++;
+
+        double tileSouth = row * GeoTile.TILE_SIZE;
+        double tileWest = column * GeoTile.TILE_SIZE;
+        long tileId = ((long) (row - south) << 16) | (column - west);
+
+        // Tower sites first, fewer and with smaller cells where it is dense.
+        int sites = (int) Math.round(count * MOBILE_FRACTION / SECTORS);
+        if ((sites == 0) && (random.nextDouble() < count * MOBILE_FRACTION / SECTORS))
+            sites = 1;
+        float cellRadius = (float) Math.max(500.0, Math.min(5000.0, 600.0 / Math.sqrt(density)));
+        for (int site = 0; site < sites; site++) {
+            double lat = tileSouth + random.nextDouble() * GeoTile.TILE_SIZE;
+            double lon = tileWest + random.nextDouble() * GeoTile.TILE_SIZE;
+            for (int sector = 0; sector < SECTORS; sector++) {
+                // Like BackendService: LTE/mcc/mnc/ci/pci/tac
+                String id = String.format(Locale.US, "LTE/999/99/%d/%d/%d",
+                        (tileId << 12) | (site << 2) | sector, (site * SECTORS + sector) % 504, tileId);
+                visitor.emitter(new RfIdentification(id, RfEmitter.EmitterType.MOBILE), lat, lon,
+                        cellRadius * (0.8f + 0.4f * random.nextFloat()), RfEmitter.MAXIMUM_TRUST, "");
+            }
+        }
+
+        if (!wlan)
+            return;
+        // The 40 bits of a MAC after the first byte hold the tile's number within the
+        // region (the region has far fewer than 2^16 tiles) and the emitter's number.
+        long tileNumber = (long) (row - south) * (east - west + 1) + (column - west);
+        for (int i = sites * SECTORS; i < count; i++) {
+            long mac = (tileNumber << 24) | i;
+            String id = String.format(Locale.US, "%02x:%02x:%02x:%02x:%02x:%02x",
+                    0x0a, (mac >> 32) & 0xff, (mac >> 24) & 0xff, (mac >> 16) & 0xff, (mac >> 8) & 0xff, mac & 0xff);
+            String ssid = SSIDS[random.nextInt(SSIDS.length)];
+            if (ssid.endsWith("-") || ssid.endsWith("_"))
+                ssid = ssid + Integer.toHexString(random.nextInt(0x10000));
+            visitor.emitter(new RfIdentification(id, RfEmitter.EmitterType.WLAN),
+                    tileSouth + random.nextDouble() * GeoTile.TILE_SIZE,
+                    tileWest + random.nextDouble() * GeoTile.TILE_SIZE,
+                    40.0f + random.nextFloat() * 110.0f,
+                    30 + random.nextInt((int) RfEmitter.MAXIMUM_TRUST - 29), ssid);
+        }
+    }
+
+    /**
+     * What a scan at a position would see: the emitters whose coverage includes
+     * it, strongest first up to what a phone typically reports.
+     *
+     * @param work The scan, its GPS position is used when set
+     * @param lat Latitude of the scan
+     * @param lon Longitude of the scan
+     */
+    public void scan(WorkItem work, double lat, double lon) {
+        boolean mobile = (work.rfType == RfEmitter.EmitterType.MOBILE);
+        int reach = mobile ? 5 : 1;             // tiles, enough for the largest coverage
+        int row = GeoTile.row(lat);
+        int column = GeoTile.column(lon);
+
+        double scanCosLat = Geodesy.cosLat(lat);
+        List<Observation> seen = new ArrayList<Observation>();
+        for (int r = row - reach; r <= row + reach; r++) {
+            for (int c = column - reach; c <= column + reach; c++) {
+                Tile tile = getTile(GeoTile.key(r, c), mobile);
+                for (int i = 0; i < tile.idents.size(); i++) {
+                    RfIdentification ident = tile.idents.get(i);
+                    if (ident.getRfType() != work.rfType)
+                        continue;
+                    double distance = Geodesy.equirectangular(lat, lon, tile.lat[i], tile.lon[i], scanCosLat);
+                    if (distance > tile.radius[i])
+                        continue;
+                    Observation o = new Observation(ident.getRfId(), ident.getRfType());
+                    o.setAsu((int) Math.round(Constants.MAXIMUM_ASU * (1.0 - distance / tile.radius[i])));
+                    seen.add(o);
+                }
+            }
+        }
+        Collections.sort(seen);
+        int limit = mobile ? MAX_MOBILE_SEEN : MAX_WLAN_SEEN;
+        work.observations = (seen.size() > limit) ? new ArrayList<Observation>(seen.subList(0, limit)) : seen;
+    }
+
+    private Tile getTile(long key, boolean mobile) {
+        Map<Long,Tile> tiles = mobile ? mobileTiles : wlanTiles;
+        Tile rslt = tiles.get(key);
+        if (rslt == null) {
+            rslt = new Tile();
+            generate(key, rslt, !mobile);
+            tiles.put(key, rslt);
+        }
+        return rslt;
+    }
+
+    private static Map<Long,Tile> tileCache(final int size) {
+        return new LinkedHashMap<Long,Tile>(size, 0.75f, true) {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long,Tile> eldest) {
+                return size() > size;
+            }
+        };
+    }
+
+    /**
+     * A drive or walk through the region, starting at one of the urban cores. Drives
+     * follow a street grid, walks wander.
+     */
+    public class Route {
+        private final Random random;
+        private final boolean drive;
+        private final float speed;                  // meters/second
+        private final long interval;                // milliseconds between scans
+        private double lat;
+        private double lon;
+        private double bearing;                     // degrees east of north
+        private long time;
+
+        /**
+         * @param routeSeed Seed for the route, different routes through the same region
+         * @param drive True for a drive, false for a walk
+         * @param interval Milliseconds between scans
+         * @param startTime Time of the first scan
+         */
+        public Route(long routeSeed, boolean drive, long interval, long startTime) {
+            random = new Random(routeSeed);
+            this.drive = drive;
+            this.interval = interval;
+            speed = drive ? 12.0f : 1.4f;
+            int core = random.nextInt(CORES);
+            lat = coreLat[core] + random.nextGaussian() * coreSigma[core] / 2;
+            lon = coreLon[core] + random.nextGaussian() * coreSigma[core] / 2 / cosLat;
+            bearing = 90.0 * random.nextInt(4);
+            time = startTime;
+        }
+
+        /**
+         * Move on to the next scan and generate it.
+         *
+         * @param rfType The type of emitters scanned for
+         * @return The scan, with a GPS position
+         */
+        public WorkItem next(RfEmitter.EmitterType rfType) {
+            if (drive) {
+                if (random.nextDouble() < 0.05)
+                    bearing += random.nextBoolean() ? 90.0 : -90.0;
+            } else {
+                bearing += random.nextGaussian() * 20.0;
+            }
+            double step = speed * interval / 1000.0;
+            double b = Math.toRadians(bearing);
+            double nextLat = lat + Geodesy.latDegrees(step * Math.cos(b));
+            double nextLon = lon + Geodesy.lonDegrees(step * Math.sin(b), cosLat);
+            if (Math.abs(nextLat - centerLat) > HALF_SIZE * 0.9 ||
+                    Math.abs(nextLon - centerLon) * cosLat > HALF_SIZE * 0.9) {
+                bearing += 180.0;       // Turn back at the edge of the region
+            } else {
+                lat = nextLat;
+                lon = nextLon;
+            }
+            bearing = ((bearing % 360.0) + 360.0) % 360.0;
+            time += interval;
+
+            WorkItem rslt = new WorkItem(null, rfType, time);
+            rslt.setGps(lat, lon, 5.0f + random.nextFloat() * 10.0f, speed, (float) bearing, time);
+            scan(rslt, lat, lon);
+            return rslt;
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Averaging the coverage estimates of a scan: adding them all to a WeightedAverage
+ * and getting the result.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class WeightedAverageBenchmark {
+    @Param({"10", "25", "100", "500"})
+    public int estimates;
+
+    private PositionEstimate[] scan;
+    private double[] weights;
+    private final WeightedAverage average = new WeightedAverage();
+    private final PositionEstimate rslt = new PositionEstimate();
+
+    @Setup
+    public void setup() {
+        Random random = new Random(42);
+        scan = new PositionEstimate[estimates];
+        weights = new double[estimates];
+        for (int i = 0; i < estimates; i++) {
+            scan[i] = new PositionEstimate();
+            scan[i].set(37.4 + random.nextGaussian() * 0.001,
+                    -122.1 + random.nextGaussian() * 0.001,
+                    50.0f + random.nextFloat() * 100.0f,
+                    1500000000000L + i);
+            weights[i] = 1 + random.nextInt(Constants.MAXIMUM_ASU);
+        }
+    }
+
+    @Benchmark
+    public PositionEstimate addResult() {
+        average.reset();
+        for (int i = 0; i < estimates; i++)
+            average.add(scan[i], weights[i]);
+        average.result(rslt);
+        return rslt;
+    }
+}
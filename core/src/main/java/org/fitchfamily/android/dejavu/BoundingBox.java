@@ -22,9 +22,6 @@ package org.fitchfamily.android.dejavu;
  * Created by tfitch on 9/28/17.
  */
 
-import android.accessibilityservice.AccessibilityService;
-import android.location.Location;
-
 public class BoundingBox {
     private double north;
     private double south;
@@ -35,7 +32,7 @@ public class BoundingBox {
         reset();
     }
 
-    BoundingBox(Location loc) {
+    BoundingBox(PositionEstimate loc) {
         reset();
         update(loc);
     }
@@ -50,8 +47,8 @@ public class BoundingBox {
      * implied by a location.
      * @param loc A record describing the coverage of an RF emitter.
      */
-    public void update(Location loc) {
-        update(loc.getLatitude(), loc.getLongitude(), loc.getAccuracy());
+    public void update(PositionEstimate loc) {
+        update(loc.latitude, loc.longitude, loc.accuracy);
     }
 
     /**
@@ -63,11 +60,24 @@ public class BoundingBox {
      * @param radius The radius of the coverage area.
      */
     public void update(double lat, double lon, float radius) {
-        double locNorth = lat + (radius * BackendService.METER_TO_DEG);
-        double locSouth = lat - (radius * BackendService.METER_TO_DEG);
-        double cosLat = Math.cos(Math.toRadians(lat));
-        double locEast = lon + (radius * BackendService.METER_TO_DEG) * cosLat;
-        double locWest = lon - (radius * BackendService.METER_TO_DEG) * cosLat;
+        update(lat, lon, radius, Geodesy.cosLat(lat));
+    }
+
+    /**
+     * Expand bounding box to include an emitter at a lat/lon with a
+     * specified radius. For callers that already have the cosine of the
+     * latitude.
+     *
+     * @param lat The center latitude for the coverage area.
+     * @param lon The center longitude for the coverage area.
+     * @param radius The radius of the coverage area.
+     * @param cosLat The cosine of the latitude, see Geodesy.cosLat()
+     */
+    public void update(double lat, double lon, float radius, double cosLat) {
+        double locNorth = lat + Geodesy.latDegrees(radius);
+        double locSouth = lat - Geodesy.latDegrees(radius);
+        double locEast = lon + Geodesy.lonDegrees(radius, cosLat);
+        double locWest = lon - Geodesy.lonDegrees(radius, cosLat);
 
         north = Math.max(north,locNorth);
         south = Math.min(south,locSouth);
@@ -87,6 +97,46 @@ public class BoundingBox {
         west = Math.min(west,lon);
     }
 
+    /**
+     * Expand, if needed, the bounding box to include another bounding box.
+     *
+     * @param other The bounding box to include
+     */
+    public void update(BoundingBox other) {
+        north = Math.max(north,other.north);
+        south = Math.min(south,other.south);
+        east = Math.max(east,other.east);
+        west = Math.min(west,other.west);
+    }
+
+    /**
+     * @param lat A latitude
+     * @param lon A longitude
+     * @return True if the point is within (or on the edge of) the bounding box.
+     */
+    public boolean contains(double lat, double lon) {
+        return (lat >= south) && (lat <= north) && (lon >= west) && (lon <= east);
+    }
+
+    /**
+     * Get the area common to this bounding box and another.
+     *
+     * @param other The other bounding box
+     * @return The intersection or null if the boxes do not overlap.
+     */
+    public BoundingBox intersection(BoundingBox other) {
+        double n = Math.min(north, other.north);
+        double s = Math.max(south, other.south);
+        double e = Math.min(east, other.east);
+        double w = Math.max(west, other.west);
+        if ((n < s) || (e < w))
+            return null;
+        BoundingBox rslt = new BoundingBox();
+        rslt.update(s, w);
+        rslt.update(n, e);
+        return rslt;
+    }
+
     public double getNorth() {
         return north;
     }
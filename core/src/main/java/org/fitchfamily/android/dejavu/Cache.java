@@ -0,0 +1,779 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Created by tfitch on 10/4/17.
+ */
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * All access to the database is done through this cache:
+ *
+ * When a RF emitter is seen a get() call is made to the cache. If we have a cache hit
+ * the information is directly returned. If we have a cache miss we create a new record
+ * and populate it with either default information or information from the flash based
+ * database (if it exists in the database).
+ *
+ * Periodically we are asked to sync any new or changed RF emitter information to the
+ * database. When that occurs we group all the changes in one database transaction for
+ * speed.
+ *
+ * If an emitter has not been used for a while we will remove it from the cache (only
+ * immediately after a sync() operation so the record will be clean). If the cache grows
+ * too large we will clear it to conservery RAM (this should never happen). Again the
+ * clear operation will only occur after a sync() so any dirty records will be flushed
+ * to the database.
+ *
+ * Emitters near one another are almost always needed together. So when we load an
+ * emitter from the database we also load all the other emitters in the same geographic
+ * tile (see GeoTile). When moving, we also load the tiles ahead of us in a background
+ * thread. Emitters in these resident tiles are moved into the working set when they
+ * are actually seen. The number of resident tiles is limited, the least recently
+ * used tiles are dropped first.
+ *
+ * The emitters in resident tiles are kept in a spatial index. Queries for the emitters
+ * in an area are answered from the index for resident tiles, only the tiles not in
+ * memory are looked up in the database.
+ *
+ * Precomputed coverage for a region can be supplied as a read-only, memory mapped
+ * emitter pack (see EmitterPack). It is consulted after the emitters in memory and
+ * before the database, but what the database has (what we have learned ourselves)
+ * always takes precedence: a tile is loaded from both with the database rows
+ * replacing those of the pack, and an emitter found only in the pack is checked for
+ * in the database before it is used. The pack can be replaced at any time.
+ *
+ * Operations on the cache are thread safe. However the underlying RF emitter objects
+ * that are returned by the cache are not thread safe. So all work on them should be
+ * performed either in a single thread or with synchronization.
+ */
+public class Cache {
+    private static final int MAX_WORKING_SET_SIZE = 200;
+    private static final int MAX_AGE = 30;
+
+    private static final int MAX_RESIDENT_TILES = 25;
+    private static final float MIN_PREFETCH_SPEED = 1.5f;           // meters/sec, about walking speed
+    private static final float PREFETCH_TIME = 60.0f;               // seconds of travel to look ahead
+    private static final float MAX_PREFETCH_DISTANCE = 5000.0f;     // meters
+    private static final int STATS_INTERVAL = 100;                  // syncs between statistics logs
+    private static final int MAX_QUERY_TILES = 64;                  // larger areas always go to database
+    private static final int MAX_UNKNOWN = 1000;                    // emitters remembered as unknown
+
+    private static final String TAG="DejaVu Cache";
+
+    /**
+     * All the emitters we are working with. Their values are kept in columns
+     * so our periodic scans run over contiguous memory. Only our background
+     * processing thread adds to it, so the table is never grown underneath a
+     * thread updating an emitter.
+     */
+    private final EmitterTable workingSet = new EmitterTable(MAX_WORKING_SET_SIZE);
+    private EmitterStore db;
+    private EmitterPack pack;
+    private boolean closed;
+    private EmitterArchive.Reader importing;           // archive being imported, if any
+
+    /**
+     * All the emitters in the tiles we have loaded from the database.
+     */
+    private final SpatialIndex tileIndex = new SpatialIndex();
+
+    /**
+     * Keys of emitters getKnown() found nothing stored for. A crowded place shows
+     * us the same weak emitters, which we never learn, scan after scan, so they
+     * are not looked up in the database again. Forgotten when get() adds one of
+     * them, when what is stored changes underneath us, and when too many.
+     */
+    private final Set<String> unknown = new HashSet<String>();
+
+    private final ExecutorService prefetcher = Executors.newSingleThreadExecutor();
+
+    // Cache statistics
+    private long workingSetHits;
+    private long tileHits;
+    private long misses;
+    private long packHits;
+    private long unknownHits;
+    private long tilesLoaded;
+    private long tilesPrefetched;
+    private long tilesEvicted;
+    private long areaTilesFromIndex;
+    private long areaTilesFromDb;
+    private int syncCount;
+
+    Cache(EmitterStore store) {
+        db = store;
+    }
+
+    /**
+     * Release all resources associated with the cache. If the cache is
+     * dirty, then it is sync'd to the on flash database.
+     */
+    public void close() {
+        prefetcher.shutdownNow();
+        synchronized (this) {
+            if (closed)
+                return;
+            closed = true;
+
+            // An import is using the database without holding our lock. Stop it
+            // rather than wait for it, it finishes closing when it stops.
+            if (importing != null)
+                importing.cancel();
+            else
+                closeDatabase();
+        }
+    }
+
+    /**
+     * Save our changes and close the database. Must be called with the cache
+     * locked.
+     */
+    private void closeDatabase() {
+        this.sync();
+        logStatistics();
+        this.clear();
+        tileIndex.clear();
+        db.close();
+        db = null;
+    }
+
+    /**
+     * @return True once close() has been called.
+     */
+    public boolean isClosed() {
+        synchronized (this) {
+            return closed;
+        }
+    }
+
+    /**
+     * Get the underlying database ready for use. Opens the database, compiles
+     * the statements we will use and loads the pages for the area we expect
+     * to be working in. Intended to be called from a background thread shortly
+     * after startup.
+     *
+     * @param bb The area we expect to be working in, may be null.
+     */
+    public void warmUp(BoundingBox bb) {
+        synchronized (this) {
+            if (db != null)
+                db.warmUp(bb);
+        }
+    }
+
+    /**
+     * Queries the cache with the given RfIdentification.
+     *
+     * If the emitter does not exist in the cache, it is
+     * added (from the database if known or a new "unknown"
+     * entry is created).
+     *
+     * @param id
+     * @return the emitter
+     *
+     */
+    public RfEmitter get(RfIdentification id) {
+        if (id == null)
+            return null;
+
+        synchronized (this) {
+            String key = id.toString();
+            RfEmitter rslt = workingSet.find(id.getRfType(), id.getRfId());
+            if (rslt != null) {
+                workingSetHits++;
+            } else {
+                rslt = tileIndex.get(key);
+                if (rslt != null) {
+                    tileHits++;
+                    if (rslt.isPacked())
+                        rslt = stored(id, key, rslt);
+                } else {
+                    misses++;
+                    unknown.remove(key);
+                    rslt = packed(id);
+                    if (rslt != null) {
+                        // Bring in its neighbors, any that we have learned replace the pack's.
+                        packHits++;
+                        loadTile(GeoTile.key(rslt.getLat(), rslt.getLon()));
+                        RfEmitter loaded = tileIndex.get(key);
+                        rslt = stored(id, key, (loaded != null) ? loaded : rslt);
+                    } else {
+                        rslt = db.getEmitter(id);
+                        if (rslt == null)
+                            rslt = new RfEmitter(id);
+                        else
+                            rslt = resident(key, rslt);
+                    }
+                }
+                rslt.moveTo(workingSet);
+                //Logger.d(TAG,"get('"+key+"') - Added to cache.");
+            }
+            rslt.resetAge();
+            return rslt;
+        }
+    }
+
+    /**
+     * Queries the cache for an emitter we may already know. Unlike get(), an
+     * emitter with nothing stored in the database or pack is not added, and one
+     * read from the database or pack is added without loading its tile. Those
+     * with nothing stored are remembered, so asking again costs no lookup.
+     *
+     * @param id The identification of the emitter
+     * @return The emitter, null if we know nothing about it.
+     */
+    public RfEmitter getKnown(RfIdentification id) {
+        if (id == null)
+            return null;
+
+        synchronized (this) {
+            RfEmitter rslt = workingSet.find(id.getRfType(), id.getRfId());
+            if (rslt != null) {
+                workingSetHits++;
+            } else {
+                String key = id.toString();
+                rslt = tileIndex.get(key);
+                if (rslt != null) {
+                    tileHits++;
+                    if (rslt.isPacked())
+                        rslt = stored(id, key, rslt);
+                } else if (unknown.contains(key)) {
+                    unknownHits++;
+                    return null;
+                } else {
+                    // Unlike get() its tile is not loaded, the emitter only joins the
+                    // working set. Should the tile be loaded later, loadTile() keeps
+                    // the working set copy.
+                    misses++;
+                    rslt = db.getEmitter(id);
+                    if (rslt == null) {
+                        rslt = packed(id);
+                        if (rslt != null) {
+                            packHits++;
+                            rslt.setPackChecked();
+                        }
+                    }
+                    if (rslt == null) {
+                        if (unknown.size() >= MAX_UNKNOWN)
+                            unknown.clear();
+                        unknown.add(key);
+                        return null;
+                    }
+                }
+                rslt.moveTo(workingSet);
+            }
+            rslt.resetAge();
+            return rslt;
+        }
+    }
+
+    /**
+     * Check that the database has nothing for an emitter we have from the pack, the
+     * database version may have been learned in another tile. The database is only
+     * asked once for each packed emitter while it is in memory: loadTile() already
+     * replaces the packed emitters learned in the same tile, only we add to the
+     * database and our additions clear the packed flag. Must be called with the
+     * cache locked.
+     *
+     * @param id The identification of the emitter
+     * @param key Its key
+     * @param packed The emitter as the pack has it
+     * @return The emitter to use
+     */
+    private RfEmitter stored(RfIdentification id, String key, RfEmitter packed) {
+        if (!packed.isPacked() || packed.isPackChecked())
+            return packed;
+        RfEmitter rslt = db.getEmitter(id);
+        if (rslt != null)
+            return resident(key, rslt);
+        packed.setPackChecked();
+        tileIndex.put(key, packed);
+        return packed;
+    }
+
+    /**
+     * Load the tile of an emitter read from the database, so its neighbors are in
+     * memory too. Must be called with the cache locked.
+     *
+     * @param key The key of the emitter
+     * @param stored The emitter as the database has it
+     * @return The emitter to use, there is only ever one object for each emitter.
+     */
+    private RfEmitter resident(String key, RfEmitter stored) {
+        loadTile(GeoTile.key(stored.getLat(), stored.getLon()));
+        RfEmitter loaded = tileIndex.get(key);
+        if ((loaded != null) && !loaded.isPacked())
+            return loaded;
+        tileIndex.put(key, stored);
+        return stored;
+    }
+
+    /**
+     * Load the tiles ahead of us into memory. The tiles along our direction of travel
+     * for about PREFETCH_TIME seconds are loaded in a background thread.
+     *
+     * @param latitude Our current (filtered GPS) position
+     * @param longitude Our current (filtered GPS) position
+     * @param speed Our speed in meters/sec
+     * @param bearingDeg Our direction of travel in degrees
+     */
+    public void prefetch(double latitude, double longitude, float speed, float bearingDeg) {
+        if (speed < MIN_PREFETCH_SPEED)
+            return;
+
+        double distance = Math.min(speed * PREFETCH_TIME, MAX_PREFETCH_DISTANCE);
+        double step = (GeoTile.TILE_SIZE * Constants.DEG_TO_METER) / 2.0;
+        double bearing = Math.toRadians(bearingDeg);
+        double cosLat = Geodesy.cosLat(latitude);
+        double dLat = Geodesy.latDegrees(Math.cos(bearing));
+        double dLon = Geodesy.lonDegrees(Math.sin(bearing), cosLat);
+
+        final Set<Long> tiles = new LinkedHashSet<Long>();
+        for (double d = 0.0; d <= distance; d += step) {
+            tiles.add(GeoTile.key(latitude + d * dLat, longitude + d * dLon));
+        }
+
+        synchronized (this) {
+            Iterator<Long> it = tiles.iterator();
+            while (it.hasNext()) {
+                if (tileIndex.isResident(it.next()))
+                    it.remove();
+            }
+        }
+        if (tiles.isEmpty() || prefetcher.isShutdown())
+            return;
+
+        prefetcher.execute(new Runnable() {
+            @Override
+            public void run() {
+                for (Long tile : tiles) {
+                    if (Thread.currentThread().isInterrupted())
+                        return;
+                    synchronized (Cache.this) {
+                        if (db == null)
+                            return;
+                        if (loadTile(tile))
+                            tilesPrefetched++;
+                    }
+                }
+            }
+        });
+    }
+
+    /**
+     * Load all the emitters in a tile from the database and the pack. Emitters we
+     * already have in memory are kept as is, so there is only ever one object for each
+     * emitter, except that what the database has replaces what we had from the pack.
+     * Must be called with the cache locked.
+     *
+     * @param tile The key of the tile to load
+     * @return True if the tile was loaded, false if it was already resident.
+     */
+    private boolean loadTile(long tile) {
+        if (tileIndex.isResident(tile))
+            return false;
+
+        List<RfEmitter> emitters = db.loadEmitters(GeoTile.boundingBox(tile));
+        tileIndex.addTile(tile);
+        Set<String> stored = (pack != null) ? new HashSet<String>() : null;
+        for (RfEmitter e : emitters) {
+            String key = e.getRfIdent().toString();
+            if (stored != null)
+                stored.add(key);
+            RfEmitter current = workingSet.find(e.getType(), e.getId());
+            if (current == null) {
+                current = tileIndex.get(key);
+                if ((current != null) && current.isPacked())
+                    current = null;
+            }
+            tileIndex.put(key, (current != null) ? current : e);
+        }
+        if (pack != null) {
+            for (RfEmitter e : packedTile(tile)) {
+                String key = e.getRfIdent().toString();
+                if (stored.contains(key))
+                    continue;
+                RfEmitter current = workingSet.find(e.getType(), e.getId());
+                if (current == null)
+                    current = tileIndex.get(key);
+                tileIndex.put(key, (current != null) ? current : e);
+            }
+        }
+        tilesLoaded++;
+        tilesEvicted += tileIndex.trim(MAX_RESIDENT_TILES);
+        return true;
+    }
+
+    /**
+     * Log our hit rates and tile activity.
+     */
+    private void logStatistics() {
+        long total = workingSetHits + tileHits + misses;
+        if (total == 0)
+            return;
+        Logger.d(TAG, "Hits: working set " + (workingSetHits * 100 / total) +
+                "%, tiles " + (tileHits * 100 / total) +
+                "%, misses " + (misses * 100 / total) +
+"% (" + packHits + " found in pack) of " + total + ", " + unknownHits +
+                " known to be unknown. Tiles: " + tileIndex.tileCount() + " resident, " +
+                tilesLoaded + " loaded, " + tilesPrefetched + " prefetched, " +
+                tilesEvicted + " evicted. Area queries: " + areaTilesFromIndex +
+                " tiles from memory, " + areaTilesFromDb + " from database.");
+    }
+
+    //
+    // The statistics themselves, for benchmarks.
+    //
+    synchronized long getWorkingSetHits() {
+        return workingSetHits;
+    }
+
+    synchronized long getTileHits() {
+        return tileHits;
+    }
+
+    synchronized long getMisses() {
+        return misses;
+    }
+
+    synchronized long getPackHits() {
+        return packHits;
+    }
+
+    synchronized long getAreaTilesFromIndex() {
+        return areaTilesFromIndex;
+    }
+
+    synchronized long getAreaTilesFromDb() {
+        return areaTilesFromDb;
+    }
+
+    /**
+     * Get the identification of all the emitters in our working set. Used
+     * to save the working set so it can be restored on our next startup.
+     *
+     * @return The identifications of the emitters in the cache.
+     */
+    public List<RfIdentification> getWorkingSetIds() {
+        synchronized (this) {
+            List<RfIdentification> rslt = new ArrayList<RfIdentification>(workingSet.size());
+            for (int slot = 0; slot < workingSet.limit(); slot++) {
+                RfEmitter e = workingSet.owner[slot];
+                if (e != null)
+                    rslt.add(e.getRfIdent());
+            }
+            return rslt;
+        }
+    }
+
+    /**
+     * Load emitters from the database (or the pack) into the cache. Used to
+     * restore a working set saved by a previous instance. Emitters not known to
+     * either are not added.
+     *
+     * @param ids The emitters to be loaded.
+     */
+    public void preload(Collection<RfIdentification> ids) {
+        if (ids == null)
+            return;
+        synchronized (this) {
+            if (db == null)
+                return;
+            int count = 0;
+            for (RfIdentification id : ids) {
+                if ((workingSet.size() < MAX_WORKING_SET_SIZE) &&
+                        (workingSet.find(id.getRfType(), id.getRfId()) == null)) {
+                    RfEmitter rslt = db.getEmitter(id);
+                    if (rslt == null)
+                        rslt = packed(id);
+                    if (rslt != null) {
+                        rslt.moveTo(workingSet);
+                        count++;
+                    }
+                }
+            }
+            Logger.d(TAG, "preload() - Loaded " + count + " of " + ids.size() + " emitters.");
+        }
+    }
+
+    /**
+     * Use a different emitter pack. Our changes are saved first, then everything in
+     * memory is dropped so that nothing from the previous pack remains in use.
+     *
+     * @param newPack The pack, null for none.
+     */
+    public void setPack(EmitterPack newPack) {
+        synchronized (this) {
+            if (db == null)
+                return;
+            sync();
+            clear();
+            tileIndex.clear();
+            unknown.clear();
+            pack = newPack;
+        }
+    }
+
+    /**
+     * Write all the emitters we know to an archive. Our changes are saved to the
+     * database first so the archive is up to date.
+     *
+     * @param out The archive
+     * @param progress Told how far we have got, may be null.
+     * @return The number of emitters written
+     */
+    public long exportEmitters(EmitterArchive.Writer out, EmitterArchive.Progress progress) throws IOException {
+        synchronized (this) {
+            if (closed)
+                throw new InterruptedIOException("Cache closed");
+            sync();
+            return db.exportEmitters(out, progress);
+        }
+    }
+
+    /**
+     * Add the emitters in an archive to the database. Our changes are saved first,
+     * then everything in memory is dropped so the imported values are read back
+     * from the database when next needed.
+     *
+     * The cache is not locked while the archive is read, so scans are processed
+     * meanwhile. Their changes are saved again before the cache is emptied at the
+     * end. close() cancels the import; the batches already committed are kept.
+     *
+     * @param in The archive
+     * @param progress Told how far we have got, may be null.
+     * @return The number of emitters imported
+     * @throws InterruptedIOException If the cache is, or is being, closed.
+     */
+    public long importEmitters(EmitterArchive.Reader in, EmitterArchive.Progress progress) throws IOException {
+        EmitterStore store;
+        synchronized (this) {
+            if (closed)
+                throw new InterruptedIOException("Cache closed");
+            sync();
+            importing = in;
+            store = db;
+        }
+        try {
+            return store.importEmitters(in, progress);
+        } finally {
+            synchronized (this) {
+                importing = null;
+                if (closed) {
+                    closeDatabase();
+                } else {
+                    sync();
+                    clear();
+                    tileIndex.clear();
+                    unknown.clear();
+                }
+            }
+        }
+    }
+
+    /**
+     * Remove all entries from the cache.
+     */
+    public void clear() {
+        synchronized (this) {
+            for (int slot = 0; slot < workingSet.limit(); slot++) {
+                RfEmitter e = workingSet.owner[slot];
+                if (e != null)
+                    release(e);
+            }
+            Logger.d(TAG, "clear() - entry");
+        }
+    }
+
+    /**
+     * Remove an emitter from the working set. The emitter gets a table of its
+     * own as it may still be in a resident tile or held by our caller. Must be
+     * called with the cache locked.
+     *
+     * @param e The emitter to remove
+     */
+    private void release(RfEmitter e) {
+        if (e.getTable() == workingSet)
+            e.moveTo(new EmitterTable(1));
+    }
+
+    /**
+     * Updates the database entry for any new or changed emitters.
+     * Once the database has been synchronized, cull infrequently used
+     * entries. If our cache is still to big after culling, we reset
+     * our cache.
+     */
+    public void sync() {
+        synchronized (this) {
+            boolean doSync = false;
+
+            // Scan all of our emitters to see
+            // 1. If any have dirty data to sync to the flash database
+            // 2. If any have been unused long enough to remove from cache
+            //
+            // The ages are scanned directly in the working set table, removing
+            // an emitter frees its slot but does not move any other emitter.
+
+            RfEmitter[] owner = workingSet.owner;
+            byte[] age = workingSet.age;
+            int limit = workingSet.limit();
+            for (int slot = 0; slot < limit; slot++) {
+                RfEmitter rfE = owner[slot];
+                if (rfE == null)
+                    continue;
+                doSync |= rfE.syncNeeded();
+
+                //Logger.d(TAG,"sync('"+rfE.getRfIdent()+"') - Age: " + age[slot]);
+                if (age[slot] >= MAX_AGE) {
+                    //Logger.d(TAG,"sync('"+rfE.getRfIdent()+"') - Aged out, removed from cache.");
+                    release(rfE);
+                } else
+                    age[slot]++;
+            }
+
+            if (doSync) {
+                db.beginTransaction();
+                for (int slot = 0; slot < limit; slot++) {
+                    RfEmitter rfE = owner[slot];
+                    if ((rfE != null) && rfE.syncNeeded()) {
+                        rfE.sync(db);
+                        // Keep the index consistent with what is now in the database.
+                        tileIndex.put(rfE.getRfIdent().toString(), rfE);
+                    }
+                }
+                db.endTransaction();
+            }
+            if (workingSet.size() > MAX_WORKING_SET_SIZE) {
+                Logger.d(TAG, "sync() - Clearing working set.");
+                clear();
+            }
+            if (++syncCount >= STATS_INTERVAL) {
+                logStatistics();
+                syncCount = 0;
+            }
+        }
+    }
+
+    /**
+     * Get the identification of all the emitters of a type whose coverage is
+     * centered within a bounding box. The tiles we have in memory are answered
+     * from our spatial index, the database is only queried for the rest.
+     *
+     * @param rfType The type of emitter wanted
+     * @param bb The bounding box
+     * @return The emitters in the bounding box
+     */
+    public HashSet<RfIdentification> getEmitters(RfEmitter.EmitterType rfType, BoundingBox bb) {
+        synchronized (this) {
+            int south = GeoTile.row(bb.getSouth());
+            int north = GeoTile.row(bb.getNorth());
+            int west = GeoTile.column(bb.getWest());
+            int east = GeoTile.column(bb.getEast());
+            long tileCount = ((long) (north - south + 1)) * (east - west + 1);
+            HashSet<RfIdentification> rslt = new HashSet<RfIdentification>();
+            if ((tileCount <= 0) || (tileCount > MAX_QUERY_TILES) || (tileIndex.tileCount() == 0)) {
+                areaTilesFromDb++;
+                storedEmitters(rfType, bb, rslt);
+                return rslt;
+            }
+
+            for (int row = south; row <= north; row++) {
+                for (int column = west; column <= east; column++) {
+                    long tile = GeoTile.key(row, column);
+                    if (tileIndex.isResident(tile)) {
+                        tileIndex.query(tile, rfType, bb, rslt);
+                        areaTilesFromIndex++;
+                    } else {
+                        BoundingBox part = bb.intersection(GeoTile.boundingBox(tile));
+                        if (part != null)
+                            storedEmitters(rfType, part, rslt);
+                        areaTilesFromDb++;
+                    }
+                }
+            }
+            return rslt;
+        }
+    }
+
+    /**
+     * Add the emitters of a type in an area that the database or the pack has to a
+     * set. Must be called with the cache locked.
+     */
+    private void storedEmitters(RfEmitter.EmitterType rfType, BoundingBox bb, Set<RfIdentification> rslt) {
+        rslt.addAll(db.getEmitters(rfType, bb));
+        if (pack != null) {
+            try {
+                pack.getEmitters(rfType, bb, rslt);
+            } catch (IOException e) {
+                dropPack(e);
+            }
+        }
+    }
+
+    /**
+     * Look up an emitter in the pack. Must be called with the cache locked.
+     *
+     * @param id The identification of the emitter
+     * @return The emitter as the pack has it, null if not in the pack or there is no pack.
+     */
+    private RfEmitter packed(RfIdentification id) {
+        if (pack == null)
+            return null;
+        try {
+            return pack.getEmitter(id);
+        } catch (IOException e) {
+            dropPack(e);
+            return null;
+        }
+    }
+
+    /**
+     * Get the emitters the pack has in a tile. Must be called with the cache locked.
+     */
+    private List<RfEmitter> packedTile(long tile) {
+        try {
+            return pack.loadTile(tile);
+        } catch (IOException e) {
+            dropPack(e);
+            return Collections.emptyList();
+        }
+    }
+
+    /**
+     * Stop using a pack found to be corrupt. What was read from it before stays
+     * in memory until it ages out. Must be called with the cache locked.
+     */
+    private void dropPack(IOException e) {
+        Logger.e(TAG, "Emitter pack no longer used: ", e);
+        pack = null;
+    }
+}
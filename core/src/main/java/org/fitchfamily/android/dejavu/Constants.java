@@ -0,0 +1,43 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Values shared by the positioning code and the Android service.
+ */
+public class Constants {
+    public static final String LOCATION_PROVIDER = "DejaVu";
+
+    public static final double DEG_TO_METER = 111225.0;
+    public static final double METER_TO_DEG = 1.0 / DEG_TO_METER;
+    public static final double MIN_COS = 0.01;      // for things that are dividing by the cosine
+
+    // Define range of received signal strength to be used for all emitter types.
+    // Basically use the same range of values for LTE and WiFi as GSM defaults to.
+    public static final int MAXIMUM_ASU = 31;
+    public static final int MINIMUM_ASU = 1;
+
+    // KPH -> Meters/millisec (KPH * 1000) / (60*60*1000) -> KPH/3600
+    public static final float EXPECTED_SPEED = 120.0f / 3600;           // 120KPH (74 MPH)
+    public static final float MINIMUM_BELIEVABLE_ACCURACY = 15.0F;
+
+    private Constants() {
+    }
+}
@@ -0,0 +1,419 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * A streaming export of an emitter database, for moving what is known about the
+ * emitters of a region in or out of rf.db without copying the database itself.
+ * Records are written and read one at a time, so an archive of any size is
+ * handled in a small fixed amount of memory. Archives are always gzip compressed
+ * and come in two variants.
+ *
+ * CSV, for other tools and for reading. A header line followed by one line per
+ * emitter:
+ *
+ *     rfType,rfID,trust,latitude,longitude,radius,ssid
+ *     WLAN,00:11:22:33:44:55,30,37.7749,-122.4194,55.0,Coffee Shop
+ *
+ * The emitter type is WLAN or MOBILE, the ssid is empty if not known. Fields
+ * containing a comma, double quote or line break are quoted as in RFC 4180.
+ *
+ * Binary, smaller and several times faster to read:
+ *
+ *     int     Magic number
+ *     int     Format version
+ *
+ * followed by one record per emitter until the end of the stream:
+ *
+ *     byte    Emitter type
+ *     UTF     Emitter ID
+ *     double  Latitude
+ *     double  Longitude
+ *     float   Radius (meters)
+ *     short   Trust
+ *     UTF     SSID, empty if not known
+ *
+ * The Reader tells the two apart by the magic number.
+ */
+public class EmitterArchive {
+    /**
+     * Records between progress reports, and between commits when importing.
+     */
+    public static final int BATCH_SIZE = 100000;
+
+    private static final int MAGIC = 0x446a5645;        // "DjVE"
+    private static final int VERSION = 1;
+    private static final int BUFFER_SIZE = 65536;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final String HEADER = "rfType,rfID,trust,latitude,longitude,radius,ssid";
+    private static final int FIELD_COUNT = 7;
+
+    public enum Format {
+        CSV(".csv.gz"),
+        BINARY(".bin.gz");
+
+        public final String suffix;
+
+        Format(String suffix) {
+            this.suffix = suffix;
+        }
+
+        /**
+         * @param name A file name
+         * @return The format the name asks for, binary unless it is a CSV name.
+         */
+        public static Format forName(String name) {
+            return (name.endsWith(".csv") || name.endsWith(CSV.suffix)) ? CSV : BINARY;
+        }
+    }
+
+    /**
+     * Told how far an export or import has got every BATCH_SIZE records.
+     */
+    public interface Progress {
+        void onProgress(long count);
+    }
+
+    /**
+     * Writes emitters to an archive.
+     */
+    public static class Writer implements Closeable {
+        private final Format format;
+        private final DataOutputStream data;
+        private final BufferedWriter text;
+        private final StringBuilder line = new StringBuilder();
+        private long count;
+
+        /**
+         * @param out The stream to write the compressed archive to, closed when the
+         *            writer is closed.
+         * @param format The variant to write
+         */
+        public Writer(OutputStream out, Format format) throws IOException {
+            this.format = format;
+            OutputStream gz = new GZIPOutputStream(new BufferedOutputStream(out, BUFFER_SIZE), BUFFER_SIZE);
+            if (format == Format.BINARY) {
+                data = new DataOutputStream(gz);
+                data.writeInt(MAGIC);
+                data.writeInt(VERSION);
+                text = null;
+            } else {
+                data = null;
+                text = new BufferedWriter(new OutputStreamWriter(gz, UTF8), BUFFER_SIZE);
+                text.write(HEADER);
+                text.write('\n');
+            }
+        }
+
+        public void write(RfIdentification ident, EmitterStore.EmitterInfo info) throws IOException {
+            String note = (info.note == null) ? "" : info.note;
+            if (format == Format.BINARY) {
+                data.writeByte(ident.getRfType().ordinal());
+                data.writeUTF(ident.getRfId());
+                data.writeDouble(info.latitude);
+                data.writeDouble(info.longitude);
+                data.writeFloat(info.radius);
+                data.writeShort((short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, info.trust)));
+                data.writeUTF(note);
+            } else {
+                line.setLength(0);
+                line.append(ident.getRfType().name()).append(',');
+                appendField(ident.getRfId());
+                line.append(',').append(info.trust)
+                        .append(',').append(info.latitude)
+                        .append(',').append(info.longitude)
+                        .append(',').append(info.radius)
+                        .append(',');
+                appendField(note);
+                line.append('\n');
+                text.append(line);
+            }
+            count++;
+        }
+
+        private void appendField(String value) {
+            boolean quote = false;
+            for (int i = 0; (i < value.length()) && !quote; i++) {
+                char c = value.charAt(i);
+                quote = (c == ',') || (c == '"') || (c == '\n') || (c == '\r');
+            }
+            if (!quote) {
+                line.append(value);
+                return;
+            }
+            line.append('"');
+            for (int i = 0; i < value.length(); i++) {
+                char c = value.charAt(i);
+                if (c == '"')
+                    line.append('"');
+                line.append(c);
+            }
+            line.append('"');
+        }
+
+        /**
+         * @return The number of emitters written.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (data != null)
+                data.close();
+            else
+                text.close();
+        }
+    }
+
+    /**
+     * Reads back the emitters in an archive, in the order they were written. The
+     * values of the current emitter are overwritten by the next one.
+     */
+    public static class Reader implements Closeable {
+        private final RfEmitter.EmitterType[] types = RfEmitter.EmitterType.values();
+        private final Format format;
+        private final DataInputStream data;
+        private final BufferedReader text;
+        private final List<String> fields = new ArrayList<String>(FIELD_COUNT);
+        private final StringBuilder field = new StringBuilder();
+        private final char[] buffer;
+        private int position;
+        private int limit;
+        private final EmitterStore.EmitterInfo info = new EmitterStore.EmitterInfo();
+        private RfIdentification ident;
+        private long count;
+        private volatile boolean cancelled;
+
+        /**
+         * @param in The compressed archive, closed when the reader is closed.
+         */
+        public Reader(InputStream in) throws IOException {
+            BufferedInputStream buffered;
+            try {
+                buffered = new BufferedInputStream(new GZIPInputStream(in, BUFFER_SIZE), BUFFER_SIZE);
+            } catch (IOException e) {
+                in.close();
+                throw e;
+            }
+            buffered.mark(4);
+            DataInputStream probe = new DataInputStream(buffered);
+            int magic;
+            try {
+                magic = probe.readInt();
+            } catch (EOFException e) {
+                magic = 0;
+            }
+            if (magic == MAGIC) {
+                format = Format.BINARY;
+                data = probe;
+                text = null;
+                buffer = null;
+                if (data.readInt() != VERSION) {
+                    close();
+                    throw new IOException("Unknown emitter archive version");
+                }
+            } else {
+                buffered.reset();
+                format = Format.CSV;
+                data = null;
+                text = new BufferedReader(new InputStreamReader(buffered, UTF8), BUFFER_SIZE);
+                buffer = new char[BUFFER_SIZE];
+                if (!HEADER.equals(text.readLine())) {
+                    close();
+                    throw new IOException("Not an emitter archive");
+                }
+            }
+        }
+
+        public Format getFormat() {
+            return format;
+        }
+
+        /**
+         * Stop reading. May be called from any thread, the next call to next()
+         * throws an InterruptedIOException.
+         */
+        public void cancel() {
+            cancelled = true;
+        }
+
+        /**
+         * Move to the next emitter in the archive.
+         *
+         * @return False at the end of the archive.
+         * @throws InterruptedIOException If the reader has been cancelled.
+         */
+        public boolean next() throws IOException {
+            if (cancelled)
+                throw new InterruptedIOException("Cancelled after " + count + " emitters");
+            boolean rslt = (format == Format.BINARY) ? nextRecord() : nextLine();
+            if (rslt)
+                count++;
+            return rslt;
+        }
+
+        private boolean nextRecord() throws IOException {
+            // Only a clean end of the stream ends the archive. The gzip stream
+            // throws EOFException if it was cut short, even between records.
+            int type = data.read();
+            if (type < 0)
+                return false;
+            if (type >= types.length)
+                throw new IOException("Unknown emitter type " + type + " in record " + (count + 1));
+            ident = new RfIdentification(data.readUTF(), types[type]);
+            info.latitude = data.readDouble();
+            info.longitude = data.readDouble();
+            info.radius = data.readFloat();
+            info.trust = data.readShort();
+            info.note = data.readUTF();
+            return true;
+        }
+
+        private boolean nextLine() throws IOException {
+            if (!readFields())
+                return false;
+            if (fields.size() != FIELD_COUNT)
+                throw new IOException("Expected " + FIELD_COUNT + " fields, found " + fields.size() +
+                        " in record " + (count + 1));
+            try {
+                ident = new RfIdentification(fields.get(1), RfEmitter.EmitterType.valueOf(fields.get(0)));
+                info.trust = Long.parseLong(fields.get(2));
+                info.latitude = Double.parseDouble(fields.get(3));
+                info.longitude = Double.parseDouble(fields.get(4));
+                info.radius = Float.parseFloat(fields.get(5));
+            } catch (IllegalArgumentException e) {
+                throw new IOException("Bad value in record " + (count + 1) + ": " + e.getMessage());
+            }
+            info.note = fields.get(6);
+            return true;
+        }
+
+        /**
+         * Split the next CSV record into fields. A quoted field may contain line
+         * breaks, so a record is not always a line.
+         *
+         * @return False at the end of the archive.
+         */
+        private boolean readFields() throws IOException {
+            fields.clear();
+            field.setLength(0);
+            boolean quoted = false;
+            int c = read();
+            while ((c == '\n') || (c == '\r'))
+                c = read();
+            if (c < 0)
+                return false;
+            while (true) {
+                if (quoted) {
+                    if (c < 0)
+                        throw new IOException("Unterminated quote in record " + (count + 1));
+                    if (c == '"') {
+                        c = read();
+                        if (c != '"') {
+                            quoted = false;
+                            continue;
+                        }
+                    }
+                    field.append((char) c);
+                } else if ((c < 0) || (c == '\n')) {
+                    break;
+                } else if (c == ',') {
+                    fields.add(field.toString());
+                    field.setLength(0);
+                } else if (c == '"') {
+                    quoted = true;
+                } else if (c != '\r') {
+                    field.append((char) c);
+                }
+                c = read();
+            }
+            fields.add(field.toString());
+            return true;
+        }
+
+        /**
+         * @return The next character of a CSV archive, -1 at the end.
+         */
+        private int read() throws IOException {
+            if (position == limit) {
+                limit = text.read(buffer, 0, buffer.length);
+                position = 0;
+                if (limit <= 0) {
+                    limit = 0;
+                    return -1;
+                }
+            }
+            return buffer[position++];
+        }
+
+        /**
+         * @return The identification of the current emitter.
+         */
+        public RfIdentification getIdent() {
+            return ident;
+        }
+
+        /**
+         * @return The stored values of the current emitter. The same object is
+         * returned for every emitter.
+         */
+        public EmitterStore.EmitterInfo getInfo() {
+            return info;
+        }
+
+        /**
+         * @return The number of emitters read so far.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            if (data != null)
+                data.close();
+            else if (text != null)
+                text.close();
+        }
+    }
+}
@@ -0,0 +1,161 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Finds the largest group of emitters in a scan whose coverage areas are believably
+ * close together, see culledEmitters().
+ *
+ * The scratch arrays are kept from scan to scan. Not thread safe, each instance is
+ * used by a single thread.
+ */
+public class EmitterGrouping {
+    private final List<PositionEstimate> culledEstimates = new ArrayList<PositionEstimate>();
+    private int[] groupMembers = new int[0];
+    private int[] bestGroupMembers = new int[0];
+    private double[] groupLat = new double[0];
+    private double[] groupLon = new double[0];
+    private float[] groupDistances = new float[0];
+
+    /**
+     *
+     * The collector service attempts to detect and not report moved/moving emitters.
+     * But it (and thus our database) can't be perfect. This routine looks at all the
+     * emitters and returns the largest subset (group) that are within a reasonable
+     * distance of one another.
+     *
+     * The hope is that a single moved/moving emitters that is seen now but whose
+     * location was detected miles away can be excluded from the set of APs
+     * we use to determine where the phone is at this moment.
+     *
+     * We do this by creating collections of emitters where all the emitters in a group
+     * are within a plausible distance of one another. A single emitters may end up
+     * in multiple groups. When done, we return the largest group.
+     *
+     * If we are at the extreme limit of possible coverage (movedThreshold)
+     * from two emitters then those emitters could be a distance of 2*movedThreshold apart.
+     * So we will group the emitters based on that large distance.
+     *
+     * The groups are built one at a time in scratch arrays of indexes into the
+     * coverage list, only the largest so far is kept.
+     *
+     * @param locations A collection of the coverages for the current observation set
+     * @param moveThreshold The maximum distance apart the emitters can be before we
+     *                      believe they should not be considered together.
+     * @return The largest set of coverages found within the raw observations. That is
+     * the most believable set of coverage areas. The list is reused for the next scan.
+     */
+    public List<PositionEstimate> culledEmitters(List<PositionEstimate> locations, float moveThreshold) {
+        int n = locations.size();
+        if (n == 0)
+            return null;
+
+        if (groupMembers.length < n) {
+            groupMembers = new int[n];
+            bestGroupMembers = new int[n];
+            groupLat = new double[n];
+            groupLon = new double[n];
+            groupDistances = new float[n * n];
+        }
+
+        // Every pair is compared at least once, usually several times, so
+        // compute all the distances up front.
+        for (int i = 0; i < n; i++) {
+            groupLat[i] = locations.get(i).latitude;
+            groupLon[i] = locations.get(i).longitude;
+        }
+        Geodesy.distanceMatrix(groupLat, groupLon, n, Geodesy.cosLat(groupLat[0]), groupDistances);
+
+        int bestCount = 0;
+        for (int seed = 0; seed < n; seed++) {
+            int count = divideInGroups(locations, seed, moveThreshold);
+            if (count > bestCount) {
+                int[] t = bestGroupMembers;
+                bestGroupMembers = groupMembers;
+                groupMembers = t;
+                bestCount = count;
+            }
+        }
+
+        culledEstimates.clear();
+        for (int i = 0; i < bestCount; i++)
+            culledEstimates.add(locations.get(bestGroupMembers[i]));
+        return culledEstimates;
+    }
+
+    /**
+     * Build a group of coverages of reasonably near RF emitters. Basically we are
+     * grouping the raw observations into clumps based on how believably close
+     * together they are. An outlying emitter will likely be put into its own group.
+     * Our caller builds one group starting from each coverage and takes the largest
+     * as the most believable group of observations to use to compute a position.
+     *
+     * @param locations A set of RF emitter coverage records
+     * @param seed The index of the coverage the group starts with
+     * @param accuracy The expected coverage radius of for the type of RF emitters
+     *                 being grouped
+     * @return The number of coverages in the group, their indexes are in groupMembers.
+     */
+    int divideInGroups(List<PositionEstimate> locations, int seed, double accuracy) {
+        int count = 0;
+        groupMembers[count++] = seed;
+
+        for (int i = 0; i < locations.size(); i++) {
+            if ((i != seed) && locationCompatibleWithGroup(locations, i, count, accuracy))
+                groupMembers[count++] = i;
+        }
+        return count;
+    }
+
+    /**
+     * Check to see if the coverage area (location) of an RF emitter is close
+     * enough to others in a group that we can believably add it to the group.
+     * @param locations The coverage areas of all the emitters
+     * @param candidate The index of the coverage area of the candidate emitter
+     * @param count The number of emitters already in the group (see groupMembers)
+     * @param radius The coverage radius expected for they type of emitter
+     *                 we are dealing with.
+     * @return
+     */
+    private boolean locationCompatibleWithGroup(List<PositionEstimate> locations,
+                                                int candidate,
+                                                int count,
+                                                double radius) {
+
+        // If the location is within range of all current members of the
+        // group, then we are compatible.
+        int n = locations.size();
+        PositionEstimate location = locations.get(candidate);
+        for (int i = 0; i < count; i++) {
+            PositionEstimate other = locations.get(groupMembers[i]);
+            double testDistance = (groupDistances[candidate * n + groupMembers[i]] -
+                    location.accuracy -
+                    other.accuracy);
+
+            if (testDistance > radius) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
@@ -0,0 +1,495 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.BufferedOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A read-only pack of precomputed emitter coverage for a region, shipped alongside
+ * the database we learn into (rf.db). The file is memory mapped, so looking up an
+ * emitter or the emitters in a tile costs a binary search and reading a few pages
+ * that the OS keeps cached, rather than an SQLite query.
+ *
+ * The file format, all values big endian:
+ *
+ *     int     Magic number
+ *     int     Format version
+ *     int     Emitter count
+ *     int     Tile count
+ *     int     Offset of the tile index
+ *     int     Offset of the key index
+ *
+ * followed by one record per emitter, ordered by GeoTile (row, then column) and
+ * within a tile by emitter type and ID:
+ *
+ *     byte    Emitter type
+ *     int     Latitude (1e-7 degrees)
+ *     int     Longitude (1e-7 degrees)
+ *     float   Radius (meters)
+ *     short   Trust
+ *     byte    ID length followed by the ID (UTF-8)
+ *     byte    SSID length followed by the SSID (UTF-8), empty if not known
+ *
+ * The tile index is sparse, one entry per tile with emitters in record order:
+ *
+ *     int     Row
+ *     int     Column
+ *     int     Offset of the first record in the tile
+ *     int     Number of records in the tile
+ *
+ * The key index finds an emitter without knowing where it is, one entry per emitter
+ * ordered by hash:
+ *
+ *     long    Hash of emitter type and ID, see hash()
+ *     int     Offset of the record
+ *
+ * A pack is never changed once written. To replace one that is in use write the
+ * new pack to another file and rename it over the old one, the old mapping stays
+ * valid until it is no longer referenced.
+ *
+ * The header is checked when a pack is opened, each record is checked to lie
+ * within the records before it is read. A pack found to be corrupt, at open or
+ * while reading, is reported with an IOException.
+ *
+ * Thread safe, the mapping is only read with absolute gets.
+ */
+public class EmitterPack {
+    private static final int MAGIC = 0x446a5652;        // "DjVR"
+    private static final int VERSION = 1;
+    private static final int HEADER_SIZE = 24;
+    private static final int RECORD_FIXED_SIZE = 15;    // type, latitude, longitude, radius, trust
+    private static final int TILE_ENTRY_SIZE = 16;
+    private static final int KEY_ENTRY_SIZE = 12;
+    private static final double E7 = 1.0e7;
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private final RfEmitter.EmitterType[] types = RfEmitter.EmitterType.values();
+    private final File file;
+    private final ByteBuffer buffer;
+    private final int count;
+    private final int tileCount;
+    private final int tileIndex;
+    private final int keyIndex;
+
+    private EmitterPack(File file, ByteBuffer buffer) throws IOException {
+        this.file = file;
+        this.buffer = buffer;
+        if ((buffer.capacity() < HEADER_SIZE) || (buffer.getInt(0) != MAGIC) || (buffer.getInt(4) != VERSION))
+            throw new IOException("Unknown emitter pack format: " + file);
+        count = buffer.getInt(8);
+        tileCount = buffer.getInt(12);
+        tileIndex = buffer.getInt(16);
+        keyIndex = buffer.getInt(20);
+        if ((count < 0) || (tileCount < 0) || (tileIndex < HEADER_SIZE) ||
+                ((long) tileIndex + (long) tileCount * TILE_ENTRY_SIZE > keyIndex) ||
+                ((long) keyIndex + (long) count * KEY_ENTRY_SIZE != buffer.capacity()))
+            throw new IOException("Corrupt emitter pack: " + file);
+    }
+
+    /**
+     * Map a pack into memory.
+     *
+     * @param file The pack file
+     * @return The pack
+     */
+    public static EmitterPack open(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            FileChannel channel = raf.getChannel();
+            if (channel.size() > Integer.MAX_VALUE)
+                throw new IOException("Emitter pack too large: " + file);
+            // The mapping remains valid after the file is closed.
+            return new EmitterPack(file, channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size()));
+        } finally {
+            raf.close();
+        }
+    }
+
+    public File getFile() {
+        return file;
+    }
+
+    /**
+     * @return The number of emitters in the pack
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * Look up an emitter.
+     *
+     * @param ident The identification of the emitter
+     * @return The emitter as the pack has it (see RfEmitter.isPacked()), null if not in the pack.
+     * @throws IOException if the pack is corrupt
+     */
+    public RfEmitter getEmitter(RfIdentification ident) throws IOException {
+        int type = ident.getRfType().ordinal();
+        byte[] id = ident.getRfId().getBytes(UTF8);
+        long hash = hash(type, id);
+
+        // Find the first entry with the hash, then check each entry that has it.
+        int low = 0;
+        int high = count;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            if (buffer.getLong(keyIndex + mid * KEY_ENTRY_SIZE) < hash)
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        for (int i = low; (i < count) && (buffer.getLong(keyIndex + i * KEY_ENTRY_SIZE) == hash); i++) {
+            int record = buffer.getInt(keyIndex + i * KEY_ENTRY_SIZE + 8);
+            next(record);
+            if (matches(record, type, id))
+                return read(record, ident);
+        }
+        return null;
+    }
+
+    /**
+     * Get all the emitters in a tile.
+     *
+     * @param tile The key of the tile
+     * @return The emitters whose coverage is centered in the tile (see RfEmitter.isPacked()).
+     * @throws IOException if the pack is corrupt
+     */
+    public List<RfEmitter> loadTile(long tile) throws IOException {
+        int row = GeoTile.row(tile);
+        int column = GeoTile.column(tile);
+        int entry = findTile(row, column);
+        if ((entry >= tileCount) || (tileRow(entry) != row) || (tileColumn(entry) != column))
+            return Collections.emptyList();
+
+        int record = buffer.getInt(tileIndex + entry * TILE_ENTRY_SIZE + 8);
+        int records = buffer.getInt(tileIndex + entry * TILE_ENTRY_SIZE + 12);
+        if ((records < 0) || (records > count))
+            throw corrupt(record);
+        List<RfEmitter> rslt = new ArrayList<RfEmitter>(records);
+        for (int i = 0; i < records; i++) {
+            int following = next(record);
+            rslt.add(read(record, null));
+            record = following;
+        }
+        return rslt;
+    }
+
+    /**
+     * Add the emitters of a type whose coverage is centered within a bounding box
+     * to a set. Same selection as EmitterStore.getEmitters().
+     *
+     * @param rfType The type of emitter wanted
+     * @param bb The bounding box
+     * @param rslt The set to add the emitter identifications to
+     * @throws IOException if the pack is corrupt
+     */
+    public void getEmitters(RfEmitter.EmitterType rfType, BoundingBox bb, Set<RfIdentification> rslt)
+            throws IOException {
+        int west = GeoTile.column(bb.getWest());
+        int east = GeoTile.column(bb.getEast());
+        for (int row = GeoTile.row(bb.getSouth()); row <= GeoTile.row(bb.getNorth()); row++) {
+            for (int entry = findTile(row, west);
+                 (entry < tileCount) && (tileRow(entry) == row) && (tileColumn(entry) <= east);
+                 entry++) {
+                int record = buffer.getInt(tileIndex + entry * TILE_ENTRY_SIZE + 8);
+                int records = buffer.getInt(tileIndex + entry * TILE_ENTRY_SIZE + 12);
+                for (int i = 0; i < records; i++) {
+                    int following = next(record);
+                    if ((buffer.get(record) == rfType.ordinal()) &&
+                            bb.contains(buffer.getInt(record + 1) / E7, buffer.getInt(record + 5) / E7))
+                        rslt.add(new RfIdentification(readString(record + RECORD_FIXED_SIZE), rfType));
+                    record = following;
+                }
+            }
+        }
+    }
+
+    /**
+     * @return The first tile index entry at or after a row and column.
+     */
+    private int findTile(int row, int column) {
+        int low = 0;
+        int high = tileCount;
+        while (low < high) {
+            int mid = (low + high) >>> 1;
+            int r = tileRow(mid);
+            if ((r < row) || ((r == row) && (tileColumn(mid) < column)))
+                low = mid + 1;
+            else
+                high = mid;
+        }
+        return low;
+    }
+
+    private int tileRow(int entry) {
+        return buffer.getInt(tileIndex + entry * TILE_ENTRY_SIZE);
+    }
+
+    private int tileColumn(int entry) {
+        return buffer.getInt(tileIndex + entry * TILE_ENTRY_SIZE + 4);
+    }
+
+    /**
+     * Check that a record lies within the records of the pack (which end where the
+     * tile index starts), so it can be read without further checks.
+     *
+     * @param record The offset of a record
+     * @return The offset of the record following it
+     * @throws IOException if the record is not within the records
+     */
+    private int next(int record) throws IOException {
+        if ((record < HEADER_SIZE) || (record > tileIndex - RECORD_FIXED_SIZE - 2))
+            throw corrupt(record);
+        int note = record + RECORD_FIXED_SIZE + 1 + (buffer.get(record + RECORD_FIXED_SIZE) & 0xff);
+        if (note >= tileIndex)
+            throw corrupt(record);
+        int rslt = note + 1 + (buffer.get(note) & 0xff);
+        if (rslt > tileIndex)
+            throw corrupt(record);
+        return rslt;
+    }
+
+    private IOException corrupt(int record) {
+        return new IOException("Corrupt emitter pack, bad record at " + record + ": " + file);
+    }
+
+    private boolean matches(int record, int type, byte[] id) {
+        if ((buffer.get(record) != type) || ((buffer.get(record + RECORD_FIXED_SIZE) & 0xff) != id.length))
+            return false;
+        int start = record + RECORD_FIXED_SIZE + 1;
+        for (int i = 0; i < id.length; i++) {
+            if (buffer.get(start + i) != id[i])
+                return false;
+        }
+        return true;
+    }
+
+    /**
+     * @param record The offset of a record, checked with next()
+     * @param ident The identification of the emitter, null to read it from the record
+     * @return The emitter in the record
+     */
+    private RfEmitter read(int record, RfIdentification ident) throws IOException {
+        int type = buffer.get(record);
+        if ((type < 0) || (type >= types.length))
+            throw new IOException("Corrupt emitter pack, unknown emitter type " + type + " at " + record + ": " + file);
+        int id = record + RECORD_FIXED_SIZE;
+        if (ident == null)
+            ident = new RfIdentification(readString(id), types[type]);
+
+        EmitterStore.EmitterInfo info = new EmitterStore.EmitterInfo();
+        info.latitude = buffer.getInt(record + 1) / E7;
+        info.longitude = buffer.getInt(record + 5) / E7;
+        info.radius = buffer.getFloat(record + 9);
+        info.trust = buffer.getShort(record + 13);
+        info.note = readString(id + 1 + (buffer.get(id) & 0xff));
+
+        RfEmitter rslt = new RfEmitter(ident, 0);
+        rslt.updateInfo(info);
+        rslt.setPacked();
+        return rslt;
+    }
+
+    /**
+     * @param offset The offset of a length byte followed by UTF-8 bytes, within a
+     *               record checked with next()
+     */
+    private String readString(int offset) {
+        byte[] bytes = new byte[buffer.get(offset) & 0xff];
+        for (int i = 0; i < bytes.length; i++)
+            bytes[i] = buffer.get(offset + 1 + i);
+        return new String(bytes, UTF8);
+    }
+
+    /**
+     * A 64 bit FNV-1a hash of the emitter type and the UTF-8 bytes of its ID.
+     */
+    static long hash(int type, byte[] id) {
+        long rslt = 0xcbf29ce484222325L;
+        rslt = (rslt ^ type) * 0x100000001b3L;
+        for (byte b : id)
+            rslt = (rslt ^ (b & 0xff)) * 0x100000001b3L;
+        return rslt;
+    }
+
+    /**
+     * Collects emitters and writes them as a pack. All the emitters are held in
+     * memory until written.
+     */
+    public static class Builder {
+        private static final Comparator<Entry> PACK_ORDER = new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                if (a.row != b.row)
+                    return (a.row < b.row) ? -1 : 1;
+                if (a.column != b.column)
+                    return (a.column < b.column) ? -1 : 1;
+                if (a.type != b.type)
+                    return a.type - b.type;
+                for (int i = 0; (i < a.id.length) && (i < b.id.length); i++) {
+                    if (a.id[i] != b.id[i])
+                        return (a.id[i] & 0xff) - (b.id[i] & 0xff);
+                }
+                return a.id.length - b.id.length;
+            }
+        };
+
+        private static final Comparator<Entry> HASH_ORDER = new Comparator<Entry>() {
+            @Override
+            public int compare(Entry a, Entry b) {
+                return (a.hash < b.hash) ? -1 : ((a.hash == b.hash) ? 0 : 1);
+            }
+        };
+
+        private final Map<String,Entry> entries = new HashMap<String,Entry>();
+
+        private static class Entry {
+            int row;
+            int column;
+            int type;
+            byte[] id;
+            int latitude;
+            int longitude;
+            float radius;
+            short trust;
+            byte[] note;
+            long hash;
+            int offset;
+        }
+
+        /**
+         * Add an emitter, replacing any earlier one with the same identification.
+         *
+         * @param ident The identification of the emitter
+         * @param info Its values
+         */
+        public void add(RfIdentification ident, EmitterStore.EmitterInfo info) {
+            Entry e = new Entry();
+            e.type = ident.getRfType().ordinal();
+            e.id = ident.getRfId().getBytes(UTF8);
+            e.hash = hash(e.type, e.id);
+            e.note = (info.note == null) ? new byte[0] : info.note.getBytes(UTF8);
+            if ((e.id.length > 255) || (e.note.length > 255))
+                throw new IllegalArgumentException("ID or SSID too long: " + ident);
+            e.latitude = (int) Math.round(info.latitude * E7);
+            e.longitude = (int) Math.round(info.longitude * E7);
+            // The tile of the stored position, which is what a reader will see.
+            e.row = GeoTile.row(e.latitude / E7);
+            e.column = GeoTile.column(e.longitude / E7);
+            e.radius = info.radius;
+            e.trust = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, info.trust));
+            entries.put(e.type + ":" + ident.getRfId(), e);
+        }
+
+        public int size() {
+            return entries.size();
+        }
+
+        /**
+         * Write the pack. It is written to a temporary file which then replaces the
+         * pack file, so a pack in use is swapped for the new one in one step.
+         *
+         * @param file The pack file
+         */
+        public void write(File file) throws IOException {
+            Entry[] sorted = entries.values().toArray(new Entry[entries.size()]);
+            Arrays.sort(sorted, PACK_ORDER);
+
+            long offset = HEADER_SIZE;
+            int tiles = 0;
+            for (int i = 0; i < sorted.length; i++) {
+                Entry e = sorted[i];
+                e.offset = (int) offset;
+                offset += RECORD_FIXED_SIZE + 2 + e.id.length + e.note.length;
+                if ((i == 0) || (e.row != sorted[i - 1].row) || (e.column != sorted[i - 1].column))
+                    tiles++;
+            }
+            long tileIndex = offset;
+            long keyIndex = tileIndex + (long) tiles * TILE_ENTRY_SIZE;
+            if (keyIndex + (long) sorted.length * KEY_ENTRY_SIZE > Integer.MAX_VALUE)
+                throw new IOException("Too many emitters for one pack: " + sorted.length);
+
+            File tmp = new File(file.getPath() + ".tmp");
+            DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp), 65536));
+            try {
+                out.writeInt(MAGIC);
+                out.writeInt(VERSION);
+                out.writeInt(sorted.length);
+                out.writeInt(tiles);
+                out.writeInt((int) tileIndex);
+                out.writeInt((int) keyIndex);
+
+                for (Entry e : sorted) {
+                    out.writeByte(e.type);
+                    out.writeInt(e.latitude);
+                    out.writeInt(e.longitude);
+                    out.writeFloat(e.radius);
+                    out.writeShort(e.trust);
+                    out.writeByte(e.id.length);
+                    out.write(e.id);
+                    out.writeByte(e.note.length);
+                    out.write(e.note);
+                }
+
+                int first = 0;
+                for (int i = 1; i <= sorted.length; i++) {
+                    if ((i == sorted.length) || (sorted[i].row != sorted[first].row) ||
+                            (sorted[i].column != sorted[first].column)) {
+                        out.writeInt(sorted[first].row);
+                        out.writeInt(sorted[first].column);
+                        out.writeInt(sorted[first].offset);
+                        out.writeInt(i - first);
+                        first = i;
+                    }
+                }
+
+                Entry[] byHash = sorted.clone();
+                Arrays.sort(byHash, HASH_ORDER);
+                for (Entry e : byHash) {
+                    out.writeLong(e.hash);
+                    out.writeInt(e.offset);
+                }
+            } finally {
+                out.close();
+            }
+            if (!tmp.renameTo(file)) {
+                tmp.delete();
+                throw new IOException("Unable to replace " + file);
+            }
+        }
+    }
+}
@@ -0,0 +1,110 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Persistent storage for what we have learned about RF emitters. On Android this is
+ * the SQLite database (see Database in the app module), other implementations let
+ * the positioning code run on a plain JVM.
+ *
+ * Implementations need not be thread safe, all access is through the Cache which
+ * serializes it.
+ */
+public interface EmitterStore {
+    /**
+     * The stored values for an emitter, see RfEmitter.updateInfo().
+     */
+    class EmitterInfo {
+        public double latitude;
+        public double longitude;
+        public float radius;
+        public long trust;
+        public String note;
+    }
+
+    /**
+     * Do any expensive startup work before we are actually needed.
+     *
+     * @param bb The area we expect to be working in, may be null if unknown.
+     */
+    void warmUp(BoundingBox bb);
+
+    /**
+     * Start a group of updates. They are written when endTransaction() is called.
+     */
+    void beginTransaction();
+
+    void endTransaction();
+
+    void insert(RfEmitter emitter);
+
+    void update(RfEmitter emitter);
+
+    void updateNote(RfEmitter emitter);
+
+    void drop(RfEmitter emitter);
+
+    /**
+     * @param rfType The type of emitter the caller is interested in
+     * @param bb The lat,lon bounding box.
+     * @return The identifications of the emitters of a type within a bounding box
+     */
+    HashSet<RfIdentification> getEmitters(RfEmitter.EmitterType rfType, BoundingBox bb);
+
+    /**
+     * @param ident The identification of the emitter caller wants
+     * @return A emitter object with all the information we have. Or null if we have nothing.
+     */
+    RfEmitter getEmitter(RfIdentification ident);
+
+    /**
+     * @param bb The lat,lon bounding box.
+     * @return All the emitters in the bounding box.
+     */
+    List<RfEmitter> loadEmitters(BoundingBox bb);
+
+    /**
+     * Write every emitter we have to an archive.
+     *
+     * @param out The archive
+     * @param progress Told how far we have got, may be null.
+     * @return The number of emitters written
+     */
+    long exportEmitters(EmitterArchive.Writer out, EmitterArchive.Progress progress) throws IOException;
+
+    /**
+     * Add the emitters in an archive, replacing what we have for any we already
+     * know. Meant for bulk loads, database implementations commit in batches,
+     * so a failed import keeps what was committed before the failure. Importing
+     * the same archive again is harmless. May run while other threads use the
+     * store.
+     *
+     * @param in The archive
+     * @param progress Told how far we have got, may be null.
+     * @return The number of emitters imported
+     */
+    long importEmitters(EmitterArchive.Reader in, EmitterArchive.Progress progress) throws IOException;
+
+    void close();
+}
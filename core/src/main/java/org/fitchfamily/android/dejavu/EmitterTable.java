@@ -0,0 +1,290 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Columnar storage for the frequently used values of RF emitters.
+ *
+ * Rather than each RfEmitter object holding its own coverage, trust, signal level,
+ * etc. the values for all the emitters in the cache's working set are kept in
+ * parallel arrays indexed by a slot number. Loops over the working set (aging the
+ * cache, looking for emitters that need to be written to the database) then run
+ * over contiguous memory. Each slot costs about 50 bytes including the hash index.
+ *
+ * An RfEmitter object holds the table and slot its values are in. Emitters not
+ * in the working set have a table of their own. The cache moves emitters into
+ * its table when they are used and back out again when they age out.
+ *
+ * The slots are not all an emitter costs. Measured with EmitterFootprint (64 bit
+ * JVM, compressed references) a WLAN emitter in the working set uses about 160
+ * bytes, 216 with an SSID note, as the RfEmitter object and its ID string remain.
+ * An emitter with a table of its own uses about 520 bytes, roughly three times
+ * what it did with per object fields, so emitters held in resident tiles cost
+ * more than before. The aim of under 64 bytes per emitter would need emitters
+ * kept by slot alone, without an object and ID string each; it has not been met.
+ *
+ * Slots are found by a 64 bit key made from the emitter type and ID.
+ *
+ * Not thread safe. Growing the table replaces the arrays, so only the thread
+ * that updates the emitters (our background processing thread) may add to it.
+ */
+public class EmitterTable {
+    // Flag bits
+    static final byte FLAG_COVERAGE = 0x01;         // lat, lon and radius are valid
+    static final byte FLAG_NOTE_CHANGED = 0x02;     // note differs from that in the database
+    static final byte FLAG_PACKED = 0x04;           // values from an emitter pack, not in the database
+    static final byte FLAG_PACK_CHECKED = 0x08;     // packed and the database checked for a learned copy
+
+    private static final int EMPTY = -1;
+
+    long[] key;
+    double[] lat;
+    double[] lon;
+    float[] radius;
+    short[] trust;
+    byte[] asu;
+    byte[] age;
+    byte[] status;
+    byte[] flags;
+    RfEmitter[] owner;
+
+    private int[] freeSlots;
+    private int freeCount;
+    private int highWater;              // All slots at or above this have never been used
+    private int count;
+
+    private int[] hash;                 // Open addressing (linear probe) from key to slot
+
+    EmitterTable(int capacity) {
+        capacity = Math.max(capacity, 1);
+        key = new long[capacity];
+        lat = new double[capacity];
+        lon = new double[capacity];
+        radius = new float[capacity];
+        trust = new short[capacity];
+        asu = new byte[capacity];
+        age = new byte[capacity];
+        status = new byte[capacity];
+        flags = new byte[capacity];
+        owner = new RfEmitter[capacity];
+        freeSlots = new int[capacity];
+        hash = new int[hashSize(capacity)];
+        Arrays.fill(hash, EMPTY);
+    }
+
+    /**
+     * Compute the key for an emitter. Collisions are possible (but unlikely) so
+     * callers must check the owner of a slot found by key.
+     *
+     * @param type The emitter type
+     * @param id The emitter ID
+     * @return A 64 bit key
+     */
+    public static long key(RfEmitter.EmitterType type, String id) {
+        // FNV-1a
+        long h = 0xcbf29ce484222325L;
+        for (int i = 0; i < id.length(); i++) {
+            h ^= id.charAt(i);
+            h *= 0x100000001b3L;
+        }
+        h ^= type.ordinal();
+        h *= 0x100000001b3L;
+        return h;
+    }
+
+    /**
+     * @return The number of slots in use.
+     */
+    public int size() {
+        return count;
+    }
+
+    /**
+     * @return One more than the highest slot number that has been used. All
+     * occupied slots are below this.
+     */
+    public int limit() {
+        return highWater;
+    }
+
+    /**
+     * Get a free slot for an emitter.
+     *
+     * @param emitter The emitter that will own the slot
+     * @param k The key for the emitter
+     * @return The slot number
+     */
+    int allocate(RfEmitter emitter, long k) {
+        int slot;
+        if (freeCount > 0) {
+            slot = freeSlots[--freeCount];
+        } else {
+            if (highWater == key.length)
+                grow(key.length * 2);
+            slot = highWater++;
+        }
+        key[slot] = k;
+        lat[slot] = 0.0;
+        lon[slot] = 0.0;
+        radius[slot] = 0.0f;
+        trust[slot] = 0;
+        asu[slot] = 0;
+        age[slot] = 0;
+        status[slot] = 0;
+        flags[slot] = 0;
+        owner[slot] = emitter;
+        count++;
+        hashInsert(slot);
+        return slot;
+    }
+
+    /**
+     * Return a slot to the free list.
+     *
+     * @param slot The slot to be released
+     */
+    void release(int slot) {
+        if (owner[slot] == null)
+            return;
+        hashRemove(slot);
+        owner[slot] = null;
+        flags[slot] = 0;
+        freeSlots[freeCount++] = slot;
+        count--;
+    }
+
+    /**
+     * Copy all the values from a slot in another table to a slot in this one.
+     */
+    void copy(EmitterTable from, int fromSlot, int toSlot) {
+        lat[toSlot] = from.lat[fromSlot];
+        lon[toSlot] = from.lon[fromSlot];
+        radius[toSlot] = from.radius[fromSlot];
+        trust[toSlot] = from.trust[fromSlot];
+        asu[toSlot] = from.asu[fromSlot];
+        age[toSlot] = from.age[fromSlot];
+        status[toSlot] = from.status[fromSlot];
+        flags[toSlot] = from.flags[fromSlot];
+    }
+
+    /**
+     * Find the emitter with a given identification.
+     *
+     * @param type The emitter type
+     * @param id The emitter ID
+     * @return The emitter or null if it is not in this table.
+     */
+    public RfEmitter find(RfEmitter.EmitterType type, String id) {
+        long k = key(type, id);
+        int mask = hash.length - 1;
+        int i = mix(k) & mask;
+        while (hash[i] != EMPTY) {
+            int slot = hash[i];
+            if (key[slot] == k) {
+                RfEmitter e = owner[slot];
+                if ((e.getType() == type) && e.getId().equals(id))
+                    return e;
+            }
+            i = (i + 1) & mask;
+        }
+        return null;
+    }
+
+    public boolean hasFlag(int slot, byte flag) {
+        return (flags[slot] & flag) != 0;
+    }
+
+    public void setFlag(int slot, byte flag, boolean value) {
+        if (value)
+            flags[slot] |= flag;
+        else
+            flags[slot] &= ~flag;
+    }
+
+    private void grow(int capacity) {
+        key = Arrays.copyOf(key, capacity);
+        lat = Arrays.copyOf(lat, capacity);
+        lon = Arrays.copyOf(lon, capacity);
+        radius = Arrays.copyOf(radius, capacity);
+        trust = Arrays.copyOf(trust, capacity);
+        asu = Arrays.copyOf(asu, capacity);
+        age = Arrays.copyOf(age, capacity);
+        status = Arrays.copyOf(status, capacity);
+        flags = Arrays.copyOf(flags, capacity);
+        owner = Arrays.copyOf(owner, capacity);
+        freeSlots = Arrays.copyOf(freeSlots, capacity);
+
+        hash = new int[hashSize(capacity)];
+        Arrays.fill(hash, EMPTY);
+        for (int slot = 0; slot < highWater; slot++) {
+            if (owner[slot] != null)
+                hashInsert(slot);
+        }
+    }
+
+    static int hashSize(int capacity) {
+        int size = 2;
+        while (size < capacity * 2)
+            size <<= 1;
+        return size;
+    }
+
+    static int mix(long k) {
+        return (int) (k ^ (k >>> 32)) * 0x9e3779b9;
+    }
+
+    private void hashInsert(int slot) {
+        int mask = hash.length - 1;
+        int i = mix(key[slot]) & mask;
+        while (hash[i] != EMPTY)
+            i = (i + 1) & mask;
+        hash[i] = slot;
+    }
+
+    /**
+     * Remove a slot from the hash, shifting later entries of the probe sequence
+     * back so lookups never stop early at the hole.
+     */
+    private void hashRemove(int slot) {
+        int mask = hash.length - 1;
+        int i = mix(key[slot]) & mask;
+        while (hash[i] != slot) {
+            if (hash[i] == EMPTY)
+                return;
+            i = (i + 1) & mask;
+        }
+        hash[i] = EMPTY;
+        int j = i;
+        while (true) {
+            j = (j + 1) & mask;
+            if (hash[j] == EMPTY)
+                return;
+            int ideal = mix(key[hash[j]]) & mask;
+            boolean move = (i <= j) ? ((ideal <= i) || (ideal > j)) : ((ideal <= i) && (ideal > j));
+            if (move) {
+                hash[i] = hash[j];
+                hash[j] = EMPTY;
+                i = j;
+            }
+        }
+    }
+}
@@ -0,0 +1,437 @@
+package org.fitchfamily.android.dejavu;
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ */
+
+/**
+ * Created by tfitch on 8/31/17.
+ */
+
+/*
+ * This package inspired and largely copied from
+ * https://github.com/villoren/KalmanLocationManager.git
+ */
+
+/**
+ * Copyright (c) 2014 Renato Villone
+ *
+ * Permission is hereby granted, free of charge, to any person obtaining a copy
+ * of this software and associated documentation files (the "Software"), to deal
+ * in the Software without restriction, including without limitation the rights
+ * to use, copy, modify, merge, publish, distribute, sublicense, and/or sell
+ * copies of the Software, and to permit persons to whom the Software is
+ * furnished to do so, subject to the following conditions:
+ *
+ * The above copyright notice and this permission notice shall be included in all
+ * copies or substantial portions of the Software.
+ *
+ * THE SOFTWARE IS PROVIDED "AS IS", WITHOUT WARRANTY OF ANY KIND, EXPRESS OR
+ * IMPLIED, INCLUDING BUT NOT LIMITED TO THE WARRANTIES OF MERCHANTABILITY,
+ * FITNESS FOR A PARTICULAR PURPOSE AND NONINFRINGEMENT. IN NO EVENT SHALL THE
+ * AUTHORS OR COPYRIGHT HOLDERS BE LIABLE FOR ANY CLAIM, DAMAGES OR OTHER
+ * LIABILITY, WHETHER IN AN ACTION OF CONTRACT, TORT OR OTHERWISE, ARISING FROM,
+ * OUT OF OR IN CONNECTION WITH THE SOFTWARE OR THE USE OR OTHER DEALINGS IN THE
+ * SOFTWARE.
+ *
+ * Changes and modifications to this code:
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Kalman filter for latitude, longitude and (optionally) altitude with the state
+ * and covariance of all the axes in one flat array.
+ *
+ * Each axis is an independent constant velocity model, exactly as the one
+ * dimensional filters we used to have one object each for. Keeping them together
+ * lets a batch of positions be applied in a single pass over the array, with the
+ * cosine of the latitude computed once per batch, and the output is written to a
+ * buffer supplied by the caller so reading the filter allocates nothing.
+ *
+ * Not thread safe.
+ */
+public class FusedKalman {
+    private final static double TIME_SECOND = 1000.0;   // One second in milliseconds
+
+    /**
+     * Minimal time step.
+     *
+     * Assume 200 KPH (55.6 m/s) and a maximum accuracy of 3 meters, then there is no need
+     * to update the filter any faster than 166.7 ms.
+     */
+    private final static long TIME_STEP_MS = 150;
+    private final static double DT = TIME_STEP_MS / TIME_SECOND;
+    private final static double DT2 = DT * DT;
+    private final static double DT2D2 = DT2 / 2.0;
+    private final static double DT3D2 = DT2 * DT / 2.0;
+    private final static double DT4D4 = DT2 * DT2 / 4.0;
+
+    private static final double ALTITUDE_NOISE = 10.0;     // meters
+
+    private static final float MOVING_THRESHOLD = 0.7f;     // meters/sec (2.5 kph ~= 0.7 m/s)
+    private static final float MIN_ACCURACY = 3.0f;         // Meters
+
+    // Axes
+    public static final int LATITUDE = 0;
+    public static final int LONGITUDE = 1;
+    public static final int ALTITUDE = 2;
+    private static final int AXES = 3;
+
+    // Layout of the values for an axis in the state array. The process noise
+    // covariance is derived from the process noise on each prediction.
+    private static final int X = 0;             // Position
+    private static final int V = 1;             // Velocity
+    private static final int PA = 2;            // Covariance
+    private static final int PB = 3;
+    private static final int PC = 4;
+    private static final int PD = 5;
+    private static final int NOISE = 6;         // Process noise
+    private static final int PRED_TIME = 7;     // Time of last prediction, ms
+    private static final int STRIDE = 8;
+
+    // Layout of the output buffer
+    public static final int OUT_LATITUDE = 0;
+    public static final int OUT_LONGITUDE = 1;
+    public static final int OUT_ALTITUDE = 2;   // NaN if no altitude
+    public static final int OUT_ACCURACY = 3;   // meters
+    public static final int OUT_SPEED = 4;      // meters/second
+    public static final int OUT_BEARING = 5;    // degrees east of north
+    public static final int OUT_TIME = 6;       // ms
+    public static final int OUTPUT_SIZE = 7;
+
+    private final double[] state = new double[AXES * STRIDE];
+    private boolean hasAltitude;
+    private float bearing;                      // Only updated when moving
+    private long timeOfUpdate;
+    private long samples;
+
+    private FusedKalman() {
+    }
+
+    /**
+     * Start a filter at a position.
+     *
+     * @param lat Latitude
+     * @param lon Longitude
+     * @param accuracy Accuracy of the position in meters
+     * @param timeMs Time of the position
+     * @param coordinateNoise Process noise for latitude and longitude, meters
+     */
+    public FusedKalman(double lat, double lon, double accuracy, long timeMs, double coordinateNoise) {
+        double cosLat = Geodesy.cosLat(lat);
+        initAxis(LATITUDE, coordinateNoise * Constants.METER_TO_DEG, timeMs,
+                lat, Geodesy.latDegrees(accuracy));
+        initAxis(LONGITUDE, coordinateNoise * Constants.METER_TO_DEG, timeMs,
+                lon, Geodesy.lonDegrees(accuracy, cosLat));
+        timeOfUpdate = timeMs;
+        samples = 1;
+    }
+
+    /**
+     * @return A new filter with the same state as this one.
+     */
+    public FusedKalman copy() {
+        FusedKalman rslt = new FusedKalman();
+        System.arraycopy(state, 0, rslt.state, 0, state.length);
+        rslt.hasAltitude = hasAltitude;
+        rslt.bearing = bearing;
+        rslt.timeOfUpdate = timeOfUpdate;
+        rslt.samples = samples;
+        return rslt;
+    }
+
+    public long getTimeOfUpdate() {
+        return timeOfUpdate;
+    }
+
+    public long getSamples() {
+        return samples;
+    }
+
+    public void setSamples(long s) {
+        samples = s;
+    }
+
+    /**
+     * Update the filter with a batch of positions, in time order.
+     *
+     * @param lats Latitudes
+     * @param lons Longitudes
+     * @param acc Accuracies in meters
+     * @param times Times in milliseconds
+     */
+    public void update(double[] lats, double[] lons, double[] acc, long[] times) {
+        update(lats, lons, null, acc, times, lats.length);
+    }
+
+    /**
+     * Update the filter with a batch of positions, in time order.
+     *
+     * @param lats Latitudes
+     * @param lons Longitudes
+     * @param alts Altitudes in meters, NaN for a position without one. May be null.
+     * @param acc Accuracies in meters
+     * @param times Times in milliseconds
+     * @param n The number of positions to use from the arrays
+     */
+    public void update(double[] lats, double[] lons, double[] alts, double[] acc, long[] times, int n) {
+        if (n < 1)
+            return;
+
+        // The batch covers a few seconds at most, one cosine will do.
+        double cosLat = Geodesy.cosLat(lats[0]);
+        for (int i = 0; i < n; i++)
+            apply(lats[i], lons[i], (alts != null) ? alts[i] : Double.NaN, acc[i], times[i], cosLat);
+    }
+
+    /**
+     * Update the filter with a single position.
+     *
+     * @param lat Latitude
+     * @param lon Longitude
+     * @param alt Altitude in meters, NaN if none
+     * @param acc Accuracy in meters
+     * @param timeMs Time in milliseconds
+     */
+    public void update(double lat, double lon, double alt, double acc, long timeMs) {
+        apply(lat, lon, alt, acc, timeMs, Geodesy.cosLat(lat));
+    }
+
+    private void apply(double lat, double lon, double alt, double acc, long timeMs, double cosLat) {
+        predict(timeMs);
+        timeOfUpdate = timeMs;
+        samples++;
+
+        updateAxis(LATITUDE, lat, Geodesy.latDegrees(acc));
+        updateAxis(LONGITUDE, lon, Geodesy.lonDegrees(acc, cosLat));
+
+        if (!Double.isNaN(alt)) {
+            if (hasAltitude)
+                updateAxis(ALTITUDE, alt, acc);
+            else
+                setAltitude(alt, acc, timeMs);
+        }
+    }
+
+    /**
+     * Start tracking altitude.
+     *
+     * @param alt Altitude in meters
+     * @param accuracy Accuracy of the altitude in meters
+     * @param timeMs Time of the altitude
+     */
+    public void setAltitude(double alt, double accuracy, long timeMs) {
+        initAxis(ALTITUDE, ALTITUDE_NOISE, timeMs, alt, accuracy);
+        hasAltitude = true;
+    }
+
+    /**
+     * Advance the filter to a time.
+     *
+     * @param timeMs The time
+     */
+    public void predict(long timeMs) {
+        predictAxis(LATITUDE, timeMs);
+        predictAxis(LONGITUDE, timeMs);
+        if (hasAltitude)
+            predictAxis(ALTITUDE, timeMs);
+    }
+
+    /**
+     * Advance the filter to a time and write our estimate to a buffer.
+     *
+     * @param timeMs The time wanted
+     * @param out Receives the estimate, see the OUT_ constants. At least OUTPUT_SIZE long.
+     */
+    public void output(long timeMs, double[] out) {
+        predict(timeMs);
+
+        double lat = state[LATITUDE * STRIDE + X];
+        out[OUT_LATITUDE] = lat;
+        out[OUT_LONGITUDE] = state[LONGITUDE * STRIDE + X];
+        out[OUT_ALTITUDE] = hasAltitude ? state[ALTITUDE * STRIDE + X] : Double.NaN;
+        out[OUT_TIME] = timeMs;
+
+        double accuracy = Math.sqrt(state[LATITUDE * STRIDE + PD] / DT2) * Constants.DEG_TO_METER;
+        out[OUT_ACCURACY] = Math.max(accuracy, MIN_ACCURACY);
+
+        // Derive speed from degrees/ms in lat and lon
+        double latVelocity = state[LATITUDE * STRIDE + V] * Constants.DEG_TO_METER;
+        double lonVelocity = state[LONGITUDE * STRIDE + V] * Constants.DEG_TO_METER *
+                Geodesy.cosLat(lat);
+        double speed = Math.sqrt((latVelocity * latVelocity) + (lonVelocity * lonVelocity));
+        out[OUT_SPEED] = speed;
+
+        // Compute bearing only if we are moving. Report old bearing
+        // if we are below our threshold for moving. Bearing is degrees
+        // east of true north, like all Android locations.
+        if (speed > MOVING_THRESHOLD) {
+            bearing = (float) Math.toDegrees(Math.atan2(lonVelocity, latVelocity));
+            if (bearing < 0.0f)
+                bearing += 360.0f;
+        }
+        out[OUT_BEARING] = bearing;
+    }
+
+    /**
+     * Save the complete filter state. The format is the one used by the
+     * separate per axis filters we had before so old snapshots can be read.
+     *
+     * @param out Where to write the state
+     * @throws IOException
+     */
+    public void writeState(DataOutput out) throws IOException {
+        writeAxis(LATITUDE, out);
+        writeAxis(LONGITUDE, out);
+        out.writeBoolean(hasAltitude);
+        if (hasAltitude)
+            writeAxis(ALTITUDE, out);
+        out.writeFloat(bearing);
+        out.writeLong(timeOfUpdate);
+        out.writeLong(samples);
+    }
+
+    /**
+     * Create a filter from state previously saved with writeState().
+     *
+     * @param in Where to read the state from
+     * @return The restored filter
+     * @throws IOException
+     */
+    public static FusedKalman readState(DataInput in) throws IOException {
+        FusedKalman rslt = new FusedKalman();
+        rslt.readAxis(LATITUDE, in);
+        rslt.readAxis(LONGITUDE, in);
+        rslt.hasAltitude = in.readBoolean();
+        if (rslt.hasAltitude)
+            rslt.readAxis(ALTITUDE, in);
+        rslt.bearing = in.readFloat();
+        rslt.timeOfUpdate = in.readLong();
+        rslt.samples = in.readLong();
+        return rslt;
+    }
+
+    private void initAxis(int axis, double processNoise, long timeMs, double position, double noise) {
+        int i = axis * STRIDE;
+        double n2 = noise * noise;
+        state[i + X] = position;
+        state[i + V] = 0.0;
+        state[i + PA] = n2 * DT4D4;
+        state[i + PB] = n2 * DT3D2;
+        state[i + PC] = n2 * DT3D2;
+        state[i + PD] = n2 * DT2;
+        state[i + NOISE] = processNoise;
+        state[i + PRED_TIME] = timeMs;
+    }
+
+    private void predictAxis(int axis, long timeMs) {
+        int i = axis * STRIDE;
+        long predTime = (long) state[i + PRED_TIME];
+        if (timeMs - predTime <= TIME_STEP_MS)
+            return;
+
+        // Process noise covariance
+        double n2 = state[i + NOISE] * state[i + NOISE];
+        double qa = n2 * DT4D4;
+        double qb = n2 * DT3D2;
+        double qd = n2 * DT2;
+
+        double x = state[i + X];
+        double v = state[i + V];
+        double pa = state[i + PA];
+        double pb = state[i + PB];
+        double pc = state[i + PC];
+        double pd = state[i + PD];
+        while (timeMs - predTime > TIME_STEP_MS) {
+            predTime += TIME_STEP_MS;
+
+            // x = F.x
+            x = x + v * DT;
+
+            // P = F.P.F' + Q
+            double pdt = pd * DT;
+            double fpftb = pb + pdt;
+            double fpfta = pa + DT * (pc + fpftb);
+            double fpftc = pc + pdt;
+
+            pa = fpfta + qa;
+            pb = fpftb + qb;
+            pc = fpftc + qb;
+            pd = pd + qd;
+        }
+        state[i + X] = x;
+        state[i + PA] = pa;
+        state[i + PB] = pb;
+        state[i + PC] = pc;
+        state[i + PD] = pd;
+        state[i + PRED_TIME] = predTime;
+    }
+
+    private void updateAxis(int axis, double position, double noise) {
+        int i = axis * STRIDE;
+        double pa = state[i + PA];
+        double pb = state[i + PB];
+        double pc = state[i + PC];
+        double pd = state[i + PD];
+
+        //  y   =  z   -   H  . x
+        double y = position - state[i + X];
+
+        // S = H.P.H' + R
+        double si = 1.0 / (pa + noise * noise);
+
+        // K = P.H'.S^(-1)
+        double ka = pa * si;
+        double kb = pc * si;
+
+        // x = x + K.y
+        state[i + X] += ka * y;
+        state[i + V] += kb * y;
+
+        // P = P - K.(H.P)
+        state[i + PA] = pa - ka * pa;
+        state[i + PB] = pb - ka * pb;
+        state[i + PC] = pc - kb * pa;
+        state[i + PD] = pd - kb * pb;
+    }
+
+    private void writeAxis(int axis, DataOutput out) throws IOException {
+        int i = axis * STRIDE;
+        out.writeDouble(state[i + NOISE]);
+        out.writeLong((long) state[i + PRED_TIME]);
+        out.writeDouble(state[i + X]);
+        out.writeDouble(state[i + V]);
+        out.writeDouble(state[i + PA]);
+        out.writeDouble(state[i + PB]);
+        out.writeDouble(state[i + PC]);
+        out.writeDouble(state[i + PD]);
+    }
+
+    private void readAxis(int axis, DataInput in) throws IOException {
+        int i = axis * STRIDE;
+        state[i + NOISE] = in.readDouble();
+        state[i + PRED_TIME] = in.readLong();
+        state[i + X] = in.readDouble();
+        state[i + V] = in.readDouble();
+        state[i + PA] = in.readDouble();
+        state[i + PB] = in.readDouble();
+        state[i + PC] = in.readDouble();
+        state[i + PD] = in.readDouble();
+    }
+}
@@ -0,0 +1,85 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Divides the world into a grid of fixed size (in degrees) tiles. Emitters
+ * are assigned to the tile containing the center of their coverage. Each tile
+ * is identified by a single long value made from its row and column.
+ */
+public class GeoTile {
+    public static final double TILE_SIZE = 0.01;            // Degrees, about 1.1 km north-south
+
+    private GeoTile() {
+    }
+
+    /**
+     * Get the tile containing a position.
+     *
+     * @param lat Latitude of the position
+     * @param lon Longitude of the position
+     * @return The key for the tile
+     */
+    public static long key(double lat, double lon) {
+        return key(row(lat), column(lon));
+    }
+
+    /**
+     * Get the key for a tile given its row and column.
+     *
+     * @param row The tile row (latitude index)
+     * @param column The tile column (longitude index)
+     * @return The key for the tile
+     */
+    public static long key(int row, int column) {
+        return (((long) row) << 32) | (column & 0xffffffffL);
+    }
+
+    public static int row(double lat) {
+        return (int) Math.floor(lat / TILE_SIZE);
+    }
+
+    public static int column(double lon) {
+        return (int) Math.floor(lon / TILE_SIZE);
+    }
+
+    public static int row(long key) {
+        return (int) (key >> 32);
+    }
+
+    public static int column(long key) {
+        return (int) key;
+    }
+
+    /**
+     * Get the area covered by a tile.
+     *
+     * @param key The key for the tile
+     * @return The bounding box for the tile
+     */
+    public static BoundingBox boundingBox(long key) {
+        double south = row(key) * TILE_SIZE;
+        double west = column(key) * TILE_SIZE;
+        BoundingBox rslt = new BoundingBox();
+        rslt.update(south, west);
+        rslt.update(south + TILE_SIZE, west + TILE_SIZE);
+        return rslt;
+    }
+}
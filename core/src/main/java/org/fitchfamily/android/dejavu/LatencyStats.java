@@ -0,0 +1,97 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * Collects latencies so their distribution can be reported. Every sample is
+ * kept, this is for benchmarks and replays rather than for use on a phone.
+ *
+ * Not thread safe.
+ */
+public class LatencyStats {
+    private long[] samples = new long[1024];
+    private int count;
+    private long total;
+    private long max;
+    private boolean sorted = true;
+
+    /**
+     * @param nanos A latency in nanoseconds
+     */
+    public void add(long nanos) {
+        if (count == samples.length)
+            samples = Arrays.copyOf(samples, count * 2);
+        samples[count++] = nanos;
+        total += nanos;
+        if (nanos > max)
+            max = nanos;
+        sorted = false;
+    }
+
+    public void reset() {
+        count = 0;
+        total = 0;
+        max = 0;
+        sorted = true;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getTotal() {
+        return total;
+    }
+
+    public long getMax() {
+        return max;
+    }
+
+    public long getMean() {
+        return (count > 0) ? total / count : 0;
+    }
+
+    /**
+     * @param p The percentile wanted, 0 to 100
+     * @return The latency in nanoseconds below which p percent of the samples fall
+     */
+    public long getPercentile(double p) {
+        if (count == 0)
+            return 0;
+        if (!sorted) {
+            Arrays.sort(samples, 0, count);
+            sorted = true;
+        }
+        int i = (int) Math.ceil(p / 100.0 * count) - 1;
+        return samples[Math.max(0, Math.min(count - 1, i))];
+    }
+
+    /**
+     * @return The count, mean, median, 90th, 99th percentile and maximum in microseconds.
+     */
+    @Override
+    public String toString() {
+        return "n=" + count + " mean=" + (getMean() / 1000) + "us p50=" + (getPercentile(50) / 1000) +
+                "us p90=" + (getPercentile(90) / 1000) + "us p99=" + (getPercentile(99) / 1000) +
+                "us max=" + (max / 1000) + "us";
+    }
+}
@@ -0,0 +1,123 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Iteratively reweighted least squares.
+ *
+ * Each emitter says we are somewhere within its coverage radius of its center, so
+ * we look for the point minimizing the sum of the squared distances to the centers,
+ * each scaled by the emitter's radius. An emitter that has moved, or whose coverage
+ * estimate is poor, has a center far from the others and would pull a plain
+ * weighted average towards it. Here each iteration reduces the weight of emitters
+ * in proportion to how far (in multiples of their radius) the current solution
+ * is from them (a Cauchy loss), so such outliers end up with little influence.
+ *
+ * We start from the inverse variance weighted average and stop when the solution
+ * moves less than a meter. Less trusted emitters also count for less.
+ *
+ * Buffers are kept between calls, after the first few scans nothing is allocated.
+ */
+public class LeastSquaresSolver implements PositionSolver {
+    public static final String NAME = "least-squares";
+
+    private static final int MAX_ITERATIONS = 10;
+    private static final double CONVERGED = 1.0;            // meters
+    private static final float MIN_TRUST_SCALE = 0.1f;
+
+    private double[] baseWeights = new double[0];
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean solve(double[] lat, double[] lon, float[] radius, int[] asu, int[] trust, int n,
+                         double[] weights, PositionEstimate rslt) {
+        if (n < 1)
+            return false;
+        if (baseWeights.length < n)
+            baseWeights = new double[n];
+
+        for (int i = 0; i < n; i++) {
+            double r = Math.max(radius[i], Constants.MINIMUM_BELIEVABLE_ACCURACY);
+            float trustScale = Math.max(MIN_TRUST_SCALE, Math.min(1.0f, (float) trust[i] / RfEmitter.MAXIMUM_TRUST));
+
+            // Scaled so an emitter at our minimum believable accuracy has the same
+            // weight as in the reference solver.
+            baseWeights[i] = trustScale * WEIGHTING_FACTOR * Constants.MINIMUM_BELIEVABLE_ACCURACY / (r * r);
+            weights[i] = baseWeights[i];
+        }
+
+        double curLat = 0.0;
+        double curLon = 0.0;
+        double cosLat = 1.0;
+        for (int iteration = 0; iteration < MAX_ITERATIONS; iteration++) {
+            double wSum = 0.0;
+            double sumLat = 0.0;
+            double sumLon = 0.0;
+            for (int i = 0; i < n; i++) {
+                wSum += weights[i];
+                sumLat += weights[i] * lat[i];
+                sumLon += weights[i] * lon[i];
+            }
+            if (wSum <= 0.0)
+                return false;
+            double newLat = sumLat / wSum;
+            double newLon = sumLon / wSum;
+            if (iteration == 0)
+                cosLat = Geodesy.cosLat(newLat);
+
+            double moved = (iteration == 0) ? Double.MAX_VALUE :
+                    Geodesy.equirectangular(curLat, curLon, newLat, newLon, cosLat);
+            curLat = newLat;
+            curLon = newLon;
+            if ((moved < CONVERGED) || (iteration == MAX_ITERATIONS - 1))
+                break;
+
+            for (int i = 0; i < n; i++) {
+                double r = Math.max(radius[i], Constants.MINIMUM_BELIEVABLE_ACCURACY);
+                double u = Geodesy.equirectangular(curLat, curLon, lat[i], lon[i], cosLat) / r;
+                weights[i] = baseWeights[i] / (1.0 + u * u);
+            }
+        }
+
+        // Accuracy is the weighted RMS distance to the emitters, or the best
+        // radius if they all agree.
+        double wSum = 0.0;
+        double sumD2 = 0.0;
+        float minRadius = Float.MAX_VALUE;
+        for (int i = 0; i < n; i++) {
+            double d = Geodesy.equirectangular(curLat, curLon, lat[i], lon[i], cosLat);
+            wSum += weights[i];
+            sumD2 += weights[i] * d * d;
+            minRadius = Math.min(minRadius, radius[i]);
+        }
+        float accuracy = (float) Math.sqrt(sumD2 / wSum);
+        if ((n == 1) || (accuracy <= 0.0f))
+            accuracy = minRadius;
+
+        rslt.latitude = curLat;
+        rslt.longitude = curLon;
+        rslt.accuracy = accuracy;
+        return true;
+    }
+}
@@ -0,0 +1,98 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.PrintWriter;
+import java.io.StringWriter;
+
+/**
+ * Logging for the positioning code, which has to run without the Android
+ * libraries. Messages go to a Sink, on Android one passing them on to
+ * android.util.Log. Until a sink is set debug messages are dropped and the
+ * rest are written to standard error.
+ *
+ * The methods and levels are those of android.util.Log.
+ */
+public class Logger {
+    public static final int DEBUG = 3;
+    public static final int INFO = 4;
+    public static final int WARN = 5;
+    public static final int ERROR = 6;
+
+    /**
+     * Where the messages go.
+     */
+    public interface Sink {
+        /**
+         * @param level One of DEBUG, INFO, WARN or ERROR
+         * @param tag The source of the message
+         * @param msg The message
+         * @param tr An exception to log with the message, may be null
+         */
+        void log(int level, String tag, String msg, Throwable tr);
+    }
+
+    private static volatile Sink sink = new Sink() {
+        @Override
+        public void log(int level, String tag, String msg, Throwable tr) {
+            if (level < INFO)
+                return;
+            StringWriter sw = new StringWriter();
+            PrintWriter pw = new PrintWriter(sw);
+            pw.println("DIWE".charAt(level - DEBUG) + "/" + tag + ": " + msg);
+            if (tr != null)
+                tr.printStackTrace(pw);
+            pw.flush();
+            System.err.print(sw.toString());
+        }
+    };
+
+    private Logger() {
+    }
+
+    public static void setSink(Sink newSink) {
+        if (newSink != null)
+            sink = newSink;
+    }
+
+    public static void d(String tag, String msg) {
+        sink.log(DEBUG, tag, msg, null);
+    }
+
+    public static void i(String tag, String msg) {
+        sink.log(INFO, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg) {
+        sink.log(WARN, tag, msg, null);
+    }
+
+    public static void w(String tag, String msg, Throwable tr) {
+        sink.log(WARN, tag, msg, tr);
+    }
+
+    public static void e(String tag, String msg) {
+        sink.log(ERROR, tag, msg, null);
+    }
+
+    public static void e(String tag, String msg, Throwable tr) {
+        sink.log(ERROR, tag, msg, tr);
+    }
+}
@@ -41,7 +41,7 @@ public class Observation implements Comparable<Observation> {
     Observation(String id, RfEmitter.EmitterType t) {
         ident = new RfIdentification(id, t);
         note = "";
-        asu = BackendService.MINIMUM_ASU;
+        asu = Constants.MINIMUM_ASU;
     }
 
     public int compareTo(Observation o) {
@@ -75,10 +75,10 @@ public class Observation implements Comparable<Observation> {
     }
 
     public void setAsu(int signal) {
-        if (signal > BackendService.MAXIMUM_ASU)
-            asu = BackendService.MAXIMUM_ASU;
-        else if (signal < BackendService.MINIMUM_ASU)
-            asu = BackendService.MINIMUM_ASU;
+        if (signal > Constants.MAXIMUM_ASU)
+            asu = Constants.MAXIMUM_ASU;
+        else if (signal < Constants.MINIMUM_ASU)
+            asu = Constants.MINIMUM_ASU;
         else
             asu = signal;
     }
@@ -0,0 +1,408 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Remembers the positions of the places we are most often at.
+ *
+ * Most of the time is spent in a few places (home, work, etc.) where each scan
+ * sees much the same emitters. For each place we keep a MinHash signature of the
+ * set of strongest emitters seen there along with its position. The signatures
+ * of two emitter sets agree in about the same fraction of their values as the
+ * sets have members in common (Jaccard similarity). Candidates are found with
+ * locality sensitive hashing: the signature is split into bands and places
+ * sharing any band value with a scan are compared with it.
+ *
+ * On a confident match the position of the place can be used without looking up,
+ * grouping and averaging the emitters of the scan.
+ *
+ * The number of places is limited, the least recently used are dropped. The index
+ * is saved to a file so it survives restarts.
+ *
+ * The file format is:
+ *
+ *     int     Magic number
+ *     int     Format version
+ *     int     Count of places, followed for each by
+ *             NUM_HASHES ints signature, latitude and longitude (doubles),
+ *             accuracy (float), time last used (long) and hit count (int)
+ */
+public class PlaceIndex {
+    private static final String TAG = "DejaVu PlaceIndex";
+
+    private static final String FILE_NAME = "places.bin";
+    private static final int MAGIC = 0x446a5650;        // "DjVP"
+    private static final int VERSION = 1;
+
+    public static final int FINGERPRINT_SIZE = 10;      // Strongest emitters used for a fingerprint
+    public static final int MIN_FINGERPRINT = 3;        // Fewer emitters than this is not a place
+
+    static final int MAX_PLACES = 64;
+    private static final int NUM_HASHES = 16;
+    private static final int ROWS_PER_BAND = 4;
+    private static final int NUM_BANDS = NUM_HASHES / ROWS_PER_BAND;
+    private static final float MATCH_SIMILARITY = 0.75f;   // Estimated Jaccard similarity for a match
+    private static final float MAX_ACCURACY = 200.0f;      // meters, don't remember vaguer positions
+
+    /**
+     * A remembered place.
+     */
+    public static class Place {
+        final int[] signature;
+        public double latitude;
+        public double longitude;
+        public float accuracy;          // meters
+        long lastUsed;                  // ms
+        int hits;
+
+        Place(int[] sig) {
+            signature = sig;
+        }
+    }
+
+    /**
+     * All the places, least recently used first. A place is only equal to itself
+     * so each is its own key.
+     */
+    private final LinkedHashMap<Place,Place> places = new LinkedHashMap<Place,Place>(16, 0.75f, true);
+
+    /**
+     * LSH buckets, from band number and band hash to the places with that band value.
+     */
+    private final Map<Long,List<Place>> buckets = new HashMap<Long,List<Place>>();
+
+    // Statistics
+    private long hits;
+    private long misses;
+    private long added;
+    private long replaced;
+    private long evicted;
+
+    /**
+     * Compute the signature for the strongest emitters in a set of observations.
+     *
+     * @param observations The observations of a scan
+     * @return The signature or null if there are too few observations.
+     */
+    public static int[] signature(Collection<Observation> observations) {
+        if (observations.size() < MIN_FINGERPRINT)
+            return null;
+
+        // The weakest emitters come and go from scan to scan, leave them out.
+        PriorityQueue<Observation> strongestFirst = new PriorityQueue<Observation>(observations);
+        int[] rslt = new int[NUM_HASHES];
+        for (int i = 0; i < NUM_HASHES; i++)
+            rslt[i] = Integer.MAX_VALUE;
+
+        int count = 0;
+        Observation o;
+        while (((o = strongestFirst.poll()) != null) && (count++ < FINGERPRINT_SIZE)) {
+            long key = EmitterTable.key(o.getIdent().getRfType(), o.getIdent().getRfId());
+            for (int i = 0; i < NUM_HASHES; i++) {
+                int h = hash(key, i);
+                if (h < rslt[i])
+                    rslt[i] = h;
+            }
+        }
+        return rslt;
+    }
+
+    /**
+     * Find the place best matching a signature.
+     *
+     * @param signature A signature from signature()
+     * @return The place or null if no place matches well enough.
+     */
+    public synchronized Place lookup(int[] signature) {
+        Place rslt = bestMatch(signature);
+        if (rslt == null) {
+            misses++;
+            return null;
+        }
+        hits++;
+        rslt.hits++;
+        rslt.lastUsed = System.currentTimeMillis();
+        places.get(rslt);                       // Mark as recently used
+        return rslt;
+    }
+
+    /**
+     * Remember the position for a signature. If we already have a matching place its
+     * position is updated, otherwise a new place is added. A matching place further
+     * from the position than the accuracy of either is replaced by a new one: the
+     * place was learned wrongly or its emitters have moved, and keeping the more
+     * accurate position would never correct it.
+     *
+     * @param signature A signature from signature()
+     * @param latitude The position
+     * @param longitude The position
+     * @param accuracy The accuracy of the position in meters
+     */
+    public synchronized void learn(int[] signature, double latitude, double longitude, float accuracy) {
+        if ((signature == null) || (accuracy > MAX_ACCURACY))
+            return;
+
+        Place place = bestMatch(signature);
+        if (place != null) {
+            double distance = Geodesy.equirectangular(place.latitude, place.longitude, latitude, longitude);
+            if (distance <= Math.max(accuracy, place.accuracy)) {
+                // Keep the more accurate of the two positions.
+                if (accuracy <= place.accuracy) {
+                    place.latitude = latitude;
+                    place.longitude = longitude;
+                    place.accuracy = accuracy;
+                }
+                place.lastUsed = System.currentTimeMillis();
+                return;
+            }
+            remove(place);
+            replaced++;
+        }
+
+        place = new Place(signature);
+        place.latitude = latitude;
+        place.longitude = longitude;
+        place.accuracy = accuracy;
+        place.lastUsed = System.currentTimeMillis();
+        add(place);
+        added++;
+        trim();
+    }
+
+    public synchronized int size() {
+        return places.size();
+    }
+
+    /**
+     * Log our hit rate.
+     */
+    public synchronized void logStatistics() {
+        long total = hits + misses;
+        Logger.d(TAG, "Places: " + places.size() + ", lookups " + total +
+                ((total > 0) ? (", hits " + (hits * 100 / total) + "%") : "") +
+                ", added " + added + ", replaced " + replaced + ", evicted " + evicted);
+    }
+
+    /**
+     * Read an index previously saved in a directory.
+     *
+     * @param dir The directory the index was saved to.
+     * @return The index, empty if none was saved or it could not be read.
+     */
+    public static PlaceIndex load(File dir) {
+        PlaceIndex rslt = new PlaceIndex();
+        File file = new File(dir, FILE_NAME);
+        if (!file.exists())
+            return rslt;
+
+        DataInputStream in = null;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            if ((in.readInt() != MAGIC) || (in.readInt() != VERSION)) {
+                Logger.d(TAG, "load() - Unknown place index format, ignored.");
+                return rslt;
+            }
+            int count = in.readInt();
+            for (int i = 0; i < count; i++) {
+                int[] sig = new int[NUM_HASHES];
+                for (int j = 0; j < NUM_HASHES; j++)
+                    sig[j] = in.readInt();
+                Place place = new Place(sig);
+                place.latitude = in.readDouble();
+                place.longitude = in.readDouble();
+                place.accuracy = in.readFloat();
+                place.lastUsed = in.readLong();
+                place.hits = in.readInt();
+                rslt.add(place);
+            }
+            Logger.d(TAG, "load() - Loaded " + count + " places.");
+        } catch (IOException e) {
+            Logger.w(TAG, "load() failed: ", e);
+        } finally {
+            if (in != null) {
+                try {
+                    in.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+        return rslt;
+    }
+
+    /**
+     * Write the index to a directory, using a temporary file so a partially
+     * written index is never read.
+     *
+     * @param dir The directory to save the index in.
+     */
+    public synchronized void save(File dir) {
+        File tmp = new File(dir, FILE_NAME + ".tmp");
+        DataOutputStream out = null;
+        try {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tmp)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeInt(places.size());
+            // Least recently used first so the order is kept when reloaded.
+            for (Place place : places.values()) {
+                for (int j = 0; j < NUM_HASHES; j++)
+                    out.writeInt(place.signature[j]);
+                out.writeDouble(place.latitude);
+                out.writeDouble(place.longitude);
+                out.writeFloat(place.accuracy);
+                out.writeLong(place.lastUsed);
+                out.writeInt(place.hits);
+            }
+            out.close();
+            out = null;
+            if (!tmp.renameTo(new File(dir, FILE_NAME)))
+                Logger.w(TAG, "save() - Unable to rename place index.");
+        } catch (IOException e) {
+            Logger.w(TAG, "save() failed: ", e);
+        } finally {
+            if (out != null) {
+                try {
+                    out.close();
+                } catch (IOException e) {
+                    // ignore
+                }
+            }
+        }
+    }
+
+    /**
+     * Find the place whose signature is most similar to the one given, among
+     * the places sharing at least one band with it.
+     */
+    private Place bestMatch(int[] signature) {
+        if (signature == null)
+            return null;
+
+        Place rslt = null;
+        float best = MATCH_SIMILARITY;
+        for (int band = 0; band < NUM_BANDS; band++) {
+            List<Place> bucket = buckets.get(bandKey(signature, band));
+            if (bucket == null)
+                continue;
+            for (Place place : bucket) {
+                float similarity = similarity(signature, place.signature);
+                if (similarity >= best) {
+                    best = similarity;
+                    rslt = place;
+                }
+            }
+        }
+        return rslt;
+    }
+
+    private void add(Place place) {
+        places.put(place, place);
+        for (int band = 0; band < NUM_BANDS; band++) {
+            long key = bandKey(place.signature, band);
+            List<Place> bucket = buckets.get(key);
+            if (bucket == null) {
+                bucket = new ArrayList<Place>(2);
+                buckets.put(key, bucket);
+            }
+            bucket.add(place);
+        }
+    }
+
+    /**
+     * Drop the least recently used places until we are within our limit.
+     */
+    private void trim() {
+        Iterator<Place> it = places.keySet().iterator();
+        while ((places.size() > MAX_PLACES) && it.hasNext()) {
+            Place place = it.next();
+            it.remove();
+            removeFromBuckets(place);
+            evicted++;
+        }
+    }
+
+    private void remove(Place place) {
+        places.remove(place);
+        removeFromBuckets(place);
+    }
+
+    private void removeFromBuckets(Place place) {
+        for (int band = 0; band < NUM_BANDS; band++) {
+            long key = bandKey(place.signature, band);
+            List<Place> bucket = buckets.get(key);
+            if (bucket != null) {
+                bucket.remove(place);
+                if (bucket.isEmpty())
+                    buckets.remove(key);
+            }
+        }
+    }
+
+    /**
+     * @return The fraction of signature values that agree, an estimate of the
+     * Jaccard similarity of the emitter sets.
+     */
+    private static float similarity(int[] a, int[] b) {
+        int same = 0;
+        for (int i = 0; i < NUM_HASHES; i++) {
+            if (a[i] == b[i])
+                same++;
+        }
+        return (float) same / NUM_HASHES;
+    }
+
+    private static long bandKey(int[] signature, int band) {
+        long h = band;
+        for (int i = band * ROWS_PER_BAND; i < (band + 1) * ROWS_PER_BAND; i++)
+            h = h * 0x100000001b3L + signature[i];
+        return h;
+    }
+
+    /**
+     * The i'th of our family of hash functions.
+     */
+    private static int hash(long key, int i) {
+        long h = key ^ (0x9e3779b97f4a7c15L * (i + 1));
+        h ^= (h >>> 33);
+        h *= 0xff51afd7ed558ccdL;
+        h ^= (h >>> 33);
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= (h >>> 33);
+        return (int) h;
+    }
+}
@@ -0,0 +1,93 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A position estimate (center point, accuracy and time) held in primitive fields.
+ *
+ * Used for the coverage estimates of the emitters seen in each scan instead of
+ * android.location.Location objects, which are comparatively expensive to create.
+ * Estimates are mutable and are reused from scan to scan, see Pool.
+ */
+public class PositionEstimate {
+    public double latitude;
+    public double longitude;
+    public float accuracy;              // meters
+    public long timeMs;
+    public int asu;                     // Signal level of the emitter the estimate is for, if any
+    public int trust;                   // Trust in the emitter the estimate is for, if any
+
+    public void set(double lat, double lon, float acc, long time) {
+        latitude = lat;
+        longitude = lon;
+        accuracy = acc;
+        timeMs = time;
+        asu = 0;
+        trust = 0;
+    }
+
+    @Override
+    public String toString() {
+        return "PositionEstimate(" + latitude + ", " + longitude + ", acc=" + accuracy + ")";
+    }
+
+    /**
+     * A reusable list of estimates. Clearing the pool makes all the estimates
+     * available again, so after the first few scans no more are created.
+     *
+     * Not thread safe, each pool is used by a single thread.
+     */
+    public static class Pool {
+        private final List<PositionEstimate> estimates = new ArrayList<PositionEstimate>();
+        private int count;
+
+        /**
+         * @return An estimate to be filled in. It is counted as in use.
+         */
+        public PositionEstimate next() {
+            if (count == estimates.size())
+                estimates.add(new PositionEstimate());
+            return estimates.get(count++);
+        }
+
+        /**
+         * Return the most recent estimate from next() to the pool.
+         */
+        public void unget() {
+            if (count > 0)
+                count--;
+        }
+
+        public void clear() {
+            count = 0;
+        }
+
+        public int size() {
+            return count;
+        }
+
+        public PositionEstimate get(int i) {
+            return estimates.get(i);
+        }
+    }
+}
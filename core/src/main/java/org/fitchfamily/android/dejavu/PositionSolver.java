@@ -0,0 +1,63 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * Computes a position from the coverage areas of the emitters seen in a scan.
+ *
+ * The inputs are primitive arrays so solvers can be run and timed outside of the
+ * backend, for instance on recorded scans. Solvers may keep buffers between calls
+ * but must not hold on to the arrays passed in. An instance is used by one thread
+ * at a time.
+ *
+ * The position and its accuracy are what the backend averages over successive
+ * scans and reports. Besides them a solver reports the weight it gave each
+ * emitter, so callers can see which emitters it relied on.
+ */
+public interface PositionSolver {
+    /**
+     * Scale for weights. An emitter whose coverage estimate is one meter
+     * across has about this weight.
+     */
+    double WEIGHTING_FACTOR = 1000.0;
+
+    /**
+     * @return A short name, as used by PositionSolvers.create()
+     */
+    String getName();
+
+    /**
+     * Compute a position.
+     *
+     * @param lat Latitudes of the centers of the emitter coverage areas
+     * @param lon Longitudes of the centers of the emitter coverage areas
+     * @param radius How far from each center we might be, in meters. Already
+     *               scaled for the signal level.
+     * @param asu The signal level each emitter was seen at
+     * @param trust The trust we have in each emitter
+     * @param n The number of emitters
+     * @param weights Set to the weight given to each emitter, zero for any
+     *                that were not used. Must hold at least n values.
+     * @param rslt Set to the position and its accuracy. The time is not changed.
+     * @return False if no position could be computed.
+     */
+    boolean solve(double[] lat, double[] lon, float[] radius, int[] asu, int[] trust, int n,
+                  double[] weights, PositionEstimate rslt);
+}
@@ -0,0 +1,60 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The position solvers we have, by name. The backend always uses DEFAULT, the
+ * others are chosen when replaying recorded scans (ScanReplay -solver) to compare
+ * them with it.
+ */
+public class PositionSolvers {
+    private static final String TAG = "DejaVu PositionSolvers";
+
+    public static final String DEFAULT = WeightedAverageSolver.NAME;
+
+    private static final String[] NAMES = {
+            WeightedAverageSolver.NAME,
+            LeastSquaresSolver.NAME
+    };
+
+    private PositionSolvers() {
+    }
+
+    /**
+     * @return The names of all the solvers
+     */
+    public static String[] names() {
+        return NAMES.clone();
+    }
+
+    /**
+     * Create a solver.
+     *
+     * @param name The name of the solver
+     * @return A new instance of the solver, the default solver if the name is unknown.
+     */
+    public static PositionSolver create(String name) {
+        if (LeastSquaresSolver.NAME.equals(name))
+            return new LeastSquaresSolver();
+        if (!WeightedAverageSolver.NAME.equals(name))
+            Logger.w(TAG, "create() - Unknown solver '" + name + "', using " + DEFAULT);
+        return new WeightedAverageSolver();
+    }
+}
@@ -23,11 +23,6 @@ package org.fitchfamily.android.dejavu;
  * Created by tfitch on 8/27/17.
  */
 
-import android.location.Location;
-import android.os.Build;
-import android.os.SystemClock;
-import android.util.Log;
-
 import java.util.Locale;
 
 /**
@@ -58,7 +53,7 @@ public class RfEmitter {
 
     private static final long MINIMUM_TRUST = 0;
     private static final long REQUIRED_TRUST = 30;
-    private static final long MAXIMUM_TRUST = 100;
+    static final long MAXIMUM_TRUST = 100;
 
     public enum EmitterType {WLAN, MOBILE}
 
@@ -70,21 +65,17 @@ public class RfEmitter {
         STATUS_BLACKLISTED          // Has been blacklisted
     };
 
-    public class Coverage {
-        public double latitude;
-        public double longitude;
-        public float radius;
-    }
-
     public static class RfCharacteristics {
-        public float reqdGpsAccuracy;       // GPS accuracy needed in meters
-        public float minimumRange;          // Minimum believable coverage radius in meters
-        public float typicalRange;          // Typical range expected
-        public float moveDetectDistance;    // Maximum believable coverage radius in meters
-        public long discoveryTrust;         // Assumed trustiness of a rust an emitter seen for the first time.
-        public long incrTrust;              // Amount to increase trust
-        public long decrTrust;              // Amount to decrease trust
-        public long minCount;               // Minimum number of emitters before we can estimate location
+        public final float reqdGpsAccuracy;       // GPS accuracy needed in meters
+        public final float minimumRange;          // Minimum believable coverage radius in meters
+        public final float typicalRange;          // Typical range expected
+        public final float moveDetectDistance;    // Maximum believable coverage radius in meters
+        public final long discoveryTrust;         // Assumed trustiness of a rust an emitter seen for the first time.
+        public final long incrTrust;              // Amount to increase trust
+        public final long decrTrust;              // Amount to decrease trust
+        public final long minCount;               // Minimum number of emitters before we can estimate location
+        public final int maxUsed;                 // Strongest emitters used to estimate location, others only logged as seen
+        public final int agreeing;                // High trust emitters agreeing on our location after which weaker ones are skipped
 
         RfCharacteristics( float gps,
                            float min,
@@ -93,7 +84,9 @@ public class RfEmitter {
                            long newTrust,
                            long incr,
                            long decr,
-                           long minC) {
+                           long minC,
+                           int maxU,
+                           int agree) {
             reqdGpsAccuracy = gps;
             minimumRange = min;
             typicalRange = typical;
@@ -102,21 +95,23 @@ public class RfEmitter {
             incrTrust = incr;
             decrTrust = decr;
             minCount = minC;
+            maxUsed = maxU;
+            agreeing = agree;
         }
     }
 
+    private static final EmitterStatus[] STATUS_VALUES = EmitterStatus.values();
+
     private RfCharacteristics ourCharacteristics;
 
     private EmitterType type;
     private String id;
-    private int asu;
-    private long trust;
-    private Coverage coverage;
     private String note;
 
-    private int ageSinceLastUse;        // Count of periods since last used (for caching purposes)
-
-    private EmitterStatus status;
+    // Coverage, trust, signal level, cache age and status are kept in a
+    // column store along with those of the other emitters we have in memory.
+    private EmitterTable table;
+    private int slot;
 
     RfEmitter(RfIdentification ident) {
         initSelf(ident.getRfType(), ident.getRfId(), 0);
@@ -144,13 +139,39 @@ public class RfEmitter {
     private void initSelf(EmitterType mType, String ident, int signal) {
         type = mType;
         id = ident;
+        table = new EmitterTable(1);
+        slot = table.allocate(this, EmitterTable.key(mType, ident));
         setAsu(signal);
-        coverage = null;
         ourCharacteristics = getRfCharacteristics(mType);
-        trust = ourCharacteristics.discoveryTrust;
+        setTrust(ourCharacteristics.discoveryTrust);
         note = "";
         resetAge();
-        status = EmitterStatus.STATUS_UNKNOWN;
+        table.status[slot] = (byte) EmitterStatus.STATUS_UNKNOWN.ordinal();
+    }
+
+    /**
+     * Move our values to a slot in another table. Used by the cache to bring
+     * the emitters it manages together in its table and to move them back to
+     * a table of their own when it no longer manages them.
+     *
+     * @param newTable The table our values should be kept in
+     */
+    void moveTo(EmitterTable newTable) {
+        if (newTable == table)
+            return;
+        int newSlot = newTable.allocate(this, table.key[slot]);
+        newTable.copy(table, slot, newSlot);
+        table.release(slot);
+        table = newTable;
+        slot = newSlot;
+    }
+
+    EmitterTable getTable() {
+        return table;
+    }
+
+    int getSlot() {
+        return slot;
     }
 
     /**
@@ -199,39 +220,60 @@ public class RfEmitter {
     }
 
     public long getTrust() {
-        return trust;
+        return table.trust[slot];
+    }
+
+    private void setTrust(long newTrust) {
+        table.trust[slot] = (short) Math.max(Short.MIN_VALUE, Math.min(Short.MAX_VALUE, newTrust));
+    }
+
+    private EmitterStatus getStatus() {
+        return STATUS_VALUES[table.status[slot]];
+    }
+
+    private boolean hasCoverage() {
+        return table.hasFlag(slot, EmitterTable.FLAG_COVERAGE);
+    }
+
+    private void setCoverage(double latitude, double longitude, float radius) {
+        table.lat[slot] = latitude;
+        table.lon[slot] = longitude;
+        table.radius[slot] = radius;
+        table.setFlag(slot, EmitterTable.FLAG_COVERAGE, true);
     }
 
     public double getLat() {
-        if (coverage != null)
-            return coverage.latitude;
+        if (hasCoverage())
+            return table.lat[slot];
         return 0.0;
     }
 
     public double getLon() {
-        if (coverage != null)
-            return coverage.longitude;
+        if (hasCoverage())
+            return table.lon[slot];
         return 0.0;
     }
 
     public double getRadius() {
-        if (coverage != null)
-            return coverage.radius;
+        if (hasCoverage())
+            return table.radius[slot];
         return 0.0;
     }
 
     public void setAsu(int signal) {
-        if (signal > BackendService.MAXIMUM_ASU)
-            asu = BackendService.MAXIMUM_ASU;
-        else if (signal < BackendService.MINIMUM_ASU)
-            asu = BackendService.MINIMUM_ASU;
-        else
-            asu = signal;
+        if (signal > Constants.MAXIMUM_ASU)
+            signal = Constants.MAXIMUM_ASU;
+        else if (signal < Constants.MINIMUM_ASU)
+            signal = Constants.MINIMUM_ASU;
+        table.asu[slot] = (byte) signal;
     }
 
     public void setNote(String n) {
-        if (note != n) {
+        if (n == null)
+            n = "";
+        if (!note.equals(n)) {
             note = n;
+            table.setFlag(slot, EmitterTable.FLAG_NOTE_CHANGED, true);
             if (blacklistEmitter())
                 changeStatus(EmitterStatus.STATUS_BLACKLISTED, "initSelf()");
         }
@@ -250,21 +292,22 @@ public class RfEmitter {
      * @return The current cache age.
      */
     public int getAge() {
-        return ageSinceLastUse;
+        return table.age[slot];
     }
 
     /**
      * Resets the cache age to zero.
      */
     public void resetAge() {
-        ageSinceLastUse = 0;
+        table.age[slot] = 0;
     }
 
     /**
      * Increment the cache age for this object.
      */
     public void incrementAge() {
-        ageSinceLastUse++;
+        if (table.age[slot] < Byte.MAX_VALUE)
+            table.age[slot]++;
     }
 
     /**
@@ -274,10 +317,62 @@ public class RfEmitter {
      * @return True if this RfEmitter needs to be written to flash.
      */
     public boolean syncNeeded() {
+        EmitterStatus status = getStatus();
         return (status == EmitterStatus.STATUS_NEW) ||
                 (status == EmitterStatus.STATUS_CHANGED) ||
-                ((status == EmitterStatus.STATUS_BLACKLISTED) &&
-                        (coverage != null));
+                ((status == EmitterStatus.STATUS_CACHED) && noteSyncNeeded()) ||
+                ((status == EmitterStatus.STATUS_BLACKLISTED) && hasCoverage());
+    }
+
+    /**
+     * Whether, once any pending changes are synced, the database will have a
+     * record for this emitter.
+     *
+     * @return True if this emitter is (or will be) in the database.
+     */
+    public boolean isStored() {
+        EmitterStatus status = getStatus();
+        return hasCoverage() &&
+                (getTrust() >= MINIMUM_TRUST) &&
+                ((status == EmitterStatus.STATUS_CACHED) ||
+                        (status == EmitterStatus.STATUS_CHANGED) ||
+                        (status == EmitterStatus.STATUS_NEW));
+    }
+
+    /**
+     * The note (SSID) rarely changes and is saved separately from the frequently
+     * updated trust and coverage information.
+     *
+     * @return True if the note needs to be written to the database.
+     */
+    public boolean noteSyncNeeded() {
+        return table.hasFlag(slot, EmitterTable.FLAG_NOTE_CHANGED);
+    }
+
+    /**
+     * Whether our values came from a read-only emitter pack (see EmitterPack) and
+     * the database has nothing for us yet.
+     *
+     * @return True if we are not in the database but in a pack.
+     */
+    public boolean isPacked() {
+        return table.hasFlag(slot, EmitterTable.FLAG_PACKED);
+    }
+
+    void setPacked() {
+        table.setFlag(slot, EmitterTable.FLAG_PACKED, true);
+    }
+
+    /**
+     * Whether the cache has already looked for a learned copy of this packed
+     * emitter in the database and found none.
+     */
+    boolean isPackChecked() {
+        return table.hasFlag(slot, EmitterTable.FLAG_PACK_CHECKED);
+    }
+
+    void setPackChecked() {
+        table.setFlag(slot, EmitterTable.FLAG_PACK_CHECKED, true);
     }
 
     /**
@@ -287,7 +382,8 @@ public class RfEmitter {
      *
      * @param db The database we should write our data to.
      */
-    public void sync(Database db) {
+    public void sync(EmitterStore db) {
+        EmitterStatus status = getStatus();
         EmitterStatus newStatus = status;
 
         switch (status) {
@@ -298,31 +394,46 @@ public class RfEmitter {
             case STATUS_BLACKLISTED:
                 // If our coverage value is not null it implies that we exist in the
                 // database. If so we ought to remove the entry.
-                if (coverage != null) {
+                if (hasCoverage()) {
                     db.drop(this);
-                    coverage = null;
-                    Log.d(TAG, "sync('" + logString() + "') - Blacklisted dropping from database.");
+                    table.setFlag(slot, EmitterTable.FLAG_COVERAGE, false);
+                    Logger.d(TAG, "sync('" + logString() + "') - Blacklisted dropping from database.");
                 }
                 break;
 
             case STATUS_NEW:
                 // Not in database, we have location. Add to database
                 db.insert(this);
+                table.setFlag(slot, EmitterTable.FLAG_NOTE_CHANGED, false);
                 newStatus = EmitterStatus.STATUS_CACHED;
                 break;
 
             case STATUS_CHANGED:
                 // In database but we have changes
-                if (trust < MINIMUM_TRUST) {
-                    Log.d(TAG, "sync('" + logString() + "') - Trust below minimum, dropping from database.");
+                if (isPacked()) {
+                    // Only in a pack. What we learned goes in the database, where it takes
+                    // precedence over the pack, even if trust is now below minimum.
+                    db.insert(this);
+                    table.setFlag(slot, EmitterTable.FLAG_PACKED, false);
+                } else if (getTrust() < MINIMUM_TRUST) {
+                    Logger.d(TAG, "sync('" + logString() + "') - Trust below minimum, dropping from database.");
                     db.drop(this);
                 } else
                     db.update(this);
+                table.setFlag(slot, EmitterTable.FLAG_NOTE_CHANGED, false);
                 newStatus = EmitterStatus.STATUS_CACHED;
                 break;
 
             case STATUS_CACHED:
-                // In database but we don't have any changes
+                // In database, only the note may have changed
+                if (noteSyncNeeded() && isPacked()) {
+                    db.insert(this);
+                    table.setFlag(slot, EmitterTable.FLAG_PACKED, false);
+                    table.setFlag(slot, EmitterTable.FLAG_NOTE_CHANGED, false);
+                } else if (noteSyncNeeded()) {
+                    db.updateNote(this);
+                    table.setFlag(slot, EmitterTable.FLAG_NOTE_CHANGED, false);
+                }
                 break;
         }
         changeStatus(newStatus, "sync('"+logString()+"')");
@@ -330,7 +441,7 @@ public class RfEmitter {
     }
 
     public String logString() {
-        return "RF Emitter: Type=" + type + ", ID='" + id + "', ASU=" + asu + ", Note='" + note + "'";
+        return "RF Emitter: Type=" + type + ", ID='" + id + "', ASU=" + table.asu[slot] + ", Note='" + note + "'";
     }
 
     /**
@@ -343,43 +454,57 @@ public class RfEmitter {
     public static RfCharacteristics getRfCharacteristics(EmitterType t) {
         switch (t) {
             case WLAN:
-                return new RfCharacteristics(
-                        20 * METERS,        // reqdGpsAccuracy
-                        50 * METERS,        // minimumRange
-                        150 * METERS,       // typicalRange
-                        1*KM,               // moveDetectDistance - Seen pretty long detection in very rural areas
-                        0,                  // discoveryTrust
-                        REQUIRED_TRUST/3,   // incrTrust
-                        1,                  // decrTrust
-                        2                   // minCount
-                );
+                return WLAN_CHARACTERISTICS;
 
             case MOBILE:
-                return new RfCharacteristics(
-                        100 * METERS,       // reqdGpsAccuracy
-                        500 * METERS,       // minimumRange
-                        2 * KM,             // typicalRange
-                        100 * KM,           // moveDetectDistance - In the desert there towers cover large areas
-                        MAXIMUM_TRUST,      // discoveryTrust
-                        MAXIMUM_TRUST,      // incrTrust
-                        0,                  // decrTrust
-                        1                   // minCount
-                );
+                return MOBILE_CHARACTERISTICS;
         }
-
-        // Unknown emitter type, just throw out some values that make it unlikely that
-        // we will ever use it (require too accurate a GPS location, never increment trust, etc.).
-        return new RfCharacteristics(
-                2 * METERS,         // reqdGpsAccuracy
-                50 * METERS,        // minimumRange
-                50 * METERS,        // typicalRange
-                100 * METERS,       // moveDetectDistance
-                0,                  // discoveryTrust
-                0,                  // incrTrust
-                1,                  // decrTrust
-                99                  // minCount
-        );
-    }
+        return UNKNOWN_CHARACTERISTICS;
+    }
+
+    // The characteristics never change so are shared rather than created
+    // for each emitter.
+
+    private static final RfCharacteristics WLAN_CHARACTERISTICS = new RfCharacteristics(
+            20 * METERS,        // reqdGpsAccuracy
+            50 * METERS,        // minimumRange
+            150 * METERS,       // typicalRange
+            1*KM,               // moveDetectDistance - Seen pretty long detection in very rural areas
+            0,                  // discoveryTrust
+            REQUIRED_TRUST/3,   // incrTrust
+            1,                  // decrTrust
+            2,                  // minCount
+            25,                 // maxUsed - Little improvement past the strongest 20 or so
+            8                   // agreeing
+    );
+
+    private static final RfCharacteristics MOBILE_CHARACTERISTICS = new RfCharacteristics(
+            100 * METERS,       // reqdGpsAccuracy
+            500 * METERS,       // minimumRange
+            2 * KM,             // typicalRange
+            100 * KM,           // moveDetectDistance - In the desert there towers cover large areas
+            MAXIMUM_TRUST,      // discoveryTrust
+            MAXIMUM_TRUST,      // incrTrust
+            0,                  // decrTrust
+            1,                  // minCount
+            10,                 // maxUsed
+            3                   // agreeing
+    );
+
+    // Unknown emitter type, just throw out some values that make it unlikely that
+    // we will ever use it (require too accurate a GPS location, never increment trust, etc.).
+    private static final RfCharacteristics UNKNOWN_CHARACTERISTICS = new RfCharacteristics(
+            2 * METERS,         // reqdGpsAccuracy
+            50 * METERS,        // minimumRange
+            50 * METERS,        // typicalRange
+            100 * METERS,       // moveDetectDistance
+            0,                  // discoveryTrust
+            0,                  // incrTrust
+            1,                  // decrTrust
+            99,                 // minCount
+            0,                  // maxUsed
+            0                   // agreeing
+    );
 
     /**
      * Unfortunately some types of RF emitters are very mobile and a mobile emitter
@@ -388,14 +513,15 @@ public class RfEmitter {
      * are asked to increment trust we need to check that we have not passed the limit.
      */
     public void incrementTrust() {
-        //Log.d(TAG, "incrementTrust('"+id+"') - entry.");
+        //Logger.d(TAG, "incrementTrust('"+id+"') - entry.");
         if (canUpdate()) {
+            long trust = getTrust();
             long newTrust = trust + ourCharacteristics.incrTrust;
             if (newTrust > MAXIMUM_TRUST)
                 newTrust = MAXIMUM_TRUST;
             if (newTrust != trust) {
-                // Log.d(TAG, "incrementTrust('" + logString() + "') - trust change: " + trust + "->" + newTrust);
-                trust = newTrust;
+                // Logger.d(TAG, "incrementTrust('" + logString() + "') - trust change: " + trust + "->" + newTrust);
+                setTrust(newTrust);
                 changeStatus(EmitterStatus.STATUS_CHANGED, "incrementTrust('"+logString()+"')");
             }
         }
@@ -407,9 +533,9 @@ public class RfEmitter {
      */
     public void decrementTrust() {
         if (canUpdate()) {
-            long oldTrust = trust;
-            trust -= ourCharacteristics.decrTrust;
-            // Log.d(TAG, "decrementTrust('" + logString() + "') - trust change: " + oldTrust + "->" + trust);
+            long oldTrust = getTrust();
+            setTrust(oldTrust - ourCharacteristics.decrTrust);
+            // Logger.d(TAG, "decrementTrust('" + logString() + "') - trust change: " + oldTrust + "->" + getTrust());
             changeStatus(EmitterStatus.STATUS_CHANGED, "decrementTrust('"+logString()+"')");
         }
     }
@@ -422,16 +548,13 @@ public class RfEmitter {
      *
      * @param emitterInfo Saved information about this emitter from the database.
      */
-    public void updateInfo(Database.EmitterInfo emitterInfo) {
+    public void updateInfo(EmitterStore.EmitterInfo emitterInfo) {
         if (emitterInfo != null) {
-            if (coverage == null)
-                coverage = new Coverage();
-            //Log.d(TAG,"updateInfo() - Setting info for '"+id+"'");
-            coverage.latitude = emitterInfo.latitude;
-            coverage.longitude = emitterInfo.longitude;
-            coverage.radius = emitterInfo.radius;
-            trust = emitterInfo.trust;
+            //Logger.d(TAG,"updateInfo() - Setting info for '"+id+"'");
+            setCoverage(emitterInfo.latitude, emitterInfo.longitude, emitterInfo.radius);
+            setTrust(emitterInfo.trust);
             note = emitterInfo.note;
+            table.setFlag(slot, EmitterTable.FLAG_NOTE_CHANGED, false);
             changeStatus(EmitterStatus.STATUS_CACHED, "updateInfo('"+logString()+"')");
         }
     }
@@ -441,34 +564,31 @@ public class RfEmitter {
      * position report from the GPS system.
      *
      * @param gpsLoc A position report from a trusted (non RF emitter) source
+     * @param cosLat The cosine of the latitude of the report, see Geodesy.cosLat()
      */
-    public void updateLocation(Location gpsLoc) {
+    public void updateLocation(PositionEstimate gpsLoc, double cosLat) {
 
-        if (status == EmitterStatus.STATUS_BLACKLISTED)
+        if (getStatus() == EmitterStatus.STATUS_BLACKLISTED)
             return;
 
-        if ((gpsLoc == null) || (gpsLoc.getAccuracy() > ourCharacteristics.reqdGpsAccuracy)) {
+        if ((gpsLoc == null) || (gpsLoc.accuracy > ourCharacteristics.reqdGpsAccuracy)) {
             return;
         }
 
-        if (coverage == null) {
-            Log.d(TAG, "updateLocation("+logString()+") emitter is new.");
-            coverage = new Coverage();
-            coverage.latitude = gpsLoc.getLatitude();
-            coverage.longitude = gpsLoc.getLongitude();
-            coverage.radius = 0.0f;
+        if (!hasCoverage()) {
+            Logger.d(TAG, "updateLocation("+logString()+") emitter is new.");
+            setCoverage(gpsLoc.latitude, gpsLoc.longitude, 0.0f);
             changeStatus(EmitterStatus.STATUS_NEW, "updateLocation('"+logString()+"')");
             return;
         }
 
         // If the emitter has moved, reset our data on it.
-        float sampleDistance = gpsLoc.distanceTo(_getLocation());
+        float sampleDistance = (float) Geodesy.equirectangular(gpsLoc.latitude, gpsLoc.longitude,
+                table.lat[slot], table.lon[slot], cosLat);
         if (sampleDistance >= ourCharacteristics.moveDetectDistance) {
-            Log.d(TAG, "updateLocation("+id+") emitter has moved (" + gpsLoc.distanceTo(_getLocation()) + ")");
-            coverage.latitude = gpsLoc.getLatitude();
-            coverage.longitude = gpsLoc.getLongitude();
-            coverage.radius = 0.0f;
-            trust = ourCharacteristics.discoveryTrust;
+            Logger.d(TAG, "updateLocation("+id+") emitter has moved (" + sampleDistance + ")");
+            setCoverage(gpsLoc.latitude, gpsLoc.longitude, 0.0f);
+            setTrust(ourCharacteristics.discoveryTrust);
             changeStatus(EmitterStatus.STATUS_CHANGED, "updateLocation('"+logString()+"')");
             return;
         }
@@ -477,37 +597,38 @@ public class RfEmitter {
         // See if the bounding box has increased.
 
         boolean changed = false;
-        if (sampleDistance > coverage.radius) {
-            double north = coverage.latitude + (coverage.radius * BackendService.METER_TO_DEG);
-            double south = coverage.latitude - (coverage.radius * BackendService.METER_TO_DEG);
-            double cosLat = Math.cos(Math.toRadians(coverage.latitude));
-            double east = coverage.longitude + (coverage.radius * BackendService.METER_TO_DEG) * cosLat;
-            double west = coverage.longitude - (coverage.radius * BackendService.METER_TO_DEG) * cosLat;
-
-            if (gpsLoc.getLatitude() > north) {
-                north = gpsLoc.getLatitude();
+        double latitude = table.lat[slot];
+        double longitude = table.lon[slot];
+        float radius = table.radius[slot];
+        if (sampleDistance > radius) {
+            double north = latitude + Geodesy.latDegrees(radius);
+            double south = latitude - Geodesy.latDegrees(radius);
+            double east = longitude + Geodesy.lonDegrees(radius, cosLat);
+            double west = longitude - Geodesy.lonDegrees(radius, cosLat);
+
+            if (gpsLoc.latitude > north) {
+                north = gpsLoc.latitude;
                 changed = true;
             }
-            if (gpsLoc.getLatitude() < south) {
-                south = gpsLoc.getLatitude();
+            if (gpsLoc.latitude < south) {
+                south = gpsLoc.latitude;
                 changed = true;
             }
-            if (gpsLoc.getLongitude() > east) {
-                east = gpsLoc.getLongitude();
+            if (gpsLoc.longitude > east) {
+                east = gpsLoc.longitude;
                 changed = true;
             }
-            if (gpsLoc.getLongitude() < west) {
-                west = gpsLoc.getLongitude();
+            if (gpsLoc.longitude < west) {
+                west = gpsLoc.longitude;
                 changed = true;
             }
             if (changed) {
                 changeStatus(EmitterStatus.STATUS_CHANGED, "updateLocation('"+logString()+"')");
-                coverage.latitude = (north + south)/2.0;
-                coverage.longitude = (east + west)/2.0;
-                coverage.radius = (float)((north - coverage.latitude) * BackendService.DEG_TO_METER);
-                cosLat = Math.max(Math.cos(Math.toRadians(coverage.latitude)),BackendService.MIN_COS);
-                float ewRadius = (float)(((east - coverage.longitude) * BackendService.DEG_TO_METER) / cosLat);
-                coverage.radius = Math.max(coverage.radius, ewRadius);
+                latitude = (north + south)/2.0;
+                longitude = (east + west)/2.0;
+                radius = (float) Geodesy.latMeters(north - latitude);
+                float ewRadius = (float) Geodesy.lonMeters(east - longitude, cosLat);
+                setCoverage(latitude, longitude, Math.max(radius, ewRadius));
             }
         }
     }
@@ -518,55 +639,45 @@ public class RfEmitter {
      * with radius values that fit within a bounding box but we report a radius that
      * extends to the corners of the bounding box.
      *
-     * @return The coverage estimate for our RF emitter or null if we don't trust our
-     * information.
+     * The estimate is filled in rather than returned so callers can reuse estimate
+     * objects from scan to scan.
+     *
+     * @param rslt Set to the coverage estimate for our RF emitter
+     * @param timeMs The time for the estimate
+     * @return True if rslt was set, false if we don't trust our information.
      */
-    public  Location getLocation() {
-        if ((trust < REQUIRED_TRUST) || (status == EmitterStatus.STATUS_BLACKLISTED))
-            return null;
-        Location boundaryBoxSized = _getLocation();
-        if (boundaryBoxSized == null)
-            return null;
+    public boolean getEstimate(PositionEstimate rslt, long timeMs) {
+        if ((getTrust() < REQUIRED_TRUST) || (getStatus() == EmitterStatus.STATUS_BLACKLISTED))
+            return false;
+        if (!hasCoverage())
+            return false;
 
         // Our radius is sized to fit be tangent to the sides of the
         // bounding box. But we really ought to cover the corners of
         // the box, so multiply by the square root of 2 to convert.
-        boundaryBoxSized.setAccuracy((boundaryBoxSized.getAccuracy() * 1.41421356f));
-        return boundaryBoxSized;
+        rslt.set(table.lat[slot], table.lon[slot], getAccuracy() * 1.41421356f, timeMs);
+        rslt.asu = table.asu[slot];
+        rslt.trust = table.trust[slot];
+        return true;
     }
 
     /**
-     * If we have any coverage information, returns an estimate of that coverage.
-     * For convenience, we use the standard Location record as it contains a center
-     * point and radius (accuracy).
+     * If we have any coverage information, returns an estimate of how far from
+     * the center of our coverage we might be.
      *
-     * @return Coverage estimate for emitter or null it does not exist.
+     * @return Coverage radius scaled by signal level, in meters.
      */
-    private Location _getLocation() {
-        if (coverage == null)
-            return null;
-
-        final Location location = new Location(BackendService.LOCATION_PROVIDER);
-        Long timeMs = System.currentTimeMillis();
-
-        location.setTime(timeMs);
-        if (Build.VERSION.SDK_INT >= 17)
-            location.setElapsedRealtimeNanos(SystemClock.elapsedRealtimeNanos());
-        location.setLatitude(coverage.latitude);
-        location.setLongitude(coverage.longitude);
-
+    private float getAccuracy() {
         // At this point, accuracy is the maximum coverage area. Scale it based on
         // the ASU as we assume we are closer to the center of the coverage if we
         // have a high signal.
 
-        float scale = BackendService.MAXIMUM_ASU - asu + BackendService.MINIMUM_ASU;
-        scale = scale / BackendService.MAXIMUM_ASU;
-        float accuracy = coverage.radius * scale;
+        float scale = Constants.MAXIMUM_ASU - table.asu[slot] + Constants.MINIMUM_ASU;
+        scale = scale / Constants.MAXIMUM_ASU;
+        float accuracy = table.radius[slot] * scale;
 
         // Hard limit the minimum accuracy based on the type of emitter
-        location.setAccuracy(Math.max(accuracy,ourCharacteristics.minimumRange));
-
-        return location;
+        return Math.max(accuracy,ourCharacteristics.minimumRange);
     }
 
     /**
@@ -593,9 +704,11 @@ public class RfEmitter {
      * in the SSID match that of cell phone manufacturers or match known patterns
      * for public transport (busses, trains, etc.) or in car WLAN defaults.
      *
+     * Package visible for the benchmarks.
+     *
      * @return True if emitter should be blacklisted.
      */
-    private boolean blacklistWifi() {
+    boolean blacklistWifi() {
         final String lc = note.toLowerCase(Locale.US);
 
         // Seen a large number of WiFi networks where the SSID is the last
@@ -683,7 +796,7 @@ public class RfEmitter {
                 // lc.endsWith("_nomap")                    // Google unsubscibe option
         ;
         //if (rslt)
-        //    Log.d(TAG, "blacklistWifi('" + logString() + "') blacklisted.");
+        //    Logger.d(TAG, "blacklistWifi('" + logString() + "') blacklisted.");
         return rslt;
     }
 
@@ -696,7 +809,7 @@ public class RfEmitter {
      */
     private boolean canUpdate() {
         boolean rslt = true;
-        switch (status) {
+        switch (getStatus()) {
             case STATUS_BLACKLISTED:
             case STATUS_UNKNOWN:
                 rslt = false;
@@ -714,6 +827,7 @@ public class RfEmitter {
      * @param info Logging information for debug purposes
      */
     private void changeStatus( EmitterStatus newStatus, String info) {
+        EmitterStatus status = getStatus();
         if (newStatus == status)
             return;
 
@@ -753,7 +867,7 @@ public class RfEmitter {
                 break;
         }
 
-        //Log.d(TAG,"changeStatus("+newStatus+", "+ info + ") " + status + " -> " + finalStatus);
-        status = finalStatus;
+        //Logger.d(TAG,"changeStatus("+newStatus+", "+ info + ") " + status + " -> " + finalStatus);
+        table.status[slot] = (byte) finalStatus.ordinal();
     }
 }
@@ -0,0 +1,754 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.EnumMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * Turns scans into positions: updates what we know about the emitters seen,
+ * computes a position from them and at the end of each reporting period adjusts
+ * the trust in the emitters and hands the averaged position to our listener.
+ *
+ * This is the processing done on the background thread of the backend service,
+ * kept free of Android so recorded scans can be replayed on any JVM (see
+ * ScanTrace). Not thread safe, the caller serializes access.
+ */
+public class ScanProcessor {
+    private static final String TAG = "DejaVu Processor";
+
+    //
+    // Scanning and reporting are resource intensive operations, so we throttle
+    // them. Ideally the intervals should be multiples of one another.
+    //
+    public final static long REPORTING_INTERVAL = 3600;                         // in milliseconds
+
+    //
+    // In sliding window mode (see setSlidingWindow()) the positions reported are the
+    // average over the scans of the last FUSION_WINDOW milliseconds.
+    //
+    public final static long FUSION_WINDOW = REPORTING_INTERVAL * 2;               // in milliseconds
+
+    //
+    // A scan's emitters are used strongest first. Once RfCharacteristics.agreeing emitters
+    // with at least AGREEMENT_TRUST have coverage areas that all overlap, the weaker
+    // emitters add little to the position and are skipped.
+    //
+    private final static int AGREEMENT_TRUST = 50;
+
+    /**
+     * Receives the position at the end of each reporting period.
+     */
+    public interface Listener {
+        /**
+         * @param average The average of the positions computed for our recent scans.
+         *                Owned by the processor and only valid during the call.
+         */
+        void onReport(WeightedAverage average);
+    }
+
+    /**
+     * The stages of processing a scan, for timing.
+     */
+    public enum Stage {
+        PREPARE,        // Seen set, prefetch and known place lookup
+        EMITTERS,       // Cache lookups and coverage updates
+        EXPECTED,       // Area we expect to see emitters in
+        SOLVE,          // Grouping, position solver and averaging
+        REPORT          // End of reporting period: trust, database sync and report
+    }
+
+    private final Listener listener;
+    private volatile Cache emitterCache;
+    private PlaceIndex placeIndex;          // Positions of places we frequent, by WLAN fingerprint
+
+    private boolean slidingWindow;
+    private WeightedAverage weightedAverageLocation;
+    private final WindowedAverage windowedAverageLocation = new WindowedAverage(FUSION_WINDOW);
+
+    //
+    // Scratch space for processing each scan, reused from scan to scan so processing
+    // a scan allocates (almost) nothing.
+    //
+    private final PriorityQueue<Observation> strongestFirst = new PriorityQueue<Observation>();
+    private final PositionEstimate.Pool estimatePool = new PositionEstimate.Pool();
+    private final List<PositionEstimate> scanEstimates = new ArrayList<PositionEstimate>();
+    private final EmitterGrouping grouping = new EmitterGrouping();
+    private final PositionEstimate scanPosition = new PositionEstimate();
+    private double[] solverLat = new double[0];
+    private double[] solverLon = new double[0];
+    private float[] solverRadius = new float[0];
+    private int[] solverAsu = new int[0];
+    private int[] solverTrust = new int[0];
+    private double[] solverWeights = new double[0];
+
+    // The area common to the coverage of the high trust emitters of this scan so far.
+    private int agreeCount;
+    private double agreeNorth;
+    private double agreeSouth;
+    private double agreeEast;
+    private double agreeWest;
+    private double agreeCosLat;
+
+    // The solver used to compute the position for each scan and the time spent in it.
+    private PositionSolver positionSolver = PositionSolvers.create(PositionSolvers.DEFAULT);
+    private long solveCount;
+    private long solveNanos;
+
+    // Time spent in each stage, null unless enabled.
+    private LatencyStats[] stageStats;
+
+    //
+    // Periodic process information.
+    //
+    // We keep a set of the WiFi APs we expected to see and ones we've seen and then
+    // periodically adjust the trust. Ones we've seen we increment, ones we expected
+    // to see but didn't we decrement.
+    //
+    // The areas we expect to see emitters in overlap heavily from scan to scan, so
+    // we collect one area per emitter type and look up the expected emitters once
+    // at the end of the period.
+    //
+    private Set<RfIdentification> seenSet;
+    private Set<RfIdentification> expectedSet;
+    private final Map<RfEmitter.EmitterType, BoundingBox> expectedAreas =
+            new EnumMap<RfEmitter.EmitterType, BoundingBox>(RfEmitter.EmitterType.class);
+    private long nextReportTime;
+
+    // If we see only a single mobile tower multiple times then our variance will be zero.
+    // While mathematically true, it doesn't really give a good feel for the uncertainty in
+    // our position. Guard against that by blocking the use of a single mobile tower.
+    private String lastMobileId = "";
+
+    public ScanProcessor(Listener listener) {
+        this.listener = listener;
+    }
+
+    /**
+     * @param cache The emitter cache to work with, null when closed. Scans are
+     *              ignored while there is no cache.
+     */
+    public void setCache(Cache cache) {
+        emitterCache = cache;
+    }
+
+    /**
+     * @param places The places to recognize scans of and learn, may be null.
+     */
+    public void setPlaceIndex(PlaceIndex places) {
+        placeIndex = places;
+    }
+
+    public PlaceIndex getPlaceIndex() {
+        return placeIndex;
+    }
+
+    /**
+     * Choose how the positions computed from our scans are combined for reporting.
+     * By default the scans of each reporting period are averaged and the average
+     * starts afresh for the next period. In sliding window mode the average is over
+     * the scans of the last FUSION_WINDOW milliseconds and scans expire individually,
+     * so the average carries over from one period to the next. What has been
+     * collected so far is dropped when the mode changes.
+     *
+     * @param enable True for sliding window mode
+     */
+    public void setSlidingWindow(boolean enable) {
+        if (enable == slidingWindow)
+            return;
+        slidingWindow = enable;
+        windowedAverageLocation.reset();
+        weightedAverageLocation = null;
+    }
+
+    public boolean isSlidingWindow() {
+        return slidingWindow;
+    }
+
+    /**
+     * Get the position from our recent scans as it stands after the last scan, the
+     * position that would be reported if the reporting period ended now. In sliding
+     * window mode scans older than FUSION_WINDOW have already been dropped.
+     *
+     * @param rslt Set to the position
+     * @return False if we have no position.
+     */
+    public boolean getCurrentPosition(PositionEstimate rslt) {
+        WeightedAverage average = getAverage();
+        return (average != null) && average.result(rslt);
+    }
+
+    /**
+     * Start timing the stages of processing each scan.
+     */
+    public void enableStageTiming() {
+        if (stageStats != null)
+            return;
+        stageStats = new LatencyStats[Stage.values().length];
+        for (int i = 0; i < stageStats.length; i++)
+            stageStats[i] = new LatencyStats();
+    }
+
+    /**
+     * @return The time spent in a stage, null if timing is not enabled.
+     */
+    public LatencyStats getStageStats(Stage stage) {
+        return (stageStats != null) ? stageStats[stage.ordinal()] : null;
+    }
+
+    /**
+     * Start a new reporting period with the next scan.
+     */
+    public void reset() {
+        nextReportTime = 0;
+        lastMobileId = "";
+    }
+
+    //
+    // The reporting period state, saved when we are closed and restored on
+    // our next start.
+    //
+
+    /**
+     * @return The average of the positions computed for our recent scans, may be null.
+     */
+    public WeightedAverage getAverage() {
+        if (slidingWindow)
+            return windowedAverageLocation.total();
+        return weightedAverageLocation;
+    }
+
+    public Set<RfIdentification> getSeenSet() {
+        return seenSet;
+    }
+
+    /**
+     * @return The emitters we expect to have seen this period.
+     */
+    public Set<RfIdentification> getExpectedSet() {
+        resolveExpected();
+        return expectedSet;
+    }
+
+    public long getNextReportTime() {
+        return nextReportTime;
+    }
+
+    public String getLastMobileId() {
+        return lastMobileId;
+    }
+
+    /**
+     * Restore saved reporting period state. Anything we have collected since we
+     * started takes precedence.
+     */
+    public void restore(WeightedAverage average,
+                        Set<RfIdentification> seen,
+                        Set<RfIdentification> expected,
+                        long reportTime,
+                        String mobileId) {
+        if (slidingWindow) {
+            if (windowedAverageLocation.size() == 0)
+                windowedAverageLocation.add(average);
+        } else if (weightedAverageLocation == null)
+            weightedAverageLocation = average;
+        if (seenSet == null)
+            seenSet = seen;
+        if (expectedSet == null)
+            expectedSet = expected;
+        if (nextReportTime == 0) {
+            nextReportTime = reportTime;
+            lastMobileId = mobileId;
+        }
+    }
+
+    /**
+     * Process a group of observations. Process in this context means
+     * 1. Add the emitters to the set of emitters we have seen in this processing period.
+     * 2. If the GPS is accurate enough, update our coverage estimates for the emitters.
+     * 3. If the GPS is accurate enough, update a list of emitters we think we should have seen.
+     * 3. Compute a position based on the current observations.
+     * 4. If our collection period is over, report our position to our listener and
+     *    synchonize our information with the database.
+     *
+     * @param myWork The observations of a scan
+     * @param now The current time in milliseconds, decides when the reporting period ends.
+     */
+    public void process(WorkItem myWork, long now) {
+        if (emitterCache == null)
+            return;
+        long stageTime = (stageStats != null) ? System.nanoTime() : 0;
+
+        if (seenSet == null)
+            seenSet = new HashSet<RfIdentification>();
+        if (expectedSet == null)
+            expectedSet = new HashSet<RfIdentification>();
+
+        // If we are moving, get the emitters ahead of us loaded into memory
+        // before we need them.
+        if (myWork.gps != null)
+            emitterCache.prefetch(myWork.gps.latitude, myWork.gps.longitude,
+                    myWork.gpsSpeed, myWork.gpsBearing);
+
+        // Remember all the emitters we've seen during this processing period. Only
+        // the identification is needed for the end of period trust adjustments.
+
+        for (Observation o : myWork.observations) {
+            seenSet.add(o.getIdent());
+        }
+
+        // Update emitter coverage based on GPS as needed and get the set of locations
+        // the strongest emitters are known to be seen at.
+
+        // The cosine of our latitude is shared by all the distance computations
+        // for this scan.
+        double cosLat = (myWork.gps != null) ? Geodesy.cosLat(myWork.gps.latitude) : 1.0;
+
+        RfEmitter.RfCharacteristics rfChar = RfEmitter.getRfCharacteristics(myWork.rfType);
+        boolean learning = (myWork.gps != null) && (myWork.gps.accuracy <= rfChar.reqdGpsAccuracy);
+
+        // If we have no GPS position to learn from and the WLAN fingerprint of
+        // this scan matches a place we know, use the position of the place.
+        int[] placeSignature = null;
+        if ((myWork.rfType == RfEmitter.EmitterType.WLAN) && (placeIndex != null)) {
+            placeSignature = PlaceIndex.signature(myWork.observations);
+            if (!learning && (placeSignature != null)) {
+                PlaceIndex.Place place = placeIndex.lookup(placeSignature);
+                if (place != null) {
+                    //Logger.d(TAG, "backgroundProcessing() - At known place " + place.latitude + ", " + place.longitude);
+                    scanEstimates.clear();
+                    estimatePool.clear();
+                    PositionEstimate est = estimatePool.next();
+                    est.set(place.latitude, place.longitude, place.accuracy, myWork.time);
+                    scanEstimates.add(est);
+                    computePostion(scanEstimates, myWork);
+                    stageTime = endStage(Stage.SOLVE, stageTime);
+                    endOfPeriodProcessing(now);
+                    endStage(Stage.REPORT, stageTime);
+                    return;
+                }
+            }
+        }
+
+        stageTime = endStage(Stage.PREPARE, stageTime);
+
+        List<PositionEstimate> locations = updateEmitters(myWork.observations, rfChar,
+                myWork.gps, cosLat, myWork.time);
+        stageTime = endStage(Stage.EMITTERS, stageTime);
+
+        // If we are dealing with very movable emitters, then try to detect ones that
+        // have moved out of the area. We do that by collecting the set of emitters
+        // that we expected to see in this area based on the GPS.
+
+        if ((myWork.gps != null) && (myWork.gps.accuracy < rfChar.reqdGpsAccuracy)) {
+            BoundingBox bb = new BoundingBox();
+            bb.update(myWork.gps.latitude,
+                    myWork.gps.longitude,
+                    rfChar.typicalRange,
+                    cosLat);
+
+            // We may be in an area where RF propagation is longer than typical. . .
+            // Adjust the bounding box based on the emitters we actually see.
+            for (int i = 0; i < locations.size(); i++) {
+                PositionEstimate l = locations.get(i);
+                bb.update(l.latitude, l.longitude);
+            }
+            updateExpected(bb, myWork.rfType);
+        }
+        stageTime = endStage(Stage.EXPECTED, stageTime);
+
+        //Logger.d(TAG,"backgroundProcessing() - Got " + myWork.rfType + " data.");
+        switch (myWork.rfType) {
+            case WLAN:
+                // Emitters, especially Wifi APs, can be mobile. We cull them by making
+                // subsets where all members of the set are reasonably close to one
+                // another and then take the largest group.
+                //
+                // To protect against moving WiFi APs,require the largest group
+                // of APs has at least two members.
+
+                //Logger.d(TAG, "WiFi APs seen: " + locations.toString());
+                locations = grouping.culledEmitters(locations, rfChar.moveDetectDistance);
+                boolean solved = false;
+                if ((locations != null) && (locations.size() >= rfChar.minCount)) {
+                    solved = computePostion(locations, myWork);
+                }
+                learnPlace(placeSignature, solved ? scanPosition : null, learning ? myWork.gps : null);
+                break;
+
+            case MOBILE:
+                //Logger.d(TAG, "Mobile towers seen: " + locations.toString());
+
+                // If our observations only contain one tower, and that is the tower
+                // we've already seen this reporting period then avoid using it again.
+                int count = 0;
+                String rfIdent = "";
+                for (Observation o : myWork.observations)  {
+                    count++;
+                    rfIdent = o.getIdent().getRfId();
+                }
+                if (count == 1) {
+                    if (lastMobileId.contentEquals(rfIdent))
+                        break;
+                    lastMobileId = rfIdent;
+                } else {
+                    lastMobileId = "";
+                }
+                //Logger.d(TAG, "Mobile towers used: " + locations.toString());
+                computePostion(locations, myWork);
+                break;
+        }
+        stageTime = endStage(Stage.SOLVE, stageTime);
+        endOfPeriodProcessing(now);
+        endStage(Stage.REPORT, stageTime);
+    }
+
+    /**
+     * Account for the time spent in a stage of processing a scan.
+     *
+     * @param stage The stage just completed
+     * @param startTime System.nanoTime() at the start of the stage
+     * @return System.nanoTime() now, the start of the next stage.
+     */
+    private long endStage(Stage stage, long startTime) {
+        if (stageStats == null)
+            return 0;
+        long now = System.nanoTime();
+        stageStats[stage.ordinal()].add(now - startTime);
+        return now;
+    }
+
+    /**
+     * Remember the position of the place a WLAN scan was made at. A GPS position
+     * good enough to learn from is used if we have one, otherwise the position
+     * computed from the scan.
+     *
+     * @param signature The fingerprint of the scan, see PlaceIndex.signature()
+     * @param position The position computed from the scan, null if none.
+     * @param gps A GPS position good enough to learn from, or null.
+     */
+    private void learnPlace(int[] signature, PositionEstimate position, PositionEstimate gps) {
+        if ((signature == null) || (placeIndex == null))
+            return;
+
+        if (gps != null)
+            placeIndex.learn(signature, gps.latitude, gps.longitude, gps.accuracy);
+        else if (position != null)
+            placeIndex.learn(signature, position.latitude, position.longitude, position.accuracy);
+    }
+
+    /**
+     * Update the coverage estimates for the emitters we have just gotten observations for.
+     *
+     * Observations are taken strongest signal first. Once enough high trust emitters agree
+     * on where we are (see agrees()), or we have coverage estimates for the maximum number
+     * of emitters we use for the type, the rest of the observations are skipped, a crowded
+     * scan gains little from its weakest emitters. If we have a GPS position good enough
+     * to learn from, all the emitters still get their coverage updated but only the
+     * strongest are used for our position.
+     *
+     * @param observations The emitters we have just observed
+     * @param rfChar The characteristics of the type of emitter observed
+     * @param gps The GPS position at the time the observations were collected.
+     * @param cosLat The cosine of the GPS latitude
+     * @param curTime The time the observations were collected
+     * @return A list of the coverage areas for the strongest observed RF emitters. The
+     * list and the estimates in it are reused for the next scan.
+     */
+    private List<PositionEstimate> updateEmitters(Collection<Observation> observations,
+                                                 RfEmitter.RfCharacteristics rfChar,
+                                                 PositionEstimate gps,
+                                                 double cosLat,
+                                                 long curTime) {
+        List<PositionEstimate> locations = scanEstimates;
+        locations.clear();
+        estimatePool.clear();
+        boolean learning = (gps != null) && (gps.accuracy <= rfChar.reqdGpsAccuracy);
+
+        // Heap ordered by decreasing signal, we only take as many as we need.
+        strongestFirst.clear();
+        strongestFirst.addAll(observations);
+
+        agreeCount = 0;
+        boolean settled = false;
+        Observation o;
+        while ((o = strongestFirst.poll()) != null) {
+            boolean wanted = !settled && (locations.size() < rfChar.maxUsed);
+            if (!learning && !wanted) {
+                //Logger.d(TAG, "updateEmitters() - Skipping " + (strongestFirst.size() + 1) + " weaker emitters.");
+                break;
+            }
+            // Without a GPS position to learn from, an emitter we know nothing
+            // about can't help us, so it is not added to the cache.
+            RfEmitter emitter = learning ? emitterCache.get(o.getIdent()) : emitterCache.getKnown(o.getIdent());
+            if (emitter == null)
+                continue;
+            emitter.setAsu(o.getAsu());
+            emitter.setNote(o.getNote());
+            emitter.updateLocation(gps, cosLat);
+
+            if (wanted) {
+                PositionEstimate thisLoc = estimatePool.next();
+                if (emitter.getEstimate(thisLoc, curTime)) {
+                    //Logger.d(TAG,"updateEmitters() - Using " + emitter.logString());
+                    locations.add(thisLoc);
+                    settled = agrees(thisLoc, rfChar);
+                } else {
+                    estimatePool.unget();
+                //    Logger.d(TAG, "updateDatase() - no location for " + emitter.logString());
+                }
+            }
+        }
+        strongestFirst.clear();
+        return locations;
+    }
+
+    /**
+     * Track whether the high trust emitters of a scan agree on where we are: their
+     * coverage areas, taken as boxes, all have an area in common. An emitter whose
+     * coverage is outside the common area, one that may have moved, is not counted.
+     * The grouping and the solver still deal with it as before.
+     *
+     * @param est The coverage estimate of the next strongest emitter
+     * @param rfChar The characteristics of the type of emitter
+     * @return True once enough emitters agree to skip the weaker ones.
+     */
+    private boolean agrees(PositionEstimate est, RfEmitter.RfCharacteristics rfChar) {
+        if ((rfChar.agreeing <= 0) || (est.trust < AGREEMENT_TRUST))
+            return false;
+        if (agreeCount == 0)
+            agreeCosLat = Geodesy.cosLat(est.latitude);
+        double dLat = Geodesy.latDegrees(est.accuracy);
+        double dLon = Geodesy.lonDegrees(est.accuracy, agreeCosLat);
+        double north = est.latitude + dLat;
+        double south = est.latitude - dLat;
+        double east = est.longitude + dLon;
+        double west = est.longitude - dLon;
+        if (agreeCount > 0) {
+            north = Math.min(north, agreeNorth);
+            south = Math.max(south, agreeSouth);
+            east = Math.min(east, agreeEast);
+            west = Math.max(west, agreeWest);
+            if ((north < south) || (east < west))
+                return false;
+        }
+        agreeNorth = north;
+        agreeSouth = south;
+        agreeEast = east;
+        agreeWest = west;
+        return ++agreeCount >= rfChar.agreeing;
+    }
+
+    /**
+     * Compute our position from the current observations with the position solver
+     * and add it, with its accuracy, to the average we report from. The more
+     * accurate the position the more weight it gets (see scanWeight()).
+     *
+     * @param locations The set of coverage information for the current observations
+     * @param myWork All the information about the current work item.
+     * @return True if a position was computed, it is left in scanPosition.
+     */
+    private boolean computePostion(List<PositionEstimate> locations, WorkItem myWork) {
+        if ((locations == null) || locations.isEmpty())
+            return false;
+
+        int n = locations.size();
+        if (solverLat.length < n) {
+            solverLat = new double[n];
+            solverLon = new double[n];
+            solverRadius = new float[n];
+            solverAsu = new int[n];
+            solverTrust = new int[n];
+            solverWeights = new double[n];
+        }
+        for (int i = 0; i < n; i++) {
+            PositionEstimate l = locations.get(i);
+            solverLat[i] = l.latitude;
+            solverLon[i] = l.longitude;
+            solverRadius[i] = l.accuracy;
+            solverAsu[i] = l.asu;
+            solverTrust[i] = l.trust;
+        }
+
+        long startTime = System.nanoTime();
+        scanPosition.timeMs = myWork.time;
+        boolean solved = positionSolver.solve(solverLat, solverLon, solverRadius,
+                solverAsu, solverTrust, n, solverWeights, scanPosition);
+        solveNanos += System.nanoTime() - startTime;
+        solveCount++;
+        if (!solved)
+            return false;
+
+        double weight = scanWeight(scanPosition);
+        if (slidingWindow) {
+            windowedAverageLocation.addEstimate(scanPosition, weight);
+            return true;
+        }
+
+        if (weightedAverageLocation == null)
+            weightedAverageLocation = new WeightedAverage();
+        weightedAverageLocation.addEstimate(scanPosition, weight);
+        return true;
+    }
+
+    /**
+     * The weight of the position computed from a scan in the average we report:
+     * the inverse of its variance, scaled like the emitter weights of the solvers.
+     *
+     * @param est The position computed from a scan
+     * @return The weight to average it with
+     */
+    private static double scanWeight(PositionEstimate est) {
+        double accuracy = Math.max(est.accuracy, Constants.MINIMUM_BELIEVABLE_ACCURACY);
+        return PositionSolver.WEIGHTING_FACTOR * Constants.MINIMUM_BELIEVABLE_ACCURACY / (accuracy * accuracy);
+    }
+
+    /**
+     * Choose the solver used to compute positions from scans. The time spent in the
+     * previous solver is logged.
+     *
+     * @param solver The solver, see PositionSolvers.
+     */
+    public void setPositionSolver(PositionSolver solver) {
+        logSolverStatistics();
+        positionSolver = solver;
+        solveCount = 0;
+        solveNanos = 0;
+    }
+
+    public void logSolverStatistics() {
+        if (solveCount > 0)
+            Logger.d(TAG, "Solver " + positionSolver.getName() + ": " + solveCount + " scans, " +
+                    (solveNanos / solveCount / 1000) + "us per scan");
+    }
+
+    /**
+     * We bulk up operations to reduce writing to flash memory. And there really isn't
+     * much need to report location to microG/UnifiedNlp more often than once every three
+     * or four seconds. Another reason is that we can average more samples into each
+     * report so there is a chance that our position computation is more accurate.
+     *
+     * @param currentProcessTime The current time in milliseconds
+     */
+    private void endOfPeriodProcessing(long currentProcessTime) {
+        if (emitterCache == null) {
+            Logger.d(TAG,"endOfPeriodProcessing() - emitterCache is null?!?");
+            return;
+        }
+        if (seenSet == null)
+            seenSet = new HashSet<RfIdentification>();
+        if (expectedSet == null)
+            expectedSet = new HashSet<RfIdentification>();
+
+        // End of process period. Adjust the trust values of all
+        // the emitters we've seen and the ones we expected
+        // to see but did not.
+        if (currentProcessTime < nextReportTime)
+            return;
+        nextReportTime = currentProcessTime + REPORTING_INTERVAL;
+
+        //Logger.d(TAG,"endOfPeriodProcessing() - Starting new process period.");
+
+        resolveExpected();
+
+        // Increment the trust of the emitters we've seen and decrement the trust
+        // of the emitters we expected to see but didn't. Trust only changes for
+        // emitters we know something about, so those we have nothing stored for,
+        // such as the weak ones skipped by updateEmitters(), are not added to the
+        // cache.
+
+        for (RfIdentification id : seenSet) {
+            RfEmitter e = emitterCache.getKnown(id);
+            if (e != null)
+                e.incrementTrust();
+        }
+
+        for (RfIdentification  u : expectedSet) {
+            if (!seenSet.contains(u)) {
+                RfEmitter e = emitterCache.getKnown(u);
+                if (e != null) {
+                    e.decrementTrust();
+                }
+            }
+        }
+
+        // Sync all of our changes to the on flash database.
+
+        emitterCache.sync();
+
+        // Report our best guess of position
+
+        if (slidingWindow) {
+            windowedAverageLocation.expire(currentProcessTime);
+            report(windowedAverageLocation.total());
+            lastMobileId = "";      // Allow another mobile tower report.
+        } else if (weightedAverageLocation != null) {
+            report(weightedAverageLocation);
+            weightedAverageLocation.reset();
+            lastMobileId = "";      // Allow another mobile tower report.
+        }
+
+        seenSet = new HashSet<RfIdentification>();
+        expectedSet = new HashSet<RfIdentification >();
+    }
+
+    private void report(WeightedAverage average) {
+        if ((listener != null) && (average.getCount() > 0))
+            listener.onReport(average);
+    }
+
+    /**
+     * Add the specified bounding box to the area in which we expect to see RF emitters
+     * of the specified type this period. This is used to age out emitters that may
+     * have changed locations (or gone off the air). When aged out we can remove them
+     * from our database.
+     *
+     * @param bb A bounding box (north, south, east and west) around a position
+     * @param rfType The type of RF emitters we expect to see within the bounding
+     *               box.
+     */
+    private void updateExpected(BoundingBox bb, RfEmitter.EmitterType rfType) {
+        BoundingBox area = expectedAreas.get(rfType);
+        if (area == null)
+            expectedAreas.put(rfType, bb);
+        else
+            area.update(bb);
+    }
+
+    /**
+     * Add all the RF emitters within the areas collected by updateExpected() to the
+     * set of emitters we expect to see. One lookup per emitter type.
+     */
+    private void resolveExpected() {
+        if (emitterCache == null)
+            return;
+        if (expectedSet == null)
+            expectedSet = new HashSet<RfIdentification>();
+        for (Map.Entry<RfEmitter.EmitterType, BoundingBox> area : expectedAreas.entrySet())
+            expectedSet.addAll(emitterCache.getEmitters(area.getKey(), area.getValue()));
+        expectedAreas.clear();
+    }
+}
@@ -0,0 +1,193 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A recording of the scans we processed, so they can be replayed through the
+ * scan processing later (and elsewhere) to measure and compare changes.
+ *
+ * The file is a compact binary format:
+ *
+ *     int     Magic number
+ *     int     Format version
+ *
+ * followed by one record per scan until the end of the file. Each record is
+ * flushed as it is written, so a trace whose recording was cut short (the
+ * process killed, the device switched off) ends with at most one incomplete
+ * record, which reading skips:
+ *
+ *     long    Time of scan (ms)
+ *     byte    Emitter type
+ *     boolean GPS position present, followed by its latitude, longitude
+ *             (doubles), accuracy, speed, bearing (floats) and time (long)
+ *     short   Observation count, followed by a UTF emitter ID, byte ASU,
+ *             boolean note present and UTF note for each observation
+ */
+public class ScanTrace {
+    public static final String FILE_PREFIX = "trace-";
+    private static final int MAGIC = 0x446a5654;        // "DjVT"
+    private static final int VERSION = 1;
+
+    /**
+     * Appends scans to a trace file.
+     */
+    public static class Writer implements Closeable {
+        private final DataOutputStream out;
+        private long count;
+
+        /**
+         * @param file The trace file, replaced if it exists.
+         */
+        public Writer(File file) throws IOException {
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file)));
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.flush();
+        }
+
+        public void write(WorkItem work) throws IOException {
+            out.writeLong(work.time);
+            out.writeByte(work.rfType.ordinal());
+            out.writeBoolean(work.gps != null);
+            if (work.gps != null) {
+                out.writeDouble(work.gps.latitude);
+                out.writeDouble(work.gps.longitude);
+                out.writeFloat(work.gps.accuracy);
+                out.writeFloat(work.gpsSpeed);
+                out.writeFloat(work.gpsBearing);
+                out.writeLong(work.gps.timeMs);
+            }
+            out.writeShort(work.observations.size());
+            for (Observation o : work.observations) {
+                out.writeUTF(o.getIdent().getRfId());
+                out.writeByte(o.getAsu());
+                out.writeBoolean(o.getNote() != null);
+                if (o.getNote() != null)
+                    out.writeUTF(o.getNote());
+            }
+            out.flush();
+            count++;
+        }
+
+        /**
+         * @return The number of scans written.
+         */
+        public long getCount() {
+            return count;
+        }
+
+        @Override
+        public void close() throws IOException {
+            out.close();
+        }
+    }
+
+    /**
+     * Reads back the scans in a trace file, in the order they were written.
+     */
+    public static class Reader implements Closeable {
+        private final RfEmitter.EmitterType[] types = RfEmitter.EmitterType.values();
+        private final DataInputStream in;
+
+        public Reader(File file) throws IOException {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+            boolean known = false;
+            try {
+                known = (in.readInt() == MAGIC) && (in.readInt() == VERSION);
+            } catch (EOFException e) {
+                // Too short to be a trace
+            } finally {
+                if (!known)
+                    in.close();
+            }
+            if (!known)
+                throw new IOException("Unknown trace format: " + file);
+        }
+
+        /**
+         * @return The next scan in the trace, null at the end of the trace or at
+         * an incomplete last record.
+         */
+        public WorkItem read() throws IOException {
+            try {
+                return readRecord();
+            } catch (EOFException e) {
+                return null;
+            }
+        }
+
+        private WorkItem readRecord() throws IOException {
+            long time = in.readLong();
+            int type = in.readByte();
+            if ((type < 0) || (type >= types.length))
+                throw new IOException("Unknown emitter type " + type);
+            RfEmitter.EmitterType rfType = types[type];
+
+            WorkItem rslt = new WorkItem(null, rfType, time);
+            if (in.readBoolean()) {
+                double lat = in.readDouble();
+                double lon = in.readDouble();
+                float accuracy = in.readFloat();
+                float speed = in.readFloat();
+                float bearing = in.readFloat();
+                rslt.setGps(lat, lon, accuracy, speed, bearing, in.readLong());
+            }
+
+            int count = in.readUnsignedShort();
+            List<Observation> observations = new ArrayList<Observation>(count);
+            for (int i = 0; i < count; i++) {
+                Observation o = new Observation(in.readUTF(), rfType);
+                o.setAsu(in.readByte());
+                if (in.readBoolean())
+                    o.setNote(in.readUTF());
+                observations.add(o);
+            }
+            rslt.observations = observations;
+            return rslt;
+        }
+
+        @Override
+        public void close() throws IOException {
+            in.close();
+        }
+    }
+
+    /**
+     * @param dir The directory to record in
+     * @param timeMs The time recording starts
+     * @return A new trace file named for the time recording started.
+     */
+    public static File newFile(File dir, long timeMs) {
+        return new File(dir, FILE_PREFIX + timeMs + ".bin");
+    }
+}
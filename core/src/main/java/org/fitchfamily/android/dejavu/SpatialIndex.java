@@ -0,0 +1,173 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A uniform grid (using GeoTile tiles as cells) over the emitters we have in memory.
+ *
+ * A tile is only present in the index if all the emitters the database has for it
+ * have been loaded. So for any resident tile the index can answer "which emitters
+ * are in this area" without asking the database. To keep that true the cache must
+ * tell us when an emitter is added, moved or dropped from the database.
+ *
+ * Tiles are kept in least recently used order so the oldest can be evicted.
+ *
+ * Not thread safe, all access is through the Cache which is.
+ */
+public class SpatialIndex {
+    /**
+     * Resident tiles, each with the emitters whose coverage is centered in it.
+     */
+    private final LinkedHashMap<Long,Map<String,RfEmitter>> tiles =
+            new LinkedHashMap<Long,Map<String,RfEmitter>>(16, 0.75f, true);
+
+    /**
+     * The tile each indexed emitter is in.
+     */
+    private final Map<String,Long> tileOf = new HashMap<String,Long>();
+
+    /**
+     * @param tile A tile key
+     * @return True if all the emitters for the tile are in the index.
+     */
+    public boolean isResident(long tile) {
+        return tiles.get(tile) != null;
+    }
+
+    public int tileCount() {
+        return tiles.size();
+    }
+
+    public int size() {
+        return tileOf.size();
+    }
+
+    /**
+     * Find an emitter in the index.
+     *
+     * @param key The key (identification string) for the emitter
+     * @return The emitter or null if not in a resident tile.
+     */
+    public RfEmitter get(String key) {
+        Long tile = tileOf.get(key);
+        if (tile == null)
+            return null;
+        return tiles.get(tile).get(key);
+    }
+
+    /**
+     * Mark a tile as resident. The caller must then put() all the emitters the
+     * database has for the tile.
+     *
+     * @param tile A tile key
+     */
+    public void addTile(long tile) {
+        if (tiles.get(tile) == null)
+            tiles.put(tile, new HashMap<String,RfEmitter>());
+    }
+
+    /**
+     * Add or update an emitter. Called when an emitter is loaded and after its
+     * coverage has been written to the database. The emitter is placed in the
+     * tile containing its coverage center, if that tile is resident.
+     *
+     * @param key The key (identification string) for the emitter
+     * @param emitter The emitter
+     */
+    public void put(String key, RfEmitter emitter) {
+        if (!emitter.isStored()) {
+            remove(key);
+            return;
+        }
+        long tile = GeoTile.key(emitter.getLat(), emitter.getLon());
+        Long oldTile = tileOf.get(key);
+        if ((oldTile != null) && (oldTile != tile))
+            remove(key);
+
+        Map<String,RfEmitter> cell = tiles.get(tile);
+        if (cell != null) {
+            cell.put(key, emitter);
+            tileOf.put(key, tile);
+        }
+    }
+
+    /**
+     * Remove an emitter from the index.
+     *
+     * @param key The key (identification string) for the emitter
+     */
+    public void remove(String key) {
+        Long tile = tileOf.remove(key);
+        if (tile != null) {
+            Map<String,RfEmitter> cell = tiles.get(tile);
+            if (cell != null)
+                cell.remove(key);
+        }
+    }
+
+    /**
+     * Drop least recently used tiles until we have no more than a maximum.
+     *
+     * @param maxTiles The maximum number of resident tiles
+     * @return The number of tiles evicted
+     */
+    public int trim(int maxTiles) {
+        int rslt = 0;
+        Iterator<Map.Entry<Long,Map<String,RfEmitter>>> it = tiles.entrySet().iterator();
+        while ((tiles.size() > maxTiles) && it.hasNext()) {
+            Map.Entry<Long,Map<String,RfEmitter>> oldest = it.next();
+            for (String key : oldest.getValue().keySet())
+                tileOf.remove(key);
+            it.remove();
+            rslt++;
+        }
+        return rslt;
+    }
+
+    public void clear() {
+        tiles.clear();
+        tileOf.clear();
+    }
+
+    /**
+     * Add the emitters of a type in a resident tile whose coverage center is within
+     * a bounding box to a set. Same selection as EmitterStore.getEmitters().
+     *
+     * @param tile A resident tile
+     * @param rfType The type of emitter wanted
+     * @param bb The bounding box
+     * @param rslt The set to add the emitter identifications to
+     */
+    public void query(long tile, RfEmitter.EmitterType rfType, BoundingBox bb, Set<RfIdentification> rslt) {
+        Map<String,RfEmitter> cell = tiles.get(tile);
+        if (cell == null)
+            return;
+        for (RfEmitter e : cell.values()) {
+            if ((e.getType() == rfType) && bb.contains(e.getLat(), e.getLon()))
+                rslt.add(e.getRfIdent());
+        }
+    }
+}
@@ -0,0 +1,232 @@
+package org.fitchfamily.android.dejavu;
+
+/**
+ * Created by tfitch on 10/30/17.
+ */
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+public class WeightedAverage {
+    public static final String TAG="DejaVu wgtAvg";
+
+    // Latitude averaging variables
+    private double wSumLat;
+    private double wSum2Lat;
+    private double meanLat;
+    private double sLat;
+
+    // Longitude averaging variables
+    private double wSumLon;
+    private double wSum2Lon;
+    private double meanLon;
+    private double sLon;
+
+    // Weighted sum of the squared accuracies (in meters) of the estimates added
+    // with addEstimate(), zero if there were none.
+    private double sAcc;
+
+    private int count;
+    private long timeMs;
+
+    private float reportAccuracy;
+
+    WeightedAverage() {
+        reset();
+    }
+
+    public void reset() {
+        wSumLat = wSum2Lat = meanLat = sLat = 0.0;
+        wSumLon = wSum2Lon = meanLon = sLon = 0.0;
+        sAcc = 0.0;
+
+        count = 0;
+        timeMs = 0;
+    }
+
+    public void add(PositionEstimate loc, double weight) {
+        if (loc == null)
+            return;
+
+        reportAccuracy = loc.accuracy;
+        count++;
+        //Logger.d(TAG,"add() entry: weight="+weight+", count="+count);
+
+        double lat = loc.latitude;
+        wSumLat = wSumLat + weight;
+        wSum2Lat = wSum2Lat + (weight * weight);
+        double oldMean = meanLat;
+        meanLat = oldMean + (weight / wSumLat) * (lat - oldMean);
+        sLat = sLat + weight * (lat - oldMean) * (lat - meanLat);
+
+        double lon = loc.longitude;
+        wSumLon = wSumLon + weight;
+        wSum2Lon = wSum2Lon + (weight * weight);
+        oldMean = meanLon;
+        meanLon = oldMean + (weight / wSumLon) * (lon - oldMean);
+        sLon = sLon + weight * (lon - oldMean) * (lon - meanLon);
+
+        timeMs = loc.timeMs;
+    }
+
+    /**
+     * Add a position estimate, such as the position a solver computed from a scan.
+     * Unlike add(), which only uses how far apart the positions are, the accuracy of
+     * the estimate also counts towards the accuracy of the average.
+     *
+     * @param est The estimate
+     * @param weight The weight to give it
+     */
+    public void addEstimate(PositionEstimate est, double weight) {
+        if (est == null)
+            return;
+        add(est, weight);
+        sAcc = sAcc + weight * est.accuracy * est.accuracy;
+    }
+
+    /**
+     * Make this average a copy of another.
+     *
+     * @param other The average to copy
+     */
+    public void set(WeightedAverage other) {
+        wSumLat = other.wSumLat;
+        wSum2Lat = other.wSum2Lat;
+        meanLat = other.meanLat;
+        sLat = other.sLat;
+        wSumLon = other.wSumLon;
+        wSum2Lon = other.wSum2Lon;
+        meanLon = other.meanLon;
+        sLon = other.sLon;
+        sAcc = other.sAcc;
+        count = other.count;
+        timeMs = other.timeMs;
+        reportAccuracy = other.reportAccuracy;
+    }
+
+    /**
+     * Add all the locations of another average to this one, as if they had
+     * been added here one at a time (Chan's parallel form of Welford's
+     * algorithm). The other average is taken to hold the more recent locations.
+     *
+     * @param other The average to be added
+     */
+    public void combine(WeightedAverage other) {
+        if (other.count < 1)
+            return;
+        if (count < 1) {
+            set(other);
+            return;
+        }
+
+        double wSum = wSumLat + other.wSumLat;
+        double delta = other.meanLat - meanLat;
+        meanLat = meanLat + delta * other.wSumLat / wSum;
+        sLat = sLat + other.sLat + delta * delta * wSumLat * other.wSumLat / wSum;
+        wSumLat = wSum;
+        wSum2Lat = wSum2Lat + other.wSum2Lat;
+
+        wSum = wSumLon + other.wSumLon;
+        delta = other.meanLon - meanLon;
+        meanLon = meanLon + delta * other.wSumLon / wSum;
+        sLon = sLon + other.sLon + delta * delta * wSumLon * other.wSumLon / wSum;
+        wSumLon = wSum;
+        wSum2Lon = wSum2Lon + other.wSum2Lon;
+        sAcc = sAcc + other.sAcc;
+
+        count += other.count;
+        timeMs = other.timeMs;
+        reportAccuracy = other.reportAccuracy;
+    }
+
+    public int getCount() {
+        return count;
+    }
+
+    public long getTime() {
+        return timeMs;
+    }
+
+    /**
+     * Save the accumulated values so they can be restored later.
+     *
+     * @param out Where to write the state
+     * @throws IOException
+     */
+    public void writeState(DataOutput out) throws IOException {
+        out.writeDouble(wSumLat);
+        out.writeDouble(wSum2Lat);
+        out.writeDouble(meanLat);
+        out.writeDouble(sLat);
+        out.writeDouble(wSumLon);
+        out.writeDouble(wSum2Lon);
+        out.writeDouble(meanLon);
+        out.writeDouble(sLon);
+        out.writeDouble(sAcc);
+        out.writeInt(count);
+        out.writeLong(timeMs);
+        out.writeFloat(reportAccuracy);
+    }
+
+    /**
+     * Create an average from state previously saved with writeState().
+     *
+     * @param in Where to read the state from
+     * @return The restored average
+     * @throws IOException
+     */
+    public static WeightedAverage readState(DataInput in) throws IOException {
+        WeightedAverage rslt = new WeightedAverage();
+        rslt.wSumLat = in.readDouble();
+        rslt.wSum2Lat = in.readDouble();
+        rslt.meanLat = in.readDouble();
+        rslt.sLat = in.readDouble();
+        rslt.wSumLon = in.readDouble();
+        rslt.wSum2Lon = in.readDouble();
+        rslt.meanLon = in.readDouble();
+        rslt.sLon = in.readDouble();
+        rslt.sAcc = in.readDouble();
+        rslt.count = in.readInt();
+        rslt.timeMs = in.readLong();
+        rslt.reportAccuracy = in.readFloat();
+        return rslt;
+    }
+
+    /**
+     * Get the average.
+     *
+     * @param rslt Set to the average position
+     * @return False if nothing has been added.
+     */
+    public boolean result(PositionEstimate rslt) {
+        if (count < 1)
+            return false;
+        rslt.set(meanLat, meanLon, accuracy(), timeMs);
+        return true;
+    }
+
+    private float accuracy() {
+        if (count == 1)
+            return reportAccuracy;
+
+        //double varLat = sLat / (wSumLat - 1);
+        //double varLon = sLon / (wSumLon - 1);
+        double varLat = sLat / (wSumLat - wSum2Lat / wSumLat);
+        double varLon = sLon / (wSumLon - wSum2Lon / wSumLon);
+
+        double sdLat = Math.sqrt(varLat);
+        double sdLon = Math.sqrt(varLon);
+
+        //Logger.d(TAG, "result() sLat=" + sLat + ", wSumLat=" + wSumLat + ", wSum2Lat=" + wSum2Lat + ", varLat=" + varLat + ", sdLat=" + sdLat);
+
+        double sdMetersLat = sdLat * Constants.DEG_TO_METER;
+        double cosLat = Math.max(Constants.MIN_COS, Math.cos(Math.toRadians(meanLat)));
+        double sdMetersLon = sdLon * Constants.DEG_TO_METER * cosLat;
+
+        // The spread of the positions added together with the mean squared
+        // accuracy of the estimates among them (the law of total variance).
+        double spread = Math.max(sdMetersLat, sdMetersLon);
+        return (float) Math.sqrt(spread * spread + sAcc / wSumLat);
+    }
+}
@@ -0,0 +1,55 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+/**
+ * The reference solver: the average of the emitter positions weighted by the
+ * inverse of their coverage radius, with the accuracy taken from the spread of
+ * the positions. This is what the backend has always done.
+ */
+public class WeightedAverageSolver implements PositionSolver {
+    public static final String NAME = "weighted-average";
+
+    private final WeightedAverage average = new WeightedAverage();
+    private final PositionEstimate scratch = new PositionEstimate();
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public boolean solve(double[] lat, double[] lon, float[] radius, int[] asu, int[] trust, int n,
+                         double[] weights, PositionEstimate rslt) {
+        if (n < 1)
+            return false;
+
+        average.reset();
+        for (int i = 0; i < n; i++) {
+            weights[i] = WEIGHTING_FACTOR / Math.max(radius[i], Constants.MINIMUM_BELIEVABLE_ACCURACY);
+            scratch.set(lat[i], lon[i], radius[i], 0);
+            average.add(scratch, weights[i]);
+        }
+        long timeMs = rslt.timeMs;
+        boolean solved = average.result(rslt);
+        rslt.timeMs = timeMs;
+        return solved;
+    }
+}
@@ -0,0 +1,189 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Arrays;
+
+/**
+ * A weighted average of the locations added during a sliding time window.
+ *
+ * Unlike WeightedAverage, which is reset at the end of each reporting period, old
+ * locations expire individually so an estimate using all the recent scans is
+ * available at any time.
+ *
+ * The running sums of a weighted average can be combined but can't be taken
+ * apart again, so expiry uses two stacks. New entries are pushed on the back
+ * stack, which keeps a single combined average of all its entries. The front
+ * stack holds the oldest entries, oldest on top, each with the combined average
+ * of itself and every (newer) entry below it. Removing the oldest entry is a pop
+ * from the front stack. When the front stack is empty the back stack is moved
+ * over to it in one pass. Each entry is moved once, so adding and expiring are
+ * both O(1) amortized and the average of the whole window is the combination of
+ * two values.
+ *
+ * Entries are reused, after the window has filled no more objects are created.
+ * Not thread safe.
+ */
+public class WindowedAverage {
+    private final long windowMs;
+
+    // Back stack, newest entry on top.
+    private WeightedAverage[] back = new WeightedAverage[8];
+    private long[] backTime = new long[8];
+    private int backCount;
+    private final WeightedAverage backSum = new WeightedAverage();
+
+    // Front stack, oldest entry on top.
+    private WeightedAverage[] front = new WeightedAverage[8];
+    private WeightedAverage[] frontSum = new WeightedAverage[8];
+    private long[] frontTime = new long[8];
+    private int frontCount;
+
+    private final WeightedAverage total = new WeightedAverage();
+
+    /**
+     * @param windowMs How long, in milliseconds, a location contributes to the average.
+     */
+    WindowedAverage(long windowMs) {
+        this.windowMs = windowMs;
+    }
+
+    public void reset() {
+        backCount = 0;
+        frontCount = 0;
+        backSum.reset();
+    }
+
+    /**
+     * @return The number of entries in the window.
+     */
+    public int size() {
+        return backCount + frontCount;
+    }
+
+    /**
+     * Add a position estimate, see WeightedAverage.addEstimate(). Entries too old
+     * to be in the same window as it are expired first.
+     *
+     * @param est The estimate
+     * @param weight The weight to give it
+     */
+    public void addEstimate(PositionEstimate est, double weight) {
+        if (est == null)
+            return;
+        expire(est.timeMs);
+        WeightedAverage entry = push(est.timeMs);
+        entry.addEstimate(est, weight);
+        backSum.combine(entry);
+    }
+
+    /**
+     * Add an average as a single entry, timed at the last location added to it.
+     *
+     * @param avg The average to add
+     */
+    public void add(WeightedAverage avg) {
+        if ((avg == null) || (avg.getCount() < 1))
+            return;
+        expire(avg.getTime());
+        WeightedAverage entry = push(avg.getTime());
+        entry.set(avg);
+        backSum.combine(entry);
+    }
+
+    /**
+     * Drop the entries that are too old.
+     *
+     * @param now The current time in milliseconds
+     */
+    public void expire(long now) {
+        long oldest = now - windowMs;
+        while (size() > 0) {
+            if (frontCount == 0)
+                transfer();
+            if (frontTime[frontCount - 1] >= oldest)
+                return;
+            frontCount--;
+        }
+    }
+
+    /**
+     * @return The combined average of everything in the window. Owned by us and
+     * only valid until the window is next changed.
+     */
+    public WeightedAverage total() {
+        total.reset();
+        if (frontCount > 0)
+            total.set(frontSum[frontCount - 1]);
+        total.combine(backSum);
+        return total;
+    }
+
+    public boolean result(PositionEstimate rslt) {
+        return total().result(rslt);
+    }
+
+    private WeightedAverage push(long timeMs) {
+        if (backCount == back.length) {
+            back = Arrays.copyOf(back, backCount * 2);
+            backTime = Arrays.copyOf(backTime, backCount * 2);
+        }
+        WeightedAverage entry = back[backCount];
+        if (entry == null) {
+            entry = new WeightedAverage();
+            back[backCount] = entry;
+        }
+        entry.reset();
+        backTime[backCount] = timeMs;
+        backCount++;
+        return entry;
+    }
+
+    /**
+     * Move everything on the back stack to the (empty) front stack, computing
+     * the combined averages as we go.
+     */
+    private void transfer() {
+        if (front.length < backCount) {
+            front = Arrays.copyOf(front, back.length);
+            frontSum = Arrays.copyOf(frontSum, back.length);
+            frontTime = Arrays.copyOf(frontTime, back.length);
+        }
+        for (int i = backCount - 1; i >= 0; i--) {
+            // Swap the entry objects so the back stack keeps one to reuse.
+            WeightedAverage entry = back[i];
+            back[i] = front[frontCount];
+            front[frontCount] = entry;
+            frontTime[frontCount] = backTime[i];
+
+            WeightedAverage sum = frontSum[frontCount];
+            if (sum == null) {
+                sum = new WeightedAverage();
+                frontSum[frontCount] = sum;
+            }
+            sum.set(entry);
+            if (frontCount > 0)
+                sum.combine(frontSum[frontCount - 1]);
+            frontCount++;
+        }
+        backCount = 0;
+        backSum.reset();
+    }
+}
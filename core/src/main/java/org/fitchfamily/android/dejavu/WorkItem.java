@@ -0,0 +1,52 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.util.Collection;
+
+/**
+ * The observations from one scan, all of the same emitter type, with our filtered
+ * GPS position at the time of the scan. This is what the scan processing thread
+ * works on and what is recorded in scan traces (see ScanTrace).
+ */
+public class WorkItem {
+    public Collection<Observation> observations;
+    public RfEmitter.EmitterType rfType;
+    public PositionEstimate gps;            // Filtered GPS position, null if none
+    public float gpsSpeed;                  // meters/second
+    public float gpsBearing;                // degrees east of north
+    public long time;                       // ms
+
+    public WorkItem(Collection<Observation> o, RfEmitter.EmitterType tp, long tm) {
+        observations = o;
+        rfType = tp;
+        time = tm;
+    }
+
+    /**
+     * Set the GPS position at the time of the scan.
+     */
+    public void setGps(double lat, double lon, float accuracy, float speed, float bearing, long timeMs) {
+        gps = new PositionEstimate();
+        gps.set(lat, lon, accuracy, timeMs);
+        gpsSpeed = speed;
+        gpsBearing = bearing;
+    }
+}
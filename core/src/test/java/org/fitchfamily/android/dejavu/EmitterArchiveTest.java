@@ -0,0 +1,305 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.Arrays;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes emitter archives in both formats and reads them back, including the CSV
+ * quoting rules and rejection of archives that are damaged.
+ */
+public class EmitterArchiveTest {
+    private static final RfEmitter.EmitterType WLAN = RfEmitter.EmitterType.WLAN;
+    private static final RfEmitter.EmitterType MOBILE = RfEmitter.EmitterType.MOBILE;
+    private static final String HEADER = "rfType,rfID,trust,latitude,longitude,radius,ssid\n";
+
+    private static final String[] SSIDS = {
+            "", "plain", "a,b", "say \"hi\"", "line\nbreak", "cr\r\nlf", "\"", ",", "\"\"",
+            " leading and trailing ", "café ☕"
+    };
+
+    @Test
+    public void csvRoundTrip() throws Exception {
+        roundTrip(EmitterArchive.Format.CSV);
+    }
+
+    @Test
+    public void binaryRoundTrip() throws Exception {
+        roundTrip(EmitterArchive.Format.BINARY);
+    }
+
+    @Test
+    public void emptyArchive() throws Exception {
+        for (EmitterArchive.Format format : EmitterArchive.Format.values()) {
+            EmitterArchive.Reader in = reader(write(format, 0));
+            assertEquals(format, in.getFormat());
+            assertFalse(in.next());
+            assertEquals(0, in.getCount());
+            in.close();
+        }
+    }
+
+    @Test
+    public void csvQuoting() throws Exception {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EmitterArchive.Writer out = new EmitterArchive.Writer(bytes, EmitterArchive.Format.CSV);
+        out.write(new RfIdentification("00:11:22:33:44:55", WLAN), info(1.5, -2.5, 10.0f, 7, "a,\"b\"\nc"));
+        out.write(new RfIdentification("we,ird", WLAN), info(0.0, 0.0, 1.0f, 1, "plain"));
+        out.close();
+
+        assertEquals(HEADER +
+                "WLAN,00:11:22:33:44:55,7,1.5,-2.5,10.0,\"a,\"\"b\"\"\nc\"\n" +
+                "WLAN,\"we,ird\",1,0.0,0.0,1.0,plain\n", gunzip(bytes.toByteArray()));
+    }
+
+    @Test
+    public void csvFromOtherTools() throws Exception {
+        // CRLF line ends, blank lines and a quoted field that needs no quoting
+        EmitterArchive.Reader in = reader(gzip(HEADER.replace("\n", "\r\n") +
+                "MOBILE,310/260/1/2,50,37.7741,-122.4191,2000.0,\"\"\r\n" +
+                "\r\n" +
+                "WLAN,\"00:11:22:33:44:55\",30,37.7749,-122.4194,55.0,\"Coffee Shop\"\r\n"));
+        assertEquals(EmitterArchive.Format.CSV, in.getFormat());
+
+        assertTrue(in.next());
+        assertEquals(new RfIdentification("310/260/1/2", MOBILE), in.getIdent());
+        assertEquals(50, in.getInfo().trust);
+        assertEquals("", in.getInfo().note);
+
+        assertTrue(in.next());
+        assertEquals(new RfIdentification("00:11:22:33:44:55", WLAN), in.getIdent());
+        assertEquals(37.7749, in.getInfo().latitude, 0.0);
+        assertEquals(55.0f, in.getInfo().radius, 0.0f);
+        assertEquals("Coffee Shop", in.getInfo().note);
+
+        assertFalse(in.next());
+        assertEquals(2, in.getCount());
+        in.close();
+    }
+
+    @Test
+    public void formatDetection() throws Exception {
+        assertEquals(EmitterArchive.Format.BINARY, reader(write(EmitterArchive.Format.BINARY, 3)).getFormat());
+        assertEquals(EmitterArchive.Format.CSV, reader(write(EmitterArchive.Format.CSV, 3)).getFormat());
+        // Whatever the file is called
+        assertEquals(EmitterArchive.Format.CSV, EmitterArchive.Format.forName("region.csv.gz"));
+        assertEquals(EmitterArchive.Format.CSV, EmitterArchive.Format.forName("region.csv"));
+        assertEquals(EmitterArchive.Format.BINARY, EmitterArchive.Format.forName("region.bin.gz"));
+        assertEquals(EmitterArchive.Format.BINARY, EmitterArchive.Format.forName("region"));
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws Exception {
+        assertUnreadable(new byte[0]);
+        assertUnreadable("rfType,rfID,trust\n".getBytes("UTF-8"));
+        assertUnreadable(gzip(""));
+        assertUnreadable(gzip("rfType,rfID,trust,latitude,longitude,radius\n"));
+        assertUnreadable(gzip("just some text\n"));
+
+        // Binary archive of a later version
+        byte[] binary = gunzipBytes(write(EmitterArchive.Format.BINARY, 1));
+        binary[7]++;
+        assertUnreadable(gzip(binary));
+    }
+
+    @Test
+    public void rejectsTruncatedArchives() throws Exception {
+        for (EmitterArchive.Format format : EmitterArchive.Format.values()) {
+            byte[] whole = write(format, 50);
+
+            // The compressed stream cut short
+            assertDamaged(Arrays.copyOf(whole, whole.length / 2));
+            assertDamaged(Arrays.copyOf(whole, whole.length - 4));
+
+            // A whole compressed stream whose content stops within a record
+            byte[] content = gunzipBytes(whole);
+            int end = content.length - 5;
+            if (format == EmitterArchive.Format.CSV) {
+                // The CSV must end inside a record, not after a whole number of fields.
+                while (content[end] != ',')
+                    end--;
+            }
+            assertDamaged(gzip(Arrays.copyOf(content, end)));
+        }
+    }
+
+    @Test
+    public void rejectsCorruptCsv() throws Exception {
+        assertDamaged(gzip(HEADER + "WLAN,aa,1,1.0,2.0,3.0,\"unterminated\n"));
+        assertDamaged(gzip(HEADER + "WLAN,aa,1,1.0,2.0,3.0\n"));
+        assertDamaged(gzip(HEADER + "WLAN,aa,1,1.0,2.0,3.0,x,extra\n"));
+        assertDamaged(gzip(HEADER + "BLUETOOTH,aa,1,1.0,2.0,3.0,x\n"));
+        assertDamaged(gzip(HEADER + "WLAN,aa,high,1.0,2.0,3.0,x\n"));
+        assertDamaged(gzip(HEADER + "WLAN,aa,1,north,2.0,3.0,x\n"));
+    }
+
+    @Test
+    public void rejectsCorruptBinary() throws Exception {
+        byte[] content = gunzipBytes(write(EmitterArchive.Format.BINARY, 2));
+        content[8] = 99;                    // emitter type of the first record
+        assertDamaged(gzip(content));
+    }
+
+    @Test
+    public void cancel() throws Exception {
+        EmitterArchive.Reader in = reader(write(EmitterArchive.Format.BINARY, 10));
+        assertTrue(in.next());
+        in.cancel();
+        try {
+            in.next();
+            fail("Expected an InterruptedIOException");
+        } catch (InterruptedIOException e) {
+            assertEquals(1, in.getCount());
+        }
+        in.close();
+    }
+
+    private static void roundTrip(EmitterArchive.Format format) throws IOException {
+        int count = 1000;
+        EmitterArchive.Reader in = reader(write(format, count));
+        assertEquals(format, in.getFormat());
+        for (int i = 0; i < count; i++) {
+            assertTrue(in.next());
+            assertEquals(ident(i), in.getIdent());
+            EmitterStore.EmitterInfo expected = info(i);
+            EmitterStore.EmitterInfo actual = in.getInfo();
+            assertEquals(expected.latitude, actual.latitude, 0.0);
+            assertEquals(expected.longitude, actual.longitude, 0.0);
+            assertEquals(expected.radius, actual.radius, 0.0f);
+            assertEquals(expected.trust, actual.trust);
+            assertEquals(expected.note, actual.note);
+        }
+        assertFalse(in.next());
+        assertEquals(count, in.getCount());
+        in.close();
+    }
+
+    private static RfIdentification ident(int i) {
+        if (i % 3 == 0)
+            return new RfIdentification("310/260/" + i + "/" + (i * 7), MOBILE);
+        if (i % 17 == 0)
+            return new RfIdentification("we,ird\"id" + i, WLAN);
+        return new RfIdentification(String.format("%012x", i * 0x10001L), WLAN);
+    }
+
+    /**
+     * Values that do not round to a short decimal, so exact comparison checks that
+     * nothing is lost on the way.
+     */
+    private static EmitterStore.EmitterInfo info(int i) {
+        return info(i * 0.170001 - 85.0, 180.0 - i * 0.3600007, 10.0f + i / 3.0f, i % 101 - 5,
+                SSIDS[i % SSIDS.length]);
+    }
+
+    private static EmitterStore.EmitterInfo info(double lat, double lon, float radius, long trust, String note) {
+        EmitterStore.EmitterInfo rslt = new EmitterStore.EmitterInfo();
+        rslt.latitude = lat;
+        rslt.longitude = lon;
+        rslt.radius = radius;
+        rslt.trust = trust;
+        rslt.note = note;
+        return rslt;
+    }
+
+    private static byte[] write(EmitterArchive.Format format, int count) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        EmitterArchive.Writer out = new EmitterArchive.Writer(bytes, format);
+        for (int i = 0; i < count; i++)
+            out.write(ident(i), info(i));
+        assertEquals(count, out.getCount());
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static EmitterArchive.Reader reader(byte[] archive) throws IOException {
+        return new EmitterArchive.Reader(new ByteArrayInputStream(archive));
+    }
+
+    /**
+     * Check that an archive can not be opened.
+     */
+    private static void assertUnreadable(byte[] archive) {
+        try {
+            reader(archive).close();
+            fail("Expected the archive to be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    /**
+     * Check that reading an archive fails, either when opened or at a record.
+     */
+    private static void assertDamaged(byte[] archive) {
+        try {
+            EmitterArchive.Reader in = reader(archive);
+            try {
+                while (in.next()) {
+                    assertNotNull(in.getIdent());
+                }
+            } finally {
+                in.close();
+            }
+            fail("Expected the archive to be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static byte[] gzip(String text) throws IOException {
+        return gzip(text.getBytes("UTF-8"));
+    }
+
+    private static byte[] gzip(byte[] content) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        GZIPOutputStream out = new GZIPOutputStream(bytes);
+        out.write(content);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static byte[] gunzipBytes(byte[] archive) throws IOException {
+        GZIPInputStream in = new GZIPInputStream(new ByteArrayInputStream(archive));
+        try {
+            ByteArrayOutputStream rslt = new ByteArrayOutputStream();
+            byte[] buffer = new byte[4096];
+            int n;
+            while ((n = in.read(buffer)) > 0)
+                rslt.write(buffer, 0, n);
+            return rslt.toByteArray();
+        } finally {
+            in.close();
+        }
+    }
+
+    private static String gunzip(byte[] archive) throws IOException {
+        return new String(gunzipBytes(archive), "UTF-8");
+    }
+}
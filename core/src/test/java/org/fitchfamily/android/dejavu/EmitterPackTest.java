@@ -0,0 +1,427 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes emitter packs and reads them back: lookup by identification, by tile and
+ * by area, rejection of files that are not whole packs and reporting of damaged
+ * ones.
+ */
+public class EmitterPackTest {
+    private static final RfEmitter.EmitterType WLAN = RfEmitter.EmitterType.WLAN;
+    private static final RfEmitter.EmitterType MOBILE = RfEmitter.EmitterType.MOBILE;
+    private static final double TOLERANCE = 1.0e-7;                 // degrees, packs store 1e-7
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void lookupByIdentification() throws Exception {
+        EmitterPack pack = write(sample());
+        assertEquals(5, pack.size());
+
+        RfEmitter e = pack.getEmitter(new RfIdentification("00:11:22:33:44:55", WLAN));
+        assertNotNull(e);
+        assertTrue(e.isPacked());
+        assertEquals(37.7749, e.getLat(), TOLERANCE);
+        assertEquals(-122.4194, e.getLon(), TOLERANCE);
+        assertEquals(55.0, e.getRadius(), 0.0);
+        assertEquals(30, e.getTrust());
+        assertEquals("Coffee Shop", e.getNote());
+
+        RfEmitter sydney = pack.getEmitter(new RfIdentification("505/1/4321/99", MOBILE));
+        assertNotNull(sydney);
+        assertEquals(-33.8601, sydney.getLat(), TOLERANCE);
+        assertEquals(151.2101, sydney.getLon(), TOLERANCE);
+        assertEquals("", sydney.getNote());
+
+        assertNull(pack.getEmitter(new RfIdentification("00:11:22:33:44:56", WLAN)));
+        // Same ID, other type
+        assertNull(pack.getEmitter(new RfIdentification("00:11:22:33:44:55", MOBILE)));
+    }
+
+    @Test
+    public void laterAddReplacesEarlier() throws Exception {
+        EmitterPack.Builder builder = new EmitterPack.Builder();
+        builder.add(new RfIdentification("aa", WLAN), info(1.0, 2.0, 100.0f, 10, "old"));
+        builder.add(new RfIdentification("aa", WLAN), info(1.5, 2.5, 200.0f, 20, "new"));
+        builder.add(new RfIdentification("aa", MOBILE), info(3.0, 4.0, 300.0f, 30, ""));
+        assertEquals(2, builder.size());
+        EmitterPack pack = write(builder);
+
+        RfEmitter e = pack.getEmitter(new RfIdentification("aa", WLAN));
+        assertEquals(1.5, e.getLat(), TOLERANCE);
+        assertEquals("new", e.getNote());
+        assertEquals(3.0, pack.getEmitter(new RfIdentification("aa", MOBILE)).getLat(), TOLERANCE);
+    }
+
+    @Test
+    public void loadTile() throws Exception {
+        EmitterPack pack = write(sample());
+
+        List<RfEmitter> tile = pack.loadTile(GeoTile.key(37.7749, -122.4194));
+        Set<String> ids = new HashSet<String>();
+        for (RfEmitter e : tile) {
+            assertTrue(e.isPacked());
+            ids.add(e.getRfIdent().toString());
+        }
+        assertEquals(3, ids.size());
+        assertTrue(ids.contains(new RfIdentification("00:11:22:33:44:55", WLAN).toString()));
+        assertTrue(ids.contains(new RfIdentification("00:11:22:33:44:66", WLAN).toString()));
+        assertTrue(ids.contains(new RfIdentification("310/260/1/2", MOBILE).toString()));
+
+        assertEquals(1, pack.loadTile(GeoTile.key(-33.8601, 151.2101)).size());
+        assertTrue(pack.loadTile(GeoTile.key(0.0, 0.0)).isEmpty());
+        // Next tile along the same row
+        assertTrue(pack.loadTile(GeoTile.key(37.7749, -122.4094)).isEmpty());
+    }
+
+    @Test
+    public void getEmittersInArea() throws Exception {
+        EmitterPack pack = write(sample());
+
+        // Covers both San Francisco tiles, so the area spans more than one tile.
+        BoundingBox bb = area(37.77, -122.43, 37.78, -122.41);
+        Set<RfIdentification> wlan = new HashSet<RfIdentification>();
+        pack.getEmitters(WLAN, bb, wlan);
+        assertEquals(3, wlan.size());
+        assertTrue(wlan.contains(new RfIdentification("00:11:22:33:44:77", WLAN)));
+
+        Set<RfIdentification> mobile = new HashSet<RfIdentification>();
+        pack.getEmitters(MOBILE, bb, mobile);
+        assertEquals(1, mobile.size());
+        assertTrue(mobile.contains(new RfIdentification("310/260/1/2", MOBILE)));
+
+        // In the tile but outside the box
+        Set<RfIdentification> narrow = new HashSet<RfIdentification>();
+        pack.getEmitters(WLAN, area(37.7748, -122.4195, 37.7750, -122.4193), narrow);
+        assertEquals(1, narrow.size());
+
+        Set<RfIdentification> south = new HashSet<RfIdentification>();
+        pack.getEmitters(MOBILE, area(-33.87, 151.20, -33.85, 151.22), south);
+        assertEquals(1, south.size());
+
+        Set<RfIdentification> none = new HashSet<RfIdentification>();
+        pack.getEmitters(WLAN, area(10.0, 10.0, 10.1, 10.1), none);
+        assertTrue(none.isEmpty());
+    }
+
+    @Test
+    public void emptyPack() throws Exception {
+        EmitterPack pack = write(new EmitterPack.Builder());
+        assertEquals(0, pack.size());
+        assertNull(pack.getEmitter(new RfIdentification("00:11:22:33:44:55", WLAN)));
+        assertTrue(pack.loadTile(GeoTile.key(37.7749, -122.4194)).isEmpty());
+        Set<RfIdentification> rslt = new HashSet<RfIdentification>();
+        pack.getEmitters(WLAN, area(-90.0, -180.0, 90.0, 180.0), rslt);
+        assertTrue(rslt.isEmpty());
+    }
+
+    /**
+     * Real 64 bit hash collisions are too rare to find, so give every key index
+     * entry the hash of one emitter and check that looking it up still finds its
+     * own record among the others.
+     */
+    @Test
+    public void hashCollisions() throws Exception {
+        EmitterPack.Builder builder = new EmitterPack.Builder();
+        builder.add(new RfIdentification("ab", WLAN), info(1.0, 1.0, 10.0f, 10, "first"));
+        builder.add(new RfIdentification("ab", MOBILE), info(2.0, 2.0, 20.0f, 20, "second"));
+        builder.add(new RfIdentification("abc", WLAN), info(3.0, 3.0, 30.0f, 30, "third"));
+        builder.add(new RfIdentification("ba", WLAN), info(4.0, 4.0, 40.0f, 40, "fourth"));
+        File file = new File(folder.getRoot(), "collide.pack");
+        builder.write(file);
+
+        Charset utf8 = Charset.forName("UTF-8");
+        long hash = EmitterPack.hash(WLAN.ordinal(), "ab".getBytes(utf8));
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.seek(20);
+            int keyIndex = raf.readInt();
+            int entries = (int) ((raf.length() - keyIndex) / 12);
+            assertEquals(4, entries);
+            // Put the wanted record last, the others must be passed over.
+            int[] offsets = new int[entries];
+            for (int i = 0; i < entries; i++) {
+                raf.seek(keyIndex + i * 12 + 8);
+                offsets[i] = raf.readInt();
+            }
+            int wanted = -1;
+            for (int i = 0; i < entries; i++) {
+                raf.seek(offsets[i]);
+                if ((raf.readByte() == WLAN.ordinal()) && recordId(raf, offsets[i]).equals("ab"))
+                    wanted = i;
+            }
+            assertTrue(wanted >= 0);
+            int last = offsets[entries - 1];
+            offsets[entries - 1] = offsets[wanted];
+            offsets[wanted] = last;
+            for (int i = 0; i < entries; i++) {
+                raf.seek(keyIndex + i * 12);
+                raf.writeLong(hash);
+                raf.writeInt(offsets[i]);
+            }
+        } finally {
+            raf.close();
+        }
+
+        EmitterPack pack = EmitterPack.open(file);
+        RfEmitter e = pack.getEmitter(new RfIdentification("ab", WLAN));
+        assertNotNull(e);
+        assertEquals("first", e.getNote());
+        assertEquals(1.0, e.getLat(), TOLERANCE);
+        // Its hash is no longer in the index
+        assertNull(pack.getEmitter(new RfIdentification("ba", WLAN)));
+    }
+
+    @Test
+    public void rejectsOverlongValues() {
+        EmitterPack.Builder builder = new EmitterPack.Builder();
+        StringBuilder ssid = new StringBuilder();
+        for (int i = 0; i < 256; i++)
+            ssid.append('x');
+        try {
+            builder.add(new RfIdentification("00:11:22:33:44:55", WLAN), info(1.0, 1.0, 1.0f, 1, ssid.toString()));
+            fail("Expected an IllegalArgumentException");
+        } catch (IllegalArgumentException e) {
+            assertEquals(0, builder.size());
+        }
+    }
+
+    @Test
+    public void rejectsTruncatedPack() throws Exception {
+        File file = new File(folder.getRoot(), "whole.pack");
+        sample().write(file);
+        byte[] bytes = readAll(file);
+        for (int length : new int[] {0, 4, 23, 24, bytes.length / 2, bytes.length - 1}) {
+            File truncated = folder.newFile("truncated-" + length + ".pack");
+            writeAll(truncated, bytes, length);
+            assertRejected(truncated);
+        }
+    }
+
+    @Test
+    public void rejectsCorruptHeader() throws Exception {
+        File file = new File(folder.getRoot(), "whole.pack");
+        sample().write(file);
+        byte[] bytes = readAll(file);
+
+        // Magic, version, emitter count, tile count, tile index, key index
+        for (int field = 0; field < 6; field++) {
+            byte[] corrupt = bytes.clone();
+            corrupt[field * 4] ^= 0x40;
+            File bad = folder.newFile("corrupt-" + field + ".pack");
+            writeAll(bad, corrupt, corrupt.length);
+            assertRejected(bad);
+        }
+
+        File archive = folder.newFile("archive.bin.gz");
+        EmitterArchive.Writer out = new EmitterArchive.Writer(new FileOutputStream(archive),
+                EmitterArchive.Format.BINARY);
+        out.close();
+        assertRejected(archive);
+    }
+
+    /**
+     * Our other files (place index, emitter archive, scan trace, snapshot) have magic
+     * numbers of their own, a pack header with one of them is not a pack.
+     */
+    @Test
+    public void rejectsOtherMagic() throws Exception {
+        File file = new File(folder.getRoot(), "whole.pack");
+        sample().write(file);
+        byte[] bytes = readAll(file);
+        for (String other : new String[] {"DjVP", "DjVE", "DjVT", "DjVu"}) {
+            byte[] magic = other.getBytes("US-ASCII");
+            System.arraycopy(magic, 0, bytes, 0, magic.length);
+            File bad = folder.newFile(other + ".pack");
+            writeAll(bad, bytes, bytes.length);
+            assertRejected(bad);
+        }
+    }
+
+    /**
+     * Record offsets in the key index that are outside the records are reported as
+     * a corrupt pack when they are followed.
+     */
+    @Test
+    public void corruptKeyIndexOffsets() throws Exception {
+        File file = new File(folder.getRoot(), "whole.pack");
+        sample().write(file);
+        byte[] bytes = readAll(file);
+        int tileIndex = intAt(bytes, 16);
+        int keyIndex = intAt(bytes, 20);
+
+        for (int offset : new int[] {0, 23, tileIndex - 1, tileIndex, bytes.length, Integer.MAX_VALUE, -1}) {
+            byte[] corrupt = bytes.clone();
+            for (int entry = keyIndex; entry < corrupt.length; entry += 12)
+                putInt(corrupt, entry + 8, offset);
+            File bad = folder.newFile("offset-" + offset + ".pack");
+            writeAll(bad, corrupt, corrupt.length);
+            EmitterPack pack = EmitterPack.open(bad);
+            try {
+                pack.getEmitter(new RfIdentification("00:11:22:33:44:55", WLAN));
+                fail("Followed record offset " + offset);
+            } catch (IOException e) {
+                // Expected
+            }
+        }
+    }
+
+    /**
+     * Whatever byte after the header is damaged, reading the pack either works or
+     * reports a corrupt pack, it never reads outside the file.
+     */
+    @Test
+    public void corruptBodyReportedAsIOException() throws Exception {
+        File file = new File(folder.getRoot(), "whole.pack");
+        sample().write(file);
+        byte[] bytes = readAll(file);
+
+        int detected = 0;
+        for (int offset = 24; offset < bytes.length; offset++) {
+            for (int value : new int[] {0x00, 0x7f, 0xff}) {
+                byte[] corrupt = bytes.clone();
+                if (corrupt[offset] == (byte) value)
+                    continue;
+                corrupt[offset] = (byte) value;
+                File bad = folder.newFile("body-" + offset + "-" + value + ".pack");
+                writeAll(bad, corrupt, corrupt.length);
+                EmitterPack pack = EmitterPack.open(bad);
+                try {
+                    readEverything(pack);
+                } catch (IOException e) {
+                    detected++;
+                }
+            }
+        }
+        assertTrue(detected > 0);
+    }
+
+    private static EmitterPack.Builder sample() {
+        EmitterPack.Builder rslt = new EmitterPack.Builder();
+        // Two San Francisco tiles, one in Sydney
+        rslt.add(new RfIdentification("00:11:22:33:44:55", WLAN), info(37.7749, -122.4194, 55.0f, 30, "Coffee Shop"));
+        rslt.add(new RfIdentification("00:11:22:33:44:66", WLAN), info(37.7745, -122.4199, 40.0f, 25, "a,b"));
+        rslt.add(new RfIdentification("310/260/1/2", MOBILE), info(37.7741, -122.4191, 2000.0f, 50, ""));
+        rslt.add(new RfIdentification("00:11:22:33:44:77", WLAN), info(37.7751, -122.4251, 60.0f, 20, null));
+        rslt.add(new RfIdentification("505/1/4321/99", MOBILE), info(-33.8601, 151.2101, 1500.0f, 40, null));
+        return rslt;
+    }
+
+    private static EmitterStore.EmitterInfo info(double lat, double lon, float radius, long trust, String note) {
+        EmitterStore.EmitterInfo rslt = new EmitterStore.EmitterInfo();
+        rslt.latitude = lat;
+        rslt.longitude = lon;
+        rslt.radius = radius;
+        rslt.trust = trust;
+        rslt.note = note;
+        return rslt;
+    }
+
+    private static BoundingBox area(double south, double west, double north, double east) {
+        BoundingBox rslt = new BoundingBox();
+        rslt.update(south, west);
+        rslt.update(north, east);
+        return rslt;
+    }
+
+    private EmitterPack write(EmitterPack.Builder builder) throws IOException {
+        File file = new File(folder.getRoot(), "emitters.pack");
+        builder.write(file);
+        return EmitterPack.open(file);
+    }
+
+    private static void readEverything(EmitterPack pack) throws IOException {
+        for (String id : new String[] {"00:11:22:33:44:55", "00:11:22:33:44:66", "00:11:22:33:44:77"})
+            pack.getEmitter(new RfIdentification(id, WLAN));
+        for (String id : new String[] {"310/260/1/2", "505/1/4321/99"})
+            pack.getEmitter(new RfIdentification(id, MOBILE));
+        pack.loadTile(GeoTile.key(37.7749, -122.4194));
+        pack.loadTile(GeoTile.key(37.7751, -122.4251));
+        pack.loadTile(GeoTile.key(-33.8601, 151.2101));
+        BoundingBox world = area(-90.0, -180.0, 90.0, 180.0);
+        pack.getEmitters(WLAN, world, new HashSet<RfIdentification>());
+        pack.getEmitters(MOBILE, world, new HashSet<RfIdentification>());
+    }
+
+    private static int intAt(byte[] bytes, int offset) {
+        return ((bytes[offset] & 0xff) << 24) | ((bytes[offset + 1] & 0xff) << 16) |
+                ((bytes[offset + 2] & 0xff) << 8) | (bytes[offset + 3] & 0xff);
+    }
+
+    private static void putInt(byte[] bytes, int offset, int value) {
+        bytes[offset] = (byte) (value >>> 24);
+        bytes[offset + 1] = (byte) (value >>> 16);
+        bytes[offset + 2] = (byte) (value >>> 8);
+        bytes[offset + 3] = (byte) value;
+    }
+
+    private static String recordId(RandomAccessFile raf, int record) throws IOException {
+        raf.seek(record + 15);
+        byte[] id = new byte[raf.readUnsignedByte()];
+        raf.readFully(id);
+        return new String(id, "UTF-8");
+    }
+
+    private static void assertRejected(File file) {
+        try {
+            EmitterPack.open(file);
+            fail("Expected " + file.getName() + " to be rejected");
+        } catch (IOException e) {
+            // Expected
+        }
+    }
+
+    private static byte[] readAll(File file) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        try {
+            byte[] rslt = new byte[(int) raf.length()];
+            raf.readFully(rslt);
+            return rslt;
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void writeAll(File file, byte[] bytes, int length) throws IOException {
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(bytes, 0, length);
+        } finally {
+            out.close();
+        }
+    }
+}
@@ -0,0 +1,204 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Slot allocation and the open addressing hash of the emitter table: probe chains
+ * of emitters whose keys land in the same bucket, removal from the middle of a
+ * chain (including one that wraps around the end of the hash) and growth.
+ */
+public class EmitterTableTest {
+    private static final RfEmitter.EmitterType WLAN = RfEmitter.EmitterType.WLAN;
+    private static final int CAPACITY = 4;                          // hash of 8 buckets
+
+    @Test
+    public void findAllocated() {
+        EmitterTable table = new EmitterTable(CAPACITY);
+        RfEmitter a = add(table, "00:00:00:00:00:01");
+        RfEmitter b = add(table, "00:00:00:00:00:02");
+        assertEquals(2, table.size());
+        assertSame(a, table.find(WLAN, "00:00:00:00:00:01"));
+        assertSame(b, table.find(WLAN, "00:00:00:00:00:02"));
+        assertNull(table.find(WLAN, "00:00:00:00:00:03"));
+        assertNull(table.find(RfEmitter.EmitterType.MOBILE, "00:00:00:00:00:01"));
+    }
+
+    @Test
+    public void probeChain() {
+        EmitterTable table = new EmitterTable(CAPACITY);
+        List<String> ids = idsInBucket(3, 3);
+        List<RfEmitter> emitters = new ArrayList<RfEmitter>();
+        for (String id : ids)
+            emitters.add(add(table, id));
+        for (int i = 0; i < ids.size(); i++)
+            assertSame(emitters.get(i), table.find(WLAN, ids.get(i)));
+
+        // Removing the head of the chain must leave the others reachable
+        remove(emitters.get(0));
+        assertNull(table.find(WLAN, ids.get(0)));
+        assertSame(emitters.get(1), table.find(WLAN, ids.get(1)));
+        assertSame(emitters.get(2), table.find(WLAN, ids.get(2)));
+
+        // As must removing from the middle
+        remove(emitters.get(1));
+        assertNull(table.find(WLAN, ids.get(1)));
+        assertSame(emitters.get(2), table.find(WLAN, ids.get(2)));
+        assertEquals(1, table.size());
+    }
+
+    @Test
+    public void removeWrapsAround() {
+        EmitterTable table = new EmitterTable(CAPACITY);
+        int last = EmitterTable.hashSize(CAPACITY) - 1;
+
+        // Two emitters in the last bucket take it and bucket 0, one whose home is
+        // bucket 0 is then pushed to bucket 1.
+        List<String> ids = idsInBucket(last, 2);
+        ids.add(idsInBucket(0, 1).get(0));
+        List<RfEmitter> emitters = new ArrayList<RfEmitter>();
+        for (String id : ids)
+            emitters.add(add(table, id));
+
+        // Freeing the last bucket must shift the others back across the wrap
+        remove(emitters.get(0));
+        assertNull(table.find(WLAN, ids.get(0)));
+        assertSame(emitters.get(1), table.find(WLAN, ids.get(1)));
+        assertSame(emitters.get(2), table.find(WLAN, ids.get(2)));
+
+        // The emitter at home in bucket 0 must not be moved ahead of it
+        remove(emitters.get(1));
+        assertSame(emitters.get(2), table.find(WLAN, ids.get(2)));
+    }
+
+    @Test
+    public void freeSlotsReused() {
+        EmitterTable table = new EmitterTable(CAPACITY);
+        RfEmitter a = add(table, "00:00:00:00:00:01");
+        add(table, "00:00:00:00:00:02");
+        int slot = a.getSlot();
+        remove(a);
+        assertNull(table.owner[slot]);
+        assertEquals(1, table.size());
+
+        RfEmitter c = add(table, "00:00:00:00:00:03");
+        assertEquals(slot, c.getSlot());
+        assertEquals(2, table.limit());
+    }
+
+    @Test
+    public void valuesMoveWithEmitter() {
+        EmitterTable table = new EmitterTable(CAPACITY);
+        RfEmitter e = new RfEmitter(WLAN, "00:00:00:00:00:01", 0);
+        EmitterStore.EmitterInfo info = new EmitterStore.EmitterInfo();
+        info.latitude = 48.137;
+        info.longitude = 11.575;
+        info.radius = 55.0f;
+        info.trust = 42;
+        info.note = "Coffee Shop";
+        e.updateInfo(info);
+        e.moveTo(table);
+        assertSame(table, e.getTable());
+        assertEquals(48.137, e.getLat(), 0.0);
+        assertEquals(55.0, e.getRadius(), 0.0);
+        assertEquals(42, e.getTrust());
+        assertEquals("Coffee Shop", e.getNote());
+
+        remove(e);
+        assertNotSame(table, e.getTable());
+        assertEquals(11.575, e.getLon(), 0.0);
+        assertEquals(42, e.getTrust());
+        assertEquals(0, table.size());
+    }
+
+    @Test
+    public void grows() {
+        EmitterTable table = new EmitterTable(1);
+        List<RfEmitter> emitters = new ArrayList<RfEmitter>();
+        for (int i = 0; i < 1000; i++)
+            emitters.add(add(table, id(i)));
+        assertEquals(1000, table.size());
+        for (int i = 0; i < 1000; i++)
+            assertSame(emitters.get(i), table.find(WLAN, id(i)));
+    }
+
+    @Test
+    public void randomAddsAndRemovesMatchMap() {
+        // Few distinct IDs in a table that stays small so chains are long and
+        // removals often land in the middle of them.
+        EmitterTable table = new EmitterTable(CAPACITY);
+        Map<String,RfEmitter> expected = new HashMap<String,RfEmitter>();
+        Random random = new Random(42);
+        for (int op = 0; op < 20000; op++) {
+            String id = id(random.nextInt(12));
+            RfEmitter current = expected.get(id);
+            if (current == null) {
+                expected.put(id, add(table, id));
+            } else {
+                remove(current);
+                expected.remove(id);
+            }
+            assertEquals(expected.size(), table.size());
+            for (int i = 0; i < 12; i++)
+                assertSame(expected.get(id(i)), table.find(WLAN, id(i)));
+        }
+    }
+
+    private static RfEmitter add(EmitterTable table, String id) {
+        RfEmitter e = new RfEmitter(WLAN, id, 0);
+        e.moveTo(table);
+        return e;
+    }
+
+    /**
+     * Take an emitter out of its table the way the cache does.
+     */
+    private static void remove(RfEmitter e) {
+        e.moveTo(new EmitterTable(1));
+    }
+
+    private static String id(int i) {
+        return String.format(Locale.US, "02:00:00:%02x:%02x:%02x", (i >> 16) & 0xff, (i >> 8) & 0xff, i & 0xff);
+    }
+
+    /**
+     * @return IDs whose keys hash to a bucket of a table of CAPACITY slots
+     */
+    private static List<String> idsInBucket(int bucket, int count) {
+        int mask = EmitterTable.hashSize(CAPACITY) - 1;
+        List<String> rslt = new ArrayList<String>();
+        for (int i = 0; rslt.size() < count; i++) {
+            String id = id(i);
+            if ((EmitterTable.mix(EmitterTable.key(WLAN, id)) & mask) == bucket)
+                rslt.add(id);
+        }
+        return rslt;
+    }
+}
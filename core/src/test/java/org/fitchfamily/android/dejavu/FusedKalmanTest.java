@@ -0,0 +1,370 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutput;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The fused filter against the three one dimensional filters (one per axis) it
+ * replaced, batch against single updates, and saving and restoring its state.
+ */
+public class FusedKalmanTest {
+    private static final double COORDINATE_NOISE = 3.0;             // meters, as for GPS
+    private static final double ALTITUDE_NOISE = 10.0;              // meters
+    private static final int FIXES = 300;
+    private static final int ALTITUDE_FROM = 20;                    // first fix with an altitude
+
+    /**
+     * A drive north east at about 15 m/s, fixes about once a second with some
+     * closer together than the filter's time step and some gaps.
+     */
+    private static class Drive {
+        final double[] lat = new double[FIXES];
+        final double[] lon = new double[FIXES];
+        final double[] alt = new double[FIXES];
+        final double[] acc = new double[FIXES];
+        final long[] time = new long[FIXES];
+
+        Drive(long seed) {
+            Random random = new Random(seed);
+            double north = 0.0;
+            double east = 0.0;
+            long t = 1500000000000L;
+            for (int i = 0; i < FIXES; i++) {
+                lat[i] = 48.137 + Geodesy.latDegrees(north + random.nextGaussian() * 5.0);
+                lon[i] = 11.575 + Geodesy.lonDegrees(east + random.nextGaussian() * 5.0, Geodesy.cosLat(48.137));
+                alt[i] = (i < ALTITUDE_FROM) ? Double.NaN : 520.0 + random.nextGaussian() * 8.0;
+                acc[i] = 3.0 + random.nextDouble() * 27.0;
+                time[i] = t;
+
+                long step = (i % 37 == 36) ? 5000 : ((i % 11 == 10) ? 100 : 900 + random.nextInt(200));
+                t += step;
+                north += 10.0 * step / 1000.0;
+                east += 11.0 * step / 1000.0;
+            }
+        }
+    }
+
+    @Test
+    public void sameAsOneFilterPerAxis() throws Exception {
+        Drive drive = new Drive(42);
+        FusedKalman fused = new FusedKalman(drive.lat[0], drive.lon[0], drive.acc[0], drive.time[0], COORDINATE_NOISE);
+
+        double coordinateNoise = COORDINATE_NOISE * Constants.METER_TO_DEG;
+        ReferenceAxis latAxis = new ReferenceAxis(coordinateNoise, drive.time[0]);
+        latAxis.setState(drive.lat[0], 0.0, Geodesy.latDegrees(drive.acc[0]));
+        ReferenceAxis lonAxis = new ReferenceAxis(coordinateNoise, drive.time[0]);
+        lonAxis.setState(drive.lon[0], 0.0, Geodesy.lonDegrees(drive.acc[0], Geodesy.cosLat(drive.lat[0])));
+        ReferenceAxis altAxis = null;
+
+        double[] out = new double[FusedKalman.OUTPUT_SIZE];
+        for (int i = 1; i < FIXES; i++) {
+            fused.update(drive.lat[i], drive.lon[i], drive.alt[i], drive.acc[i], drive.time[i]);
+
+            long t = drive.time[i];
+            latAxis.predict(t);
+            lonAxis.predict(t);
+            if (altAxis != null)
+                altAxis.predict(t);
+            latAxis.update(drive.lat[i], Geodesy.latDegrees(drive.acc[i]));
+            lonAxis.update(drive.lon[i], Geodesy.lonDegrees(drive.acc[i], Geodesy.cosLat(drive.lat[i])));
+            if (!Double.isNaN(drive.alt[i])) {
+                if (altAxis == null) {
+                    altAxis = new ReferenceAxis(ALTITUDE_NOISE, t);
+                    altAxis.setState(drive.alt[i], 0.0, drive.acc[i]);
+                } else {
+                    altAxis.update(drive.alt[i], drive.acc[i]);
+                }
+            }
+
+            // The whole state, as saved, is the same bit for bit
+            ByteArrayOutputStream expected = new ByteArrayOutputStream();
+            DataOutputStream data = new DataOutputStream(expected);
+            latAxis.writeState(data);
+            lonAxis.writeState(data);
+            data.writeBoolean(altAxis != null);
+            if (altAxis != null)
+                altAxis.writeState(data);
+            data.writeFloat(0.0f);                              // bearing, no output yet
+            data.writeLong(t);
+            data.writeLong(i + 1);
+            assertArrayEquals("fix " + i, expected.toByteArray(), save(fused));
+        }
+
+        // And so is what it reports
+        long later = drive.time[FIXES - 1] + 2000;
+        latAxis.predict(later);
+        lonAxis.predict(later);
+        altAxis.predict(later);
+        fused.output(later, out);
+        assertEquals(latAxis.getPosition(), out[FusedKalman.OUT_LATITUDE], 0.0);
+        assertEquals(lonAxis.getPosition(), out[FusedKalman.OUT_LONGITUDE], 0.0);
+        assertEquals(altAxis.getPosition(), out[FusedKalman.OUT_ALTITUDE], 0.0);
+        assertEquals(Math.max(latAxis.getAccuracy() * Constants.DEG_TO_METER, 3.0), out[FusedKalman.OUT_ACCURACY], 0.0);
+        double north = latAxis.getVelocity() * Constants.DEG_TO_METER;
+        double east = lonAxis.getVelocity() * Constants.DEG_TO_METER * Geodesy.cosLat(out[FusedKalman.OUT_LATITUDE]);
+        assertEquals(Math.sqrt(north * north + east * east), out[FusedKalman.OUT_SPEED], 1.0e-9);
+        assertEquals(later, (long) out[FusedKalman.OUT_TIME]);
+    }
+
+    @Test
+    public void batchSameAsSingleUpdates() {
+        Drive drive = new Drive(7);
+        FusedKalman single = new FusedKalman(drive.lat[0], drive.lon[0], drive.acc[0], drive.time[0], COORDINATE_NOISE);
+        FusedKalman batched = single.copy();
+
+        for (int i = 1; i < FIXES; i++)
+            single.update(drive.lat[i], drive.lon[i], drive.alt[i], drive.acc[i], drive.time[i]);
+
+        // Batches of up to five fixes, as the GPS ingest applies them
+        int batch = 5;
+        double[] lats = new double[batch];
+        double[] lons = new double[batch];
+        double[] alts = new double[batch];
+        double[] acc = new double[batch];
+        long[] times = new long[batch];
+        for (int first = 1; first < FIXES; first += batch) {
+            int n = Math.min(batch, FIXES - first);
+            System.arraycopy(drive.lat, first, lats, 0, n);
+            System.arraycopy(drive.lon, first, lons, 0, n);
+            System.arraycopy(drive.alt, first, alts, 0, n);
+            System.arraycopy(drive.acc, first, acc, 0, n);
+            System.arraycopy(drive.time, first, times, 0, n);
+            batched.update(lats, lons, alts, acc, times, n);
+        }
+        assertEquals(single.getSamples(), batched.getSamples());
+        assertEquals(single.getTimeOfUpdate(), batched.getTimeOfUpdate());
+
+        // A batch uses the cosine of its first latitude for the longitude noise,
+        // over a few seconds of travel that makes no real difference.
+        long later = drive.time[FIXES - 1] + 1000;
+        double[] expected = new double[FusedKalman.OUTPUT_SIZE];
+        double[] actual = new double[FusedKalman.OUTPUT_SIZE];
+        single.output(later, expected);
+        batched.output(later, actual);
+        assertEquals(expected[FusedKalman.OUT_LATITUDE], actual[FusedKalman.OUT_LATITUDE], 0.0);
+        assertEquals(expected[FusedKalman.OUT_ALTITUDE], actual[FusedKalman.OUT_ALTITUDE], 0.0);
+        assertEquals(0.0, Geodesy.lonMeters(expected[FusedKalman.OUT_LONGITUDE] - actual[FusedKalman.OUT_LONGITUDE],
+                Geodesy.cosLat(expected[FusedKalman.OUT_LATITUDE])), 0.001);
+        assertEquals(expected[FusedKalman.OUT_ACCURACY], actual[FusedKalman.OUT_ACCURACY], 0.0);
+        assertEquals(expected[FusedKalman.OUT_SPEED], actual[FusedKalman.OUT_SPEED], 0.001);
+        assertEquals(expected[FusedKalman.OUT_BEARING], actual[FusedKalman.OUT_BEARING], 0.01);
+    }
+
+    @Test
+    public void batchAtOneLatitudeIdentical() {
+        // With the same latitude throughout the cosine is the same for every fix,
+        // so a batch without altitudes gives exactly what single updates do.
+        Drive drive = new Drive(11);
+        int n = FIXES - 1;
+        double[] lats = new double[n];
+        double[] lons = new double[n];
+        double[] acc = new double[n];
+        long[] times = new long[n];
+        Arrays.fill(lats, drive.lat[0]);
+        System.arraycopy(drive.lon, 1, lons, 0, n);
+        System.arraycopy(drive.acc, 1, acc, 0, n);
+        System.arraycopy(drive.time, 1, times, 0, n);
+
+        FusedKalman single = new FusedKalman(drive.lat[0], drive.lon[0], drive.acc[0], drive.time[0], COORDINATE_NOISE);
+        FusedKalman batched = single.copy();
+        for (int i = 0; i < n; i++)
+            single.update(lats[i], lons[i], Double.NaN, acc[i], times[i]);
+        batched.update(lats, lons, acc, times);
+
+        double[] expected = new double[FusedKalman.OUTPUT_SIZE];
+        double[] actual = new double[FusedKalman.OUTPUT_SIZE];
+        long later = times[n - 1] + 1000;
+        single.output(later, expected);
+        batched.output(later, actual);
+        assertArrayEquals(expected, actual, 0.0);
+        assertTrue(Double.isNaN(actual[FusedKalman.OUT_ALTITUDE]));
+    }
+
+    @Test
+    public void saveAndRestore() throws Exception {
+        Drive drive = new Drive(3);
+        FusedKalman filter = new FusedKalman(drive.lat[0], drive.lon[0], drive.acc[0], drive.time[0], COORDINATE_NOISE);
+        for (int i = 1; i < FIXES; i++)
+            filter.update(drive.lat[i], drive.lon[i], drive.alt[i], drive.acc[i], drive.time[i]);
+        double[] out = new double[FusedKalman.OUTPUT_SIZE];
+        filter.output(drive.time[FIXES - 1], out);                 // sets the bearing
+        filter.setSamples(17);
+
+        byte[] saved = save(filter);
+        FusedKalman restored = restore(saved);
+        assertArrayEquals(saved, save(restored));
+        assertEquals(filter.getTimeOfUpdate(), restored.getTimeOfUpdate());
+        assertEquals(17, restored.getSamples());
+
+        // Both carry on the same way
+        long t = drive.time[FIXES - 1];
+        for (int i = 0; i < 10; i++) {
+            t += 1000;
+            filter.update(48.2, 11.6, 530.0, 10.0, t);
+            restored.update(48.2, 11.6, 530.0, 10.0, t);
+        }
+        double[] expected = new double[FusedKalman.OUTPUT_SIZE];
+        double[] actual = new double[FusedKalman.OUTPUT_SIZE];
+        filter.output(t + 3000, expected);
+        restored.output(t + 3000, actual);
+        assertArrayEquals(expected, actual, 0.0);
+    }
+
+    @Test
+    public void saveAndRestoreWithoutAltitude() throws Exception {
+        FusedKalman filter = new FusedKalman(48.137, 11.575, 12.0, 1500000000000L, COORDINATE_NOISE);
+        filter.update(48.1371, 11.5752, Double.NaN, 8.0, 1500000001000L);
+        FusedKalman restored = restore(save(filter));
+        assertArrayEquals(save(filter), save(restored));
+        double[] out = new double[FusedKalman.OUTPUT_SIZE];
+        restored.output(1500000002000L, out);
+        assertTrue(Double.isNaN(out[FusedKalman.OUT_ALTITUDE]));
+    }
+
+    private static byte[] save(FusedKalman filter) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        DataOutputStream out = new DataOutputStream(bytes);
+        filter.writeState(out);
+        out.close();
+        return bytes.toByteArray();
+    }
+
+    private static FusedKalman restore(byte[] saved) throws IOException {
+        DataInputStream in = new DataInputStream(new ByteArrayInputStream(saved));
+        FusedKalman rslt = FusedKalman.readState(in);
+        assertEquals(0, in.available());
+        return rslt;
+    }
+
+    /**
+     * The one dimensional constant velocity filter we used to have one of for
+     * each axis, as it was before the axes were fused (without its unused
+     * acceleration input).
+     */
+    private static class ReferenceAxis {
+        private static final long TIME_STEP_MS = 150;
+
+        private final double processNoise;
+        private long predTime;
+        private final double mt;
+        private final double mt2;
+        private final double mt3d2;
+        private final double mt4d4;
+        private final double qa;
+        private final double qb;
+        private final double qd;
+        private double xa;
+        private double xb;
+        private double pa;
+        private double pb;
+        private double pc;
+        private double pd;
+
+        ReferenceAxis(double noise, long timeMs) {
+            processNoise = noise;
+            predTime = timeMs;
+            mt = TIME_STEP_MS / 1000.0;
+            mt2 = mt * mt;
+            mt3d2 = mt2 * mt / 2.0;
+            mt4d4 = mt2 * mt2 / 4.0;
+            double n2 = noise * noise;
+            qa = n2 * mt4d4;
+            qb = n2 * mt3d2;
+            qd = n2 * mt2;
+        }
+
+        void setState(double position, double velocity, double noise) {
+            xa = position;
+            xb = velocity;
+            double n2 = noise * noise;
+            pa = n2 * mt4d4;
+            pb = n2 * mt3d2;
+            pc = pb;
+            pd = n2 * mt2;
+        }
+
+        void predict(long timeMs) {
+            while (timeMs - predTime > TIME_STEP_MS) {
+                predTime += TIME_STEP_MS;
+                xa = xa + xb * mt;
+                double pdt = pd * mt;
+                double fpftb = pb + pdt;
+                double fpfta = pa + mt * (pc + fpftb);
+                double fpftc = pc + pdt;
+                pa = fpfta + qa;
+                pb = fpftb + qb;
+                pc = fpftc + qb;
+                pd = pd + qd;
+            }
+        }
+
+        void update(double position, double noise) {
+            double y = position - xa;
+            double si = 1.0 / (pa + noise * noise);
+            double ka = pa * si;
+            double kb = pc * si;
+            xa = xa + ka * y;
+            xb = xb + kb * y;
+            double npa = pa - ka * pa;
+            double npb = pb - ka * pb;
+            double npc = pc - kb * pa;
+            double npd = pd - kb * pb;
+            pa = npa;
+            pb = npb;
+            pc = npc;
+            pd = npd;
+        }
+
+        void writeState(DataOutput out) throws IOException {
+            out.writeDouble(processNoise);
+            out.writeLong(predTime);
+            out.writeDouble(xa);
+            out.writeDouble(xb);
+            out.writeDouble(pa);
+            out.writeDouble(pb);
+            out.writeDouble(pc);
+            out.writeDouble(pd);
+        }
+
+        double getPosition() {
+            return xa;
+        }
+
+        double getVelocity() {
+            return xb;
+        }
+
+        double getAccuracy() {
+            return Math.sqrt(pd / mt2);
+        }
+    }
+}
@@ -0,0 +1,217 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Test;
+
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * The conversions between meters and degrees, and the error bounds the Geodesy
+ * class documentation states for its distances, checked on random point pairs
+ * against each other and against the WGS84 ellipsoid (Vincenty).
+ */
+public class GeodesyTest {
+    private static final int PAIRS = 20000;
+
+    @Test
+    public void latitudeRoundTrip() {
+        for (double meters : new double[] {0.0, 1.0, 150.0, 2500.0, 1.0e5, -730.0})
+            assertEquals(meters, Geodesy.latMeters(Geodesy.latDegrees(meters)), 1.0e-9);
+        assertEquals(Constants.DEG_TO_METER, Geodesy.latMeters(1.0), 0.0);
+    }
+
+    @Test
+    public void longitudeRoundTrip() {
+        for (double lat = -89.0; lat <= 89.0; lat += 0.5) {
+            double cosLat = Geodesy.cosLat(lat);
+            for (double meters : new double[] {0.0, 1.0, 150.0, 2500.0, 1.0e5, -730.0}) {
+                assertEquals(meters, Geodesy.lonMeters(Geodesy.lonDegrees(meters, cosLat), cosLat), 1.0e-9);
+                double degrees = meters / Constants.DEG_TO_METER;
+                assertEquals(degrees, Geodesy.lonDegrees(Geodesy.lonMeters(degrees, cosLat), cosLat), 1.0e-12);
+            }
+        }
+        // A degree of longitude at 60 degrees is half a degree of latitude
+        assertEquals(Constants.DEG_TO_METER / 2.0, Geodesy.lonMeters(1.0, Geodesy.cosLat(60.0)), 1.0e-6);
+        // Safe to divide by at the poles
+        assertTrue(Geodesy.cosLat(90.0) >= Constants.MIN_COS);
+        assertFalse(Double.isInfinite(Geodesy.lonDegrees(100.0, Geodesy.cosLat(-90.0))));
+    }
+
+    @Test
+    public void equirectangularAlongAxes() {
+        double cosLat = Geodesy.cosLat(48.0);
+        assertEquals(Constants.DEG_TO_METER, Geodesy.equirectangular(48.0, 11.0, 49.0, 11.0, cosLat), 1.0e-6);
+        assertEquals(Constants.DEG_TO_METER * cosLat,
+                Geodesy.equirectangular(48.0, 11.0, 48.0, 12.0, cosLat), 1.0e-6);
+        assertEquals(0.0, Geodesy.equirectangular(48.0, 11.0, 48.0, 11.0), 0.0);
+        assertEquals(Geodesy.equirectangular(48.0, 11.0, 48.1, 11.2),
+                Geodesy.equirectangular(48.1, 11.2, 48.0, 11.0), 1.0e-9);
+    }
+
+    @Test
+    public void acrossAntimeridian() {
+        double expected = 0.2 * Constants.DEG_TO_METER;
+        assertEquals(expected, Geodesy.equirectangular(0.0, 179.9, 0.0, -179.9), 1.0e-6);
+        assertEquals(expected, Geodesy.equirectangular(0.0, -179.9, 0.0, 179.9), 1.0e-6);
+        assertEquals(expected, Geodesy.haversine(0.0, 179.9, 0.0, -179.9), 1.0e-3);
+    }
+
+    @Test
+    public void haversineAgainstEllipsoid() {
+        assertTrue(maxError(HAVERSINE, VINCENTY, 89.0, 100000.0) < 0.006);
+    }
+
+    @Test
+    public void equirectangularAgainstEllipsoid() {
+        assertTrue(maxError(EQUIRECTANGULAR, VINCENTY, 80.0, 100000.0) < 0.006);
+        assertTrue(maxError(EQUIRECTANGULAR, VINCENTY, 89.0, 100000.0) < 0.027);
+    }
+
+    @Test
+    public void equirectangularAgainstHaversine() {
+        assertTrue(maxError(EQUIRECTANGULAR, HAVERSINE, 80.0, 100000.0) < 0.0004);
+        assertTrue(maxError(EQUIRECTANGULAR, HAVERSINE, 80.0, 10000.0) < 0.00001);
+    }
+
+    @Test
+    public void distanceMatrix() {
+        double[] lat = {48.137, 48.138, 48.140, 48.131};
+        double[] lon = {11.575, 11.577, 11.571, 11.580};
+        double cosLat = Geodesy.cosLat(48.137);
+        float[] rslt = new float[16];
+        Geodesy.distanceMatrix(lat, lon, 4, cosLat, rslt);
+        for (int i = 0; i < 4; i++) {
+            assertEquals(0.0f, rslt[i * 4 + i], 0.0f);
+            for (int j = 0; j < 4; j++) {
+                assertEquals(rslt[i * 4 + j], rslt[j * 4 + i], 0.0f);
+                assertEquals(Geodesy.equirectangular(lat[i], lon[i], lat[j], lon[j], cosLat), rslt[i * 4 + j], 1.0e-3);
+            }
+        }
+    }
+
+    private interface Distance {
+        double distance(double lat1, double lon1, double lat2, double lon2);
+    }
+
+    private static final Distance HAVERSINE = new Distance() {
+        @Override
+        public double distance(double lat1, double lon1, double lat2, double lon2) {
+            return Geodesy.haversine(lat1, lon1, lat2, lon2);
+        }
+    };
+
+    private static final Distance EQUIRECTANGULAR = new Distance() {
+        @Override
+        public double distance(double lat1, double lon1, double lat2, double lon2) {
+            return Geodesy.equirectangular(lat1, lon1, lat2, lon2);
+        }
+    };
+
+    private static final Distance VINCENTY = new Distance() {
+        @Override
+        public double distance(double lat1, double lon1, double lat2, double lon2) {
+            return vincenty(lat1, lon1, lat2, lon2);
+        }
+    };
+
+    /**
+     * @return The largest relative error of a distance against a reference, for
+     * random pairs of points within maxLat of the equator and up to maxDistance
+     * meters apart.
+     */
+    private static double maxError(Distance distance, Distance reference, double maxLat, double maxDistance) {
+        Random random = new Random(42);
+        double rslt = 0.0;
+        int pairs = 0;
+        while (pairs < PAIRS) {
+            double lat1 = (random.nextDouble() * 2.0 - 1.0) * maxLat;
+            double lon1 = random.nextDouble() * 360.0 - 180.0;
+            double meters = 1.0 + random.nextDouble() * (maxDistance - 1.0);
+            double bearing = random.nextDouble() * 2.0 * Math.PI;
+            double lat2 = lat1 + Geodesy.latDegrees(meters * Math.cos(bearing));
+            if (Math.abs(lat2) > maxLat)
+                continue;
+            double lon2 = lon1 + Geodesy.lonDegrees(meters * Math.sin(bearing), Math.cos(Math.toRadians(lat1)));
+            if (lon2 > 180.0)
+                lon2 -= 360.0;
+            else if (lon2 < -180.0)
+                lon2 += 360.0;
+
+            double expected = reference.distance(lat1, lon1, lat2, lon2);
+            double error = Math.abs(distance.distance(lat1, lon1, lat2, lon2) - expected) / expected;
+            rslt = Math.max(rslt, error);
+            pairs++;
+        }
+        return rslt;
+    }
+
+    /**
+     * Distance on the WGS84 ellipsoid, Vincenty's inverse formula.
+     */
+    private static double vincenty(double lat1, double lon1, double lat2, double lon2) {
+        double a = 6378137.0;
+        double f = 1.0 / 298.257223563;
+        double b = a * (1.0 - f);
+        double l = Math.toRadians(lon2 - lon1);
+        double u1 = Math.atan((1.0 - f) * Math.tan(Math.toRadians(lat1)));
+        double u2 = Math.atan((1.0 - f) * Math.tan(Math.toRadians(lat2)));
+        double sinU1 = Math.sin(u1);
+        double cosU1 = Math.cos(u1);
+        double sinU2 = Math.sin(u2);
+        double cosU2 = Math.cos(u2);
+
+        double lambda = l;
+        double previous;
+        double sinSigma;
+        double cosSigma;
+        double sigma;
+        double cosSqAlpha;
+        double cos2SigmaM;
+        int iterations = 0;
+        do {
+            double sinLambda = Math.sin(lambda);
+            double cosLambda = Math.cos(lambda);
+            double x = cosU2 * sinLambda;
+            double y = cosU1 * sinU2 - sinU1 * cosU2 * cosLambda;
+            sinSigma = Math.sqrt(x * x + y * y);
+            if (sinSigma == 0.0)
+                return 0.0;
+            cosSigma = sinU1 * sinU2 + cosU1 * cosU2 * cosLambda;
+            sigma = Math.atan2(sinSigma, cosSigma);
+            double sinAlpha = cosU1 * cosU2 * sinLambda / sinSigma;
+            cosSqAlpha = 1.0 - sinAlpha * sinAlpha;
+            cos2SigmaM = (cosSqAlpha != 0.0) ? cosSigma - 2.0 * sinU1 * sinU2 / cosSqAlpha : 0.0;
+            double c = f / 16.0 * cosSqAlpha * (4.0 + f * (4.0 - 3.0 * cosSqAlpha));
+            previous = lambda;
+            lambda = l + (1.0 - c) * f * sinAlpha * (sigma + c * sinSigma *
+                    (cos2SigmaM + c * cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM)));
+        } while ((Math.abs(lambda - previous) > 1.0e-12) && (++iterations < 200));
+
+        double uSq = cosSqAlpha * (a * a - b * b) / (b * b);
+        double bigA = 1.0 + uSq / 16384.0 * (4096.0 + uSq * (-768.0 + uSq * (320.0 - 175.0 * uSq)));
+        double bigB = uSq / 1024.0 * (256.0 + uSq * (-128.0 + uSq * (74.0 - 47.0 * uSq)));
+        double deltaSigma = bigB * sinSigma * (cos2SigmaM + bigB / 4.0 * (cosSigma * (-1.0 + 2.0 * cos2SigmaM * cos2SigmaM) -
+                bigB / 6.0 * cos2SigmaM * (-3.0 + 4.0 * sinSigma * sinSigma) * (-3.0 + 4.0 * cos2SigmaM * cos2SigmaM)));
+        return b * bigA * (sigma - deltaSigma);
+    }
+}
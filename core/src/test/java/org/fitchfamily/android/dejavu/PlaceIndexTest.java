@@ -0,0 +1,238 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+
+import static org.junit.Assert.*;
+
+/**
+ * Signatures, matching scans to places, learning and replacing places, least
+ * recently used eviction and saving and loading the index.
+ */
+public class PlaceIndexTest {
+    private static final double LAT = 48.137;
+    private static final double LON = 11.575;
+    private static final double METER = 1.0 / 111320.0;             // degrees of latitude
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void signatureOfStrongestEmitters() {
+        assertNull(PlaceIndex.signature(scan(0, PlaceIndex.MIN_FINGERPRINT - 1)));
+        assertNotNull(PlaceIndex.signature(scan(0, PlaceIndex.MIN_FINGERPRINT)));
+
+        // The same emitters give the same signature in any order
+        List<Observation> reversed = scan(0, 8);
+        Collections.reverse(reversed);
+        assertArrayEquals(PlaceIndex.signature(scan(0, 8)), PlaceIndex.signature(reversed));
+
+        // Weaker emitters beyond the strongest FINGERPRINT_SIZE are left out
+        List<Observation> more = scan(0, PlaceIndex.FINGERPRINT_SIZE);
+        more.addAll(weak(1000, 5));
+        assertArrayEquals(PlaceIndex.signature(scan(0, PlaceIndex.FINGERPRINT_SIZE)), PlaceIndex.signature(more));
+
+        assertFalse(Arrays.equals(PlaceIndex.signature(scan(0, 8)), PlaceIndex.signature(scan(100, 8))));
+    }
+
+    @Test
+    public void lookupMatchesSameEmitters() {
+        PlaceIndex index = new PlaceIndex();
+        index.learn(PlaceIndex.signature(scan(0, 10)), LAT, LON, 20.0f);
+        index.learn(PlaceIndex.signature(scan(100, 10)), LAT + 1000 * METER, LON, 30.0f);
+        assertEquals(2, index.size());
+
+        List<Observation> again = scan(0, 10);
+        again.addAll(weak(1000, 3));
+        PlaceIndex.Place place = index.lookup(PlaceIndex.signature(again));
+        assertNotNull(place);
+        assertEquals(LAT, place.latitude, 0.0);
+        assertEquals(20.0f, place.accuracy, 0.0f);
+
+        place = index.lookup(PlaceIndex.signature(scan(100, 10)));
+        assertNotNull(place);
+        assertEquals(30.0f, place.accuracy, 0.0f);
+
+        assertNull(index.lookup(PlaceIndex.signature(scan(200, 10))));
+        assertNull(index.lookup(null));
+    }
+
+    @Test
+    public void lookupMatchesMostlySameEmitters() {
+        // One of ten emitters changed, a Jaccard similarity of 9/11. Only the
+        // estimate from the signature is compared, so check over many places
+        // that most are matched.
+        int matched = 0;
+        for (int i = 0; i < 50; i++) {
+            PlaceIndex index = new PlaceIndex();
+            index.learn(PlaceIndex.signature(scan(i * 100, 10)), LAT, LON, 20.0f);
+            List<Observation> changed = scan(i * 100, 9);
+            changed.add(observation(i * 100 + 50, 20));
+            if (index.lookup(PlaceIndex.signature(changed)) != null)
+                matched++;
+        }
+        assertTrue("matched " + matched, matched >= 25);
+    }
+
+    @Test
+    public void learnIgnoresVaguePositions() {
+        PlaceIndex index = new PlaceIndex();
+        index.learn(PlaceIndex.signature(scan(0, 10)), LAT, LON, 500.0f);
+        index.learn(null, LAT, LON, 20.0f);
+        assertEquals(0, index.size());
+    }
+
+    @Test
+    public void learnKeepsMoreAccuratePosition() {
+        PlaceIndex index = new PlaceIndex();
+        int[] signature = PlaceIndex.signature(scan(0, 10));
+        index.learn(signature, LAT, LON, 50.0f);
+
+        // More accurate and in agreement: replaces the position
+        index.learn(signature, LAT + 10 * METER, LON, 20.0f);
+        PlaceIndex.Place place = index.lookup(signature);
+        assertEquals(LAT + 10 * METER, place.latitude, 1.0e-12);
+        assertEquals(20.0f, place.accuracy, 0.0f);
+
+        // Less accurate and in agreement: kept as it was
+        index.learn(signature, LAT + 40 * METER, LON, 80.0f);
+        place = index.lookup(signature);
+        assertEquals(LAT + 10 * METER, place.latitude, 1.0e-12);
+        assertEquals(20.0f, place.accuracy, 0.0f);
+        assertEquals(1, index.size());
+    }
+
+    @Test
+    public void placeReplacedOnDisagreement() {
+        PlaceIndex index = new PlaceIndex();
+        int[] signature = PlaceIndex.signature(scan(0, 10));
+        index.learn(signature, LAT, LON, 10.0f);
+        PlaceIndex.Place old = index.lookup(signature);
+
+        // Far further away than either accuracy, even though less accurate
+        index.learn(signature, LAT + 1000 * METER, LON, 50.0f);
+        assertEquals(1, index.size());
+        PlaceIndex.Place place = index.lookup(signature);
+        assertNotSame(old, place);
+        assertEquals(LAT + 1000 * METER, place.latitude, 1.0e-12);
+        assertEquals(50.0f, place.accuracy, 0.0f);
+    }
+
+    @Test
+    public void leastRecentlyUsedEvicted() {
+        PlaceIndex index = new PlaceIndex();
+        fill(index);
+        // Using the first place makes the second the least recently used
+        assertNotNull(index.lookup(placeSignature(0)));
+
+        index.learn(placeSignature(PlaceIndex.MAX_PLACES), LAT, LON, 20.0f);
+        assertEquals(PlaceIndex.MAX_PLACES, index.size());
+        assertNotNull(index.lookup(placeSignature(0)));
+        assertNull(index.lookup(placeSignature(1)));
+        assertNotNull(index.lookup(placeSignature(2)));
+        assertNotNull(index.lookup(placeSignature(PlaceIndex.MAX_PLACES)));
+    }
+
+    @Test
+    public void saveAndLoad() {
+        PlaceIndex index = new PlaceIndex();
+        fill(index);
+        assertNotNull(index.lookup(placeSignature(0)));
+        index.save(folder.getRoot());
+
+        PlaceIndex loaded = PlaceIndex.load(folder.getRoot());
+        assertEquals(PlaceIndex.MAX_PLACES, loaded.size());
+        for (int i = 0; i < PlaceIndex.MAX_PLACES; i++) {
+            PlaceIndex.Place place = loaded.lookup(placeSignature(i));
+            assertNotNull(place);
+            assertEquals(LAT + i * 100 * METER, place.latitude, 0.0);
+            assertEquals(LON, place.longitude, 0.0);
+            assertEquals(10.0f + i, place.accuracy, 0.0f);
+        }
+
+        // The order of use is kept: the loaded index evicts as the saved one would
+        PlaceIndex reloaded = PlaceIndex.load(folder.getRoot());
+        reloaded.learn(placeSignature(PlaceIndex.MAX_PLACES), LAT, LON, 20.0f);
+        assertNotNull(reloaded.lookup(placeSignature(0)));
+        assertNull(reloaded.lookup(placeSignature(1)));
+    }
+
+    @Test
+    public void loadWithoutIndex() throws Exception {
+        assertEquals(0, PlaceIndex.load(folder.getRoot()).size());
+
+        File dir = folder.newFolder("other");
+        FileOutputStream out = new FileOutputStream(new File(dir, "places.bin"));
+        out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9, 10, 11, 12});
+        out.close();
+        assertEquals(0, PlaceIndex.load(dir).size());
+    }
+
+    /**
+     * Learn MAX_PLACES places, place i 100 meters north of place i - 1.
+     */
+    private static void fill(PlaceIndex index) {
+        for (int i = 0; i < PlaceIndex.MAX_PLACES; i++)
+            index.learn(placeSignature(i), LAT + i * 100 * METER, LON, 10.0f + i);
+        assertEquals(PlaceIndex.MAX_PLACES, index.size());
+    }
+
+    private static int[] placeSignature(int place) {
+        return PlaceIndex.signature(scan(place * 100, 10));
+    }
+
+    /**
+     * @return Observations of count emitters, the first the strongest.
+     */
+    private static List<Observation> scan(int first, int count) {
+        List<Observation> rslt = new ArrayList<Observation>();
+        for (int i = 0; i < count; i++)
+            rslt.add(observation(first + i, 30 - i));
+        return rslt;
+    }
+
+    /**
+     * @return Observations of count emitters weaker than those of scan().
+     */
+    private static List<Observation> weak(int first, int count) {
+        List<Observation> rslt = new ArrayList<Observation>();
+        for (int i = 0; i < count; i++)
+            rslt.add(observation(first + i, 1));
+        return rslt;
+    }
+
+    private static Observation observation(int emitter, int asu) {
+        Observation rslt = new Observation(String.format(Locale.US, "02:00:00:00:%02x:%02x",
+                (emitter >> 8) & 0xff, emitter & 0xff), RfEmitter.EmitterType.WLAN);
+        rslt.setAsu(asu);
+        return rslt;
+    }
+}
@@ -0,0 +1,203 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+/**
+ * Writes scan traces and reads them back, including traces whose recording was
+ * cut short.
+ */
+public class ScanTraceTest {
+    private static final RfEmitter.EmitterType WLAN = RfEmitter.EmitterType.WLAN;
+    private static final RfEmitter.EmitterType MOBILE = RfEmitter.EmitterType.MOBILE;
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void roundTrip() throws Exception {
+        File file = folder.newFile("trace.bin");
+        List<WorkItem> scans = sample();
+        ScanTrace.Writer writer = new ScanTrace.Writer(file);
+        for (WorkItem scan : scans)
+            writer.write(scan);
+        writer.close();
+        assertEquals(scans.size(), writer.getCount());
+
+        List<WorkItem> read = readAll(file);
+        assertEquals(scans.size(), read.size());
+        for (int i = 0; i < scans.size(); i++)
+            assertScanEquals(scans.get(i), read.get(i));
+    }
+
+    @Test
+    public void recordsReadableBeforeClose() throws Exception {
+        File file = folder.newFile("open.bin");
+        List<WorkItem> scans = sample();
+        ScanTrace.Writer writer = new ScanTrace.Writer(file);
+        try {
+            assertEquals(0, readAll(file).size());
+            for (WorkItem scan : scans)
+                writer.write(scan);
+            List<WorkItem> read = readAll(file);
+            assertEquals(scans.size(), read.size());
+            assertScanEquals(scans.get(scans.size() - 1), read.get(scans.size() - 1));
+        } finally {
+            writer.close();
+        }
+    }
+
+    @Test
+    public void incompleteLastRecordSkipped() throws Exception {
+        File file = folder.newFile("trace.bin");
+        List<WorkItem> scans = sample();
+        ScanTrace.Writer writer = new ScanTrace.Writer(file);
+        for (WorkItem scan : scans)
+            writer.write(scan);
+        writer.close();
+
+        // The length of the trace without its last record
+        File shorter = folder.newFile("shorter.bin");
+        writer = new ScanTrace.Writer(shorter);
+        for (int i = 0; i < scans.size() - 1; i++)
+            writer.write(scans.get(i));
+        writer.close();
+        long complete = shorter.length();
+
+        for (long length = complete + 1; length < file.length(); length++) {
+            truncate(file, length);
+            List<WorkItem> read = readAll(file);
+            assertEquals("length " + length, scans.size() - 1, read.size());
+            assertScanEquals(scans.get(0), read.get(0));
+        }
+    }
+
+    @Test
+    public void rejectsOtherFiles() throws Exception {
+        File empty = folder.newFile("empty.bin");
+        File header = folder.newFile("header.bin");
+        FileOutputStream out = new FileOutputStream(header);
+        out.write(new byte[] {0x44, 0x6a, 0x56});
+        out.close();
+        File other = folder.newFile("other.bin");
+        out = new FileOutputStream(other);
+        out.write(new byte[] {1, 2, 3, 4, 5, 6, 7, 8, 9});
+        out.close();
+
+        for (File file : new File[] {empty, header, other}) {
+            try {
+                new ScanTrace.Reader(file).close();
+                fail("Read " + file.getName() + " as a trace");
+            } catch (IOException e) {
+                // expected
+            }
+        }
+    }
+
+    private static List<WorkItem> sample() {
+        List<WorkItem> rslt = new ArrayList<WorkItem>();
+
+        List<Observation> wlan = new ArrayList<Observation>();
+        wlan.add(observation("00:11:22:33:44:55", WLAN, 25, "Coffee Shop"));
+        wlan.add(observation("00:11:22:33:44:56", WLAN, 12, ""));
+        WorkItem scan = new WorkItem(wlan, WLAN, 1000000L);
+        scan.setGps(48.137, 11.575, 8.0f, 1.5f, 270.0f, 999000L);
+        rslt.add(scan);
+
+        List<Observation> mobile = new ArrayList<Observation>();
+        mobile.add(observation("262/1/4321/99", MOBILE, 20, ""));
+        rslt.add(new WorkItem(mobile, MOBILE, 1001200L));
+
+        List<Observation> more = new ArrayList<Observation>();
+        more.add(observation("00:11:22:33:44:57", WLAN, 30, "Network-ä"));
+        more.add(observation("00:11:22:33:44:55", WLAN, 22, "Coffee Shop"));
+        more.add(observation("00:11:22:33:44:58", WLAN, 5, ""));
+        scan = new WorkItem(more, WLAN, 1002400L);
+        scan.setGps(48.138, 11.576, 12.0f, 0.0f, 0.0f, 1002000L);
+        rslt.add(scan);
+        return rslt;
+    }
+
+    private static Observation observation(String id, RfEmitter.EmitterType type, int asu, String note) {
+        Observation rslt = new Observation(id, type);
+        rslt.setAsu(asu);
+        rslt.setNote(note);
+        return rslt;
+    }
+
+    private static List<WorkItem> readAll(File file) throws IOException {
+        List<WorkItem> rslt = new ArrayList<WorkItem>();
+        ScanTrace.Reader reader = new ScanTrace.Reader(file);
+        try {
+            WorkItem scan;
+            while ((scan = reader.read()) != null)
+                rslt.add(scan);
+        } finally {
+            reader.close();
+        }
+        return rslt;
+    }
+
+    private static void truncate(File file, long length) throws IOException {
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(length);
+        } finally {
+            raf.close();
+        }
+    }
+
+    private static void assertScanEquals(WorkItem expected, WorkItem actual) {
+        assertEquals(expected.time, actual.time);
+        assertEquals(expected.rfType, actual.rfType);
+        if (expected.gps == null) {
+            assertNull(actual.gps);
+        } else {
+            assertNotNull(actual.gps);
+            assertEquals(expected.gps.latitude, actual.gps.latitude, 0.0);
+            assertEquals(expected.gps.longitude, actual.gps.longitude, 0.0);
+            assertEquals(expected.gps.accuracy, actual.gps.accuracy, 0.0f);
+            assertEquals(expected.gps.timeMs, actual.gps.timeMs);
+            assertEquals(expected.gpsSpeed, actual.gpsSpeed, 0.0f);
+            assertEquals(expected.gpsBearing, actual.gpsBearing, 0.0f);
+        }
+        assertEquals(expected.observations.size(), actual.observations.size());
+        Iterator<Observation> it = actual.observations.iterator();
+        for (Observation o : expected.observations) {
+            Observation a = it.next();
+            assertEquals(o.getIdent(), a.getIdent());
+            assertEquals(o.getAsu(), a.getAsu());
+            assertEquals(o.getNote(), a.getNote());
+        }
+    }
+}
@@ -0,0 +1,330 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Builds an emitter database (rf.db) from the scan traces (see ScanTrace) of survey
+ * devices, so a new device starts out knowing the coverage of the emitters around
+ * it rather than having to learn it.
+ *
+ * The scans with a GPS position are partitioned by the GeoTile of that position.
+ * The tiles are learned in parallel, each on its own, by feeding its scans in time
+ * order through the same processing the backend uses (ScanProcessor, Cache and
+ * RfEmitter over an in-memory store), so coverage and trust follow exactly the
+ * rules used on the phone. An emitter seen from several tiles is learned in each
+ * and the results are merged as the tiles complete: the coverage boxes are combined
+ * and the highest trust is kept. Where the coverages are too far apart to be the
+ * same emitter (it has moved) the more trusted one is kept.
+ *
+ * Usage: DatabaseBuilder [-o rf.db] [-threads count] trace|directory...
+ *
+ * For a directory all the trace files in it are read.
+ */
+public class DatabaseBuilder {
+    private static final int COMMIT_EVERY = 100000;         // emitters per transaction when writing
+
+    private static final Comparator<WorkItem> BY_TIME = new Comparator<WorkItem>() {
+        @Override
+        public int compare(WorkItem a, WorkItem b) {
+            return (a.time < b.time) ? -1 : ((a.time == b.time) ? 0 : 1);
+        }
+    };
+
+    private final Map<Long,List<WorkItem>> tiles = new HashMap<Long,List<WorkItem>>();
+    private long scans;
+    private long located;
+    private final AtomicLong conflicts = new AtomicLong();
+
+    public static void main(String[] args) throws IOException {
+        File output = new File("rf.db");
+        int threads = Runtime.getRuntime().availableProcessors();
+        List<File> traces = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && (i + 1 < args.length))
+                output = new File(args[++i]);
+            else if (args[i].equals("-threads") && (i + 1 < args.length))
+                threads = Integer.parseInt(args[++i]);
+            else
+                traces.addAll(traceFiles(new File(args[i])));
+        }
+        if (traces.isEmpty()) {
+            System.err.println("Usage: DatabaseBuilder [-o rf.db] [-threads count] trace|directory...");
+            System.exit(1);
+        }
+
+        DatabaseBuilder builder = new DatabaseBuilder();
+        long startTime = System.nanoTime();
+        for (File trace : traces)
+            builder.read(trace);
+        long readTime = System.nanoTime();
+        System.out.println(String.format(Locale.US, "Read %,d scans (%,d with GPS) from %d traces in %.1f s",
+                builder.scans, builder.located, traces.size(), (readTime - startTime) / 1e9));
+
+        Map<RfIdentification, EmitterStore.EmitterInfo> emitters = builder.learn(threads);
+        long learnTime = System.nanoTime();
+        double seconds = (learnTime - readTime) / 1e9;
+        System.out.println(String.format(Locale.US,
+                "Learned %,d tiles on %d threads in %.1f s, %,d scans/s, %,d emitters (%,d moved)",
+                builder.tiles.size(), threads, seconds, (long) (builder.located / seconds),
+                emitters.size(), builder.conflicts.get()));
+
+        write(emitters, output);
+        System.out.println(String.format(Locale.US, "Wrote %s in %.1f s, %.1f MB; %,d scans/s overall",
+                output, (System.nanoTime() - learnTime) / 1e9, output.length() / 1e6,
+                (long) (builder.located / ((System.nanoTime() - startTime) / 1e9))));
+    }
+
+    /**
+     * @return The file itself or, for a directory, the trace files in it
+     */
+    private static List<File> traceFiles(File file) {
+        if (!file.isDirectory())
+            return Collections.singletonList(file);
+        List<File> rslt = new ArrayList<File>();
+        File[] files = file.listFiles();
+        if (files != null) {
+            Arrays.sort(files);
+            for (File f : files) {
+                if (f.isFile() && f.getName().startsWith(ScanTrace.FILE_PREFIX))
+                    rslt.add(f);
+            }
+        }
+        return rslt;
+    }
+
+    /**
+     * Read a trace, adding the scans with a GPS position to the tile of that position.
+     */
+    void read(File file) throws IOException {
+        ScanTrace.Reader reader = new ScanTrace.Reader(file);
+        try {
+            WorkItem work;
+            while ((work = reader.read()) != null) {
+                scans++;
+                if (work.gps == null)
+                    continue;
+                long tile = GeoTile.key(work.gps.latitude, work.gps.longitude);
+                List<WorkItem> partition = tiles.get(tile);
+                if (partition == null) {
+                    partition = new ArrayList<WorkItem>();
+                    tiles.put(tile, partition);
+                }
+                partition.add(work);
+                located++;
+            }
+        } finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Learn all the tiles and merge the results.
+     *
+     * @param threads The number of tiles learned at once
+     * @return What was learned about each emitter
+     */
+    Map<RfIdentification, EmitterStore.EmitterInfo> learn(int threads) {
+        List<List<WorkItem>> partitions = new ArrayList<List<WorkItem>>(tiles.values());
+        if (partitions.isEmpty())
+            return new HashMap<RfIdentification, EmitterStore.EmitterInfo>();
+        ForkJoinPool pool = new ForkJoinPool(threads);
+        try {
+            return pool.invoke(new LearnTask(partitions, 0, partitions.size(), conflicts));
+        } finally {
+            pool.shutdown();
+        }
+    }
+
+    /**
+     * Learns a range of tiles: one tile directly, more by splitting the range in two
+     * and merging what the halves learned.
+     *
+     * Static so a task does not hold on to the builder; ForkJoinTask is
+     * Serializable but tasks are never serialized.
+     */
+    private static class LearnTask extends RecursiveTask<Map<RfIdentification, EmitterStore.EmitterInfo>> {
+        private static final long serialVersionUID = 1L;
+
+        private final transient List<List<WorkItem>> partitions;
+        private final int from;
+        private final int to;
+        private final AtomicLong conflicts;
+
+        LearnTask(List<List<WorkItem>> partitions, int from, int to, AtomicLong conflicts) {
+            this.partitions = partitions;
+            this.from = from;
+            this.to = to;
+            this.conflicts = conflicts;
+        }
+
+        @Override
+        protected Map<RfIdentification, EmitterStore.EmitterInfo> compute() {
+            if (to - from == 1)
+                return learnTile(partitions.get(from));
+            int mid = (from + to) >>> 1;
+            LearnTask left = new LearnTask(partitions, from, mid, conflicts);
+            left.fork();
+            Map<RfIdentification, EmitterStore.EmitterInfo> right =
+                    new LearnTask(partitions, mid, to, conflicts).compute();
+            return merge(left.join(), right, conflicts);
+        }
+    }
+
+    /**
+     * Learn the emitters seen from one tile by processing its scans as the backend
+     * would have.
+     *
+     * @param scans The scans made in the tile
+     * @return What was learned about each emitter
+     */
+    static Map<RfIdentification, EmitterStore.EmitterInfo> learnTile(List<WorkItem> scans) {
+        Collections.sort(scans, BY_TIME);
+        MemoryEmitterStore store = new MemoryEmitterStore();
+        Cache cache = new Cache(store);
+        ScanProcessor processor = new ScanProcessor(null);
+        processor.setCache(cache);
+        for (WorkItem work : scans)
+            processor.process(work, work.time);
+
+        // An empty scan after the last one ends its reporting period, so the
+        // trust of the emitters seen in it is adjusted too.
+        WorkItem last = scans.get(scans.size() - 1);
+        processor.process(new WorkItem(Collections.<Observation>emptyList(), last.rfType,
+                last.time + ScanProcessor.REPORTING_INTERVAL), last.time + ScanProcessor.REPORTING_INTERVAL);
+        cache.close();
+        return new HashMap<RfIdentification, EmitterStore.EmitterInfo>(store.getContents());
+    }
+
+    /**
+     * Combine what was learned in two sets of tiles.
+     *
+     * @param conflicts Counts the emitters found to have moved
+     * @return The merged results, one of the arguments updated in place.
+     */
+    static Map<RfIdentification, EmitterStore.EmitterInfo> merge(Map<RfIdentification, EmitterStore.EmitterInfo> a,
+                                                                 Map<RfIdentification, EmitterStore.EmitterInfo> b,
+                                                                 AtomicLong conflicts) {
+        if (a.size() < b.size()) {
+            Map<RfIdentification, EmitterStore.EmitterInfo> t = a;
+            a = b;
+            b = t;
+        }
+        for (Map.Entry<RfIdentification, EmitterStore.EmitterInfo> entry : b.entrySet()) {
+            EmitterStore.EmitterInfo current = a.get(entry.getKey());
+            if (current == null)
+                a.put(entry.getKey(), entry.getValue());
+            else
+                combine(entry.getKey().getRfType(), current, entry.getValue(), conflicts);
+        }
+        return a;
+    }
+
+    /**
+     * Combine two partial views of an emitter the way RfEmitter.updateLocation()
+     * grows a coverage box.
+     *
+     * @param rfType The type of the emitter
+     * @param rslt One view, updated to the combination
+     * @param other The other view
+     * @param conflicts Counts the emitters found to have moved
+     */
+    private static void combine(RfEmitter.EmitterType rfType, EmitterStore.EmitterInfo rslt,
+                                EmitterStore.EmitterInfo other, AtomicLong conflicts) {
+        RfEmitter.RfCharacteristics rfChar = RfEmitter.getRfCharacteristics(rfType);
+        double cosLat = Geodesy.cosLat(rslt.latitude);
+        double distance = Geodesy.equirectangular(rslt.latitude, rslt.longitude,
+                other.latitude, other.longitude, cosLat);
+        if (distance >= rfChar.moveDetectDistance) {
+            conflicts.incrementAndGet();
+            if (other.trust > rslt.trust)
+                copy(other, rslt);
+            return;
+        }
+
+        double north = Math.max(rslt.latitude + Geodesy.latDegrees(rslt.radius),
+                other.latitude + Geodesy.latDegrees(other.radius));
+        double south = Math.min(rslt.latitude - Geodesy.latDegrees(rslt.radius),
+                other.latitude - Geodesy.latDegrees(other.radius));
+        double east = Math.max(rslt.longitude + Geodesy.lonDegrees(rslt.radius, cosLat),
+                other.longitude + Geodesy.lonDegrees(other.radius, cosLat));
+        double west = Math.min(rslt.longitude - Geodesy.lonDegrees(rslt.radius, cosLat),
+                other.longitude - Geodesy.lonDegrees(other.radius, cosLat));
+        rslt.latitude = (north + south) / 2.0;
+        rslt.longitude = (east + west) / 2.0;
+        float radius = (float) Geodesy.latMeters(north - rslt.latitude);
+        float ewRadius = (float) Geodesy.lonMeters(east - rslt.longitude, cosLat);
+        rslt.radius = Math.max(radius, ewRadius);
+        rslt.trust = Math.max(rslt.trust, other.trust);
+        if ((rslt.note == null) || rslt.note.isEmpty())
+            rslt.note = other.note;
+    }
+
+    private static void copy(EmitterStore.EmitterInfo from, EmitterStore.EmitterInfo to) {
+        to.latitude = from.latitude;
+        to.longitude = from.longitude;
+        to.radius = from.radius;
+        to.trust = from.trust;
+        to.note = from.note;
+    }
+
+    /**
+     * Write the emitters to a new database. It is built under a temporary name and
+     * renamed when complete, so an existing database is only replaced by a whole one.
+     */
+    static void write(Map<RfIdentification, EmitterStore.EmitterInfo> emitters, File output) throws IOException {
+        File tmp = new File(output.getPath() + ".tmp");
+        if (tmp.exists() && !tmp.delete())
+            throw new IOException("Unable to replace " + tmp);
+        SqliteEmitterStore store = new SqliteEmitterStore(tmp);
+        try {
+            int count = 0;
+            store.beginTransaction();
+            for (Map.Entry<RfIdentification, EmitterStore.EmitterInfo> entry : emitters.entrySet()) {
+                EmitterStore.EmitterInfo info = entry.getValue();
+                store.put(entry.getKey(), info.latitude, info.longitude, info.radius, info.trust, info.note);
+                if (++count % COMMIT_EVERY == 0) {
+                    store.endTransaction();
+                    store.beginTransaction();
+                }
+            }
+            store.endTransaction();
+        } finally {
+            store.close();
+        }
+        if (output.exists() && !output.delete())
+            throw new IOException("Unable to replace " + output);
+        if (!tmp.renameTo(output))
+            throw new IOException("Unable to rename " + tmp + " to " + output);
+    }
+}
@@ -0,0 +1,130 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Moves emitters in and out of an emitter database (rf.db) in bulk through the
+ * streaming archive format (see EmitterArchive).
+ *
+ * Usage: EmitterTransfer export [-format csv|binary] rf.db archive
+ *        EmitterTransfer import rf.db archive...
+ *
+ * Without -format the archive name decides, names ending in .csv.gz are CSV. An
+ * import creates the database if it does not exist and replaces the emitters it
+ * already has. Progress is reported every EmitterArchive.BATCH_SIZE emitters.
+ */
+public class EmitterTransfer {
+    private static final String USAGE = "Usage: EmitterTransfer export [-format csv|binary] rf.db archive\n" +
+            "       EmitterTransfer import rf.db archive...";
+
+    public static void main(String[] args) throws IOException {
+        if (args.length < 3)
+            usage();
+        if (args[0].equals("export")) {
+            EmitterArchive.Format format = null;
+            int i = 1;
+            if (args[i].equals("-format") && (i + 1 < args.length)) {
+                format = EmitterArchive.Format.valueOf(args[i + 1].toUpperCase(Locale.US));
+                i += 2;
+            }
+            if (args.length != i + 2)
+                usage();
+            File archive = new File(args[i + 1]);
+            if (format == null)
+                format = EmitterArchive.Format.forName(archive.getName());
+            export(new File(args[i]), archive, format);
+        } else if (args[0].equals("import")) {
+            SqliteEmitterStore store = new SqliteEmitterStore(new File(args[1]));
+            try {
+                for (int i = 2; i < args.length; i++)
+                    load(store, new File(args[i]));
+            } finally {
+                store.close();
+            }
+        } else {
+            usage();
+        }
+    }
+
+    private static void usage() {
+        System.err.println(USAGE);
+        System.exit(1);
+    }
+
+    private static void export(File database, File archive, EmitterArchive.Format format) throws IOException {
+        if (!database.isFile())
+            throw new IOException("No database " + database);
+        long startTime = System.nanoTime();
+        SqliteEmitterStore store = new SqliteEmitterStore(database);
+        try {
+            EmitterArchive.Writer out = new EmitterArchive.Writer(new FileOutputStream(archive), format);
+            try {
+                store.exportEmitters(out, new Reporter("Exported", startTime));
+            } finally {
+                out.close();
+            }
+            report("Exported", out.getCount(), startTime);
+        } finally {
+            store.close();
+        }
+        System.out.println(String.format(Locale.US, "Wrote %s, %.1f MB", archive, archive.length() / 1e6));
+    }
+
+    private static void load(SqliteEmitterStore store, File archive) throws IOException {
+        long startTime = System.nanoTime();
+        EmitterArchive.Reader in = new EmitterArchive.Reader(new FileInputStream(archive));
+        try {
+            store.importEmitters(in, new Reporter("Imported", startTime));
+        } finally {
+            in.close();
+        }
+        report("Imported", in.getCount(), startTime);
+        System.out.println(String.format(Locale.US, "Read %s (%s), %s is now %.1f MB",
+                archive, in.getFormat(), store.getFile(), store.getFile().length() / 1e6));
+    }
+
+    private static void report(String what, long count, long startTime) {
+        double seconds = (System.nanoTime() - startTime) / 1e9;
+        System.out.println(String.format(Locale.US, "%s %,d emitters in %.1f s, %,d emitters/s",
+                what, count, seconds, (long) (count / Math.max(seconds, 1e-9))));
+    }
+
+    private static class Reporter implements EmitterArchive.Progress {
+        private final String what;
+        private final long startTime;
+
+        Reporter(String what, long startTime) {
+            this.what = what;
+            this.startTime = startTime;
+        }
+
+        @Override
+        public void onProgress(long count) {
+            report(what, count, startTime);
+        }
+    }
+}
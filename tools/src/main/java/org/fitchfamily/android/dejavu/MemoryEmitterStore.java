@@ -0,0 +1,194 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * An emitter store held in memory, so the cache can be exercised without a
+ * database. Emitters are also indexed by GeoTile for the area queries.
+ */
+public class MemoryEmitterStore implements EmitterStore {
+    private final Map<RfIdentification,EmitterInfo> emitters = new HashMap<RfIdentification,EmitterInfo>();
+    private final Map<Long,List<RfIdentification>> tiles = new HashMap<Long,List<RfIdentification>>();
+
+    public int size() {
+        return emitters.size();
+    }
+
+    /**
+     * @return All the emitters in the store, by identification.
+     */
+    public Map<RfIdentification,EmitterInfo> getContents() {
+        return Collections.unmodifiableMap(emitters);
+    }
+
+    /**
+     * Add an emitter directly, without an RfEmitter object.
+     */
+    public void put(RfIdentification ident, double lat, double lon, float radius, long trust, String note) {
+        long tile = GeoTile.key(lat, lon);
+        EmitterInfo info = emitters.get(ident);
+        if (info == null) {
+            info = new EmitterInfo();
+            emitters.put(ident, info);
+            addToTile(tile, ident);
+        } else {
+            long oldTile = GeoTile.key(info.latitude, info.longitude);
+            if (oldTile != tile) {
+                tiles.get(oldTile).remove(ident);
+                addToTile(tile, ident);
+            }
+        }
+        info.latitude = lat;
+        info.longitude = lon;
+        info.radius = radius;
+        info.trust = trust;
+        info.note = (note == null) ? "" : note;
+    }
+
+    private void addToTile(long tile, RfIdentification ident) {
+        List<RfIdentification> members = tiles.get(tile);
+        if (members == null) {
+            members = new ArrayList<RfIdentification>();
+            tiles.put(tile, members);
+        }
+        members.add(ident);
+    }
+
+    @Override
+    public void warmUp(BoundingBox bb) {
+    }
+
+    @Override
+    public void beginTransaction() {
+    }
+
+    @Override
+    public void endTransaction() {
+    }
+
+    @Override
+    public void insert(RfEmitter emitter) {
+        update(emitter);
+    }
+
+    @Override
+    public void update(RfEmitter emitter) {
+        put(emitter.getRfIdent(), emitter.getLat(), emitter.getLon(),
+                (float) emitter.getRadius(), emitter.getTrust(), emitter.getNote());
+    }
+
+    @Override
+    public void updateNote(RfEmitter emitter) {
+        EmitterInfo info = emitters.get(emitter.getRfIdent());
+        if (info != null)
+            info.note = emitter.getNote();
+    }
+
+    @Override
+    public void drop(RfEmitter emitter) {
+        EmitterInfo info = emitters.remove(emitter.getRfIdent());
+        if (info != null)
+            tiles.get(GeoTile.key(info.latitude, info.longitude)).remove(emitter.getRfIdent());
+    }
+
+    @Override
+    public HashSet<RfIdentification> getEmitters(RfEmitter.EmitterType rfType, BoundingBox bb) {
+        HashSet<RfIdentification> rslt = new HashSet<RfIdentification>();
+        for (RfIdentification ident : inArea(bb)) {
+            if (ident.getRfType() == rfType)
+                rslt.add(ident);
+        }
+        return rslt;
+    }
+
+    @Override
+    public RfEmitter getEmitter(RfIdentification ident) {
+        EmitterInfo info = emitters.get(ident);
+        if (info == null)
+            return null;
+        RfEmitter rslt = new RfEmitter(ident, 0);
+        rslt.updateInfo(info);
+        return rslt;
+    }
+
+    @Override
+    public List<RfEmitter> loadEmitters(BoundingBox bb) {
+        List<RfEmitter> rslt = new ArrayList<RfEmitter>();
+        for (RfIdentification ident : inArea(bb))
+            rslt.add(getEmitter(ident));
+        return rslt;
+    }
+
+    @Override
+    public long exportEmitters(EmitterArchive.Writer out, EmitterArchive.Progress progress) throws IOException {
+        long rslt = 0;
+        for (Map.Entry<RfIdentification,EmitterInfo> entry : emitters.entrySet()) {
+            out.write(entry.getKey(), entry.getValue());
+            if ((++rslt % EmitterArchive.BATCH_SIZE == 0) && (progress != null))
+                progress.onProgress(rslt);
+        }
+        return rslt;
+    }
+
+    @Override
+    public long importEmitters(EmitterArchive.Reader in, EmitterArchive.Progress progress) throws IOException {
+        long rslt = 0;
+        while (in.next()) {
+            EmitterInfo info = in.getInfo();
+            put(in.getIdent(), info.latitude, info.longitude, info.radius, info.trust, info.note);
+            if ((++rslt % EmitterArchive.BATCH_SIZE == 0) && (progress != null))
+                progress.onProgress(rslt);
+        }
+        return rslt;
+    }
+
+    @Override
+    public void close() {
+    }
+
+    /**
+     * @return The emitters centered within a bounding box
+     */
+    private List<RfIdentification> inArea(BoundingBox bb) {
+        List<RfIdentification> rslt = new ArrayList<RfIdentification>();
+        for (int row = GeoTile.row(bb.getSouth()); row <= GeoTile.row(bb.getNorth()); row++) {
+            for (int column = GeoTile.column(bb.getWest()); column <= GeoTile.column(bb.getEast()); column++) {
+                List<RfIdentification> members = tiles.get(GeoTile.key(row, column));
+                if (members == null)
+                    continue;
+                for (RfIdentification ident : members) {
+                    EmitterInfo info = emitters.get(ident);
+                    if ((info.latitude >= bb.getSouth()) && (info.latitude <= bb.getNorth()) &&
+                            (info.longitude >= bb.getWest()) && (info.longitude <= bb.getEast()))
+                        rslt.add(ident);
+                }
+            }
+        }
+        return rslt;
+    }
+}
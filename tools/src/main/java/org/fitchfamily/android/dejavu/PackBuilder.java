@@ -0,0 +1,79 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Builds a read-only emitter pack (see EmitterPack) for a region from emitter
+ * archives (see EmitterArchive), for example the export of a database built from
+ * survey traces with DatabaseBuilder:
+ *
+ *     EmitterTransfer export rf.db region.bin.gz
+ *     PackBuilder -o emitters.pack region.bin.gz
+ *
+ * Where the archives have the same emitter the last one read is kept. The pack is
+ * written to a temporary file and renamed into place.
+ *
+ * Usage: PackBuilder [-o emitters.pack] archive...
+ */
+public class PackBuilder {
+    public static void main(String[] args) throws IOException {
+        File output = new File("emitters.pack");
+        List<File> archives = new ArrayList<File>();
+        for (int i = 0; i < args.length; i++) {
+            if (args[i].equals("-o") && (i + 1 < args.length))
+                output = new File(args[++i]);
+            else
+                archives.add(new File(args[i]));
+        }
+        if (archives.isEmpty()) {
+            System.err.println("Usage: PackBuilder [-o emitters.pack] archive...");
+            System.exit(1);
+        }
+
+        long startTime = System.nanoTime();
+        EmitterPack.Builder builder = new EmitterPack.Builder();
+        long read = 0;
+        for (File archive : archives) {
+            EmitterArchive.Reader in = new EmitterArchive.Reader(new FileInputStream(archive));
+            try {
+                while (in.next())
+                    builder.add(in.getIdent(), in.getInfo());
+            } finally {
+                in.close();
+            }
+            read += in.getCount();
+        }
+        long readTime = System.nanoTime();
+        System.out.println(String.format(Locale.US, "Read %,d emitters from %d archives in %.1f s",
+                read, archives.size(), (readTime - startTime) / 1e9));
+
+        builder.write(output);
+        System.out.println(String.format(Locale.US, "Wrote %,d emitters to %s in %.1f s, %.1f MB",
+                builder.size(), output, (System.nanoTime() - readTime) / 1e9, output.length() / 1e6));
+    }
+}
@@ -0,0 +1,549 @@
+package org.fitchfamily.android.dejavu;
+
+/*
+ *    DejaVu - A location provider backend for microG/UnifiedNlp
+ *
+ *    Copyright (C) 2017 Tod Fitch
+ *
+ *    This program is Free Software: you can redistribute it and/or modify
+ *    it under the terms of the GNU General Public License as
+ *    published by the Free Software Foundation, either version 3 of the
+ *    License, or (at your option) any later version.
+ *
+ *    This program is distributed in the hope that it will be useful,
+ *    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ *    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+ *    GNU General Public License for more details.
+ *
+ *    You should have received a copy of the GNU General Public License
+ *    along with this program.  If not, see <http://www.gnu.org/licenses/>.
+ */
+
+import java.io.File;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The emitter database of the app (see Database in the app module) on a plain JVM
+ * through JDBC, so it can be benchmarked and built off the phone. Same schema
+ * (version 3), same queries; the file can be copied to a phone as rf.db.
+ *
+ * Not thread safe, all access is through the Cache which serializes it.
+ */
+public class SqliteEmitterStore implements EmitterStore {
+    private static final int VERSION = 3;
+
+    // Maximum number of SSID to ID mappings we keep in RAM
+    private static final int MAX_SSID_CACHE_SIZE = 10000;
+
+    private static final String TABLE_SAMPLES = "emitters";
+    private static final String TABLE_NOTES = "emitter_notes";
+    private static final String TABLE_SSIDS = "ssids";
+    private static final String INDEX_LOCATION = "emitters_location";
+
+    private static final String COL_TYPE = "rfType";
+    private static final String COL_RFID = "rfID";
+    private static final String COL_TRUST = "trust";
+    private static final String COL_LAT = "latitude";
+    private static final String COL_LON = "longitude";
+    private static final String COL_RAD = "radius";
+    private static final String COL_SSID_ID = "ssidID";
+    private static final String COL_SSID = "ssid";
+
+    private final File file;
+    private Connection connection;
+    private boolean withinTransaction;
+
+    private PreparedStatement sqlSampleInsert;
+    private PreparedStatement sqlSampleReplace;
+    private PreparedStatement sqlSampleUpdate;
+    private PreparedStatement sqlAPdrop;
+    private PreparedStatement sqlNoteSet;
+    private PreparedStatement sqlNoteDrop;
+    private PreparedStatement sqlSsidInsert;
+    private PreparedStatement sqlSsidQuery;
+    private PreparedStatement sqlAreaQuery;
+    private PreparedStatement sqlEmitterQuery;
+    private PreparedStatement sqlAreaLoad;
+
+    private final Map<String,Long> ssidIds = new HashMap<String,Long>();
+
+    /**
+     * Open a database, creating it if it does not exist.
+     *
+     * @param file The database file
+     */
+    public SqliteEmitterStore(File file) {
+        this.file = file;
+        try {
+            connection = DriverManager.getConnection("jdbc:sqlite:" + file.getPath());
+            Statement st = connection.createStatement();
+            try {
+                ResultSet rs = st.executeQuery("PRAGMA user_version;");
+                int version = rs.next() ? rs.getInt(1) : 0;
+                rs.close();
+                if (version == 0)
+                    createSchema(st);
+                else if (version != VERSION)
+                    throw new IllegalStateException("Unsupported database version " + version + ": " + file);
+            } finally {
+                st.close();
+            }
+            compileStatements();
+        } catch (SQLException e) {
+            throw failed("open", e);
+        }
+    }
+
+    /**
+     * The schema the app reaches after its upgrades from version 1, see Database.
+     * The user version is what Android's SQLiteOpenHelper checks, so the app takes
+     * the file as is.
+     */
+    private static void createSchema(Statement st) throws SQLException {
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_SAMPLES + "(" +
+                COL_RFID + " STRING PRIMARY KEY, " +
+                COL_TYPE + " STRING, " +
+                COL_TRUST + " INTEGER, " +
+                COL_LAT + " REAL, " +
+                COL_LON + " REAL, " +
+                COL_RAD + " REAL);");
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_SSIDS + "(" +
+                COL_SSID_ID + " INTEGER PRIMARY KEY, " +
+                COL_SSID + " TEXT UNIQUE);");
+        st.executeUpdate("CREATE TABLE IF NOT EXISTS " + TABLE_NOTES + "(" +
+                COL_RFID + " STRING PRIMARY KEY, " +
+                COL_TYPE + " STRING, " +
+                COL_SSID_ID + " INTEGER);");
+        st.executeUpdate("CREATE INDEX IF NOT EXISTS " + INDEX_LOCATION + " ON " + TABLE_SAMPLES + "(" +
+                COL_TYPE + ", " +
+                COL_LAT + ", " +
+                COL_LON + ");");
+        st.executeUpdate("PRAGMA user_version = " + VERSION + ";");
+    }
+
+    private void compileStatements() throws SQLException {
+        sqlSampleInsert = connection.prepareStatement("INSERT INTO " +
+                TABLE_SAMPLES + "(" +
+                COL_RFID + ", " +
+                COL_TYPE + ", " +
+                COL_TRUST + ", " +
+                COL_LAT + ", " +
+                COL_LON + ", " +
+                COL_RAD + ") " +
+                "VALUES (?, ?, ?, ?, ?, ?);");
+
+        sqlSampleReplace = connection.prepareStatement("INSERT OR REPLACE INTO " +
+                TABLE_SAMPLES + "(" +
+                COL_RFID + ", " +
+                COL_TYPE + ", " +
+                COL_TRUST + ", " +
+                COL_LAT + ", " +
+                COL_LON + ", " +
+                COL_RAD + ") " +
+                "VALUES (?, ?, ?, ?, ?, ?);");
+
+        sqlSampleUpdate = connection.prepareStatement("UPDATE " +
+                TABLE_SAMPLES + " SET " +
+                COL_TRUST + "=?, " +
+                COL_LAT + "=?, " +
+                COL_LON + "=?, " +
+                COL_RAD + "=? " +
+                "WHERE " + COL_RFID + "=? AND " + COL_TYPE + "=?;");
+
+        sqlAPdrop = connection.prepareStatement("DELETE FROM " +
+                TABLE_SAMPLES +
+                " WHERE " + COL_RFID + "=? AND " + COL_TYPE + "=?;");
+
+        sqlNoteSet = connection.prepareStatement("INSERT OR REPLACE INTO " +
+                TABLE_NOTES + "(" +
+                COL_RFID + ", " +
+                COL_TYPE + ", " +
+                COL_SSID_ID + ") " +
+                "VALUES (?, ?, ?);");
+
+        sqlNoteDrop = connection.prepareStatement("DELETE FROM " +
+                TABLE_NOTES +
+                " WHERE " + COL_RFID + "=? AND " + COL_TYPE + "=?;");
+
+        sqlSsidInsert = connection.prepareStatement("INSERT OR IGNORE INTO " +
+                TABLE_SSIDS + "(" + COL_SSID + ") VALUES (?);");
+
+        sqlSsidQuery = connection.prepareStatement("SELECT " + COL_SSID_ID +
+                " FROM " + TABLE_SSIDS +
+                " WHERE " + COL_SSID + "=?;");
+
+        sqlAreaQuery = connection.prepareStatement("SELECT " +
+                COL_RFID +
+                " FROM " + TABLE_SAMPLES +
+                " WHERE " + COL_TYPE + "=?" +
+                " AND " + COL_LAT + ">=? AND " + COL_LAT + "<=?" +
+                " AND " + COL_LON + ">=? AND " + COL_LON + "<=?;");
+
+        String emitterColumns = "e." + COL_TRUST + ", " +
+                "e." + COL_LAT + ", " +
+                "e." + COL_LON + ", " +
+                "e." + COL_RAD + ", " +
+                "s." + COL_SSID +
+                " FROM " + TABLE_SAMPLES + " e" +
+                " LEFT JOIN " + TABLE_NOTES + " n" +
+                " ON n." + COL_RFID + "=e." + COL_RFID + " AND n." + COL_TYPE + "=e." + COL_TYPE +
+                " LEFT JOIN " + TABLE_SSIDS + " s" +
+                " ON s." + COL_SSID_ID + "=n." + COL_SSID_ID;
+
+        sqlEmitterQuery = connection.prepareStatement("SELECT " + emitterColumns +
+                " WHERE e." + COL_TYPE + "=? AND e." + COL_RFID + "=?;");
+
+        sqlAreaLoad = connection.prepareStatement("SELECT e." + COL_RFID + ", " + emitterColumns +
+                " WHERE e." + COL_TYPE + "=?" +
+                " AND e." + COL_LAT + ">=? AND e." + COL_LAT + "<=?" +
+                " AND e." + COL_LON + ">=? AND e." + COL_LON + "<=?;");
+    }
+
+    /**
+     * @return The database file
+     */
+    public File getFile() {
+        return file;
+    }
+
+    @Override
+    public void warmUp(BoundingBox bb) {
+    }
+
+    @Override
+    public void beginTransaction() {
+        if (withinTransaction)
+            return;
+        try {
+            connection.setAutoCommit(false);
+            withinTransaction = true;
+        } catch (SQLException e) {
+            throw failed("beginTransaction", e);
+        }
+    }
+
+    @Override
+    public void endTransaction() {
+        if (!withinTransaction)
+            return;
+        try {
+            connection.commit();
+            connection.setAutoCommit(true);
+        } catch (SQLException e) {
+            throw failed("endTransaction", e);
+        } finally {
+            withinTransaction = false;
+        }
+    }
+
+    @Override
+    public void insert(RfEmitter emitter) {
+        put(emitter.getRfIdent(), emitter.getLat(), emitter.getLon(),
+                (float) emitter.getRadius(), emitter.getTrust(), emitter.getNote());
+    }
+
+    /**
+     * Add an emitter directly, without an RfEmitter object. For filling a database
+     * in bulk, call within a transaction.
+     */
+    public void put(RfIdentification ident, double lat, double lon, float radius, long trust, String note) {
+        try {
+            sqlSampleInsert.setString(1, ident.getRfId());
+            sqlSampleInsert.setString(2, ident.getRfType().toString());
+            sqlSampleInsert.setLong(3, trust);
+            sqlSampleInsert.setDouble(4, lat);
+            sqlSampleInsert.setDouble(5, lon);
+            sqlSampleInsert.setDouble(6, radius);
+            sqlSampleInsert.executeUpdate();
+            setNote(ident, note);
+        } catch (SQLException e) {
+            throw failed("put", e);
+        }
+    }
+
+    @Override
+    public void update(RfEmitter emitter) {
+        try {
+            sqlSampleUpdate.setLong(1, emitter.getTrust());
+            sqlSampleUpdate.setDouble(2, emitter.getLat());
+            sqlSampleUpdate.setDouble(3, emitter.getLon());
+            sqlSampleUpdate.setDouble(4, emitter.getRadius());
+            sqlSampleUpdate.setString(5, emitter.getId());
+            sqlSampleUpdate.setString(6, emitter.getTypeString());
+            sqlSampleUpdate.executeUpdate();
+            if (emitter.noteSyncNeeded())
+                setNote(emitter.getRfIdent(), emitter.getNote());
+        } catch (SQLException e) {
+            throw failed("update", e);
+        }
+    }
+
+    @Override
+    public void updateNote(RfEmitter emitter) {
+        try {
+            setNote(emitter.getRfIdent(), emitter.getNote());
+        } catch (SQLException e) {
+            throw failed("updateNote", e);
+        }
+    }
+
+    private void setNote(RfIdentification ident, String note) throws SQLException {
+        if ((note == null) || note.isEmpty()) {
+            sqlNoteDrop.setString(1, ident.getRfId());
+            sqlNoteDrop.setString(2, ident.getRfType().toString());
+            sqlNoteDrop.executeUpdate();
+        } else {
+            sqlNoteSet.setString(1, ident.getRfId());
+            sqlNoteSet.setString(2, ident.getRfType().toString());
+            sqlNoteSet.setLong(3, getSsidId(note));
+            sqlNoteSet.executeUpdate();
+        }
+    }
+
+    /**
+     * Get the dictionary ID for a SSID, adding it to the dictionary if needed.
+     */
+    private long getSsidId(String ssid) throws SQLException {
+        Long rslt = ssidIds.get(ssid);
+        if (rslt != null)
+            return rslt;
+
+        sqlSsidInsert.setString(1, ssid);
+        sqlSsidInsert.executeUpdate();
+
+        sqlSsidQuery.setString(1, ssid);
+        ResultSet rs = sqlSsidQuery.executeQuery();
+        try {
+            rs.next();
+            rslt = rs.getLong(1);
+        } finally {
+            rs.close();
+        }
+
+        if (ssidIds.size() >= MAX_SSID_CACHE_SIZE)
+            ssidIds.clear();
+        ssidIds.put(ssid, rslt);
+        return rslt;
+    }
+
+    @Override
+    public void drop(RfEmitter emitter) {
+        try {
+            sqlAPdrop.setString(1, emitter.getId());
+            sqlAPdrop.setString(2, emitter.getTypeString());
+            sqlAPdrop.executeUpdate();
+            setNote(emitter.getRfIdent(), null);
+        } catch (SQLException e) {
+            throw failed("drop", e);
+        }
+    }
+
+    @Override
+    public HashSet<RfIdentification> getEmitters(RfEmitter.EmitterType rfType, BoundingBox bb) {
+        HashSet<RfIdentification> rslt = new HashSet<RfIdentification>();
+        try {
+            bindArea(sqlAreaQuery, rfType, bb);
+            ResultSet rs = sqlAreaQuery.executeQuery();
+            try {
+                while (rs.next())
+                    rslt.add(new RfIdentification(rs.getString(1), rfType));
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw failed("getEmitters", e);
+        }
+        return rslt;
+    }
+
+    @Override
+    public RfEmitter getEmitter(RfIdentification ident) {
+        RfEmitter rslt = null;
+        try {
+            sqlEmitterQuery.setString(1, ident.getRfType().toString());
+            sqlEmitterQuery.setString(2, ident.getRfId());
+            ResultSet rs = sqlEmitterQuery.executeQuery();
+            try {
+                if (rs.next()) {
+                    rslt = new RfEmitter(ident, 0);
+                    rslt.updateInfo(readInfo(rs, 1));
+                }
+            } finally {
+                rs.close();
+            }
+        } catch (SQLException e) {
+            throw failed("getEmitter", e);
+        }
+        return rslt;
+    }
+
+    @Override
+    public List<RfEmitter> loadEmitters(BoundingBox bb) {
+        List<RfEmitter> rslt = new ArrayList<RfEmitter>();
+        try {
+            for (RfEmitter.EmitterType rfType : RfEmitter.EmitterType.values()) {
+                bindArea(sqlAreaLoad, rfType, bb);
+                ResultSet rs = sqlAreaLoad.executeQuery();
+                try {
+                    while (rs.next()) {
+                        RfEmitter e = new RfEmitter(new RfIdentification(rs.getString(1), rfType), 0);
+                        e.updateInfo(readInfo(rs, 2));
+                        rslt.add(e);
+                    }
+                } finally {
+                    rs.close();
+                }
+            }
+        } catch (SQLException e) {
+            throw failed("loadEmitters", e);
+        }
+        return rslt;
+    }
+
+    @Override
+    public long exportEmitters(EmitterArchive.Writer out, EmitterArchive.Progress progress) throws IOException {
+        long rslt = 0;
+        try {
+            Statement st = connection.createStatement();
+            try {
+                ResultSet rs = st.executeQuery("SELECT e." + COL_RFID + ", e." + COL_TYPE + ", " +
+                        "e." + COL_TRUST + ", " +
+                        "e." + COL_LAT + ", " +
+                        "e." + COL_LON + ", " +
+                        "e." + COL_RAD + ", " +
+                        "s." + COL_SSID +
+                        " FROM " + TABLE_SAMPLES + " e" +
+                        " LEFT JOIN " + TABLE_NOTES + " n" +
+                        " ON n." + COL_RFID + "=e." + COL_RFID + " AND n." + COL_TYPE + "=e." + COL_TYPE +
+                        " LEFT JOIN " + TABLE_SSIDS + " s" +
+                        " ON s." + COL_SSID_ID + "=n." + COL_SSID_ID + ";");
+                try {
+                    while (rs.next()) {
+                        RfEmitter.EmitterType rfType;
+                        try {
+                            rfType = RfEmitter.EmitterType.valueOf(rs.getString(2));
+                        } catch (IllegalArgumentException e) {
+                            continue;
+                        }
+                        out.write(new RfIdentification(rs.getString(1), rfType), readInfo(rs, 3));
+                        if ((++rslt % EmitterArchive.BATCH_SIZE == 0) && (progress != null))
+                            progress.onProgress(rslt);
+                    }
+                } finally {
+                    rs.close();
+                }
+            } finally {
+                st.close();
+            }
+        } catch (SQLException e) {
+            throw failed("exportEmitters", e);
+        }
+        return rslt;
+    }
+
+    /**
+     * See Database.importEmitters(), the location index is dropped while the rows
+     * are written in transactions of EmitterArchive.BATCH_SIZE and rebuilt at the end.
+     */
+    @Override
+    public long importEmitters(EmitterArchive.Reader in, EmitterArchive.Progress progress) throws IOException {
+        long rslt = 0;
+        try {
+            Statement st = connection.createStatement();
+            try {
+                st.executeUpdate("DROP INDEX IF EXISTS " + INDEX_LOCATION + ";");
+                beginTransaction();
+                try {
+                    while (in.next()) {
+                        RfIdentification ident = in.getIdent();
+                        EmitterInfo info = in.getInfo();
+                        sqlSampleReplace.setString(1, ident.getRfId());
+                        sqlSampleReplace.setString(2, ident.getRfType().toString());
+                        sqlSampleReplace.setLong(3, info.trust);
+                        sqlSampleReplace.setDouble(4, info.latitude);
+                        sqlSampleReplace.setDouble(5, info.longitude);
+                        sqlSampleReplace.setDouble(6, info.radius);
+                        sqlSampleReplace.executeUpdate();
+                        setNote(ident, info.note);
+
+                        if (++rslt % EmitterArchive.BATCH_SIZE == 0) {
+                            connection.commit();
+                            if (progress != null)
+                                progress.onProgress(rslt);
+                        }
+                    }
+                } finally {
+                    endTransaction();
+                }
+            } finally {
+                try {
+                    st.executeUpdate("CREATE INDEX IF NOT EXISTS " + INDEX_LOCATION + " ON " + TABLE_SAMPLES + "(" +
+                            COL_TYPE + ", " +
+                            COL_LAT + ", " +
+                            COL_LON + ");");
+                } finally {
+                    st.close();
+                }
+            }
+        } catch (SQLException e) {
+            throw failed("importEmitters", e);
+        }
+        return rslt;
+    }
+
+    private static void bindArea(PreparedStatement st, RfEmitter.EmitterType rfType, BoundingBox bb)
+            throws SQLException {
+        st.setString(1, rfType.toString());
+        st.setDouble(2, bb.getSouth());
+        st.setDouble(3, bb.getNorth());
+        st.setDouble(4, bb.getWest());
+        st.setDouble(5, bb.getEast());
+    }
+
+    /**
+     * @param rs A row with the trust, latitude, longitude, radius and SSID columns
+     * @param column The first of those columns
+     */
+    private static EmitterInfo readInfo(ResultSet rs, int column) throws SQLException {
+        EmitterInfo rslt = new EmitterInfo();
+        rslt.trust = rs.getLong(column);
+        rslt.latitude = rs.getDouble(column + 1);
+        rslt.longitude = rs.getDouble(column + 2);
+        rslt.radius = (float) rs.getDouble(column + 3);
+        rslt.note = rs.getString(column + 4);
+        if (rslt.note == null)
+            rslt.note = "";
+        return rslt;
+    }
+
+    @Override
+    public void close() {
+        if (connection == null)
+            return;
+        try {
+            if (withinTransaction)
+                endTransaction();
+            connection.close();
+        } catch (SQLException e) {
+            throw failed("close", e);
+        } finally {
+            connection = null;
+            ssidIds.clear();
+        }
+    }
+
+    private RuntimeException failed(String operation, SQLException e) {
+        return new IllegalStateException(operation + "() failed on " + file, e);
+    }
+}